@@ -1117,9 +1117,10 @@ public final class HConstants {
   // hbase-common?
 
   /**
-   * Current ioengine options in include: heap, offheap and file:PATH (where PATH is the path
-   * to the file that will host the file-based cache.  See BucketCache#getIOEngineFromName() for
-   * list of supported ioengine options.
+   * Current ioengine options in include: heap, offheap, file:PATH (where PATH is the path
+   * to the file that will host the file-based cache) and mmap:PATH (the same, with the file
+   * memory mapped).  See BucketCache#getIOEngineFromName() for list of supported ioengine
+   * options.
    * <p>Set this option and a non-zero {@link #BUCKET_CACHE_SIZE_KEY} to enable bucket cache.
    */
   public static final String BUCKET_CACHE_IOENGINE_KEY = "hbase.bucketcache.ioengine";
@@ -0,0 +1,474 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.hadoop.hbase.io.encoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.KeyValue.KVComparator;
+import org.apache.hadoop.hbase.io.hfile.BlockType;
+import org.apache.hadoop.hbase.util.ByteBufferUtils;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Encoder laying the cells of a block out column by column rather than one whole cell after
+ * the other. The rows, families, qualifiers, timestamps, values, tags, memstore timestamps and
+ * types of all the cells of a block each go together, so that the block compresses better, and
+ * a row or family is stored once for all the cells in a row that share it. The seeker puts the
+ * key of each cell together from the columns, copying the row and family only when they change,
+ * and leaves the values where they are in the block, so going over cells costs nothing for
+ * values which are not looked at.
+ *
+ * Format:
+ * - 4 bytes:   unencoded size of the block
+ * - 8 bytes:   timestamp of the first cell
+ * - 4 bytes:   offset of each column from the row runs to the types, in that order
+ * - rows:        per row, the length of the prefix in common with the row before, the length
+ *                of the rest of the row and the rest of the row
+ * - row runs:    per row, the number of cells in it
+ * - families:    per run of cells in the same family, 1 byte of family length and the family
+ * - family runs: per run of cells in the same family, the number of cells in it
+ * - qualifiers:  per cell, the qualifier length and the qualifier
+ * - timestamps:  per cell, the difference to the timestamp of the first cell as a vlong
+ * - values:      per cell, the value length and the value
+ * - tags:        per cell, the tags length and the tags (only if tags are included)
+ * - mvcc:        per cell, the memstore timestamp as a vlong (only if it is included)
+ * - types:       per cell, 1 byte of type
+ *
+ * Lengths and numbers of cells use integer compression (7-bit encoding). Tags are stored as
+ * they are, never compressed with a dictionary.
+ */
+@InterfaceAudience.Private
+public class ColumnarDataBlockEncoder extends BufferedDataBlockEncoder {
+  static final int ROWS = 0;
+  static final int ROW_RUNS = 1;
+  static final int FAMILIES = 2;
+  static final int FAMILY_RUNS = 3;
+  static final int QUALIFIERS = 4;
+  static final int TIMESTAMPS = 5;
+  static final int VALUES = 6;
+  static final int TAGS = 7;
+  static final int MVCC = 8;
+  static final int TYPES = 9;
+  static final int COLUMNS = 10;
+
+  /** Where the offsets of the columns start; the rows come right after the header */
+  private static final int COLUMN_OFFSETS = Bytes.SIZEOF_INT + Bytes.SIZEOF_LONG;
+  static final int HEADER_SIZE = COLUMN_OFFSETS + (COLUMNS - 1) * Bytes.SIZEOF_INT;
+
+  private static class ColumnarEncodingState extends EncodingState {
+    final ByteArrayOutputStream[] columns = new ByteArrayOutputStream[COLUMNS];
+    final DataOutputStream[] columnStreams = new DataOutputStream[COLUMNS];
+    int unencodedDataSizeWritten = 0;
+    long firstTimestamp;
+    /** Cells in the current row and in the current run of a family so far */
+    int rowCells = 0;
+    int familyCells = 0;
+
+    ColumnarEncodingState() {
+      for (int i = 0; i < COLUMNS; i++) {
+        columns[i] = new ByteArrayOutputStream();
+        columnStreams[i] = new DataOutputStream(columns[i]);
+      }
+    }
+
+    void reset() {
+      for (ByteArrayOutputStream column : columns) {
+        column.reset();
+      }
+      prevCell = null;
+      unencodedDataSizeWritten = 0;
+      rowCells = 0;
+      familyCells = 0;
+    }
+  }
+
+  @Override
+  public void startBlockEncoding(HFileBlockEncodingContext blkEncodingCtx, DataOutputStream out)
+      throws IOException {
+    // The columns of the block before are used again
+    EncodingState previousState = blkEncodingCtx.getEncodingState();
+    super.startBlockEncoding(blkEncodingCtx, out);
+    ColumnarEncodingState state;
+    if (previousState instanceof ColumnarEncodingState) {
+      state = (ColumnarEncodingState) previousState;
+      state.reset();
+    } else {
+      state = new ColumnarEncodingState();
+    }
+    blkEncodingCtx.setEncodingState(state);
+  }
+
+  @Override
+  public int encode(Cell cell, HFileBlockEncodingContext encodingCtx, DataOutputStream out)
+      throws IOException {
+    ColumnarEncodingState state = (ColumnarEncodingState) encodingCtx.getEncodingState();
+    int encodedKvSize = internalEncode(cell, (HFileBlockDefaultEncodingContext) encodingCtx, out);
+    state.unencodedDataSizeWritten += encodedKvSize;
+    return encodedKvSize;
+  }
+
+  /**
+   * Adds the cell to the columns of the block. Nothing is written out before the block ends.
+   */
+  @Override
+  public int internalEncode(Cell cell, HFileBlockDefaultEncodingContext encodingCtx,
+      DataOutputStream out) throws IOException {
+    ColumnarEncodingState state = (ColumnarEncodingState) encodingCtx.getEncodingState();
+    DataOutputStream[] columns = state.columnStreams;
+    Cell prevCell = state.prevCell;
+    if (prevCell == null) {
+      state.firstTimestamp = cell.getTimestamp();
+    }
+    if (prevCell == null || !CellUtil.matchingRow(prevCell, cell)) {
+      int commonPrefix = 0;
+      if (prevCell != null) {
+        ByteBufferUtils.putCompressedInt(columns[ROW_RUNS], state.rowCells);
+        commonPrefix = ByteBufferUtils.findCommonPrefix(prevCell.getRowArray(),
+            prevCell.getRowOffset(), prevCell.getRowLength(), cell.getRowArray(),
+            cell.getRowOffset(), cell.getRowLength());
+      }
+      ByteBufferUtils.putCompressedInt(columns[ROWS], commonPrefix);
+      ByteBufferUtils.putCompressedInt(columns[ROWS], cell.getRowLength() - commonPrefix);
+      columns[ROWS].write(cell.getRowArray(), cell.getRowOffset() + commonPrefix,
+          cell.getRowLength() - commonPrefix);
+      state.rowCells = 0;
+    }
+    state.rowCells++;
+    if (prevCell == null || !CellUtil.matchingFamily(prevCell, cell)) {
+      if (prevCell != null) {
+        ByteBufferUtils.putCompressedInt(columns[FAMILY_RUNS], state.familyCells);
+      }
+      columns[FAMILIES].writeByte(cell.getFamilyLength());
+      columns[FAMILIES].write(cell.getFamilyArray(), cell.getFamilyOffset(),
+          cell.getFamilyLength());
+      state.familyCells = 0;
+    }
+    state.familyCells++;
+    ByteBufferUtils.putCompressedInt(columns[QUALIFIERS], cell.getQualifierLength());
+    columns[QUALIFIERS].write(cell.getQualifierArray(), cell.getQualifierOffset(),
+        cell.getQualifierLength());
+    WritableUtils.writeVLong(columns[TIMESTAMPS], cell.getTimestamp() - state.firstTimestamp);
+    ByteBufferUtils.putCompressedInt(columns[VALUES], cell.getValueLength());
+    columns[VALUES].write(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+    int size = KeyValueUtil.keyLength(cell) + cell.getValueLength()
+        + KeyValue.KEYVALUE_INFRASTRUCTURE_SIZE;
+    if (encodingCtx.getHFileContext().isIncludesTags()) {
+      int tagsLength = cell.getTagsLength();
+      ByteBufferUtils.putCompressedInt(columns[TAGS], tagsLength);
+      columns[TAGS].write(cell.getTagsArray(), cell.getTagsOffset(), tagsLength);
+      size += tagsLength + KeyValue.TAGS_LENGTH_SIZE;
+    }
+    if (encodingCtx.getHFileContext().isIncludesMvcc()) {
+      WritableUtils.writeVLong(columns[MVCC], cell.getSequenceId());
+      size += WritableUtils.getVIntSize(cell.getSequenceId());
+    }
+    columns[TYPES].writeByte(cell.getTypeByte());
+    state.prevCell = cell;
+    return size;
+  }
+
+  @Override
+  public void endBlockEncoding(HFileBlockEncodingContext encodingCtx, DataOutputStream out,
+      byte[] uncompressedBytesWithHeader) throws IOException {
+    ColumnarEncodingState state = (ColumnarEncodingState) encodingCtx.getEncodingState();
+    // Write the unencodedDataSizeWritten (with header size). This has to come before the
+    // columns, as the block may be copied into a larger array as they are written.
+    Bytes.putInt(uncompressedBytesWithHeader, HConstants.HFILEBLOCK_HEADER_SIZE
+        + DataBlockEncoding.ID_SIZE, state.unencodedDataSizeWritten);
+    if (state.prevCell != null) {
+      ByteBufferUtils.putCompressedInt(state.columnStreams[ROW_RUNS], state.rowCells);
+      ByteBufferUtils.putCompressedInt(state.columnStreams[FAMILY_RUNS], state.familyCells);
+    }
+    out.writeLong(state.firstTimestamp);
+    int offset = HEADER_SIZE;
+    for (int i = ROWS + 1; i < COLUMNS; i++) {
+      offset += state.columns[i - 1].size();
+      out.writeInt(offset);
+    }
+    for (ByteArrayOutputStream column : state.columns) {
+      column.writeTo(out);
+    }
+    encodingCtx.postEncoding(BlockType.ENCODED_DATA);
+  }
+
+  /**
+   * @return the offset of the column in the block, counted from the unencoded size
+   */
+  private static int getColumnOffset(ByteBuffer block, int column) {
+    if (column == ROWS) {
+      return HEADER_SIZE;
+    }
+    return block.getInt(COLUMN_OFFSETS + (column - 1) * Bytes.SIZEOF_INT);
+  }
+
+  @Override
+  public ByteBuffer getFirstKeyInBlock(ByteBuffer block) {
+    ByteBuffer dup = block.duplicate();
+    // The first row has no prefix in common with a row before it
+    dup.position(HEADER_SIZE);
+    ByteBufferUtils.readCompressedInt(dup);
+    int rowLength = ByteBufferUtils.readCompressedInt(dup);
+    int rowOffset = dup.position();
+    dup.position(getColumnOffset(block, FAMILIES));
+    int familyLength = dup.get();
+    int familyOffset = dup.position();
+    dup.position(getColumnOffset(block, QUALIFIERS));
+    int qualifierLength = ByteBufferUtils.readCompressedInt(dup);
+    int qualifierOffset = dup.position();
+    byte type = block.get(getColumnOffset(block, TYPES));
+
+    ByteBuffer key = ByteBuffer.allocate(rowLength + familyLength + qualifierLength
+        + KeyValue.KEY_INFRASTRUCTURE_SIZE);
+    key.putShort((short) rowLength);
+    ByteBufferUtils.copyFromBufferToBuffer(key, block, rowOffset, rowLength);
+    key.put((byte) familyLength);
+    ByteBufferUtils.copyFromBufferToBuffer(key, block, familyOffset, familyLength);
+    ByteBufferUtils.copyFromBufferToBuffer(key, block, qualifierOffset, qualifierLength);
+    key.putLong(block.getLong(Bytes.SIZEOF_INT));
+    key.put(type);
+    key.rewind();
+    return key;
+  }
+
+  @Override
+  public String toString() {
+    return ColumnarDataBlockEncoder.class.getSimpleName();
+  }
+
+  @Override
+  public EncodedSeeker createSeeker(KVComparator comparator,
+      HFileBlockDecodingContext decodingCtx) {
+    return new ColumnarSeeker(comparator, decodingCtx);
+  }
+
+  @Override
+  protected ByteBuffer internalDecodeKeyValues(DataInputStream source, int allocateHeaderLength,
+      int skipLastBytes, HFileBlockDefaultDecodingContext decodingCtx) throws IOException {
+    int decompressedSize = source.readInt();
+    ByteBuffer buffer = ByteBuffer.allocate(decompressedSize + allocateHeaderLength);
+    buffer.position(allocateHeaderLength);
+    if (decompressedSize == 0) {
+      return buffer;
+    }
+    // The offsets of the columns count from the unencoded size
+    byte[] block = new byte[Bytes.SIZEOF_INT + source.available() - skipLastBytes];
+    source.readFully(block, Bytes.SIZEOF_INT, block.length - Bytes.SIZEOF_INT);
+    ColumnarSeeker seeker = new ColumnarSeeker(KeyValue.COMPARATOR, decodingCtx);
+    seeker.setCurrentBuffer(ByteBuffer.wrap(block));
+    do {
+      seeker.writeCurrent(buffer);
+    } while (seeker.next());
+    return buffer;
+  }
+
+  /**
+   * Where the seeker is in each of the columns but the types, which the position of the block
+   * stands for.
+   */
+  private static class ColumnarSeekerState extends SeekerState {
+    int nextRow;
+    int nextRowRun;
+    int rowCellsLeft;
+    int nextFamily;
+    int nextFamilyRun;
+    int familyCellsLeft;
+    int familyOffset;
+    int familyLength;
+    int nextQualifier;
+    int nextTimestamp;
+    int nextValue;
+    int nextTags;
+    int nextMvcc;
+
+    @Override
+    protected void copyFromNext(SeekerState that) {
+      super.copyFromNext(that);
+      ColumnarSeekerState nextState = (ColumnarSeekerState) that;
+      nextRow = nextState.nextRow;
+      nextRowRun = nextState.nextRowRun;
+      rowCellsLeft = nextState.rowCellsLeft;
+      nextFamily = nextState.nextFamily;
+      nextFamilyRun = nextState.nextFamilyRun;
+      familyCellsLeft = nextState.familyCellsLeft;
+      familyOffset = nextState.familyOffset;
+      familyLength = nextState.familyLength;
+      nextQualifier = nextState.nextQualifier;
+      nextTimestamp = nextState.nextTimestamp;
+      nextValue = nextState.nextValue;
+      nextTags = nextState.nextTags;
+      nextMvcc = nextState.nextMvcc;
+    }
+  }
+
+  private static class ColumnarSeeker extends BufferedEncodedSeeker<ColumnarSeekerState> {
+    private long firstTimestamp;
+
+    ColumnarSeeker(KVComparator comparator, HFileBlockDecodingContext decodingCtx) {
+      super(comparator, decodingCtx);
+      // Tags are stored as they are
+      tagCompressionContext = null;
+    }
+
+    @Override
+    protected ColumnarSeekerState createSeekerState() {
+      return new ColumnarSeekerState();
+    }
+
+    @Override
+    protected void decodeFirst() {
+      firstTimestamp = currentBuffer.getLong(Bytes.SIZEOF_INT);
+      current.nextRow = getColumnOffset(currentBuffer, ROWS);
+      current.nextRowRun = getColumnOffset(currentBuffer, ROW_RUNS);
+      current.rowCellsLeft = 0;
+      current.nextFamily = getColumnOffset(currentBuffer, FAMILIES);
+      current.nextFamilyRun = getColumnOffset(currentBuffer, FAMILY_RUNS);
+      current.familyCellsLeft = 0;
+      current.nextQualifier = getColumnOffset(currentBuffer, QUALIFIERS);
+      current.nextTimestamp = getColumnOffset(currentBuffer, TIMESTAMPS);
+      current.nextValue = getColumnOffset(currentBuffer, VALUES);
+      current.nextTags = getColumnOffset(currentBuffer, TAGS);
+      current.nextMvcc = getColumnOffset(currentBuffer, MVCC);
+      currentBuffer.position(getColumnOffset(currentBuffer, TYPES));
+      decodeNext();
+    }
+
+    @Override
+    protected void decodeNext() {
+      int typeOffset = currentBuffer.position();
+      boolean newRow = current.rowCellsLeft == 0;
+      int rowLength;
+      int rowCommonPrefix = 0;
+      int rowSuffixOffset = 0;
+      if (newRow) {
+        currentBuffer.position(current.nextRowRun);
+        current.rowCellsLeft = ByteBufferUtils.readCompressedInt(currentBuffer);
+        current.nextRowRun = currentBuffer.position();
+        currentBuffer.position(current.nextRow);
+        rowCommonPrefix = ByteBufferUtils.readCompressedInt(currentBuffer);
+        int rowSuffixLength = ByteBufferUtils.readCompressedInt(currentBuffer);
+        rowLength = rowCommonPrefix + rowSuffixLength;
+        rowSuffixOffset = currentBuffer.position();
+        current.nextRow = rowSuffixOffset + rowSuffixLength;
+      } else {
+        rowLength = Bytes.toShort(current.keyBuffer, 0);
+      }
+      current.rowCellsLeft--;
+      boolean newFamily = current.familyCellsLeft == 0;
+      if (newFamily) {
+        currentBuffer.position(current.nextFamilyRun);
+        current.familyCellsLeft = ByteBufferUtils.readCompressedInt(currentBuffer);
+        current.nextFamilyRun = currentBuffer.position();
+        currentBuffer.position(current.nextFamily);
+        current.familyLength = currentBuffer.get();
+        current.familyOffset = currentBuffer.position();
+        current.nextFamily = current.familyOffset + current.familyLength;
+      }
+      current.familyCellsLeft--;
+      currentBuffer.position(current.nextQualifier);
+      int qualifierLength = ByteBufferUtils.readCompressedInt(currentBuffer);
+      int qualifierOffset = currentBuffer.position();
+      current.nextQualifier = qualifierOffset + qualifierLength;
+      currentBuffer.position(current.nextTimestamp);
+      long timestamp = firstTimestamp + ByteBufferUtils.readVLong(currentBuffer);
+      current.nextTimestamp = currentBuffer.position();
+      currentBuffer.position(current.nextValue);
+      current.valueLength = ByteBufferUtils.readCompressedInt(currentBuffer);
+      current.valueOffset = currentBuffer.position();
+      current.nextValue = current.valueOffset + current.valueLength;
+      if (includesTags()) {
+        currentBuffer.position(current.nextTags);
+        current.tagsLength = ByteBufferUtils.readCompressedInt(currentBuffer);
+        current.tagsOffset = currentBuffer.position();
+        current.nextTags = current.tagsOffset + current.tagsLength;
+      }
+      if (includesMvcc()) {
+        currentBuffer.position(current.nextMvcc);
+        current.memstoreTS = ByteBufferUtils.readVLong(currentBuffer);
+        current.nextMvcc = currentBuffer.position();
+      } else {
+        current.memstoreTS = 0;
+      }
+
+      // The row and the family in the key are still those of the cell before unless they
+      // changed, and the row only from where it differs from the one before
+      current.keyLength = rowLength + current.familyLength + qualifierLength
+          + KeyValue.KEY_INFRASTRUCTURE_SIZE;
+      current.ensureSpaceForKey();
+      byte[] key = current.keyBuffer;
+      int pos = Bytes.SIZEOF_SHORT;
+      if (newRow) {
+        Bytes.putShort(key, 0, (short) rowLength);
+        ByteBufferUtils.copyFromBufferToArray(key, currentBuffer, rowSuffixOffset,
+            pos + rowCommonPrefix, rowLength - rowCommonPrefix);
+      }
+      pos += rowLength;
+      if (newRow || newFamily) {
+        key[pos] = (byte) current.familyLength;
+        ByteBufferUtils.copyFromBufferToArray(key, currentBuffer, current.familyOffset, pos + 1,
+            current.familyLength);
+      }
+      pos += Bytes.SIZEOF_BYTE + current.familyLength;
+      ByteBufferUtils.copyFromBufferToArray(key, currentBuffer, qualifierOffset, pos,
+          qualifierLength);
+      pos = Bytes.putLong(key, pos + qualifierLength, timestamp);
+      currentBuffer.position(typeOffset);
+      key[pos] = currentBuffer.get();
+      current.nextKvOffset = currentBuffer.position();
+
+      if (newRow) {
+        current.lastCommonPrefix = 0;
+      } else if (newFamily) {
+        current.lastCommonPrefix = Bytes.SIZEOF_SHORT + rowLength;
+      } else {
+        current.lastCommonPrefix = Bytes.SIZEOF_SHORT + rowLength + Bytes.SIZEOF_BYTE
+            + current.familyLength;
+      }
+    }
+
+    /**
+     * Writes the current cell the way cells are in unencoded blocks.
+     */
+    void writeCurrent(ByteBuffer out) {
+      out.putInt(current.keyLength);
+      out.putInt(current.valueLength);
+      out.put(current.keyBuffer, 0, current.keyLength);
+      ByteBufferUtils.copyFromBufferToBuffer(out, currentBuffer, current.valueOffset,
+          current.valueLength);
+      if (includesTags()) {
+        // Put as unsigned short
+        out.put((byte) ((current.tagsLength >> 8) & 0xff));
+        out.put((byte) (current.tagsLength & 0xff));
+        ByteBufferUtils.copyFromBufferToBuffer(out, currentBuffer, current.tagsOffset,
+            current.tagsLength);
+      }
+      if (includesMvcc()) {
+        ByteBufferUtils.writeVLong(out, current.memstoreTS);
+      }
+    }
+  }
+}
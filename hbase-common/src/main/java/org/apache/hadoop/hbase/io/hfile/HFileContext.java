@@ -56,6 +56,8 @@ public class HFileContext implements HeapSize, Cloneable {
   private DataBlockEncoding encoding = DataBlockEncoding.NONE;
   /** Encryption algorithm and key used */
   private Encryption.Context cryptoContext = Encryption.Context.NONE;
+  /** Whether unencoded data blocks end with the offsets of the rows starting in them */
+  private boolean includesRowIndex;
 
   //Empty constructor.  Go with setters
   public HFileContext() {
@@ -76,12 +78,13 @@ public class HFileContext implements HeapSize, Cloneable {
     this.blocksize = context.blocksize;
     this.encoding = context.encoding;
     this.cryptoContext = context.cryptoContext;
+    this.includesRowIndex = context.includesRowIndex;
   }
 
   public HFileContext(boolean useHBaseChecksum, boolean includesMvcc, boolean includesTags,
       Compression.Algorithm compressAlgo, boolean compressTags, ChecksumType checksumType,
       int bytesPerChecksum, int blockSize, DataBlockEncoding encoding,
-      Encryption.Context cryptoContext) {
+      Encryption.Context cryptoContext, boolean includesRowIndex) {
     this.usesHBaseChecksum = useHBaseChecksum;
     this.includesMvcc =  includesMvcc;
     this.includesTags = includesTags;
@@ -94,6 +97,7 @@ public class HFileContext implements HeapSize, Cloneable {
       this.encoding = encoding;
     }
     this.cryptoContext = cryptoContext;
+    this.includesRowIndex = includesRowIndex;
   }
 
   /**
@@ -177,6 +181,14 @@ public class HFileContext implements HeapSize, Cloneable {
     this.cryptoContext = cryptoContext;
   }
 
+  public boolean isIncludesRowIndex() {
+    return includesRowIndex;
+  }
+
+  public void setIncludesRowIndex(boolean includesRowIndex) {
+    this.includesRowIndex = includesRowIndex;
+  }
+
   /**
    * HeapSize implementation
    * NOTE : The heapsize should be altered as and when new state variable are added
@@ -188,8 +200,8 @@ public class HFileContext implements HeapSize, Cloneable {
         // Algorithm reference, encodingon, checksumtype, Encryption.Context reference
         4 * ClassSize.REFERENCE +
         2 * Bytes.SIZEOF_INT +
-        // usesHBaseChecksum, includesMvcc, includesTags and compressTags
-        4 * Bytes.SIZEOF_BOOLEAN);
+        // usesHBaseChecksum, includesMvcc, includesTags, compressTags and includesRowIndex
+        5 * Bytes.SIZEOF_BOOLEAN);
     return size;
   }
 
@@ -215,6 +227,7 @@ public class HFileContext implements HeapSize, Cloneable {
     sb.append(" includesTags=");      sb.append(includesTags);
     sb.append(" compressAlgo=");      sb.append(compressAlgo);
     sb.append(" compressTags=");      sb.append(compressTags);
+    sb.append(" includesRowIndex=");  sb.append(includesRowIndex);
     sb.append(" cryptoContext=[ ");   sb.append(cryptoContext);      sb.append(" ]");
     sb.append(" ]");
     return sb.toString();
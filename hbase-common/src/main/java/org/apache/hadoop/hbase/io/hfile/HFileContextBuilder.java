@@ -52,6 +52,8 @@ public class HFileContextBuilder {
   private DataBlockEncoding encoding = DataBlockEncoding.NONE;
   /** Crypto context */
   private Encryption.Context cryptoContext = Encryption.Context.NONE;
+  /** Whether unencoded data blocks end with the offsets of the rows starting in them */
+  private boolean includesRowIndex = false;
 
   public HFileContextBuilder withHBaseCheckSum(boolean useHBaseCheckSum) {
     this.usesHBaseChecksum = useHBaseCheckSum;
@@ -103,8 +105,14 @@ public class HFileContextBuilder {
     return this;
   }
 
+  public HFileContextBuilder withIncludesRowIndex(boolean includesRowIndex) {
+    this.includesRowIndex = includesRowIndex;
+    return this;
+  }
+
   public HFileContext build() {
     return new HFileContext(usesHBaseChecksum, includesMvcc, includesTags, compression,
-      compressTags, checksumType, bytesPerChecksum, blocksize, encoding, cryptoContext);
+      compressTags, checksumType, bytesPerChecksum, blocksize, encoding, cryptoContext,
+      includesRowIndex);
   }
 }
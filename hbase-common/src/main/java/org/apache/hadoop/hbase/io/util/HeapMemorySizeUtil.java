@@ -36,6 +36,9 @@ public class HeapMemorySizeUtil {
       "hbase.regionserver.global.memstore.size.lower.limit";
   public static final String MEMSTORE_SIZE_LOWER_LIMIT_OLD_KEY =
       "hbase.regionserver.global.memstore.lowerLimit";
+  /** Size in MB of the off heap memory memstores may use, 0 for none */
+  public static final String OFFHEAP_MEMSTORE_SIZE_KEY =
+      "hbase.regionserver.offheap.global.memstore.size";
 
   public static final float DEFAULT_MEMSTORE_SIZE = 0.4f;
   // Default lower water mark limit is 95% size of memstore size.
@@ -114,6 +117,16 @@ public class HeapMemorySizeUtil {
     return DEFAULT_MEMSTORE_SIZE_LOWER_LIMIT;
   }
 
+  /**
+   * Retrieve configured size for global off heap memstore.
+   * @param conf
+   * @return size in bytes, 0 when memstores do not use off heap memory
+   */
+  public static long getOffheapGlobalMemstoreSize(final Configuration conf) {
+    long sizeInMB = conf.getLong(OFFHEAP_MEMSTORE_SIZE_KEY, 0);
+    return sizeInMB * 1024 * 1024;
+  }
+
   /**
    * Retrieve configured size for on heap block cache as percentage of total heap.
    * @param conf
@@ -0,0 +1,39 @@
+/**
+ * Copyright The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.hadoop.hbase.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+
+/**
+ * Allocates the buffers of a {@link ByteBufferArray}, e.g. by mapping consecutive segments of a
+ * file into memory.
+ */
+@InterfaceAudience.Private
+public interface ByteBufferAllocator {
+  /**
+   * Allocates the next buffer of the array. Called once per buffer, in order.
+   * @param size capacity of the buffer
+   * @return the buffer
+   * @throws IOException
+   */
+  ByteBuffer allocate(int size) throws IOException;
+}
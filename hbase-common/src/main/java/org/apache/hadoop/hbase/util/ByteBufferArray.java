@@ -18,6 +18,7 @@
  */
 package org.apache.hadoop.hbase.util;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -49,21 +50,55 @@ public final class ByteBufferArray {
    * @param capacity total size of the byte buffer array
    * @param directByteBuffer true if we allocate direct buffer
    */
-  public ByteBufferArray(long capacity, boolean directByteBuffer) {
-    this.bufferSize = DEFAULT_BUFFER_SIZE;
-    if (this.bufferSize > (capacity / 16))
-      this.bufferSize = (int) roundUp(capacity / 16, 32768);
-    this.bufferCount = (int) (roundUp(capacity, bufferSize) / bufferSize);
+  public ByteBufferArray(long capacity, final boolean directByteBuffer) {
+    setBufferSize(capacity, DEFAULT_BUFFER_SIZE);
     LOG.info("Allocating buffers total=" + StringUtils.byteDesc(capacity)
         + ", sizePerBuffer=" + StringUtils.byteDesc(bufferSize) + ", count="
         + bufferCount + ", direct=" + directByteBuffer);
+    try {
+      allocateBuffers(new ByteBufferAllocator() {
+        @Override
+        public ByteBuffer allocate(int size) {
+          return directByteBuffer ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+      });
+    } catch (IOException ioe) {
+      // Not thrown by the allocator above
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  /**
+   * Builds the array over buffers from the given allocator.
+   * @param capacity total size of the byte buffer array
+   * @param maxBufferSize largest size of each buffer; as with the default of 4MB, it is made
+   *          smaller for a small array
+   * @param allocator where the buffers come from
+   * @throws IOException if the allocator fails
+   */
+  public ByteBufferArray(long capacity, int maxBufferSize, ByteBufferAllocator allocator)
+      throws IOException {
+    setBufferSize(capacity, maxBufferSize);
+    LOG.info("Allocating buffers total=" + StringUtils.byteDesc(capacity)
+        + ", sizePerBuffer=" + StringUtils.byteDesc(bufferSize) + ", count="
+        + bufferCount + ", allocator=" + allocator.getClass().getName());
+    allocateBuffers(allocator);
+  }
+
+  private void setBufferSize(long capacity, int maxBufferSize) {
+    this.bufferSize = maxBufferSize;
+    if (this.bufferSize > (capacity / 16))
+      this.bufferSize = (int) roundUp(capacity / 16, 32768);
+    this.bufferCount = (int) (roundUp(capacity, bufferSize) / bufferSize);
+  }
+
+  private void allocateBuffers(ByteBufferAllocator allocator) throws IOException {
     buffers = new ByteBuffer[bufferCount + 1];
     locks = new Lock[bufferCount + 1];
     for (int i = 0; i <= bufferCount; i++) {
       locks[i] = new ReentrantLock();
       if (i < bufferCount) {
-        buffers[i] = directByteBuffer ? ByteBuffer.allocateDirect(bufferSize)
-            : ByteBuffer.allocate(bufferSize);
+        buffers[i] = allocator.allocate(bufferSize);
       } else {
         buffers[i] = ByteBuffer.allocate(0);
       }
@@ -71,6 +106,13 @@ public final class ByteBufferArray {
     }
   }
 
+  /**
+   * @return size of each buffer but the last, empty one
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
   private long roundUp(long n, long to) {
     return ((n + to - 1) / to) * to;
   }
@@ -130,6 +172,33 @@ public final class ByteBufferArray {
     });
   }
 
+  /**
+   * Creates a view of a range of this buffer array that shares its content, without copying.
+   * Only a range within one buffer can be viewed so.
+   * @param start start offset of this buffer array
+   * @param len The length of the range
+   * @return a buffer whose position is 0 and limit is len, or null if the range spans more than
+   *         one buffer
+   */
+  public ByteBuffer asSubBuffer(long start, int len) {
+    assert len >= 0;
+    int bufferIndex = (int) (start / bufferSize), offset = (int) (start % bufferSize);
+    if (bufferIndex < 0 || bufferIndex >= bufferCount || offset + len > bufferSize) {
+      return null;
+    }
+    ByteBuffer dup;
+    Lock lock = locks[bufferIndex];
+    lock.lock();
+    try {
+      dup = buffers[bufferIndex].duplicate();
+    } finally {
+      lock.unlock();
+    }
+    dup.clear();
+    dup.limit(offset + len).position(offset);
+    return dup.slice();
+  }
+
   private interface Visitor {
     /**
      * Visit the given byte buffer, if it is a read action, we will transfer the
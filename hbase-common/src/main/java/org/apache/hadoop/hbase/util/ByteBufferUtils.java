@@ -374,6 +374,48 @@ public final class ByteBufferUtils {
     }
   }
 
+  /**
+   * Copy from a byte[] into a buffer at the given offset. This is absolute positional copying
+   * and won't affect the position of the buffer.
+   * @param out destination buffer
+   * @param outOffset offset in the destination buffer
+   * @param in source array
+   * @param inOffset offset in the source array
+   * @param length how many bytes to copy
+   */
+  public static void copyFromArrayToBuffer(ByteBuffer out, int outOffset, byte[] in,
+      int inOffset, int length) {
+    if (out.hasArray()) {
+      System.arraycopy(in, inOffset, out.array(), out.arrayOffset() + outOffset, length);
+    } else {
+      // Bulk put on a duplicate, direct buffers copy faster in bulk than byte by byte
+      ByteBuffer dup = out.duplicate();
+      dup.position(outOffset);
+      dup.put(in, inOffset, length);
+    }
+  }
+
+  /**
+   * Copy from a buffer into a byte[] from the given offset. This is absolute positional copying
+   * and won't affect the position of the buffer.
+   * @param out destination array
+   * @param in source buffer
+   * @param sourceOffset offset in the source buffer
+   * @param destinationOffset offset in the destination array
+   * @param length how many bytes to copy
+   */
+  public static void copyFromBufferToArray(byte[] out, ByteBuffer in, int sourceOffset,
+      int destinationOffset, int length) {
+    if (in.hasArray()) {
+      System.arraycopy(in.array(), in.arrayOffset() + sourceOffset, out, destinationOffset,
+          length);
+    } else {
+      ByteBuffer dup = in.duplicate();
+      dup.position(sourceOffset);
+      dup.get(out, destinationOffset, length);
+    }
+  }
+
   /**
    * Find length of common prefix of two parts in the buffer
    * @param buffer Where parts are located.
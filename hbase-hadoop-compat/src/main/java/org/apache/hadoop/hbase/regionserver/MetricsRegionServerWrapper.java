@@ -202,6 +202,11 @@ public interface MetricsRegionServerWrapper {
    */
   long getBlockCacheEvictedCount();
 
+  /**
+   * Get the number of blocks that could not be added to the block cache.
+   */
+  long getBlockCacheFailedInsertionCount();
+
   /**
    * Get the percent of all requests that hit the block cache.
    */
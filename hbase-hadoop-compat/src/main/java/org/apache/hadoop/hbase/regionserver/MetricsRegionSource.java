@@ -35,6 +35,11 @@ public interface MetricsRegionSource extends Comparable<MetricsRegionSource> {
       "Sum of filesize on all files entering a finished, successful or aborted, compaction";
   String NUM_FILES_COMPACTED_DESC =
       "Number of files that were input for finished, successful or aborted, compactions";
+  String PREFETCH_REQUESTED_SIZE = "prefetchRequestedSize";
+  String PREFETCHED_SIZE = "prefetchedSize";
+  String PREFETCH_REQUESTED_SIZE_DESC =
+      "Bytes of store files requested to be prefetched into the block cache since open";
+  String PREFETCHED_SIZE_DESC = "Bytes of store files prefetched into the block cache since open";
   String COPROCESSOR_EXECUTION_STATISTICS = "coprocessorExecutionStatistics";
   String COPROCESSOR_EXECUTION_STATISTICS_DESC = "Statistics for coprocessor execution times";
 
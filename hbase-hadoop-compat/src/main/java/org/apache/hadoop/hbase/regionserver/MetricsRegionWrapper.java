@@ -84,6 +84,18 @@ public interface MetricsRegionWrapper {
 
   long getNumCompactionsCompleted();
 
+  /**
+   * Get the bytes of the store files of this region requested to be prefetched into the block
+   * cache since the region was opened.
+   */
+  long getPrefetchRequestedSize();
+
+  /**
+   * Get the bytes of the store files of this region prefetched into the block cache since the
+   * region was opened.
+   */
+  long getPrefetchedSize();
+
   /**
    * Get the time spent by coprocessors in this region.
    */
@@ -57,6 +57,13 @@ public interface MetricsWALSource extends BaseSource {
   String SLOW_APPEND_COUNT_DESC = "Number of appends that were slow.";
   String SYNC_TIME = "syncTime";
   String SYNC_TIME_DESC = "The time it took to sync the WAL to HDFS.";
+  String SYNC_APPENDS = "appendsPerSync";
+  String SYNC_APPENDS_DESC = "Number of appends made durable by one sync of the WAL.";
+  String SYNC_SIZE = "bytesPerSync";
+  String SYNC_SIZE_DESC = "Size (in bytes) of the appends made durable by one sync of the WAL.";
+  String SYNC_WAIT_TIME = "syncWaitTime";
+  String SYNC_WAIT_TIME_DESC =
+      "Time the oldest sync request of a batch waited before the WAL sync to HDFS started.";
   String ROLL_REQUESTED = "rollRequest";
   String ROLL_REQUESTED_DESC = "How many times a log roll has been requested total";
   String LOW_REPLICA_ROLL_REQUESTED = "lowReplicaRollRequest";
@@ -88,6 +95,21 @@ public interface MetricsWALSource extends BaseSource {
    */
   void incrementSyncTime(long time);
 
+  /**
+   * Add the number of appends a sync of the wal covered.
+   */
+  void incrementAppendsPerSync(long count);
+
+  /**
+   * Add the size of the appends a sync of the wal covered.
+   */
+  void incrementBytesPerSync(long size);
+
+  /**
+   * Add the time a sync request waited before the wal sync started.
+   */
+  void incrementSyncWaitTime(long time);
+
   void incrementLogRollRequested();
 
   void incrementLowReplicationLogRoll();
@@ -197,6 +197,12 @@ public class MetricsRegionSourceImpl implements MetricsRegionSource {
     mrb.addCounter(Interns.info(regionNamePrefix + MetricsRegionSource.NUM_FILES_COMPACTED_COUNT,
         MetricsRegionSource.NUM_FILES_COMPACTED_DESC),
         this.regionWrapper.getNumFilesCompacted());
+    mrb.addGauge(Interns.info(regionNamePrefix + MetricsRegionSource.PREFETCH_REQUESTED_SIZE,
+        MetricsRegionSource.PREFETCH_REQUESTED_SIZE_DESC),
+        this.regionWrapper.getPrefetchRequestedSize());
+    mrb.addGauge(Interns.info(regionNamePrefix + MetricsRegionSource.PREFETCHED_SIZE,
+        MetricsRegionSource.PREFETCHED_SIZE_DESC),
+        this.regionWrapper.getPrefetchedSize());
     for (Map.Entry<String, DescriptiveStatistics> entry : this.regionWrapper
         .getCoprocessorExecutionStatistics()
         .entrySet()) {
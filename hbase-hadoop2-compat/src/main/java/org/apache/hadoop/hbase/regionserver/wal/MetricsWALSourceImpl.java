@@ -36,6 +36,9 @@ public class MetricsWALSourceImpl extends BaseSourceImpl implements MetricsWALSo
   private final MetricHistogram appendSizeHisto;
   private final MetricHistogram appendTimeHisto;
   private final MetricHistogram syncTimeHisto;
+  private final MetricHistogram appendsPerSyncHisto;
+  private final MetricHistogram bytesPerSyncHisto;
+  private final MetricHistogram syncWaitTimeHisto;
   private final MutableCounterLong appendCount;
   private final MutableCounterLong slowAppendCount;
   private final MutableCounterLong logRollRequested;
@@ -58,6 +61,10 @@ public class MetricsWALSourceImpl extends BaseSourceImpl implements MetricsWALSo
     slowAppendCount =
         this.getMetricsRegistry().newCounter(SLOW_APPEND_COUNT, SLOW_APPEND_COUNT_DESC, 0l);
     syncTimeHisto = this.getMetricsRegistry().newTimeHistogram(SYNC_TIME, SYNC_TIME_DESC);
+    appendsPerSyncHisto = this.getMetricsRegistry().newHistogram(SYNC_APPENDS, SYNC_APPENDS_DESC);
+    bytesPerSyncHisto = this.getMetricsRegistry().newSizeHistogram(SYNC_SIZE, SYNC_SIZE_DESC);
+    syncWaitTimeHisto =
+        this.getMetricsRegistry().newTimeHistogram(SYNC_WAIT_TIME, SYNC_WAIT_TIME_DESC);
     logRollRequested =
         this.getMetricsRegistry().newCounter(ROLL_REQUESTED, ROLL_REQUESTED_DESC, 0L);
     lowReplicationLogRollRequested = this.getMetricsRegistry()
@@ -89,6 +96,21 @@ public class MetricsWALSourceImpl extends BaseSourceImpl implements MetricsWALSo
     syncTimeHisto.add(time);
   }
 
+  @Override
+  public void incrementAppendsPerSync(long count) {
+    appendsPerSyncHisto.add(count);
+  }
+
+  @Override
+  public void incrementBytesPerSync(long size) {
+    bytesPerSyncHisto.add(size);
+  }
+
+  @Override
+  public void incrementSyncWaitTime(long time) {
+    syncWaitTimeHisto.add(time);
+  }
+
   @Override
   public void incrementLogRollRequested() {
     logRollRequested.incr();
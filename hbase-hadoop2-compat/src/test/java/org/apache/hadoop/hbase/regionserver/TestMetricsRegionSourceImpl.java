@@ -128,6 +128,16 @@ public class TestMetricsRegionSourceImpl {
       return 0;
     }
 
+    @Override
+    public long getPrefetchRequestedSize() {
+      return 0;
+    }
+
+    @Override
+    public long getPrefetchedSize() {
+      return 0;
+    }
+
     @Override
     public Map<String, DescriptiveStatistics> getCoprocessorExecutionStatistics() {
       return null;
@@ -148,6 +148,12 @@ public abstract class AbstractHFileWriter implements HFile.Writer {
     int avgValueLen =
         entryCount == 0 ? 0 : (int) (totalValueLength / entryCount);
     fileInfo.append(FileInfo.AVG_VALUE_LEN, Bytes.toBytes(avgValueLen), false);
+
+    // Only unencoded data blocks get a row index; see HFileBlock.Writer
+    if (hFileContext.isIncludesRowIndex()
+        && blockEncoder.getDataBlockEncoding() == DataBlockEncoding.NONE) {
+      fileInfo.append(FileInfo.ROW_INDEX, Bytes.toBytes(true), false);
+    }
   }
 
   /**
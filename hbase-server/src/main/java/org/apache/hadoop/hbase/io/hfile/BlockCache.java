@@ -58,6 +58,14 @@ public interface BlockCache extends Iterable<CachedBlock> {
   Cacheable getBlock(BlockCacheKey cacheKey, boolean caching, boolean repeat,
     boolean updateCacheMetrics);
 
+  /**
+   * Whether {@link #getBlock(BlockCacheKey, boolean, boolean, boolean)} would find the block.
+   * Unlike it, this neither reads the block nor counts as an access to it.
+   * @param cacheKey Block to look for
+   * @return true if the block is in this cache, or in one it asks on a miss
+   */
+  boolean isBlockCached(BlockCacheKey cacheKey);
+
   /**
    * Evict block from cache.
    * @param cacheKey Block to evict
@@ -65,6 +73,16 @@ public interface BlockCache extends Iterable<CachedBlock> {
    */
   boolean evictBlock(BlockCacheKey cacheKey);
 
+  /**
+   * Called when the reader is done with a block got from {@link #getBlock(BlockCacheKey,
+   * boolean, boolean, boolean)}. A {@link Cacheable.MemoryType#SHARED} block pins its memory in
+   * the cache until it is returned.
+   * @param cacheKey the key the block was got with
+   * @param block the block got
+   * @return true if the block was pinned and has been released
+   */
+  boolean returnBlock(BlockCacheKey cacheKey, Cacheable block);
+
   /**
    * Evicts all blocks for the given HFile.
    *
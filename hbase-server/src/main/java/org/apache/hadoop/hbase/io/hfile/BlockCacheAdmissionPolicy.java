@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.io.hfile.BlockType.BlockCategory;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Decides whether data blocks of a column family are worth caching, from who read or wrote them
+ * and how often the data blocks of the family were found in the block cache lately. Reads by
+ * compactions are never cached, and gets always are. Blocks of scans, prefetches and writes are
+ * cached only while the family's hit ratio shows its cached blocks being read again, or while
+ * there are too few lookups to tell; otherwise one in {@link #ADMIT_ANYWAY_INTERVAL} is, so that
+ * a family whose use changes can earn its way back in. Index and bloom blocks are always cached.
+ * <p>
+ * There is one policy for each column family of each table, shared by its stores in all
+ * regions. The counts decay, halving every {@link #DECAY_FACTOR} times the minimum of lookups,
+ * so that the hit ratio follows what the family is used for now.
+ */
+@InterfaceAudience.Private
+public class BlockCacheAdmissionPolicy {
+  /** Configuration key to turn on admission control of data blocks to the block cache */
+  public static final String ADMISSION_ENABLED_KEY = "hbase.blockcache.admission.enabled";
+  public static final boolean DEFAULT_ADMISSION_ENABLED = false;
+
+  /** Configuration key for the hit ratio below which blocks of a family are turned away */
+  public static final String MIN_HIT_RATIO_KEY = "hbase.blockcache.admission.min.hitratio";
+  public static final float DEFAULT_MIN_HIT_RATIO = 0.1f;
+
+  /** Configuration key for the lookups needed before the hit ratio of a family is trusted */
+  public static final String MIN_REQUESTS_KEY = "hbase.blockcache.admission.min.requests";
+  public static final int DEFAULT_MIN_REQUESTS = 1000;
+
+  static final int ADMIT_ANYWAY_INTERVAL = 32;
+  static final int DECAY_FACTOR = 16;
+
+  /**
+   * Who wants a block cached.
+   */
+  public enum Caller {
+    /** A user get, reading with pread */
+    GET,
+    /** A user scan */
+    SCAN,
+    /** Prefetching a file on open */
+    PREFETCH,
+    /** A flush or a compaction caching the blocks it writes */
+    WRITE,
+    /** A compaction reading the files it compacts */
+    COMPACTION
+  }
+
+  private static final ConcurrentMap<String, BlockCacheAdmissionPolicy> POLICIES =
+      new ConcurrentHashMap<String, BlockCacheAdmissionPolicy>();
+
+  private final float minHitRatio;
+  private final int minRequests;
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong requests = new AtomicLong(0);
+  private final AtomicLong rejectedSinceAdmitted = new AtomicLong(0);
+  private final AtomicLong[] rejected = new AtomicLong[Caller.values().length];
+
+  @VisibleForTesting
+  BlockCacheAdmissionPolicy(float minHitRatio, int minRequests) {
+    this.minHitRatio = minHitRatio;
+    this.minRequests = minRequests;
+    for (int i = 0; i < rejected.length; i++) {
+      rejected[i] = new AtomicLong(0);
+    }
+  }
+
+  /**
+   * @return the policy of the given family, or null if admission control is off
+   */
+  public static BlockCacheAdmissionPolicy forFamily(Configuration conf, TableName tableName,
+      byte[] family) {
+    if (!conf.getBoolean(ADMISSION_ENABLED_KEY, DEFAULT_ADMISSION_ENABLED)) {
+      return null;
+    }
+    String name = tableName.getNameAsString() + "/" + Bytes.toString(family);
+    BlockCacheAdmissionPolicy policy = POLICIES.get(name);
+    if (policy == null) {
+      policy = new BlockCacheAdmissionPolicy(
+          conf.getFloat(MIN_HIT_RATIO_KEY, DEFAULT_MIN_HIT_RATIO),
+          conf.getInt(MIN_REQUESTS_KEY, DEFAULT_MIN_REQUESTS));
+      BlockCacheAdmissionPolicy existing = POLICIES.putIfAbsent(name, policy);
+      if (existing != null) {
+        policy = existing;
+      }
+    }
+    return policy;
+  }
+
+  /**
+   * Counts a lookup of a data block of the family in the block cache.
+   * @param hit whether the block was found
+   */
+  public void recordAccess(boolean hit) {
+    if (hit) {
+      hits.incrementAndGet();
+    }
+    if (requests.incrementAndGet() >= (long) minRequests * DECAY_FACTOR) {
+      // Racy, but only ever off by the lookups counted meanwhile
+      requests.set(requests.get() / 2);
+      hits.set(hits.get() / 2);
+    }
+  }
+
+  /**
+   * @return true if the block should be cached
+   */
+  public boolean admit(Caller caller, BlockCategory category) {
+    if (category != BlockCategory.DATA || caller == Caller.GET) {
+      return true;
+    }
+    if (caller != Caller.COMPACTION && isReused()) {
+      return true;
+    }
+    if (caller != Caller.COMPACTION
+        && rejectedSinceAdmitted.incrementAndGet() % ADMIT_ANYWAY_INTERVAL == 0) {
+      return true;
+    }
+    rejected[caller.ordinal()].incrementAndGet();
+    return false;
+  }
+
+  private boolean isReused() {
+    long requestCount = requests.get();
+    return requestCount < minRequests || hits.get() >= requestCount * minHitRatio;
+  }
+
+  /**
+   * @return the hit ratio of the family's data blocks lately
+   */
+  public double getHitRatio() {
+    long requestCount = requests.get();
+    return requestCount == 0 ? 0 : (double) hits.get() / requestCount;
+  }
+
+  /**
+   * @return how many blocks of the given caller were turned away
+   */
+  public long getRejectedCount(Caller caller) {
+    return rejected[caller.ordinal()].get();
+  }
+}
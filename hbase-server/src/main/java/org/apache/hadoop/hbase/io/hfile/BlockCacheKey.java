@@ -30,6 +30,8 @@ public class BlockCacheKey implements HeapSize, java.io.Serializable {
   private static final long serialVersionUID = -5199992013113130534L;
   private final String hfileName;
   private final long offset;
+  /** Not part of the key; only known when the block is cached by a store of the table */
+  private transient BlockCacheQuota quota;
 
   /**
    * Construct a new BlockCacheKey
@@ -37,8 +39,19 @@ public class BlockCacheKey implements HeapSize, java.io.Serializable {
    * @param offset Offset of the block into the file
    */
   public BlockCacheKey(String hfileName, long offset) {
+    this(hfileName, offset, null);
+  }
+
+  /**
+   * Construct a new BlockCacheKey
+   * @param hfileName The name of the HFile this block belongs to.
+   * @param offset Offset of the block into the file
+   * @param quota The block cache quota of the table of the HFile, or null if it has none
+   */
+  public BlockCacheKey(String hfileName, long offset, BlockCacheQuota quota) {
     this.hfileName = hfileName;
     this.offset = offset;
+    this.quota = quota;
   }
 
   @Override
@@ -65,6 +78,7 @@ public class BlockCacheKey implements HeapSize, java.io.Serializable {
 
   public static final long FIXED_OVERHEAD = ClassSize.align(ClassSize.OBJECT +
           ClassSize.REFERENCE + // this.hfileName
+          ClassSize.REFERENCE + // this.quota
           Bytes.SIZEOF_LONG);    // this.offset
 
   /**
@@ -88,4 +102,11 @@ public class BlockCacheKey implements HeapSize, java.io.Serializable {
   public long getOffset() {
     return offset;
   }
+
+  /**
+   * @return The block cache quota the block counts against, or null if none
+   */
+  public BlockCacheQuota getQuota() {
+    return quota;
+  }
 }
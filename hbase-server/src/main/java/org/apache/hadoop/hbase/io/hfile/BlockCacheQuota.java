@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * The share of a block cache the blocks of a table, or of all tables of a namespace, may hold.
+ * When a cache evicts, blocks of a table over its max share go first, and blocks of a table at
+ * its min share are left alone, so that the scans of one table cannot push the blocks of every
+ * other table out. Tables without a quota share what is left. The {@link LruBlockCache}, the
+ * {@link TinyLfuBlockCache} and the BucketCache enforce quotas.
+ * <p>
+ * Shares are fractions of each block cache, configured under
+ * <code>hbase.blockcache.quota.&lt;table&gt;.min.share</code> and <code>.max.share</code> for a
+ * table, or <code>hbase.blockcache.quota.@&lt;namespace&gt;.min.share</code> and
+ * <code>.max.share</code> for a namespace. A table with a quota of its own does not count
+ * against the quota of its namespace.
+ */
+@InterfaceAudience.Private
+public class BlockCacheQuota implements Comparable<BlockCacheQuota> {
+  public static final String QUOTA_KEY_PREFIX = "hbase.blockcache.quota.";
+  public static final String MIN_SHARE_KEY_SUFFIX = ".min.share";
+  public static final String MAX_SHARE_KEY_SUFFIX = ".max.share";
+
+  private static final ConcurrentMap<String, BlockCacheQuota> QUOTAS =
+      new ConcurrentHashMap<String, BlockCacheQuota>();
+
+  private final String name;
+  private volatile float minShare;
+  private volatile float maxShare;
+
+  @VisibleForTesting
+  BlockCacheQuota(String name, float minShare, float maxShare) {
+    this.name = name;
+    this.minShare = minShare;
+    this.maxShare = maxShare;
+  }
+
+  /**
+   * @return the quota of the given table, or of its namespace, or null if neither has one
+   */
+  public static BlockCacheQuota forTable(Configuration conf, TableName tableName) {
+    BlockCacheQuota quota = get(conf, tableName.getNameAsString());
+    if (quota == null) {
+      quota = get(conf, "@" + tableName.getNamespaceAsString());
+    }
+    return quota;
+  }
+
+  private static BlockCacheQuota get(Configuration conf, String name) {
+    float minShare = conf.getFloat(QUOTA_KEY_PREFIX + name + MIN_SHARE_KEY_SUFFIX, 0);
+    float maxShare = conf.getFloat(QUOTA_KEY_PREFIX + name + MAX_SHARE_KEY_SUFFIX, 1);
+    if (minShare <= 0 && maxShare >= 1) {
+      return null;
+    }
+    if (minShare < 0 || maxShare > 1 || minShare > maxShare) {
+      throw new IllegalArgumentException("Block cache quota of " + name + " must have "
+          + "0 <= min share <= max share <= 1; min share=" + minShare + ", max share=" + maxShare);
+    }
+    BlockCacheQuota quota = QUOTAS.get(name);
+    if (quota == null) {
+      quota = new BlockCacheQuota(name, minShare, maxShare);
+      BlockCacheQuota existing = QUOTAS.putIfAbsent(name, quota);
+      if (existing != null) {
+        quota = existing;
+      }
+    }
+    // Blocks already cached count against the quota as reconfigured
+    quota.minShare = minShare;
+    quota.maxShare = maxShare;
+    return quota;
+  }
+
+  /**
+   * @return the table or, starting with '@', the namespace the quota is for
+   */
+  public String getName() {
+    return name;
+  }
+
+  public float getMinShare() {
+    return minShare;
+  }
+
+  public float getMaxShare() {
+    return maxShare;
+  }
+
+  @Override
+  public int compareTo(BlockCacheQuota other) {
+    return name.compareTo(other.name);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof BlockCacheQuota && name.equals(((BlockCacheQuota) obj).name);
+  }
+
+  @Override
+  public int hashCode() {
+    return name.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return name + ", minShare=" + minShare + ", maxShare=" + maxShare;
+  }
+}
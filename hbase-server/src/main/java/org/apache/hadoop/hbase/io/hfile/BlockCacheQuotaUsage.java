@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+
+/**
+ * How much of a block cache the tables with a {@link BlockCacheQuota} hold, for the cache to
+ * enforce their shares when evicting. Sizes are in whatever unit the cache counts its size in.
+ */
+@InterfaceAudience.Private
+public class BlockCacheQuotaUsage {
+  private final ConcurrentMap<BlockCacheQuota, AtomicLong> usage =
+      new ConcurrentHashMap<BlockCacheQuota, AtomicLong>();
+
+  /**
+   * Counts a block in or out of the quota of its table, if it has one.
+   * @param key key of the block
+   * @param size size of the block; negative when it is evicted
+   */
+  public void add(BlockCacheKey key, long size) {
+    BlockCacheQuota quota = key.getQuota();
+    if (quota == null) {
+      return;
+    }
+    AtomicLong used = usage.get(quota);
+    if (used == null) {
+      used = new AtomicLong(0);
+      AtomicLong existing = usage.putIfAbsent(quota, used);
+      if (existing != null) {
+        used = existing;
+      }
+    }
+    used.addAndGet(size);
+  }
+
+  /**
+   * @return how much the tables of the quota hold
+   */
+  public long getUsage(BlockCacheQuota quota) {
+    AtomicLong used = usage.get(quota);
+    return used == null ? 0 : used.get();
+  }
+
+  /**
+   * @return whether the tables of the quota hold more than its max share of the given size
+   */
+  public boolean isOverMaxShare(BlockCacheQuota quota, long capacity) {
+    return quota != null && getUsage(quota) > quota.getMaxShare() * capacity;
+  }
+
+  /**
+   * @return whether any quota is over its max share of the given size
+   */
+  public boolean isAnyOverMaxShare(long capacity) {
+    for (BlockCacheQuota quota : usage.keySet()) {
+      if (isOverMaxShare(quota, capacity)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return how much each quota over its max share of the given size holds over it
+   */
+  public Map<BlockCacheQuota, Long> getBytesOverMaxShare(long capacity) {
+    Map<BlockCacheQuota, Long> overMax = new HashMap<BlockCacheQuota, Long>();
+    for (Map.Entry<BlockCacheQuota, AtomicLong> entry : usage.entrySet()) {
+      long over = entry.getValue().get() - (long) (entry.getKey().getMaxShare() * capacity);
+      if (over > 0) {
+        overMax.put(entry.getKey(), over);
+      }
+    }
+    return overMax;
+  }
+
+  /**
+   * @return whether evicting the given block would take its table under its min share of the
+   *         given size
+   */
+  public boolean isAtMinShare(BlockCacheKey key, long size, long capacity) {
+    BlockCacheQuota quota = key.getQuota();
+    return quota != null && getUsage(quota) - size < quota.getMinShare() * capacity;
+  }
+
+  /**
+   * @return how much the tables of all quotas hold within their min shares of the given size;
+   *         how much more an eviction must look at, as it leaves those blocks alone
+   */
+  public long getMinShareBytes(long capacity) {
+    long bytes = 0;
+    for (Map.Entry<BlockCacheQuota, AtomicLong> entry : usage.entrySet()) {
+      bytes += Math.min(entry.getValue().get(),
+        (long) (entry.getKey().getMinShare() * capacity));
+    }
+    return bytes;
+  }
+
+  /**
+   * @return how much the tables of each quota hold, by quota
+   */
+  public SortedMap<BlockCacheQuota, Long> getUsage() {
+    SortedMap<BlockCacheQuota, Long> result = new TreeMap<BlockCacheQuota, Long>();
+    for (Map.Entry<BlockCacheQuota, AtomicLong> entry : usage.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().get());
+    }
+    return result;
+  }
+}
@@ -20,11 +20,14 @@ package org.apache.hadoop.hbase.io.hfile;
 import java.io.IOException;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.apache.hadoop.hbase.classification.InterfaceAudience;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.io.hfile.bucket.BucketCache;
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.annotate.JsonIgnoreProperties;
 import org.codehaus.jackson.map.JsonMappingException;
@@ -161,6 +164,24 @@ public class BlockCacheUtil {
       ", priority=" + cb.getBlockPriority();
   }
 
+  /**
+   * @param bc a block cache level
+   * @return how much of <code>bc</code> the tables with a block cache quota hold, by quota;
+   *         empty if <code>bc</code> does not enforce quotas
+   */
+  public static SortedMap<BlockCacheQuota, Long> getQuotaUsage(final BlockCache bc) {
+    if (bc instanceof LruBlockCache) {
+      return ((LruBlockCache) bc).getQuotaUsage();
+    }
+    if (bc instanceof TinyLfuBlockCache) {
+      return ((TinyLfuBlockCache) bc).getQuotaUsage();
+    }
+    if (bc instanceof BucketCache) {
+      return ((BucketCache) bc).getQuotaUsage();
+    }
+    return new TreeMap<BlockCacheQuota, Long>();
+  }
+
   /**
    * Get a {@link CachedBlocksByFile} instance and load it up by iterating content in
    * {@link BlockCache}.
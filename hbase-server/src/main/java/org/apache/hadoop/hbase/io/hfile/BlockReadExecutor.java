@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.util.Threads;
+
+/**
+ * Reads HFile blocks in the background, for the threads serving reads to go on with what they
+ * have while the blocks they will want next are read. The pool is shared among all HFiles. When
+ * it is backed up, the thread asking for a read does it itself. Also bounds the memory that
+ * the read-ahead windows of all scanners together may hold.
+ */
+@InterfaceAudience.Private
+public class BlockReadExecutor {
+
+  /** Configuration key for the number of threads reading blocks in the background */
+  public static final String ASYNC_READ_THREADS_KEY = "hbase.hfile.async.read.threads";
+  public static final int DEFAULT_ASYNC_READ_THREADS = 16;
+
+  /** Configuration key for how many reads may wait for a thread before callers read themselves */
+  public static final String ASYNC_READ_QUEUE_KEY = "hbase.hfile.async.read.queue";
+  public static final int DEFAULT_ASYNC_READ_QUEUE = 256;
+
+  /** Configuration key for the most bytes the read-ahead windows of all scanners may hold */
+  public static final String READ_AHEAD_TOTAL_KEY = "hbase.hfile.scanner.readahead.total";
+  public static final long DEFAULT_READ_AHEAD_TOTAL = 256L * 1024 * 1024;
+
+  /** Executor pool shared among all HFiles for background block reads */
+  private static final ThreadPoolExecutor readExecutorPool;
+  /** The most bytes all read-ahead windows may hold */
+  private static final long readAheadTotal;
+  /** Bytes the read-ahead windows hold */
+  private static final AtomicLong readAheadBytes = new AtomicLong(0);
+  static {
+    // Consider doing this on demand with a configuration passed in rather
+    // than in a static initializer.
+    Configuration conf = HBaseConfiguration.create();
+    int threads = Math.max(1, conf.getInt(ASYNC_READ_THREADS_KEY, DEFAULT_ASYNC_READ_THREADS));
+    int queue = Math.max(1, conf.getInt(ASYNC_READ_QUEUE_KEY, DEFAULT_ASYNC_READ_QUEUE));
+    readExecutorPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(queue), Threads.newDaemonThreadFactory("hfile-read"),
+      new ThreadPoolExecutor.CallerRunsPolicy());
+    readExecutorPool.allowCoreThreadTimeOut(true);
+    readAheadTotal = conf.getLong(READ_AHEAD_TOTAL_KEY, DEFAULT_READ_AHEAD_TOTAL);
+  }
+
+  /**
+   * Runs a read in the background, or right away in the calling thread if too many reads are
+   * waiting already.
+   */
+  public static void execute(Runnable read) {
+    readExecutorPool.execute(read);
+  }
+
+  /**
+   * Reserves memory for a read-ahead window.
+   * @return false if the windows of all scanners would hold too much with this one
+   */
+  static boolean reserveReadAhead(long bytes) {
+    while (true) {
+      long held = readAheadBytes.get();
+      if (held + bytes > readAheadTotal) {
+        return false;
+      }
+      if (readAheadBytes.compareAndSet(held, held + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  /** Releases the memory of a read-ahead window */
+  static void releaseReadAhead(long bytes) {
+    readAheadBytes.addAndGet(-bytes);
+  }
+
+  /** @return the bytes the read-ahead windows of all scanners hold */
+  static long getReadAheadBytes() {
+    return readAheadBytes.get();
+  }
+
+  private BlockReadExecutor() {}
+}
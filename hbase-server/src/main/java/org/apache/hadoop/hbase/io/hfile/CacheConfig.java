@@ -23,6 +23,8 @@ import static org.apache.hadoop.hbase.HConstants.BUCKET_CACHE_SIZE_KEY;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -69,6 +71,14 @@ public class CacheConfig {
   public static final String CACHE_DATA_BLOCKS_COMPRESSED_KEY =
       "hbase.block.data.cachecompressed";
 
+  /**
+   * How many times a data block cached compressed and/or encrypted in the bucket cache of a
+   * {@link CombinedBlockCache} has to be read before its unpacked form is kept in the L1 as well.
+   * 0 to always unpack it on read.
+   */
+  public static final String CACHE_DATA_UNPACKED_HITS_KEY =
+      "hbase.block.data.cachecompressed.unpacked.hits";
+
   /**
    * Configuration key to evict all blocks of a given file from the block cache
    * when the file is closed.
@@ -87,6 +97,13 @@ public class CacheConfig {
   public static final String BUCKET_CACHE_PERSISTENT_PATH_KEY = 
       "hbase.bucketcache.persistent.path";
 
+  /**
+   * How often, in milliseconds, blocks added to and evicted from a persisted bucket cache are
+   * written out to the persistent path.
+   */
+  public static final String BUCKET_CACHE_PERSIST_INTERVAL_KEY =
+      "hbase.bucketcache.persist.intervalinmillis";
+
   /**
    * If the bucket cache is used in league with the lru on-heap block cache (meta blocks such
    * as indices and blooms are kept in the lru blockcache and the data blocks in the
@@ -104,10 +121,38 @@ public class CacheConfig {
    */
   public static final String BUCKET_CACHE_BUCKETS_KEY = "hbase.bucketcache.bucket.sizes";
 
+  /**
+   * If true, the lru on-heap block cache, the bucket cache and the tiers below it are put
+   * together into a {@link TieredBlockCache}, blocks moving down the tiers when evicted and up
+   * when hit often. Takes precedence over {@link #BUCKET_CACHE_COMBINED_KEY}.
+   */
+  public static final String BUCKET_CACHE_TIERED_KEY = "hbase.bucketcache.tiered.enabled";
+
+  /**
+   * A comma-delimited array of the ioengines of the tiers below the bucket cache, slowest last,
+   * e.g. "file:/mnt/ssd/bucket.cache".
+   */
+  public static final String BUCKET_CACHE_LOWER_TIERS_IOENGINES_KEY =
+      "hbase.bucketcache.tiered.lower.ioengines";
+
+  /**
+   * A comma-delimited array of the sizes, in MB, of the tiers below the bucket cache; one for
+   * each of {@link #BUCKET_CACHE_LOWER_TIERS_IOENGINES_KEY}.
+   */
+  public static final String BUCKET_CACHE_LOWER_TIERS_SIZES_KEY =
+      "hbase.bucketcache.tiered.lower.sizes";
+
+  /**
+   * How many times a block has to be hit in a tier below the L1 to be promoted to the tier above.
+   */
+  public static final String BUCKET_CACHE_TIERED_PROMOTION_HITS_KEY =
+      "hbase.bucketcache.tiered.promotion.hits";
+
   /**
    * Defaults for Bucket cache
    */
   public static final boolean DEFAULT_BUCKET_CACHE_COMBINED = true;
+  public static final boolean DEFAULT_BUCKET_CACHE_TIERED = false;
   public static final int DEFAULT_BUCKET_CACHE_WRITER_THREADS = 3;
   public static final int DEFAULT_BUCKET_CACHE_WRITER_QUEUE = 64;
 
@@ -126,6 +171,13 @@ public class CacheConfig {
    */
   public static final String BLOCKCACHE_BLOCKSIZE_KEY = "hbase.offheapcache.minblocksize";
 
+  /**
+   * The policy of the on-heap, L1 block cache: "LRU", the default, for {@link LruBlockCache},
+   * or "TinyLFU" for {@link TinyLfuBlockCache}.
+   */
+  public static final String BLOCKCACHE_POLICY_KEY = "hfile.block.cache.policy";
+  public static final String BLOCKCACHE_POLICY_DEFAULT = "LRU";
+
   // Defaults
 
   public static final boolean DEFAULT_CACHE_DATA_ON_READ = true;
@@ -135,6 +187,7 @@ public class CacheConfig {
   public static final boolean DEFAULT_CACHE_BLOOMS_ON_WRITE = false;
   public static final boolean DEFAULT_EVICT_ON_CLOSE = false;
   public static final boolean DEFAULT_CACHE_DATA_COMPRESSED = false;
+  public static final int DEFAULT_CACHE_DATA_UNPACKED_HITS = 2;
   public static final boolean DEFAULT_PREFETCH_ON_OPEN = false;
 
   /** Local reference to the block cache, null if completely disabled */
@@ -176,6 +229,12 @@ public class CacheConfig {
    */
   private boolean cacheDataInL1;
 
+  /** Decides which data blocks are worth caching; null to cache all of them */
+  private BlockCacheAdmissionPolicy admissionPolicy;
+
+  /** The share of the block cache the blocks of the table may hold; null if not limited */
+  private BlockCacheQuota quota;
+
   /**
    * Create a cache configuration using the specified configuration object and
    * family descriptor.
@@ -270,6 +329,8 @@ public class CacheConfig {
         cacheConf.cacheBloomsOnWrite, cacheConf.evictOnClose,
         cacheConf.cacheDataCompressed, cacheConf.prefetchOnOpen,
         cacheConf.cacheDataInL1);
+    this.admissionPolicy = cacheConf.admissionPolicy;
+    this.quota = cacheConf.quota;
   }
 
   /**
@@ -311,6 +372,49 @@ public class CacheConfig {
                  category != BlockCategory.UNKNOWN)));
   }
 
+  /**
+   * Should a block the given caller read or wrote be cached, as far as the admission policy is
+   * concerned? Asked once the other settings say it should be.
+   */
+  public boolean shouldAdmit(BlockCacheAdmissionPolicy.Caller caller, BlockCategory category) {
+    return admissionPolicy == null || admissionPolicy.admit(caller, category);
+  }
+
+  /**
+   * Counts a lookup of a data block in the block cache, for the admission policy.
+   * @param hit whether the block was found
+   */
+  public void recordDataBlockAccess(boolean hit) {
+    if (admissionPolicy != null) {
+      admissionPolicy.recordAccess(hit);
+    }
+  }
+
+  /**
+   * @param admissionPolicy decides which data blocks are worth caching, or null to cache all
+   */
+  public void setAdmissionPolicy(BlockCacheAdmissionPolicy admissionPolicy) {
+    this.admissionPolicy = admissionPolicy;
+  }
+
+  public BlockCacheAdmissionPolicy getAdmissionPolicy() {
+    return this.admissionPolicy;
+  }
+
+  /**
+   * @param quota the share of the block cache the blocks of the table may hold, or null
+   */
+  public void setQuota(BlockCacheQuota quota) {
+    this.quota = quota;
+  }
+
+  /**
+   * @return the block cache quota blocks cached through this configuration count against
+   */
+  public BlockCacheQuota getQuota() {
+    return this.quota;
+  }
+
   /**
    * @return true if blocks in this file should be flagged as in-memory
    */
@@ -406,6 +510,19 @@ public class CacheConfig {
     }
   }
 
+  /**
+   * Offers the unpacked form of a data block that was found packed in the cache, for the cache
+   * to keep if the block is hot. Only a {@link CombinedBlockCache} keeps such blocks, in its L1,
+   * unless data blocks are cached in the L1 anyway.
+   * @param cacheKey the key of the block
+   * @param unpacked the block, decompressed and decrypted
+   */
+  public void cacheUnpackedIfHot(BlockCacheKey cacheKey, HFileBlock unpacked) {
+    if (this.blockCache instanceof CombinedBlockCache && !this.cacheDataInL1) {
+      ((CombinedBlockCache) this.blockCache).cacheUnpackedIfHot(cacheKey, unpacked);
+    }
+  }
+
   /**
    * @return true if blocks should be prefetched into the cache on open, false if not
    */
@@ -503,12 +620,21 @@ public class CacheConfig {
   /**
    * @param c Configuration to use.
    * @param mu JMX Memory Bean
-   * @return An L1 instance.  Currently an instance of LruBlockCache.
+   * @return An L1 instance, of the class {@link #BLOCKCACHE_POLICY_KEY} asks for.
    */
-  private static LruBlockCache getL1(final Configuration c, final MemoryUsage mu) {
+  private static FirstLevelBlockCache getL1(final Configuration c, final MemoryUsage mu) {
     long lruCacheSize = getLruCacheSize(c, mu);
     if (lruCacheSize < 0) return null;
     int blockSize = c.getInt(BLOCKCACHE_BLOCKSIZE_KEY, HConstants.DEFAULT_BLOCKSIZE);
+    String policy = c.get(BLOCKCACHE_POLICY_KEY, BLOCKCACHE_POLICY_DEFAULT);
+    if (policy.equalsIgnoreCase("TinyLFU")) {
+      LOG.info("Allocating TinyLfuBlockCache size=" +
+        StringUtils.byteDesc(lruCacheSize) + ", blockSize=" + StringUtils.byteDesc(blockSize));
+      return new TinyLfuBlockCache(lruCacheSize, blockSize, c);
+    } else if (!policy.equalsIgnoreCase("LRU")) {
+      throw new IllegalArgumentException("Unknown block cache policy " + policy + "; check "
+          + BLOCKCACHE_POLICY_KEY);
+    }
     LOG.info("Allocating LruBlockCache size=" +
       StringUtils.byteDesc(lruCacheSize) + ", blockSize=" + StringUtils.byteDesc(blockSize));
     return new LruBlockCache(lruCacheSize, blockSize, true, c);
@@ -525,7 +651,6 @@ public class CacheConfig {
     String bucketCacheIOEngineName = c.get(BUCKET_CACHE_IOENGINE_KEY, null);
     if (bucketCacheIOEngineName == null || bucketCacheIOEngineName.length() <= 0) return null;
 
-    int blockSize = c.getInt(BLOCKCACHE_BLOCKSIZE_KEY, HConstants.DEFAULT_BLOCKSIZE);
     float bucketCachePercentage = c.getFloat(BUCKET_CACHE_SIZE_KEY, 0F);
     long bucketCacheSize = (long) (bucketCachePercentage < 1? mu.getMax() * bucketCachePercentage:
       bucketCachePercentage * 1024 * 1024);
@@ -537,11 +662,44 @@ public class CacheConfig {
       LOG.warn("Configuration 'hbase.bucketcache.percentage.in.combinedcache' is no longer "
           + "respected. See comments in http://hbase.apache.org/book.html#_changes_of_note");
     }
+    return createBucketCache(c, bucketCacheIOEngineName, bucketCacheSize,
+      c.get(BUCKET_CACHE_PERSISTENT_PATH_KEY));
+  }
+
+  /**
+   * @param c Configuration to use.
+   * @return The bucket caches of the tiers below the L2, slowest last, if any are configured.
+   */
+  private static List<BucketCache> getLowerTiers(final Configuration c) {
+    String[] ioEngineNames = c.getStrings(BUCKET_CACHE_LOWER_TIERS_IOENGINES_KEY);
+    List<BucketCache> lowerTiers = new ArrayList<BucketCache>();
+    if (ioEngineNames == null) return lowerTiers;
+    String[] sizes = c.getStrings(BUCKET_CACHE_LOWER_TIERS_SIZES_KEY);
+    if (sizes == null || sizes.length != ioEngineNames.length) {
+      throw new IllegalArgumentException("One size is needed for each of the "
+          + BUCKET_CACHE_LOWER_TIERS_IOENGINES_KEY + "; check "
+          + BUCKET_CACHE_LOWER_TIERS_SIZES_KEY);
+    }
+    for (int i = 0; i < ioEngineNames.length; i++) {
+      long size = Long.parseLong(sizes[i].trim()) * 1024 * 1024;
+      if (size <= 0) {
+        throw new IllegalArgumentException("Size of tier " + ioEngineNames[i].trim()
+            + " <= 0; check " + BUCKET_CACHE_LOWER_TIERS_SIZES_KEY);
+      }
+      // Only the L2 is persisted
+      lowerTiers.add(createBucketCache(c, ioEngineNames[i].trim(), size, null));
+    }
+    return lowerTiers;
+  }
+
+  private static BucketCache createBucketCache(final Configuration c,
+      final String bucketCacheIOEngineName, final long bucketCacheSize,
+      final String persistentPath) {
+    int blockSize = c.getInt(BLOCKCACHE_BLOCKSIZE_KEY, HConstants.DEFAULT_BLOCKSIZE);
     int writerThreads = c.getInt(BUCKET_CACHE_WRITER_THREADS_KEY,
       DEFAULT_BUCKET_CACHE_WRITER_THREADS);
     int writerQueueLen = c.getInt(BUCKET_CACHE_WRITER_QUEUE_KEY,
       DEFAULT_BUCKET_CACHE_WRITER_QUEUE);
-    String persistentPath = c.get(BUCKET_CACHE_PERSISTENT_PATH_KEY);
     String[] configuredBucketSizes = c.getStrings(BUCKET_CACHE_BUCKETS_KEY);
     int [] bucketSizes = null;
     if (configuredBucketSizes != null) {
@@ -555,10 +713,12 @@ public class CacheConfig {
       int ioErrorsTolerationDuration = c.getInt(
         "hbase.bucketcache.ioengine.errors.tolerated.duration",
         BucketCache.DEFAULT_ERROR_TOLERATION_DURATION);
+      long persistInterval = c.getLong(BUCKET_CACHE_PERSIST_INTERVAL_KEY,
+        BucketCache.DEFAULT_PERSIST_INTERVAL);
       // Bucket cache logs its stats on creation internal to the constructor.
       bucketCache = new BucketCache(bucketCacheIOEngineName,
         bucketCacheSize, blockSize, bucketSizes, writerThreads, writerQueueLen, persistentPath,
-        ioErrorsTolerationDuration);
+        ioErrorsTolerationDuration, persistInterval);
     } catch (IOException ioex) {
       LOG.error("Can't instantiate bucket cache", ioex); throw new RuntimeException(ioex);
     }
@@ -576,19 +736,29 @@ public class CacheConfig {
     if (GLOBAL_BLOCK_CACHE_INSTANCE != null) return GLOBAL_BLOCK_CACHE_INSTANCE;
     if (blockCacheDisabled) return null;
     MemoryUsage mu = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
-    LruBlockCache l1 = getL1(conf, mu);
+    FirstLevelBlockCache l1 = getL1(conf, mu);
     // blockCacheDisabled is set as a side-effect of getL1(), so check it again after the call.
     if (blockCacheDisabled) return null;
     BucketCache l2 = getL2(conf, mu);
     if (l2 == null) {
       GLOBAL_BLOCK_CACHE_INSTANCE = l1;
     } else {
+      boolean tiered = conf.getBoolean(BUCKET_CACHE_TIERED_KEY, DEFAULT_BUCKET_CACHE_TIERED);
       boolean combinedWithLru = conf.getBoolean(BUCKET_CACHE_COMBINED_KEY,
         DEFAULT_BUCKET_CACHE_COMBINED);
-      if (combinedWithLru) {
-        GLOBAL_BLOCK_CACHE_INSTANCE = new CombinedBlockCache(l1, l2);
+      if (tiered) {
+        List<BucketCache> lowerTiers = getLowerTiers(conf);
+        lowerTiers.add(0, l2);
+        GLOBAL_BLOCK_CACHE_INSTANCE = new TieredBlockCache(l1, lowerTiers,
+          conf.getInt(BLOCKCACHE_BLOCKSIZE_KEY, HConstants.DEFAULT_BLOCKSIZE),
+          conf.getInt(BUCKET_CACHE_TIERED_PROMOTION_HITS_KEY,
+            TieredBlockCache.DEFAULT_PROMOTION_HITS));
+      } else if (combinedWithLru) {
+        GLOBAL_BLOCK_CACHE_INSTANCE = new CombinedBlockCache(l1, l2,
+          conf.getInt(BLOCKCACHE_BLOCKSIZE_KEY, HConstants.DEFAULT_BLOCKSIZE),
+          conf.getInt(CACHE_DATA_UNPACKED_HITS_KEY, DEFAULT_CACHE_DATA_UNPACKED_HITS));
       } else {
-        // L1 and L2 are not 'combined'.  They are connected via the LruBlockCache victimhandler
+        // L1 and L2 are not 'combined'.  They are connected via the L1 victimhandler
         // mechanism.  It is a little ugly but works according to the following: when the
         // background eviction thread runs, blocks evicted from L1 will go to L2 AND when we get
         // a block from the L1 cache, if not in L1, we will search L2.
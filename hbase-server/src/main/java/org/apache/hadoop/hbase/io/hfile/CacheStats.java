@@ -66,6 +66,15 @@ public class CacheStats {
   /** The total number of blocks that have been evicted */
   private final AtomicLong evictedBlockCount = new AtomicLong(0);
 
+  /** The number of blocks hit often enough here to be copied up to the tier above */
+  private final AtomicLong promotedBlockCount = new AtomicLong(0);
+
+  /** The number of evicted blocks offered to the tier below instead of being dropped */
+  private final AtomicLong demotedBlockCount = new AtomicLong(0);
+
+  /** The number of blocks that could not be cached, e.g. for want of room to queue them */
+  private final AtomicLong failedInsertCount = new AtomicLong(0);
+
   /** The number of metrics periods to include in window */
   private final int numPeriodsInWindow;
   /** Hit counts for each period in window */
@@ -112,6 +121,9 @@ public class CacheStats {
       ", missCount=" + getMissCount() + ", missCachingCount=" + getMissCachingCount() +
       ", evictionCount=" + getEvictionCount() +
       ", evictedBlockCount=" + getEvictedCount() +
+      ", promotedBlockCount=" + getPromotedCount() +
+      ", demotedBlockCount=" + getDemotedCount() +
+      ", failedInsertCount=" + getFailedInsertCount() +
       ", evictedAgeMean=" + snapshot.getMean() +
       ", evictedAgeStdDev=" + snapshot.getStdDev();
   }
@@ -137,6 +149,18 @@ public class CacheStats {
     this.evictedBlockCount.incrementAndGet();
   }
 
+  public void promoted() {
+    promotedBlockCount.incrementAndGet();
+  }
+
+  public void demoted() {
+    demotedBlockCount.incrementAndGet();
+  }
+
+  public void failInsert() {
+    failedInsertCount.incrementAndGet();
+  }
+
   public long getRequestCount() {
     return getHitCount() + getMissCount();
   }
@@ -169,6 +193,18 @@ public class CacheStats {
     return this.evictedBlockCount.get();
   }
 
+  public long getPromotedCount() {
+    return this.promotedBlockCount.get();
+  }
+
+  public long getDemotedCount() {
+    return this.demotedBlockCount.get();
+  }
+
+  public long getFailedInsertCount() {
+    return this.failedInsertCount.get();
+  }
+
   public double getHitRatio() {
     return ((float)getHitCount()/(float)getRequestCount());
   }
@@ -60,4 +60,19 @@ public interface Cacheable extends HeapSize {
    * @return the block type of this cached HFile block
    */
   BlockType getBlockType();
+
+  /**
+   * @return the type of memory this block's contents live in
+   */
+  MemoryType getMemoryType();
+
+  /**
+   * Where a block's contents live. A {@link #SHARED} block is a view of memory owned by the cache
+   * it came from, valid only until it is handed back with
+   * {@link BlockCache#returnBlock(BlockCacheKey, Cacheable)}; anything kept longer must be copied
+   * out of it. An {@link #EXCLUSIVE} block owns its contents.
+   */
+  public enum MemoryType {
+    SHARED, EXCLUSIVE
+  }
 }
@@ -45,6 +45,19 @@ public interface CacheableDeserializer<T extends Cacheable> {
    */
   T deserialize(ByteBuffer b, boolean reuse) throws IOException;
 
+  /**
+   * @param b
+   * @param reuse true if Cacheable object can use the given buffer as its
+   *          content
+   * @param memType the type of memory the given buffer is a view of. A deserializer that keeps
+   *          a {@link Cacheable.MemoryType#SHARED} buffer must report its result as shared;
+   *          otherwise it copies the contents out and reports
+   *          {@link Cacheable.MemoryType#EXCLUSIVE}
+   * @return T the deserialized object.
+   * @throws IOException
+   */
+  T deserialize(ByteBuffer b, boolean reuse, Cacheable.MemoryType memType) throws IOException;
+
   /**
    * Get the identifier of this deserialiser. Identifier is unique for each
    * deserializer and generated by {@link CacheableDeserializerIdManager}
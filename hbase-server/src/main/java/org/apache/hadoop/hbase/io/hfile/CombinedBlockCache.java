@@ -20,6 +20,7 @@ package org.apache.hadoop.hbase.io.hfile;
 
 import java.util.Iterator;
 
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.classification.InterfaceAudience;
 import org.apache.hadoop.hbase.io.HeapSize;
 import org.apache.hadoop.hbase.io.hfile.BlockType.BlockCategory;
@@ -27,25 +28,54 @@ import org.apache.hadoop.hbase.io.hfile.bucket.BucketCache;
 
 /**
  * CombinedBlockCache is an abstraction layer that combines
- * {@link LruBlockCache} and {@link BucketCache}. The smaller lruCache is used
- * to cache bloom blocks and index blocks.  The larger bucketCache is used to
- * cache data blocks. {@link #getBlock(BlockCacheKey, boolean, boolean, boolean)} reads
+ * a {@link FirstLevelBlockCache}, e.g. {@link LruBlockCache}, and {@link BucketCache}. The
+ * smaller lruCache is used to cache bloom blocks and index blocks.  The larger bucketCache is
+ * used to cache data blocks. {@link #getBlock(BlockCacheKey, boolean, boolean, boolean)} reads
  * first from the smaller lruCache before looking for the block in the bucketCache.  Blocks evicted
  * from lruCache are put into the bucket cache. 
  * Metrics are the combined size and hits and misses of both caches.
- * 
+ * <p>
+ * When data blocks are cached in their on-disk, compressed and/or encrypted form (see
+ * {@link CacheConfig#CACHE_DATA_BLOCKS_COMPRESSED_KEY}), the bucketCache holds them packed and
+ * readers unpack them on every hit. The unpacked form of a block that keeps being hit is kept in
+ * the lruCache too, as counted by a {@link FrequencySketch}, so that the few hottest blocks are
+ * not decompressed over and over again.
  */
 @InterfaceAudience.Private
 public class CombinedBlockCache implements ResizableBlockCache, HeapSize {
-  private final LruBlockCache lruCache;
+  private final FirstLevelBlockCache lruCache;
   private final BucketCache bucketCache;
   private final CombinedCacheStats combinedCacheStats;
+  /** Hits of a packed block before it is kept unpacked in the lruCache; 0 to never keep it */
+  private final int unpackedHits;
+  /** Counts hits of packed blocks. Not thread safe; guarded by itself */
+  private final FrequencySketch sketch;
 
-  public CombinedBlockCache(LruBlockCache lruCache, BucketCache bucketCache) {
+  public CombinedBlockCache(FirstLevelBlockCache lruCache, BucketCache bucketCache) {
+    this(lruCache, bucketCache, HConstants.DEFAULT_BLOCKSIZE,
+      CacheConfig.DEFAULT_CACHE_DATA_UNPACKED_HITS);
+  }
+
+  /**
+   * @param lruCache the on-heap cache for index and bloom blocks
+   * @param bucketCache the cache for data blocks
+   * @param blockSize approximate size of each block, in bytes
+   * @param unpackedHits how many times a packed block has to be hit before its unpacked form is
+   *          kept in the lruCache too; 0 to never keep it
+   */
+  public CombinedBlockCache(FirstLevelBlockCache lruCache, BucketCache bucketCache,
+      long blockSize, int unpackedHits) {
+    if (unpackedHits < 0 || unpackedHits > FrequencySketch.MAX_FREQUENCY) {
+      throw new IllegalArgumentException("Unpacked hits must be between 0 and "
+          + FrequencySketch.MAX_FREQUENCY + ", not " + unpackedHits);
+    }
     this.lruCache = lruCache;
     this.bucketCache = bucketCache;
     this.combinedCacheStats = new CombinedCacheStats(lruCache.getStats(),
         bucketCache.getStats());
+    this.unpackedHits = unpackedHits;
+    this.sketch = unpackedHits == 0 ? null
+        : new FrequencySketch(Math.max(1, bucketCache.getMaxSize() / blockSize));
   }
 
   @Override
@@ -80,9 +110,50 @@ public class CombinedBlockCache implements ResizableBlockCache, HeapSize {
     return bucketCache.getBlock(cacheKey, caching, repeat, updateCacheMetrics);
   }
 
+  /**
+   * Keeps the unpacked form of a data block read packed from the bucketCache in the lruCache as
+   * well, if the block has been unpacked often enough. The bucketCache keeps the packed block.
+   * @param cacheKey the key of the block
+   * @param unpacked the block, decompressed and decrypted
+   * @return true if the unpacked block was cached
+   */
+  public boolean cacheUnpackedIfHot(BlockCacheKey cacheKey, Cacheable unpacked) {
+    if (sketch == null || unpacked.getBlockType().getCategory() != BlockCategory.DATA) {
+      return false;
+    }
+    int hashCode = cacheKey.hashCode();
+    synchronized (sketch) {
+      sketch.increment(hashCode);
+      if (sketch.frequency(hashCode) < unpackedHits) {
+        return false;
+      }
+    }
+    if (lruCache.containsBlock(cacheKey)) {
+      return false;
+    }
+    lruCache.cacheBlock(cacheKey, unpacked);
+    bucketCache.getStats().promoted();
+    return true;
+  }
+
+  @Override
+  public boolean isBlockCached(BlockCacheKey cacheKey) {
+    return lruCache.containsBlock(cacheKey) || bucketCache.isBlockCached(cacheKey);
+  }
+
   @Override
   public boolean evictBlock(BlockCacheKey cacheKey) {
-    return lruCache.evictBlock(cacheKey) || bucketCache.evictBlock(cacheKey);
+    // The unpacked form of a hot block is in both caches
+    boolean evicted = lruCache.evictBlock(cacheKey);
+    return bucketCache.evictBlock(cacheKey) || evicted;
+  }
+
+  @Override
+  public boolean returnBlock(BlockCacheKey cacheKey, Cacheable block) {
+    if (block.getMemoryType() == Cacheable.MemoryType.SHARED) {
+      return bucketCache.returnBlock(cacheKey, block);
+    }
+    return false;
   }
 
   @Override
@@ -178,6 +249,24 @@ public class CombinedBlockCache implements ResizableBlockCache, HeapSize {
           + bucketCacheStats.getEvictedCount();
     }
 
+    @Override
+    public long getPromotedCount() {
+      return lruCacheStats.getPromotedCount()
+          + bucketCacheStats.getPromotedCount();
+    }
+
+    @Override
+    public long getDemotedCount() {
+      return lruCacheStats.getDemotedCount()
+          + bucketCacheStats.getDemotedCount();
+    }
+
+    @Override
+    public long getFailedInsertCount() {
+      return lruCacheStats.getFailedInsertCount()
+          + bucketCacheStats.getFailedInsertCount();
+    }
+
     @Override
     public void rollMetricsPeriod() {
       lruCacheStats.rollMetricsPeriod();
@@ -0,0 +1,138 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+
+/**
+ * A count-min sketch of how often items were seen, for the admission policy of
+ * {@link TinyLfuBlockCache}. Each item has four 4-bit counters picked by hashing; its frequency is
+ * the least of them, and so is never less than the times it was actually seen, up to 15. Once as
+ * many increments have been made as ten times the number of items the sketch is sized for, all
+ * counters are halved, so the frequencies favour recent history.
+ * <p>
+ * Not thread safe.
+ */
+@InterfaceAudience.Private
+class FrequencySketch {
+  private static final long[] SEED = new long[] {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+  // The low bit of every counter, and all but the high bit of every counter
+  private static final long ONE_MASK = 0x1111111111111111L;
+  private static final long RESET_MASK = 0x7777777777777777L;
+  static final int MAX_FREQUENCY = 15;
+
+  // Sixteen counters a long; the counters of an item are all in the same long.
+  private long[] table;
+  private int tableMask;
+  private int sampleSize;
+  private int size;
+
+  /**
+   * @param maximumItems How many items the cache holds, roughly
+   */
+  FrequencySketch(final long maximumItems) {
+    ensureCapacity(maximumItems);
+  }
+
+  /**
+   * Makes the sketch big enough for <code>maximumItems</code>. What was counted so far is lost if
+   * it has to grow.
+   */
+  void ensureCapacity(final long maximumItems) {
+    int capacity = (int) Math.max(1, Math.min(maximumItems, Integer.MAX_VALUE >>> 1));
+    if (this.table != null && this.table.length >= capacity) {
+      return;
+    }
+    // A long for each item, rounded up to a power of two
+    this.table = new long[capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1];
+    this.tableMask = this.table.length - 1;
+    this.sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+    this.size = 0;
+  }
+
+  /**
+   * @return How often, at most, the item with the given hash was seen; up to
+   * {@link #MAX_FREQUENCY}
+   */
+  int frequency(final int hashCode) {
+    int hash = spread(hashCode);
+    // Which four of the sixteen counters in a long are ours
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < 4; i++) {
+      int index = indexOf(hash, i);
+      int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  /**
+   * Counts the item with the given hash seen once more.
+   */
+  void increment(final int hashCode) {
+    int hash = spread(hashCode);
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+    if (added && ++size >= sampleSize) {
+      reset();
+    }
+  }
+
+  private boolean incrementAt(final int index, final int counter) {
+    int offset = counter << 2;
+    long mask = 0xfL << offset;
+    if ((table[index] & mask) != mask) {
+      table[index] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Halves all counters. Counters that were odd lose a half each; that is taken off the size.
+   */
+  private void reset() {
+    int odd = 0;
+    for (int i = 0; i < table.length; i++) {
+      odd += Long.bitCount(table[i] & ONE_MASK);
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    size = (size >>> 1) - (odd >>> 2);
+  }
+
+  private int indexOf(final int hash, final int i) {
+    long h = (hash + SEED[i]) * SEED[i];
+    h += h >>> 32;
+    return ((int) h) & tableMask;
+  }
+
+  /**
+   * Mixes the bits of a hash code that may be poorly distributed.
+   */
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+}
@@ -369,6 +369,13 @@ public class HFile {
         final boolean updateCacheMetrics, BlockType expectedBlockType,
         DataBlockEncoding expectedDataBlockEncoding)
         throws IOException;
+
+    /**
+     * Gives a block got from {@link #readBlock} back once the caller is done with it. A block
+     * served in place from the block cache stays pinned there until then.
+     * @param block the block read
+     */
+    void returnBlock(HFileBlock block);
   }
 
   /** An interface used by clients to open and iterate an {@link HFile}. */
@@ -439,6 +446,37 @@ public class HFile {
      * Return the file context of the HFile this reader belongs to
      */
     HFileContext getFileContext();
+
+    /**
+     * Reads the data blocks holding the given keys into the block cache, those not cached yet,
+     * in as few reads as possible: blocks close to each other in the file are read together,
+     * with whatever is between them, rather than one read per block.
+     * @param keys the keys, in any order
+     * @param toLastKey whether all the blocks from the first key to the last are wanted, as for
+     *          a short scan, rather than only those holding the keys
+     * @param pread whether to use positional reads
+     * @return the number of blocks cached
+     */
+    int fetchDataBlocks(List<? extends Cell> keys, boolean toLastKey, boolean pread)
+        throws IOException;
+
+    /**
+     * Starts reading the data block holding the given key in the background, as for a seek to
+     * the key by a user scan. The next read of the block, as by the seek, waits for it rather
+     * than reading it again.
+     * @param key the key
+     * @param cacheBlock whether to cache the block
+     * @return the offset of the block, for {@link #cancelBlockRead(long)} if it turns out not to
+     *         be read after all; -1 if the key is before the first key of the file, or if the
+     *         block is being read for someone else already, who is the one to cancel it
+     */
+    long readDataBlockAsync(Cell key, boolean cacheBlock) throws IOException;
+
+    /**
+     * Cancels the background read of the block at the given offset, if nothing waited for it
+     * yet. The block is given back if read already.
+     */
+    void cancelBlockRead(long offset);
   }
 
   /**
@@ -584,6 +622,8 @@ public class HFile {
     static final byte [] COMPARATOR = Bytes.toBytes(RESERVED_PREFIX + "COMPARATOR");
     static final byte [] TAGS_COMPRESSED = Bytes.toBytes(RESERVED_PREFIX + "TAGS_COMPRESSED");
     public static final byte [] MAX_TAGS_LEN = Bytes.toBytes(RESERVED_PREFIX + "MAX_TAGS_LEN");
+    /** Present if the unencoded data blocks of the file end with a row index */
+    static final byte [] ROW_INDEX = Bytes.toBytes(RESERVED_PREFIX + "ROW_INDEX");
     private final SortedMap<byte [], byte []> map = new TreeMap<byte [], byte []>(Bytes.BYTES_COMPARATOR);
 
     public FileInfo() {
@@ -24,6 +24,9 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -31,6 +34,7 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.classification.InterfaceAudience;
 import org.apache.hadoop.hbase.fs.HFileSystem;
@@ -120,9 +124,19 @@ public class HFileBlock implements Cacheable {
   private static final CacheableDeserializer<Cacheable> blockDeserializer =
       new CacheableDeserializer<Cacheable>() {
         public HFileBlock deserialize(ByteBuffer buf, boolean reuse) throws IOException{
+          return deserialize(buf, reuse, MemoryType.EXCLUSIVE);
+        }
+
+        @Override
+        public HFileBlock deserialize(ByteBuffer buf, boolean reuse, MemoryType memType)
+            throws IOException {
           buf.limit(buf.limit() - HFileBlock.EXTRA_SERIALIZATION_SPACE).rewind();
+          // Only data blocks are read through scanners which give them back when done; any
+          // other block may be held on to, so it gets its own copy
+          boolean shared = memType == MemoryType.SHARED
+              && BlockType.read(buf.duplicate()).isData();
           ByteBuffer newByteBuffer;
-          if (reuse) {
+          if (reuse || shared) {
             newByteBuffer = buf.slice();
           } else {
            newByteBuffer = ByteBuffer.allocate(buf.limit());
@@ -137,6 +151,9 @@ public class HFileBlock implements Cacheable {
           if (ourBuffer.hasNextBlockHeader()) {
             ourBuffer.buf.limit(ourBuffer.buf.limit() - ourBuffer.headerSize());
           }
+          if (shared) {
+            ourBuffer.memType = MemoryType.SHARED;
+          }
           return ourBuffer;
         }
 
@@ -193,6 +210,12 @@ public class HFileBlock implements Cacheable {
    */
   private int nextBlockOnDiskSizeWithHeader = -1;
 
+  /**
+   * Whether {@link #buf} is memory of the cache this block was got from, to be given back to it
+   * once the reader is done with the block.
+   */
+  private MemoryType memType = MemoryType.EXCLUSIVE;
+
   /**
    * Creates a new {@link HFile} block from the given fields. This constructor
    * is mostly used when the block data has already been read and uncompressed,
@@ -238,6 +261,7 @@ public class HFileBlock implements Cacheable {
     this.onDiskDataSizeWithHeader = that.onDiskDataSizeWithHeader;
     this.fileContext = that.fileContext;
     this.nextBlockOnDiskSizeWithHeader = that.nextBlockOnDiskSizeWithHeader;
+    this.memType = that.memType;
   }
 
   /**
@@ -275,6 +299,11 @@ public class HFileBlock implements Cacheable {
     return blockType;
   }
 
+  @Override
+  public MemoryType getMemoryType() {
+    return memType;
+  }
+
   /** @return get data block encoding id that was used to encode this block */
   public short getDataBlockEncodingId() {
     if (blockType != BlockType.ENCODED_DATA) {
@@ -519,6 +548,7 @@ public class HFileBlock implements Cacheable {
 
     HFileBlock unpacked = new HFileBlock(this);
     unpacked.allocateBuffer(); // allocates space for the decompressed block
+    unpacked.memType = MemoryType.EXCLUSIVE;
 
     HFileBlockDecodingContext ctx = blockType == BlockType.ENCODED_DATA ?
       reader.getBlockDecodingContext() : reader.getDefaultBlockDecodingContext();
@@ -638,8 +668,8 @@ public class HFileBlock implements Cacheable {
   public long heapSize() {
     long size = ClassSize.align(
         ClassSize.OBJECT +
-        // Block type, byte buffer and meta references
-        3 * ClassSize.REFERENCE +
+        // Block type, byte buffer, meta and memory type references
+        4 * ClassSize.REFERENCE +
         // On-disk size, uncompressed size, and next block's on-disk size
         // bytePerChecksum and onDiskDataSize
         4 * Bytes.SIZEOF_INT +
@@ -839,6 +869,16 @@ public class HFileBlock implements Cacheable {
     /** Meta data that holds information about the hfileblock**/
     private HFileContext fileContext;
 
+    /**
+     * Offsets of the cells starting a row in the current data block, written after them when
+     * the block is finished. Null unless unencoded data blocks get a row index.
+     */
+    private int[] rowIndex;
+    /** Number of offsets in {@link #rowIndex} */
+    private int rowIndexCount;
+    /** The last cell written to the current data block */
+    private Cell lastCellInBlock;
+
     /**
      * @param dataBlockEncoder data block encoding algorithm to use
      */
@@ -863,6 +903,10 @@ public class HFileBlock implements Cacheable {
         prevOffsetByType[i] = -1;
 
       this.fileContext = fileContext;
+      if (fileContext.isIncludesRowIndex()
+          && this.dataBlockEncoder.getDataBlockEncoding() == DataBlockEncoding.NONE) {
+        rowIndex = new int[64];
+      }
     }
 
     /**
@@ -893,6 +937,8 @@ public class HFileBlock implements Cacheable {
         this.dataBlockEncoder.startBlockEncoding(dataBlockEncodingCtx, userDataStream);
       }
       this.unencodedDataSizeWritten = 0;
+      rowIndexCount = 0;
+      lastCellInBlock = null;
       return userDataStream;
     }
 
@@ -903,10 +949,32 @@ public class HFileBlock implements Cacheable {
      */
     public void write(Cell cell) throws IOException{
       expectState(State.WRITING);
+      if (rowIndex != null && blockType == BlockType.DATA
+          && (lastCellInBlock == null || !CellUtil.matchingRow(lastCellInBlock, cell))) {
+        if (rowIndexCount == rowIndex.length) {
+          rowIndex = Arrays.copyOf(rowIndex, rowIndex.length * 2);
+        }
+        rowIndex[rowIndexCount++] =
+            baosInMemory.size() - HConstants.HFILEBLOCK_DUMMY_HEADER.length;
+        lastCellInBlock = cell;
+      }
       this.unencodedDataSizeWritten += this.dataBlockEncoder.encode(cell, dataBlockEncodingCtx,
           this.userDataStream);
     }
 
+    /**
+     * Writes the row index of the current data block after its cells: the offset of each cell
+     * starting a row, from the start of the block data, then the number of offsets. The first
+     * cell of the block always has an offset, whether it starts a row or not.
+     */
+    private void writeRowIndex() throws IOException {
+      for (int i = 0; i < rowIndexCount; i++) {
+        userDataStream.writeInt(rowIndex[i]);
+      }
+      userDataStream.writeInt(rowIndexCount);
+      lastCellInBlock = null;
+    }
+
     /**
      * Returns the stream for the user to write to. The block writer takes care
      * of handling compression and buffering for caching on write. Can only be
@@ -941,6 +1009,9 @@ public class HFileBlock implements Cacheable {
      * write state to "block ready".
      */
     private void finishBlock() throws IOException {
+      if (rowIndex != null && blockType == BlockType.DATA) {
+        writeRowIndex();
+      }
       if (blockType == BlockType.DATA) {
         BufferGrabbingByteArrayOutputStream baosInMemoryCopy =
             new BufferGrabbingByteArrayOutputStream();
@@ -1275,6 +1346,21 @@ public class HFileBlock implements Cacheable {
     HFileBlock readBlockData(long offset, long onDiskSize,
         int uncompressedSize, boolean pread) throws IOException;
 
+    /**
+     * Reads all the blocks in the given portion of the file in one read operation, rather than
+     * one read per block. The portion must end where a block does, as known from the block
+     * index, unless partial. Returned blocks are not unpacked.
+     *
+     * @param startOffset the offset of the first block
+     * @param endOffset the offset the last block ends at (exclusive)
+     * @param partial whether the portion may end within a block, as when reading ahead, in
+     *          which case that block is left out
+     * @return the newly read blocks, in file order; empty if partial and the first block does
+     *         not fit
+     */
+    List<HFileBlock> readBlocksData(long startOffset, long endOffset, boolean partial,
+        boolean pread) throws IOException;
+
     /**
      * Creates a block iterator over the given portion of the {@link HFile}.
      * The iterator returns blocks starting with offset such that offset <=
@@ -1714,6 +1800,71 @@ public class HFileBlock implements Cacheable {
       return b;
     }
 
+    @Override
+    public List<HFileBlock> readBlocksData(long startOffset, long endOffset, boolean partial,
+        boolean pread) throws IOException {
+      if (startOffset < 0 || endOffset <= startOffset
+          || endOffset - startOffset >= Integer.MAX_VALUE - hdrSize) {
+        throw new IOException("Invalid block range: startOffset=" + startOffset
+            + ", endOffset=" + endOffset);
+      }
+      boolean doVerificationThruHBaseChecksum = streamWrapper.shouldUseHBaseChecksum();
+      FSDataInputStream is = streamWrapper.getStream(doVerificationThruHBaseChecksum);
+      int size = (int) (endOffset - startOffset);
+      // Room for the header of the block after the range as well
+      byte[] range = new byte[size + hdrSize];
+      int nextBlockOnDiskSize = readAtOffset(is, range, 0, size, true, startOffset, pread);
+
+      List<HFileBlock> blocks = new ArrayList<HFileBlock>();
+      int pos = 0;
+      while (pos < size) {
+        long offset = startOffset + pos;
+        if (pos + hdrSize > size) {
+          if (partial) {
+            break;
+          }
+          throw new IOException("Block range " + startOffset + "-" + endOffset
+              + " ends within the header of the block at offset " + offset);
+        }
+        HFileBlock b = new HFileBlock(ByteBuffer.wrap(range, pos, hdrSize).slice(),
+            fileContext.isUseHBaseChecksum());
+        int onDiskSizeWithHeader = b.getOnDiskSizeWithHeader();
+        if (pos + onDiskSizeWithHeader > size) {
+          if (partial) {
+            break;
+          }
+          throw new IOException("Block range " + startOffset + "-" + endOffset
+              + " ends within the block at offset " + offset + ", onDiskSizeWithHeader="
+              + onDiskSizeWithHeader);
+        }
+        // Each block gets a buffer of its own, with the header of the next block after it
+        byte[] onDiskBlock = Arrays.copyOfRange(range, pos, pos + onDiskSizeWithHeader + hdrSize);
+        pos += onDiskSizeWithHeader;
+        int nextSize = pos < size
+            ? Bytes.toInt(range, pos + BlockType.MAGIC_LENGTH) + hdrSize
+            : nextBlockOnDiskSize;
+
+        if (!fileContext.isCompressedOrEncrypted()) {
+          b.assumeUncompressed();
+        }
+        if (doVerificationThruHBaseChecksum && !validateBlockChecksum(b, onDiskBlock, hdrSize)) {
+          // Leave the checksum failure to the single block read, which retries with HDFS
+          // checksums
+          blocks.add(readBlockData(offset, onDiskSizeWithHeader, -1, pread));
+          continue;
+        }
+        b = new HFileBlock(ByteBuffer.wrap(onDiskBlock, 0, onDiskSizeWithHeader),
+            this.fileContext.isUseHBaseChecksum());
+        b.nextBlockOnDiskSizeWithHeader = nextSize;
+        b.offset = offset;
+        b.fileContext.setIncludesTags(this.fileContext.isIncludesTags());
+        b.fileContext.setIncludesMvcc(this.fileContext.isIncludesMvcc());
+        blocks.add(b);
+      }
+      streamWrapper.checksumOk();
+      return blocks;
+    }
+
     void setIncludesMemstoreTS(boolean includesMemstoreTS) {
       this.fileContext.setIncludesMvcc(includesMemstoreTS);
     }
@@ -189,6 +189,49 @@ public class HFileBlockIndex {
       }
     }
 
+    /**
+     * Finds the data block which contains this key without reading it, reading
+     * only the intermediate and leaf index blocks on the way, which are always
+     * cached.
+     *
+     * @param key the key we are looking for
+     * @param pread
+     * @param isCompaction
+     * @return the offset and the on-disk size of the data block, or null if
+     *         the key is before the first key of the file
+     * @throws IOException
+     */
+    public long[] locateDataBlock(final Cell key, boolean pread, boolean isCompaction)
+        throws IOException {
+      int rootLevelIndex = rootBlockContainingKey(key);
+      if (rootLevelIndex < 0 || rootLevelIndex >= blockOffsets.length) {
+        return null;
+      }
+      long currentOffset = blockOffsets[rootLevelIndex];
+      int currentOnDiskSize = blockDataSizes[rootLevelIndex];
+      for (int lookupLevel = 1; lookupLevel < searchTreeLevel; lookupLevel++) {
+        BlockType expectedBlockType = lookupLevel < searchTreeLevel - 1
+            ? BlockType.INTERMEDIATE_INDEX : BlockType.LEAF_INDEX;
+        HFileBlock block = cachingBlockReader.readBlock(currentOffset, currentOnDiskSize, true,
+            pread, isCompaction, true, expectedBlockType, null);
+        if (block == null) {
+          throw new IOException("Failed to read block at offset " +
+              currentOffset + ", onDiskSize=" + currentOnDiskSize);
+        }
+        try {
+          ByteBuffer buffer = block.getBufferWithoutHeader();
+          if (locateNonRootIndexEntry(buffer, key, comparator) == -1) {
+            return null;
+          }
+          currentOffset = buffer.getLong();
+          currentOnDiskSize = buffer.getInt();
+        } finally {
+          cachingBlockReader.returnBlock(block);
+        }
+      }
+      return new long[] { currentOffset, currentOnDiskSize };
+    }
+
     /**
      * Return the BlockWithScanInfo which contains the DataBlock with other scan
      * info such as nextIndexedKey. This function will only be called when the
@@ -303,6 +346,9 @@ public class HFileBlockIndex {
       }
 
       if (lookupLevel != searchTreeLevel) {
+        if (block != currentBlock) {
+          cachingBlockReader.returnBlock(block);
+        }
         throw new IOException("Reached a data block at level " + lookupLevel +
             " but the number of levels is " + searchTreeLevel);
       }
@@ -812,7 +858,8 @@ public class HFileBlockIndex {
      * Creates a multi-level block index writer.
      *
      * @param blockWriter the block writer to use to write index blocks
-     * @param cacheConf used to determine when and how a block should be cached-on-write.
+     * @param cacheConf used to determine when and how a block should be cached-on-write, and
+     *          the {@link BlockCacheQuota} the blocks cached count against
      */
     public BlockIndexWriter(HFileBlock.Writer blockWriter,
         CacheConfig cacheConf, String nameForCaching) {
@@ -979,7 +1026,7 @@ public class HFileBlockIndex {
       if (cacheConf != null) {
         HFileBlock blockForCaching = blockWriter.getBlockForCaching(cacheConf);
         cacheConf.getBlockCache().cacheBlock(new BlockCacheKey(nameForCaching,
-          beginOffset), blockForCaching);
+          beginOffset, cacheConf.getQuota()), blockForCaching);
       }
 
       // Add intermediate index block size
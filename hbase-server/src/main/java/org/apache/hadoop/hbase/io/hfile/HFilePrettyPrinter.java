@@ -300,6 +300,7 @@ public class HFilePrettyPrinter extends Configured implements Tool {
           /* isCompaction */ false, /* updateCacheMetrics */ false, null, null);
         offset += block.getOnDiskSizeWithHeader();
         System.out.println(block);
+        reader.returnBlock(block);
       }
     }
 
@@ -19,9 +19,24 @@ package org.apache.hadoop.hbase.io.hfile;
 
 import java.io.DataInput;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,6 +48,7 @@ import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.KeyValue.KVComparator;
+import org.apache.hadoop.hbase.KeyValueUtil;
 import org.apache.hadoop.hbase.NoTagsKeyValue;
 import org.apache.hadoop.hbase.fs.HFileSystem;
 import org.apache.hadoop.hbase.io.FSDataInputStreamWrapper;
@@ -71,6 +87,49 @@ public class HFileReaderV2 extends AbstractHFileReader {
    */
   public final static int KEY_VALUE_LEN_SIZE = 2 * Bytes.SIZEOF_INT;
 
+  /**
+   * Configuration key for the most bytes between two data blocks fetched together, in one read
+   * with the blocks between them, by {@link #fetchDataBlocks(List, boolean, boolean)}
+   */
+  public static final String FETCH_MAX_GAP_KEY = "hbase.hfile.fetch.coalesce.max.gap";
+  public static final int DEFAULT_FETCH_MAX_GAP = 64 * 1024;
+
+  /** Configuration key for the most bytes read at once when fetching data blocks together */
+  public static final String FETCH_MAX_SIZE_KEY = "hbase.hfile.fetch.coalesce.max.size";
+  public static final int DEFAULT_FETCH_MAX_SIZE = 1024 * 1024;
+
+  /**
+   * Configuration key for whether scanners reading with streams, as long scans and compactions
+   * do, read the next block in the background while going through the current one
+   */
+  public static final String SCANNER_READ_AHEAD_KEY = "hbase.hfile.scanner.readahead";
+  public static final boolean DEFAULT_SCANNER_READ_AHEAD = false;
+
+  /**
+   * Configuration key for whether scanners going through blocks one after the other read the
+   * blocks ahead of them in windows, each in one streaming read; see {@link ScanReadAhead}
+   */
+  public static final String READ_AHEAD_WINDOW_KEY = "hbase.hfile.scanner.readahead.window";
+  public static final boolean DEFAULT_READ_AHEAD_WINDOW = false;
+
+  /** Configuration key for the bytes of the first read-ahead window of a scan */
+  public static final String READ_AHEAD_WINDOW_MIN_KEY =
+      "hbase.hfile.scanner.readahead.window.min";
+  public static final int DEFAULT_READ_AHEAD_WINDOW_MIN = 256 * 1024;
+
+  /** Configuration key for the most bytes of a read-ahead window */
+  public static final String READ_AHEAD_WINDOW_MAX_KEY =
+      "hbase.hfile.scanner.readahead.window.max";
+  public static final int DEFAULT_READ_AHEAD_WINDOW_MAX = 8 * 1024 * 1024;
+
+  /**
+   * Configuration key for how long a scan should take to go through a read-ahead window at the
+   * pace it went through the one before, which sizes the window
+   */
+  public static final String READ_AHEAD_WINDOW_MILLIS_KEY =
+      "hbase.hfile.scanner.readahead.window.millis";
+  public static final int DEFAULT_READ_AHEAD_WINDOW_MILLIS = 200;
+
   protected boolean includesMemstoreTS = false;
   protected boolean decodeMemstoreTS = false;
   protected boolean shouldIncludeMemstoreTS() {
@@ -88,6 +147,19 @@ public class HFileReaderV2 extends AbstractHFileReader {
    */
   private IdLock offsetLock = new IdLock();
 
+  /** Blocks being read in the background, by offset, for the next read of each to wait for */
+  private final ConcurrentMap<Long, BlockRead> blockReads =
+      new ConcurrentHashMap<Long, BlockRead>();
+
+  /** Whether scanners reading with streams read ahead */
+  private final boolean scannerReadAhead;
+
+  /** Bounds of the read-ahead windows of scanners in bytes, both 0 for no windows */
+  final int readAheadWindowMin;
+  final int readAheadWindowMax;
+  /** How long a scan should take to go through a read-ahead window */
+  final int readAheadWindowMillis;
+
   /**
    * Blocks read from the load-on-open section, excluding data root index, meta
    * index, and file info.
@@ -124,6 +196,19 @@ public class HFileReaderV2 extends AbstractHFileReader {
       final HFileSystem hfs, final Configuration conf) throws IOException {
     super(path, trailer, size, cacheConf, hfs, conf);
     this.conf = conf;
+    this.scannerReadAhead = conf != null
+        && conf.getBoolean(SCANNER_READ_AHEAD_KEY, DEFAULT_SCANNER_READ_AHEAD);
+    if (conf != null && conf.getBoolean(READ_AHEAD_WINDOW_KEY, DEFAULT_READ_AHEAD_WINDOW)) {
+      this.readAheadWindowMin = Math.max(1,
+        conf.getInt(READ_AHEAD_WINDOW_MIN_KEY, DEFAULT_READ_AHEAD_WINDOW_MIN));
+      this.readAheadWindowMax = Math.max(readAheadWindowMin,
+        conf.getInt(READ_AHEAD_WINDOW_MAX_KEY, DEFAULT_READ_AHEAD_WINDOW_MAX));
+    } else {
+      this.readAheadWindowMin = 0;
+      this.readAheadWindowMax = 0;
+    }
+    this.readAheadWindowMillis = conf == null ? DEFAULT_READ_AHEAD_WINDOW_MILLIS
+        : conf.getInt(READ_AHEAD_WINDOW_MILLIS_KEY, DEFAULT_READ_AHEAD_WINDOW_MILLIS);
     trailer.expectMajorVersion(getMajorVersion());
     validateMinorVersion(path, trailer.getMinorVersion());
     this.hfileContext = createHFileContext(fsdis, fileSize, hfs, path, trailer);
@@ -170,6 +255,9 @@ public class HFileReaderV2 extends AbstractHFileReader {
     if (includesMemstoreTS) {
       decodeMemstoreTS = Bytes.toLong(fileInfo.get(HFileWriterV2.MAX_MEMSTORE_TS_KEY)) > 0;
     }
+    if (fileInfo.get(FileInfo.ROW_INDEX) != null) {
+      hfileContext.setIncludesRowIndex(true);
+    }
 
     // Read data block encoding algorithm name from file info.
     dataBlockEncoder = HFileDataBlockEncoderImpl.createFromFileInfo(fileInfo);
@@ -183,39 +271,171 @@ public class HFileReaderV2 extends AbstractHFileReader {
 
     // Prefetch file blocks upon open if requested
     if (cacheConf.shouldPrefetchOnOpen()) {
-      PrefetchExecutor.request(path, new Runnable() {
-        public void run() {
-          try {
-            long offset = 0;
-            long end = fileSize - getTrailer().getTrailerSize();
-            HFileBlock prevBlock = null;
-            while (offset < end) {
-              if (Thread.interrupted()) {
-                break;
-              }
-              long onDiskSize = -1;
-              if (prevBlock != null) {
-                onDiskSize = prevBlock.getNextBlockOnDiskSizeWithHeader();
-              }
-              HFileBlock block = readBlock(offset, onDiskSize, true, false, false, false,
-                null, null);
-              prevBlock = block;
-              offset += block.getOnDiskSizeWithHeader();
-            }
-          } catch (IOException e) {
-            // IOExceptions are probably due to region closes (relocation, etc.)
-            if (LOG.isTraceEnabled()) {
-              LOG.trace("Exception encountered while prefetching " + path + ":", e);
-            }
-          } catch (Exception e) {
-            // Other exceptions are interesting
-            LOG.warn("Exception encountered while prefetching " + path + ":", e);
-          } finally {
-            PrefetchExecutor.complete(path);
+      long end = fileSize - getTrailer().getTrailerSize();
+      long[] starts = getPrefetchRangeStarts(end);
+      List<Runnable> ranges = new ArrayList<Runnable>(starts.length);
+      for (int i = 0; i < starts.length; i++) {
+        final long rangeStart = starts[i];
+        final long rangeEnd = i + 1 < starts.length ? starts[i + 1] : end;
+        ranges.add(new Runnable() {
+          @Override
+          public void run() {
+            prefetchRange(rangeStart, rangeEnd);
           }
+        });
+      }
+      PrefetchExecutor.request(path, end, ranges);
+    }
+  }
+
+  /**
+   * Splits the file in ranges to prefetch at once. Every root index entry points at the start of
+   * a block, be it a data block or, in a multi-level index, an index block, so the ranges start at
+   * evenly spaced root index entries.
+   * @param end where the blocks to prefetch end
+   * @return the sorted offsets the ranges start at, the first being 0
+   */
+  private long[] getPrefetchRangeStarts(long end) {
+    SortedSet<Long> starts = new TreeSet<Long>();
+    starts.add(0L);
+    int rootCount = dataBlockIndexReader.getRootBlockCount();
+    int parallelism = Math.min(PrefetchExecutor.getPrefetchParallelism(), rootCount);
+    for (int i = 1; i < parallelism; i++) {
+      long offset = dataBlockIndexReader.getRootBlockOffset(i * rootCount / parallelism);
+      if (offset > 0 && offset < end) {
+        starts.add(offset);
+      }
+    }
+    long[] result = new long[starts.size()];
+    int i = 0;
+    for (Long start : starts) {
+      result[i++] = start;
+    }
+    return result;
+  }
+
+  private void prefetchRange(long start, long end) {
+    try {
+      long offset = start;
+      HFileBlock prevBlock = null;
+      while (offset < end) {
+        if (Thread.interrupted()) {
+          break;
         }
-      });
+        long onDiskSize = -1;
+        if (prevBlock != null) {
+          onDiskSize = prevBlock.getNextBlockOnDiskSizeWithHeader();
+        }
+        HFileBlock block = readBlock(offset, onDiskSize, true, false, false, false,
+          null, null, BlockCacheAdmissionPolicy.Caller.PREFETCH);
+        prevBlock = block;
+        offset += block.getOnDiskSizeWithHeader();
+        returnBlock(block);
+        PrefetchExecutor.blockPrefetched(path, block.getOnDiskSizeWithHeader());
+      }
+    } catch (IOException e) {
+      // IOExceptions are probably due to region closes (relocation, etc.)
+      if (LOG.isTraceEnabled()) {
+        LOG.trace("Exception encountered while prefetching " + path + ":", e);
+      }
+    } catch (Exception e) {
+      // Other exceptions are interesting
+      LOG.warn("Exception encountered while prefetching " + path + ":", e);
+    }
+  }
+
+  @Override
+  public int fetchDataBlocks(List<? extends Cell> keys, boolean toLastKey, boolean pread)
+      throws IOException {
+    if (keys.isEmpty() || !cacheConf.isBlockCacheEnabled()
+        || !cacheConf.shouldCacheDataOnRead()) {
+      return 0;
+    }
+    if (dataBlockIndexReader == null) {
+      throw new IOException("Block index not loaded");
+    }
+    // The on-disk sizes of the data blocks holding the keys by offset, in file order
+    SortedMap<Long, Integer> blocks = new TreeMap<Long, Integer>();
+    SortedSet<Long> uncached = new TreeSet<Long>();
+    for (Cell key : keys) {
+      long[] location = dataBlockIndexReader.locateDataBlock(key, pread, false);
+      if (location == null || blocks.containsKey(location[0])) {
+        continue;
+      }
+      boolean cached = isCached(location[0]);
+      if (!cached) {
+        uncached.add(location[0]);
+      }
+      // The first and last blocks of a range bound what is read even if cached
+      if (!cached || toLastKey) {
+        blocks.put(location[0], (int) location[1]);
+      }
+    }
+    if (uncached.isEmpty()) {
+      // For a range, the blocks between the first and the last are taken to be cached as well
+      return 0;
+    }
+
+    int maxGap = conf.getInt(FETCH_MAX_GAP_KEY, DEFAULT_FETCH_MAX_GAP);
+    int maxSize = conf.getInt(FETCH_MAX_SIZE_KEY, DEFAULT_FETCH_MAX_SIZE);
+    BlockCacheAdmissionPolicy.Caller caller = pread
+        ? BlockCacheAdmissionPolicy.Caller.GET : BlockCacheAdmissionPolicy.Caller.SCAN;
+    int fetched = 0;
+    long rangeStart = -1;
+    long rangeEnd = -1;
+    for (Map.Entry<Long, Integer> block : blocks.entrySet()) {
+      long offset = block.getKey();
+      long end = offset + block.getValue();
+      if (rangeStart >= 0 && (toLastKey || offset - rangeEnd <= maxGap)
+          && end - rangeStart <= maxSize) {
+        rangeEnd = end;
+        continue;
+      }
+      if (rangeStart >= 0) {
+        fetched += fetchDataBlockRange(rangeStart, rangeEnd, uncached, pread, caller);
+      }
+      rangeStart = offset;
+      rangeEnd = end;
+    }
+    fetched += fetchDataBlockRange(rangeStart, rangeEnd, uncached, pread, caller);
+    return fetched;
+  }
+
+  /**
+   * Reads the blocks in the given range in one read, caching the data blocks among them that
+   * are not cached yet.
+   * @param uncached the offsets of data blocks known not to be cached
+   * @return the number of blocks cached
+   */
+  private int fetchDataBlockRange(long start, long end, SortedSet<Long> uncached,
+      boolean pread, BlockCacheAdmissionPolicy.Caller caller) throws IOException {
+    if (uncached.subSet(start, end).isEmpty()) {
+      return 0;
     }
+    int cached = 0;
+    for (HFileBlock block : fsBlockReader.readBlocksData(start, end, false, pread)) {
+      // Inline blocks between data blocks are left to the index and Bloom filter readers
+      BlockType.BlockCategory category = block.getBlockType().getCategory();
+      if (!block.getBlockType().isData() || !cacheConf.shouldCacheBlockOnRead(category)
+          || !cacheConf.shouldAdmit(caller, category)
+          || (!uncached.contains(block.getOffset()) && isCached(block.getOffset()))) {
+        continue;
+      }
+      BlockCacheKey cacheKey = new BlockCacheKey(name, block.getOffset(), cacheConf.getQuota());
+      cacheConf.getBlockCache().cacheBlock(cacheKey,
+        cacheConf.shouldCacheCompressed(category) ? block : block.unpack(hfileContext,
+          fsBlockReader), cacheConf.isInMemory(), this.cacheConf.isCacheDataInL1());
+      cached++;
+    }
+    return cached;
+  }
+
+  /**
+   * @return true if the block at the given offset is in the block cache
+   */
+  private boolean isCached(long offset) {
+    return cacheConf.getBlockCache().isBlockCached(
+        new BlockCacheKey(name, offset, cacheConf.getQuota()));
   }
 
   protected HFileContext createHFileContext(FSDataInputStreamWrapper fsdis, long fileSize,
@@ -263,10 +483,24 @@ public class HFileReaderV2 extends AbstractHFileReader {
        HFileBlock cachedBlock = (HFileBlock) cache.getBlock(cacheKey, cacheBlock, useLock,
          updateCacheMetrics);
        if (cachedBlock != null) {
-         if (cacheConf.shouldCacheCompressed(cachedBlock.getBlockType().getCategory())) {
-           cachedBlock = cachedBlock.unpack(hfileContext, fsBlockReader);
+         // A hot block may have been cached unpacked as well, in which case it is found first
+         if (cacheConf.shouldCacheCompressed(cachedBlock.getBlockType().getCategory())
+             && !cachedBlock.isUnpacked()) {
+           HFileBlock compressedBlock = cachedBlock;
+           cachedBlock = compressedBlock.unpack(hfileContext, fsBlockReader);
+           if (cachedBlock != compressedBlock) {
+             cache.returnBlock(cacheKey, compressedBlock);
+             if (cacheBlock) {
+               cacheConf.cacheUnpackedIfHot(cacheKey, cachedBlock);
+             }
+           }
+         }
+         try {
+           validateBlockType(cachedBlock, expectedBlockType);
+         } catch (IOException e) {
+           cache.returnBlock(cacheKey, cachedBlock);
+           throw e;
          }
-         validateBlockType(cachedBlock, expectedBlockType);
 
          if (expectedDataBlockEncoding == null) {
            return cachedBlock;
@@ -302,6 +536,7 @@ public class HFileReaderV2 extends AbstractHFileReader {
                      ", actual: " + actualDataBlockEncoding);
              cache.evictBlock(cacheKey);
            }
+           cache.returnBlock(cacheKey, cachedBlock);
            return null;
          }
          return cachedBlock;
@@ -309,6 +544,17 @@ public class HFileReaderV2 extends AbstractHFileReader {
      }
      return null;
    }
+
+  @Override
+  public void returnBlock(HFileBlock block) {
+    if (block != null && block.getMemoryType() == Cacheable.MemoryType.SHARED) {
+      BlockCache cache = cacheConf.getBlockCache();
+      if (cache != null) {
+        cache.returnBlock(new BlockCacheKey(name, block.getOffset()), block);
+      }
+    }
+  }
+
   /**
    * @param metaBlockName
    * @param cacheBlock Add block to cache, if found
@@ -338,7 +584,7 @@ public class HFileReaderV2 extends AbstractHFileReader {
     synchronized (metaBlockIndexReader.getRootBlockKey(block)) {
       // Check cache for block. If found return.
       long metaBlockOffset = metaBlockIndexReader.getRootBlockOffset(block);
-      BlockCacheKey cacheKey = new BlockCacheKey(name, metaBlockOffset);
+      BlockCacheKey cacheKey = new BlockCacheKey(name, metaBlockOffset, cacheConf.getQuota());
 
       cacheBlock &= cacheConf.shouldCacheDataOnRead();
       if (cacheConf.isBlockCacheEnabled()) {
@@ -372,6 +618,37 @@ public class HFileReaderV2 extends AbstractHFileReader {
       boolean updateCacheMetrics, BlockType expectedBlockType,
       DataBlockEncoding expectedDataBlockEncoding)
       throws IOException {
+    // A block being read in the background is waited for rather than read again
+    BlockRead read = blockReads.remove(dataBlockOffset);
+    if (read != null) {
+      HFileBlock block = read.await();
+      if (block != null) {
+        try {
+          validateBlockType(block, expectedBlockType);
+        } catch (IOException e) {
+          returnBlock(block);
+          throw e;
+        }
+        return block;
+      }
+    }
+    BlockCacheAdmissionPolicy.Caller caller = isCompaction
+        ? BlockCacheAdmissionPolicy.Caller.COMPACTION
+        : pread ? BlockCacheAdmissionPolicy.Caller.GET : BlockCacheAdmissionPolicy.Caller.SCAN;
+    return readBlock(dataBlockOffset, onDiskBlockSize, cacheBlock, pread, isCompaction,
+      updateCacheMetrics, expectedBlockType, expectedDataBlockEncoding, caller);
+  }
+
+  /**
+   * @param caller who the block is read for, for the admission policy of the cache
+   * @see #readBlock(long, long, boolean, boolean, boolean, boolean, BlockType,
+   *      DataBlockEncoding)
+   */
+  private HFileBlock readBlock(long dataBlockOffset, long onDiskBlockSize,
+      final boolean cacheBlock, boolean pread, final boolean isCompaction,
+      boolean updateCacheMetrics, BlockType expectedBlockType,
+      DataBlockEncoding expectedDataBlockEncoding, BlockCacheAdmissionPolicy.Caller caller)
+      throws IOException {
     if (dataBlockIndexReader == null) {
       throw new IOException("Block index not loaded");
     }
@@ -384,14 +661,17 @@ public class HFileReaderV2 extends AbstractHFileReader {
     // Without a cache, this synchronizing is needless overhead, but really
     // the other choice is to duplicate work (which the cache would prevent you
     // from doing).
-    BlockCacheKey cacheKey = new BlockCacheKey(name, dataBlockOffset);
+    BlockCacheKey cacheKey = new BlockCacheKey(name, dataBlockOffset, cacheConf.getQuota());
     boolean useLock = false;
     IdLock.Entry lockEntry = null;
     TraceScope traceScope = Trace.startSpan("HFileReaderV2.readBlock");
+    // Lookups of compactions would only make the hit history of the family look worse
+    boolean recordAccess = updateCacheMetrics && !isCompaction;
     try {
       while (true) {
         // Check cache for block. If found return.
-        if (cacheConf.shouldReadBlockFromCache(expectedBlockType)) {
+        boolean lookedInCache = cacheConf.shouldReadBlockFromCache(expectedBlockType);
+        if (lookedInCache) {
           if (useLock) {
             lockEntry = offsetLock.getLockEntry(dataBlockOffset);
           }
@@ -408,9 +688,13 @@ public class HFileReaderV2 extends AbstractHFileReader {
               if (updateCacheMetrics) {
                 HFile.dataBlockReadCnt.incrementAndGet();
               }
+              if (recordAccess) {
+                cacheConf.recordDataBlockAccess(true);
+              }
               // Validate encoding type for data blocks. We include encoding
               // type in the cache key, and we expect it to match on a cache hit.
               if (cachedBlock.getDataBlockEncoding() != dataBlockEncoder.getDataBlockEncoding()) {
+                returnBlock(cachedBlock);
                 throw new IOException("Cached block under key " + cacheKey + " "
                   + "has wrong encoding: " + cachedBlock.getDataBlockEncoding() + " (expected: "
                   + dataBlockEncoder.getDataBlockEncoding() + ")");
@@ -438,7 +722,8 @@ public class HFileReaderV2 extends AbstractHFileReader {
         BlockType.BlockCategory category = hfileBlock.getBlockType().getCategory();
 
         // Cache the block if necessary
-        if (cacheBlock && cacheConf.shouldCacheBlockOnRead(category)) {
+        if (cacheBlock && cacheConf.shouldCacheBlockOnRead(category)
+            && cacheConf.shouldAdmit(caller, category)) {
           cacheConf.getBlockCache().cacheBlock(cacheKey,
             cacheConf.shouldCacheCompressed(category) ? hfileBlock : unpacked,
             cacheConf.isInMemory(), this.cacheConf.isCacheDataInL1());
@@ -447,6 +732,9 @@ public class HFileReaderV2 extends AbstractHFileReader {
         if (updateCacheMetrics && hfileBlock.getBlockType().isData()) {
           HFile.dataBlockReadCnt.incrementAndGet();
         }
+        if (recordAccess && lookedInCache && hfileBlock.getBlockType().isData()) {
+          cacheConf.recordDataBlockAccess(false);
+        }
 
         return unpacked;
       }
@@ -458,6 +746,188 @@ public class HFileReaderV2 extends AbstractHFileReader {
     }
   }
 
+  /**
+   * Reads a block in the background, as {@link #readBlock(long, long, boolean, boolean, boolean,
+   * boolean, BlockType, DataBlockEncoding)} does with positional reads. The block is the
+   * caller's, to give back as any other block read once done with it.
+   * @return the block, once read
+   */
+  public Future<HFileBlock> readBlockAsync(long offset, long onDiskSize, boolean cacheBlock,
+      boolean isCompaction, BlockType expectedBlockType,
+      DataBlockEncoding expectedDataBlockEncoding) {
+    BlockRead read = newBlockRead(offset, onDiskSize, cacheBlock, isCompaction,
+      expectedBlockType, expectedDataBlockEncoding);
+    BlockReadExecutor.execute(read);
+    return read;
+  }
+
+  /**
+   * Starts reading a block in the background, for the next read of it to wait for rather than
+   * read it again. Nothing is done if the block is being read in the background already.
+   * @return true if the read was started, and so is the caller's to cancel; false if it was
+   *         started by someone else
+   * @see #cancelBlockRead(long)
+   */
+  boolean startBlockRead(long offset, long onDiskSize, boolean cacheBlock, boolean isCompaction,
+      DataBlockEncoding expectedDataBlockEncoding) {
+    if (blockReads.containsKey(offset)) {
+      return false;
+    }
+    BlockRead read = newBlockRead(offset, onDiskSize, cacheBlock, isCompaction, null,
+      expectedDataBlockEncoding);
+    if (blockReads.putIfAbsent(offset, read) != null) {
+      return false;
+    }
+    BlockReadExecutor.execute(read);
+    return true;
+  }
+
+  @Override
+  public long readDataBlockAsync(Cell key, boolean cacheBlock) throws IOException {
+    if (dataBlockIndexReader == null) {
+      throw new IOException("Block index not loaded");
+    }
+    long[] dataBlock = dataBlockIndexReader.locateDataBlock(key, true, false);
+    if (dataBlock == null) {
+      return -1;
+    }
+    if (!startBlockRead(dataBlock[0], dataBlock[1], cacheBlock, false,
+        getEffectiveEncodingInCache(false))) {
+      return -1;
+    }
+    return dataBlock[0];
+  }
+
+  @Override
+  public void cancelBlockRead(long offset) {
+    BlockRead read = blockReads.remove(offset);
+    if (read != null) {
+      read.abandon();
+    }
+  }
+
+  /** @return the blocks being read in the background, or read and not taken yet */
+  int getBlockReadCount() {
+    return blockReads.size();
+  }
+
+  /**
+   * Reads the blocks that fit whole in the given range in one streaming read, for the next read
+   * of each to take rather than read it again, as for a scan reading ahead. Data blocks are
+   * cached as {@link #readBlock(long, long, boolean, boolean, boolean, boolean, BlockType,
+   * DataBlockEncoding)} would cache them.
+   * @param offsets to add the offsets of the blocks read to, for {@link #cancelBlockRead(long)}
+   * @return where the blocks read end; start if the first block does not fit
+   */
+  long readBlocksAhead(long start, long end, boolean cacheBlock, boolean isCompaction,
+      List<Long> offsets) throws IOException {
+    BlockCacheAdmissionPolicy.Caller caller = isCompaction
+        ? BlockCacheAdmissionPolicy.Caller.COMPACTION : BlockCacheAdmissionPolicy.Caller.SCAN;
+    long blocksEnd = start;
+    for (HFileBlock block : fsBlockReader.readBlocksData(start, end, true, false)) {
+      blocksEnd = block.getOffset() + block.getOnDiskSizeWithHeader();
+      final HFileBlock unpacked = block.unpack(hfileContext, fsBlockReader);
+      BlockType.BlockCategory category = block.getBlockType().getCategory();
+      if (block.getBlockType().isData()) {
+        HFile.dataBlockReadCnt.incrementAndGet();
+        if (cacheBlock && cacheConf.shouldCacheBlockOnRead(category)
+            && cacheConf.shouldAdmit(caller, category) && !isCached(block.getOffset())) {
+          BlockCacheKey cacheKey =
+              new BlockCacheKey(name, block.getOffset(), cacheConf.getQuota());
+          cacheConf.getBlockCache().cacheBlock(cacheKey,
+            cacheConf.shouldCacheCompressed(category) ? block : unpacked,
+            cacheConf.isInMemory(), this.cacheConf.isCacheDataInL1());
+        }
+      }
+      BlockRead read = new BlockRead(new Callable<HFileBlock>() {
+        @Override
+        public HFileBlock call() {
+          return unpacked;
+        }
+      });
+      read.run();
+      if (blockReads.putIfAbsent(block.getOffset(), read) == null) {
+        offsets.add(block.getOffset());
+      }
+    }
+    return blocksEnd;
+  }
+
+  private BlockRead newBlockRead(final long offset, final long onDiskSize,
+      final boolean cacheBlock, final boolean isCompaction, final BlockType expectedBlockType,
+      final DataBlockEncoding expectedDataBlockEncoding) {
+    final BlockCacheAdmissionPolicy.Caller caller = isCompaction
+        ? BlockCacheAdmissionPolicy.Caller.COMPACTION : BlockCacheAdmissionPolicy.Caller.SCAN;
+    return new BlockRead(new Callable<HFileBlock>() {
+      @Override
+      public HFileBlock call() throws IOException {
+        return readBlock(offset, onDiskSize, cacheBlock, true, isCompaction, true,
+          expectedBlockType, expectedDataBlockEncoding, caller);
+      }
+    });
+  }
+
+  /**
+   * A block read in the background. Once nothing is going to wait for it any more, it gives its
+   * block back itself as soon as it is read.
+   */
+  private class BlockRead extends FutureTask<HFileBlock> {
+    private final AtomicBoolean returned = new AtomicBoolean(false);
+    private volatile boolean abandoned = false;
+
+    BlockRead(Callable<HFileBlock> read) {
+      super(read);
+    }
+
+    /**
+     * Waits for the block.
+     * @return the block, or null if the read failed or was cancelled, for the caller to read
+     *         the block itself
+     */
+    HFileBlock await() throws InterruptedIOException {
+      try {
+        return get();
+      } catch (InterruptedException e) {
+        abandon();
+        throw (InterruptedIOException) new InterruptedIOException().initCause(e);
+      } catch (ExecutionException e) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Background read of a block of " + name + " failed", e.getCause());
+        }
+        return null;
+      } catch (CancellationException e) {
+        return null;
+      }
+    }
+
+    /** Cancels the read if not started yet, or gives the block back once read otherwise */
+    void abandon() {
+      abandoned = true;
+      if (!cancel(false) && isDone()) {
+        returnReadBlock();
+      }
+    }
+
+    @Override
+    protected void done() {
+      if (abandoned && !isCancelled()) {
+        returnReadBlock();
+      }
+    }
+
+    private void returnReadBlock() {
+      if (returned.compareAndSet(false, true)) {
+        try {
+          returnBlock(get());
+        } catch (ExecutionException e) {
+          // The read failed, there is no block to give back
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
   @Override
   public boolean hasMVCCInfo() {
     return includesMemstoreTS && decodeMemstoreTS;
@@ -516,6 +986,9 @@ public class HFileReaderV2 extends AbstractHFileReader {
 
   public void close(boolean evictOnClose) throws IOException {
     PrefetchExecutor.cancel(path);
+    for (Long offset : blockReads.keySet()) {
+      cancelBlockRead(offset);
+    }
     if (evictOnClose && cacheConf.isBlockCacheEnabled()) {
       int numEvicted = cacheConf.getBlockCache().evictBlocksByHfileName(name);
       if (LOG.isTraceEnabled()) {
@@ -554,13 +1027,79 @@ public class HFileReaderV2 extends AbstractHFileReader {
      */
     protected Cell nextIndexedKey;
 
+    /** Whether the block after the current one is read in the background */
+    private final boolean readAhead;
+    /** Offset of the block last read ahead, or -1 */
+    private long readAheadOffset = -1;
+    /** Reads the blocks ahead in windows once the scan is seen to be sequential; may be null */
+    private final ScanReadAhead windowReadAhead;
+
     public AbstractScannerV2(HFileReaderV2 r, boolean cacheBlocks,
         final boolean pread, final boolean isCompaction) {
       super(r, cacheBlocks, pread, isCompaction);
+      this.readAhead = r.scannerReadAhead && !pread;
+      this.windowReadAhead = r.readAheadWindowMax > 0
+          ? new ScanReadAhead(r, cacheBlocks, isCompaction) : null;
     }
 
     protected abstract ByteBuffer getFirstKeyInBlock(HFileBlock curBlock);
 
+    /**
+     * Gives a block read by this scanner back to the reader, unless it is the current block.
+     */
+    protected void returnBlock(HFileBlock b) {
+      if (b != null && b != this.block) {
+        reader.returnBlock(b);
+      }
+    }
+
+    /**
+     * @return true if the current block is served in place from the block cache. What is handed
+     *         out of it has to be copied, as it may be kept after the block is given back.
+     */
+    protected boolean isCurrentBlockShared() {
+      return block != null && block.getMemoryType() == Cacheable.MemoryType.SHARED;
+    }
+
+    @Override
+    public void close() {
+      cancelReadAhead();
+      if (windowReadAhead != null) {
+        windowReadAhead.close();
+      }
+      HFileBlock b = this.block;
+      this.block = null;
+      reader.returnBlock(b);
+    }
+
+    /**
+     * Starts reading the block after the given one in the background, for the scan to find it
+     * read once done with the given one. A block read ahead before and not needed after all,
+     * because the scan went elsewhere, is given back.
+     */
+    private void readAhead(HFileBlock curBlock) {
+      if (readAheadOffset != curBlock.getOffset()) {
+        cancelReadAhead();
+      }
+      if (curBlock.getOffset() >= reader.getTrailer().getLastDataBlockOffset()) {
+        readAheadOffset = -1;
+        return;
+      }
+      long offset = curBlock.getOffset() + curBlock.getOnDiskSizeWithHeader();
+      // A read started by another scanner is left for that one to cancel
+      boolean started = ((HFileReaderV2) reader).startBlockRead(offset,
+        curBlock.getNextBlockOnDiskSizeWithHeader(), cacheBlocks, isCompaction,
+        getEffectiveDataBlockEncoding());
+      readAheadOffset = started ? offset : -1;
+    }
+
+    private void cancelReadAhead() {
+      if (readAheadOffset >= 0) {
+        reader.cancelBlockRead(readAheadOffset);
+        readAheadOffset = -1;
+      }
+    }
+
     protected abstract int loadBlockAndSeekToKey(HFileBlock seekToBlock, Cell nextIndexedKey,
         boolean rewind, Cell key, boolean seekBefore) throws IOException;
 
@@ -652,6 +1191,8 @@ public class HFileReaderV2 extends AbstractHFileReader {
         return false;
       }
       ByteBuffer firstKey = getFirstKeyInBlock(seekToBlock);
+      // A copy, as the block may be given back below
+      Cell firstKeyInCurrentBlock = new KeyValue.KeyOnlyKeyValue(Bytes.getBytes(firstKey));
 
       if (reader.getComparator()
           .compareOnlyKeyPortion(
@@ -661,6 +1202,7 @@ public class HFileReaderV2 extends AbstractHFileReader {
         // The key we are interested in
         if (previousBlockOffset == -1) {
           // we have a 'problem', the key we want is the first of the file.
+          returnBlock(seekToBlock);
           return false;
         }
 
@@ -670,13 +1212,14 @@ public class HFileReaderV2 extends AbstractHFileReader {
         // correctly in the general case however.
         // TODO: See https://issues.apache.org/jira/browse/HBASE-14576
         int prevBlockSize = -1;
-        seekToBlock = reader.readBlock(previousBlockOffset,
+        HFileBlock prevBlock = reader.readBlock(previousBlockOffset,
             prevBlockSize, cacheBlocks,
             pread, isCompaction, true, BlockType.DATA, getEffectiveDataBlockEncoding());
+        returnBlock(seekToBlock);
+        seekToBlock = prevBlock;
         // TODO shortcut: seek forward in this block to the last key of the
         // block.
       }
-      Cell firstKeyInCurrentBlock = new KeyValue.KeyOnlyKeyValue(Bytes.getBytes(firstKey));
       loadBlockAndSeekToKey(seekToBlock, firstKeyInCurrentBlock, true, key, true);
       return true;
     }
@@ -696,8 +1239,10 @@ public class HFileReaderV2 extends AbstractHFileReader {
       HFileBlock curBlock = block;
 
       do {
-        if (curBlock.getOffset() >= lastDataBlockOffset)
+        if (curBlock.getOffset() >= lastDataBlockOffset) {
+          returnBlock(curBlock);
           return null;
+        }
 
         if (curBlock.getOffset() < 0) {
           throw new IOException("Invalid block file offset: " + block);
@@ -705,12 +1250,18 @@ public class HFileReaderV2 extends AbstractHFileReader {
 
         // We are reading the next block without block type validation, because
         // it might turn out to be a non-data block.
-        curBlock = reader.readBlock(curBlock.getOffset()
+        HFileBlock nextBlock = reader.readBlock(curBlock.getOffset()
             + curBlock.getOnDiskSizeWithHeader(),
             curBlock.getNextBlockOnDiskSizeWithHeader(), cacheBlocks, pread,
             isCompaction, true, null, getEffectiveDataBlockEncoding());
+        returnBlock(curBlock);
+        curBlock = nextBlock;
       } while (!curBlock.getBlockType().isData());
 
+      boolean inWindow = windowReadAhead != null && windowReadAhead.next(curBlock);
+      if (readAhead && !inWindow) {
+        readAhead(curBlock);
+      }
       return curBlock;
     }
 
@@ -736,6 +1287,13 @@ public class HFileReaderV2 extends AbstractHFileReader {
    */
   protected static class ScannerV2 extends AbstractScannerV2 {
     private HFileReaderV2 reader;
+    /**
+     * Where the row index of the current block starts in the block buffer, past its limit;
+     * -1 if the block has none
+     */
+    private int rowIndexStart = -1;
+    /** Number of offsets in the row index of the current block */
+    private int rowIndexCount;
 
     public ScannerV2(HFileReaderV2 r, boolean cacheBlocks,
         final boolean pread, final boolean isCompaction) {
@@ -752,8 +1310,14 @@ public class HFileReaderV2 extends AbstractHFileReader {
     }
 
     protected Cell formNoTagsKeyValue() {
-      NoTagsKeyValue ret = new NoTagsKeyValue(blockBuffer.array(), blockBuffer.arrayOffset()
-          + blockBuffer.position(), getCellBufSize());
+      byte[] bytes = blockBuffer.array();
+      int offset = blockBuffer.arrayOffset() + blockBuffer.position();
+      int length = getCellBufSize();
+      if (isCurrentBlockShared()) {
+        bytes = Arrays.copyOfRange(bytes, offset, offset + length);
+        offset = 0;
+      }
+      NoTagsKeyValue ret = new NoTagsKeyValue(bytes, offset, length);
       if (this.reader.shouldIncludeMemstoreTS()) {
         ret.setSequenceId(currMemstoreTS);
       }
@@ -767,10 +1331,8 @@ public class HFileReaderV2 extends AbstractHFileReader {
     @Override
     public ByteBuffer getKey() {
       assertSeeked();
-      return ByteBuffer.wrap(
-          blockBuffer.array(),
-          blockBuffer.arrayOffset() + blockBuffer.position()
-              + KEY_VALUE_LEN_SIZE, currKeyLen).slice();
+      return wrapBlockRange(blockBuffer.arrayOffset() + blockBuffer.position()
+          + KEY_VALUE_LEN_SIZE, currKeyLen);
     }
 
     @Override
@@ -782,13 +1344,28 @@ public class HFileReaderV2 extends AbstractHFileReader {
     @Override
     public ByteBuffer getValue() {
       assertSeeked();
-      return ByteBuffer.wrap(
-          blockBuffer.array(),
-          blockBuffer.arrayOffset() + blockBuffer.position()
-              + KEY_VALUE_LEN_SIZE + currKeyLen, currValueLen).slice();
+      return wrapBlockRange(blockBuffer.arrayOffset() + blockBuffer.position()
+          + KEY_VALUE_LEN_SIZE + currKeyLen, currValueLen);
+    }
+
+    /**
+     * Wraps a range of the array of the current block, or a copy of it if the block is shared.
+     */
+    protected ByteBuffer wrapBlockRange(int offset, int length) {
+      if (isCurrentBlockShared()) {
+        return ByteBuffer.wrap(Arrays.copyOfRange(blockBuffer.array(), offset, offset + length));
+      }
+      return ByteBuffer.wrap(blockBuffer.array(), offset, length).slice();
+    }
+
+    @Override
+    public void close() {
+      super.close();
+      setNonSeekedState();
     }
 
     protected void setNonSeekedState() {
+      reader.returnBlock(block);
       block = null;
       blockBuffer = null;
       currKeyLen = 0;
@@ -875,12 +1452,12 @@ public class HFileReaderV2 extends AbstractHFileReader {
         return true;
       }
 
-      block = reader.readBlock(firstDataBlockOffset, -1, cacheBlocks, pread,
+      HFileBlock firstBlock = reader.readBlock(firstDataBlockOffset, -1, cacheBlocks, pread,
           isCompaction, true, BlockType.DATA, getEffectiveDataBlockEncoding());
-      if (block.getOffset() < 0) {
-        throw new IOException("Invalid block offset: " + block.getOffset());
+      if (firstBlock.getOffset() < 0) {
+        throw new IOException("Invalid block offset: " + firstBlock.getOffset());
       }
-      updateCurrBlock(block);
+      updateCurrBlock(firstBlock);
       return true;
     }
 
@@ -889,8 +1466,12 @@ public class HFileReaderV2 extends AbstractHFileReader {
         boolean rewind, Cell key, boolean seekBefore) throws IOException {
       if (block == null || block.getOffset() != seekToBlock.getOffset()) {
         updateCurrBlock(seekToBlock);
-      } else if (rewind) {
-        blockBuffer.rewind();
+      } else {
+        // The block we are on; keep it
+        returnBlock(seekToBlock);
+        if (rewind) {
+          blockBuffer.rewind();
+        }
       }
 
       // Update the nextIndexedKey
@@ -905,6 +1486,9 @@ public class HFileReaderV2 extends AbstractHFileReader {
      * @param newBlock the block to make current
      */
     protected void updateCurrBlock(HFileBlock newBlock) {
+      if (block != newBlock) {
+        reader.returnBlock(block);
+      }
       block = newBlock;
 
       // sanity check
@@ -917,6 +1501,14 @@ public class HFileReaderV2 extends AbstractHFileReader {
       }
 
       blockBuffer = block.getBufferWithoutHeader();
+      rowIndexStart = -1;
+      if (reader.getFileContext().isIncludesRowIndex()) {
+        // The cells end where the row index after them starts
+        rowIndexCount = Bytes.toInt(blockBuffer.array(),
+          blockBuffer.arrayOffset() + blockBuffer.limit() - Bytes.SIZEOF_INT);
+        rowIndexStart = blockBuffer.limit() - Bytes.SIZEOF_INT * (rowIndexCount + 1);
+        blockBuffer.limit(rowIndexStart);
+      }
       readKeyValueLen();
       blockFetches++;
 
@@ -981,6 +1573,7 @@ public class HFileReaderV2 extends AbstractHFileReader {
       int memstoreTSLen = 0;
       int lastKeyValueSize = -1;
       KeyValue.KeyOnlyKeyValue keyOnlykv = new KeyValue.KeyOnlyKeyValue();
+      skipToRowIndex(key);
       do {
         blockBuffer.mark();
         klen = blockBuffer.getInt();
@@ -1050,6 +1643,41 @@ public class HFileReaderV2 extends AbstractHFileReader {
       return 1; // didn't exactly find it.
     }
 
+    /**
+     * Moves the block buffer forward, if the current block has a row index, to the last row
+     * starting before the given key, found by binary search. Seeking on from there finds the
+     * same cell as seeking from where the buffer was, having read fewer cells; and, as the cell
+     * moved to is before the key, there still is a cell before the key if seeking before it.
+     */
+    protected void skipToRowIndex(Cell key) {
+      if (rowIndexStart < 0) {
+        return;
+      }
+      byte[] array = blockBuffer.array();
+      int indexOffset = blockBuffer.arrayOffset() + rowIndexStart;
+      KeyValue.KeyOnlyKeyValue rowKey = new KeyValue.KeyOnlyKeyValue();
+      // The last row starting before the key
+      int low = 0;
+      int high = rowIndexCount - 1;
+      int found = -1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int offset = Bytes.toInt(array, indexOffset + mid * Bytes.SIZEOF_INT);
+        int keyOffset = blockBuffer.arrayOffset() + offset + KEY_VALUE_LEN_SIZE;
+        rowKey.setKey(array, keyOffset, Bytes.toInt(array, blockBuffer.arrayOffset() + offset));
+        if (reader.getComparator().compareOnlyKeyPortion(rowKey, key) < 0) {
+          found = offset;
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      // Never go back, as a reseek only seeks forward from the current cell
+      if (found > blockBuffer.position()) {
+        blockBuffer.position(found);
+      }
+    }
+
     @Override
     protected ByteBuffer getFirstKeyInBlock(HFileBlock curBlock) {
       ByteBuffer buffer = curBlock.getBufferWithoutHeader();
@@ -1119,6 +1747,9 @@ public class HFileReaderV2 extends AbstractHFileReader {
      * @throws CorruptHFileException
      */
     private void updateCurrentBlock(HFileBlock newBlock) throws CorruptHFileException {
+      if (block != newBlock) {
+        reader.returnBlock(block);
+      }
       block = newBlock;
 
       // sanity checks
@@ -1169,12 +1800,12 @@ public class HFileReaderV2 extends AbstractHFileReader {
         return true;
       }
 
-      block = reader.readBlock(firstDataBlockOffset, -1, cacheBlocks, pread,
+      HFileBlock firstBlock = reader.readBlock(firstDataBlockOffset, -1, cacheBlocks, pread,
           isCompaction, true, BlockType.DATA, getEffectiveDataBlockEncoding());
-      if (block.getOffset() < 0) {
-        throw new IOException("Invalid block offset: " + block.getOffset());
+      if (firstBlock.getOffset() < 0) {
+        throw new IOException("Invalid block offset: " + firstBlock.getOffset());
       }
-      updateCurrentBlock(block);
+      updateCurrentBlock(firstBlock);
       return true;
     }
 
@@ -1182,10 +1813,12 @@ public class HFileReaderV2 extends AbstractHFileReader {
     public boolean next() throws IOException {
       boolean isValid = seeker.next();
       if (!isValid) {
-        block = readNextDataBlock();
-        isValid = block != null;
+        HFileBlock nextBlock = readNextDataBlock();
+        isValid = nextBlock != null;
         if (isValid) {
-          updateCurrentBlock(block);
+          updateCurrentBlock(nextBlock);
+        } else {
+          close();
         }
       }
       return isValid;
@@ -1205,7 +1838,14 @@ public class HFileReaderV2 extends AbstractHFileReader {
     @Override
     public ByteBuffer getValue() {
       assertValidSeek();
-      return seeker.getValueShallowCopy();
+      ByteBuffer value = seeker.getValueShallowCopy();
+      if (isCurrentBlockShared()) {
+        ByteBuffer copy = ByteBuffer.allocate(value.remaining());
+        copy.put(value);
+        copy.rewind();
+        return copy;
+      }
+      return value;
     }
 
     @Override
@@ -1213,7 +1853,9 @@ public class HFileReaderV2 extends AbstractHFileReader {
       if (block == null) {
         return null;
       }
-      return seeker.getKeyValue();
+      Cell cell = seeker.getKeyValue();
+      // The value of the seeker's cell is in the block
+      return isCurrentBlockShared() ? KeyValueUtil.copyToNewKeyValue(cell) : cell;
     }
 
     @Override
@@ -1246,8 +1888,11 @@ public class HFileReaderV2 extends AbstractHFileReader {
         boolean rewind, Cell key, boolean seekBefore) throws IOException {
       if (block == null || block.getOffset() != seekToBlock.getOffset()) {
         updateCurrentBlock(seekToBlock);
-      } else if (rewind) {
-        seeker.rewind();
+      } else {
+        returnBlock(seekToBlock);
+        if (rewind) {
+          seeker.rewind();
+        }
       }
       this.nextIndexedKey = nextIndexedKey;
       return seeker.seekToKeyInBlock(key, seekBefore);
@@ -20,6 +20,7 @@ package org.apache.hadoop.hbase.io.hfile;
 import java.io.IOException;
 import java.security.Key;
 import java.security.KeyException;
+import java.util.Arrays;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -195,8 +196,14 @@ public class HFileReaderV3 extends HFileReaderV2 {
       if (!isSeeked())
         return null;
       if (currTagsLen > 0) {
-        KeyValue ret = new KeyValue(blockBuffer.array(), blockBuffer.arrayOffset()
-            + blockBuffer.position(), getCellBufSize());
+        byte[] bytes = blockBuffer.array();
+        int offset = blockBuffer.arrayOffset() + blockBuffer.position();
+        int length = getCellBufSize();
+        if (isCurrentBlockShared()) {
+          bytes = Arrays.copyOfRange(bytes, offset, offset + length);
+          offset = 0;
+        }
+        KeyValue ret = new KeyValue(bytes, offset, length);
         if (this.reader.shouldIncludeMemstoreTS()) {
           ret.setSequenceId(currMemstoreTS);
         }
@@ -268,6 +275,7 @@ public class HFileReaderV3 extends HFileReaderV2 {
       int memstoreTSLen = 0;
       int lastKeyValueSize = -1;
       KeyValue.KeyOnlyKeyValue keyOnlyKv = new KeyValue.KeyOnlyKeyValue();
+      skipToRowIndex(key);
       do {
         blockBuffer.mark();
         klen = blockBuffer.getInt();
@@ -161,4 +161,10 @@ public interface HFileScanner {
    * @return the next key in the index (the key to seek to the next block)
    */
   Cell getNextIndexedKey();
+
+  /**
+   * Closes this scanner and gives back the block it is on. A block served in place from the
+   * block cache stays pinned there until then. The scanner can not be used afterwards.
+   */
+  void close();
 }
@@ -36,6 +36,7 @@ import org.apache.hadoop.hbase.CellComparator;
 import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.KeyValue.KVComparator;
 import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.io.hfile.BlockType.BlockCategory;
 import org.apache.hadoop.hbase.io.hfile.HFile.Writer;
 import org.apache.hadoop.hbase.io.hfile.HFileBlock.BlockWritable;
 import org.apache.hadoop.hbase.util.BloomFilterWriter;
@@ -172,7 +173,8 @@ public class HFileWriterV2 extends AbstractHFileWriter {
     dataBlockIndexWriter.addEntry(CellUtil.getCellKeySerializedAsKeyValueKey(indexEntry),
       lastDataBlockOffset, onDiskSize);
     totalUncompressedBytes += fsBlockWriter.getUncompressedSizeWithHeader();
-    if (cacheConf.shouldCacheDataOnWrite()) {
+    if (cacheConf.shouldCacheDataOnWrite()
+        && cacheConf.shouldAdmit(BlockCacheAdmissionPolicy.Caller.WRITE, BlockCategory.DATA)) {
       doCacheOnWrite(lastDataBlockOffset);
     }
   }
@@ -205,7 +207,7 @@ public class HFileWriterV2 extends AbstractHFileWriter {
   private void doCacheOnWrite(long offset) {
     HFileBlock cacheFormatBlock = fsBlockWriter.getBlockForCaching(cacheConf);
     cacheConf.getBlockCache().cacheBlock(
-        new BlockCacheKey(name, offset), cacheFormatBlock);
+        new BlockCacheKey(name, offset, cacheConf.getQuota()), cacheFormatBlock);
   }
 
   /**
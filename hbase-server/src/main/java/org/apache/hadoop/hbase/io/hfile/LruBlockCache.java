@@ -21,10 +21,12 @@ package org.apache.hadoop.hbase.io.hfile;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
@@ -97,7 +99,7 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  */
 @InterfaceAudience.Private
 @JsonIgnoreProperties({"encodingCountsForTest"})
-public class LruBlockCache implements ResizableBlockCache, HeapSize {
+public class LruBlockCache implements FirstLevelBlockCache {
 
   static final Log LOG = LogFactory.getLog(LruBlockCache.class);
 
@@ -171,6 +173,9 @@ public class LruBlockCache implements ResizableBlockCache, HeapSize {
   /** Cache statistics */
   private final CacheStats stats;
 
+  /** How much the tables with a block cache quota hold */
+  private final BlockCacheQuotaUsage quotaUsage = new BlockCacheQuotaUsage();
+
   /** Maximum allowable size of cache (block put if size > max, evict) */
   private long maxSize;
 
@@ -347,7 +352,9 @@ public class LruBlockCache implements ResizableBlockCache, HeapSize {
       long size = map.size();
       assertCounterSanity(size, val);
     }
-    if (newSize > acceptableSize() && !evictionInProgress) {
+    if ((newSize > acceptableSize()
+        || quotaUsage.isOverMaxShare(cacheKey.getQuota(), acceptableSize()))
+        && !evictionInProgress) {
       runEviction();
     }
   }
@@ -403,6 +410,7 @@ public class LruBlockCache implements ResizableBlockCache, HeapSize {
     if (evict) {
       heapsize *= -1;
     }
+    quotaUsage.add(cb.getCacheKey(), heapsize);
     return size.addAndGet(heapsize);
   }
 
@@ -436,10 +444,26 @@ public class LruBlockCache implements ResizableBlockCache, HeapSize {
    * @param cacheKey
    * @return true if contains the block
    */
+  @Override
   public boolean containsBlock(BlockCacheKey cacheKey) {
     return map.containsKey(cacheKey);
   }
 
+  @Override
+  public boolean isBlockCached(BlockCacheKey cacheKey) {
+    return map.containsKey(cacheKey)
+        || (victimHandler != null && victimHandler.isBlockCached(cacheKey));
+  }
+
+  @Override
+  public boolean returnBlock(BlockCacheKey cacheKey, Cacheable block) {
+    // Blocks held on heap here are never shared; only those got from the victim cache can be
+    if (block.getMemoryType() == Cacheable.MemoryType.SHARED && victimHandler != null) {
+      return victimHandler.returnBlock(cacheKey, block);
+    }
+    return false;
+  }
+
   @Override
   public boolean evictBlock(BlockCacheKey cacheKey) {
     LruCachedBlock cb = map.get(cacheKey);
@@ -495,6 +519,7 @@ public class LruBlockCache implements ResizableBlockCache, HeapSize {
       boolean inMemory = block.getPriority() == BlockPriority.MEMORY;
       victimHandler.cacheBlockWithWait(block.getCacheKey(), block.getBuffer(),
           inMemory, wait);
+      stats.demoted();
     }
     return block.heapSize();
   }
@@ -529,14 +554,20 @@ public class LruBlockCache implements ResizableBlockCache, HeapSize {
           StringUtils.byteDesc(currentSize));
       }
 
+      if (quotaUsage.isAnyOverMaxShare(acceptableSize())) {
+        bytesToFree -= freeOverMaxShares();
+      }
+
       if(bytesToFree <= 0) return;
 
-      // Instantiate priority buckets
-      BlockBucket bucketSingle = new BlockBucket("single", bytesToFree, blockSize,
+      // Instantiate priority buckets, with room for the blocks left alone to keep tables at
+      // their min share
+      long bytesToQueue = bytesToFree + quotaUsage.getMinShareBytes(maxSize);
+      BlockBucket bucketSingle = new BlockBucket("single", bytesToQueue, blockSize,
           singleSize());
-      BlockBucket bucketMulti = new BlockBucket("multi", bytesToFree, blockSize,
+      BlockBucket bucketMulti = new BlockBucket("multi", bytesToQueue, blockSize,
           multiSize());
-      BlockBucket bucketMemory = new BlockBucket("memory", bytesToFree, blockSize,
+      BlockBucket bucketMemory = new BlockBucket("memory", bytesToQueue, blockSize,
           memorySize());
 
       // Scan entire map putting into appropriate buckets
@@ -636,6 +667,42 @@ public class LruBlockCache implements ResizableBlockCache, HeapSize {
     }
   }
 
+  /**
+   * Evicts the least recently used blocks of each table over its max share of the cache until
+   * it is down to its max share of the minimum size.
+   * @return the bytes freed
+   */
+  private long freeOverMaxShares() {
+    Map<BlockCacheQuota, Long> overMax = quotaUsage.getBytesOverMaxShare(minSize());
+    Map<BlockCacheQuota, LruCachedBlockQueue> queues =
+        new HashMap<BlockCacheQuota, LruCachedBlockQueue>();
+    for (Map.Entry<BlockCacheQuota, Long> entry : overMax.entrySet()) {
+      queues.put(entry.getKey(), new LruCachedBlockQueue(entry.getValue(), blockSize));
+    }
+    for (LruCachedBlock cachedBlock : map.values()) {
+      BlockCacheQuota quota = cachedBlock.getCacheKey().getQuota();
+      LruCachedBlockQueue queue = quota == null ? null : queues.get(quota);
+      if (queue != null) {
+        queue.add(cachedBlock);
+      }
+    }
+    long bytesFreed = 0;
+    for (Map.Entry<BlockCacheQuota, LruCachedBlockQueue> entry : queues.entrySet()) {
+      long toFree = overMax.get(entry.getKey());
+      long freed = 0;
+      LruCachedBlock cb;
+      while (freed < toFree && (cb = entry.getValue().pollLast()) != null) {
+        freed += evictBlock(cb, true);
+      }
+      if (LOG.isTraceEnabled()) {
+        LOG.trace("freed " + StringUtils.byteDesc(freed) + " over the max share of "
+          + entry.getKey());
+      }
+      bytesFreed += freed;
+    }
+    return bytesFreed;
+  }
+
   @Override
   public String toString() {
     return Objects.toStringHelper(this)
@@ -685,6 +752,10 @@ public class LruBlockCache implements ResizableBlockCache, HeapSize {
       LruCachedBlock cb;
       long freedBytes = 0;
       while ((cb = queue.pollLast()) != null) {
+        // Leave the blocks of tables at their min share
+        if (quotaUsage.isAtMinShare(cb.getCacheKey(), cb.heapSize(), maxSize)) {
+          continue;
+        }
         freedBytes += evictBlock(cb, true);
         if (freedBytes >= toFree) {
           return freedBytes;
@@ -868,7 +939,7 @@ public class LruBlockCache implements ResizableBlockCache, HeapSize {
   }
 
   public final static long CACHE_FIXED_OVERHEAD = ClassSize.align(
-      (3 * Bytes.SIZEOF_LONG) + (9 * ClassSize.REFERENCE) +
+      (3 * Bytes.SIZEOF_LONG) + (10 * ClassSize.REFERENCE) +
       (5 * Bytes.SIZEOF_FLOAT) + Bytes.SIZEOF_BOOLEAN
       + ClassSize.OBJECT);
 
@@ -1059,6 +1130,7 @@ public class LruBlockCache implements ResizableBlockCache, HeapSize {
     return counts;
   }
 
+  @Override
   public void setVictimCache(BucketCache handler) {
     assert victimHandler == null;
     victimHandler = handler;
@@ -1073,6 +1145,13 @@ public class LruBlockCache implements ResizableBlockCache, HeapSize {
     return this.victimHandler;
   }
 
+  /**
+   * @return how much of the cache the tables with a block cache quota hold, by quota
+   */
+  public SortedMap<BlockCacheQuota, Long> getQuotaUsage() {
+    return quotaUsage.getUsage();
+  }
+
   @Override
   public BlockCache[] getBlockCaches() {
     return null;
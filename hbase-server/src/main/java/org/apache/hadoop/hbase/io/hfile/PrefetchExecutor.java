@@ -18,15 +18,31 @@
  */
 package org.apache.hadoop.hbase.io.hfile;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
@@ -36,20 +52,74 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
+import org.apache.hadoop.io.IOUtils;
 
+/**
+ * Prefetches the blocks of HFiles into the block cache when they are opened. Each file is
+ * prefetched as a few ranges at once, and files of the regions that served the most reads before
+ * the regionserver last stopped go first, so that the hottest regions are warm soonest after a
+ * restart. All prefetching together can be held to a rate, to leave the bandwidth of the
+ * filesystem to user reads.
+ */
 public class PrefetchExecutor {
 
   private static final Log LOG = LogFactory.getLog(PrefetchExecutor.class);
 
-  /** Futures for tracking block prefetch activity */
-  private static final Map<Path,Future<?>> prefetchFutures =
-    new ConcurrentSkipListMap<Path,Future<?>>();
-  /** Executor pool shared among all HFiles for block prefetch */
-  private static final ScheduledExecutorService prefetchExecutorPool;
+  /** Configuration key for the bytes a second all prefetching together may read; 0 for no limit */
+  public static final String PREFETCH_RATE_LIMIT_KEY = "hbase.hfile.prefetch.rate.limit";
+
+  /** Configuration key for how many ranges of a file are prefetched at once */
+  public static final String PREFETCH_PARALLELISM_KEY = "hbase.hfile.prefetch.parallelism";
+  public static final int DEFAULT_PREFETCH_PARALLELISM = 4;
+
+  /**
+   * Configuration key for a local file to keep how many reads regions served before they were
+   * closed, so that they are prefetched hottest first also after a restart
+   */
+  public static final String PREFETCH_ACCESS_STATS_PATH_KEY =
+      "hbase.hfile.prefetch.access.stats.path";
+
+  /** Configuration key for how long after a region closes the access stats file is written */
+  public static final String PREFETCH_ACCESS_STATS_PERSIST_DELAY_KEY =
+      "hbase.hfile.prefetch.access.stats.persist.delay";
+  public static final int DEFAULT_PREFETCH_ACCESS_STATS_PERSIST_DELAY = 10000;
+
+  /** Prefetches in progress */
+  private static final Map<Path,PrefetchRequest> prefetchRequests =
+    new ConcurrentSkipListMap<Path,PrefetchRequest>();
+  /**
+   * Read counts of regions when the regionserver last stopped, by encoded region name; an entry
+   * is dropped once its region closes here
+   */
+  private static final ConcurrentMap<String,Long> regionAccessCounts =
+    new ConcurrentHashMap<String,Long>();
+  /** Read counts of the regions closed as this regionserver stops, to be written out */
+  private static final ConcurrentMap<String,Long> stoppedRegionAccessCounts =
+    new ConcurrentHashMap<String,Long>();
+  /** Prefetch progress, by encoded region name */
+  private static final ConcurrentMap<String,PrefetchProgress> regionProgress =
+    new ConcurrentHashMap<String,PrefetchProgress>();
+  /** Orders the prefetches of regions equally hot */
+  private static final AtomicLong requestSeq = new AtomicLong(0);
+  /** Hands prefetch requests to the pool once their delay is up */
+  private static final ScheduledExecutorService prefetchScheduler;
+  /** Executor pool shared among all HFiles for block prefetch, hottest regions first */
+  private static final ThreadPoolExecutor prefetchExecutorPool;
   /** Delay before beginning prefetch */
   private static final int prefetchDelayMillis;
   /** Variation in prefetch delay times, to mitigate stampedes */
   private static final float prefetchDelayVariation;
+  /** How many ranges of a file are prefetched at once */
+  private static final int prefetchParallelism;
+  /** Throttles all prefetching together; null for no limit */
+  private static final ByteRateLimiter rateLimiter;
+  /** Where the read counts of regions are kept; null to keep them in memory only */
+  private static final File accessStatsFile;
+  /** Delay before writing the read counts, in ms, so that regions closed together write once */
+  private static final int accessStatsPersistDelayMillis;
+  /** Whether the read counts changed since they were last written */
+  private static final AtomicBoolean accessStatsDirty = new AtomicBoolean(false);
   static {
     // Consider doing this on demand with a configuration passed in rather
     // than in a static initializer.
@@ -59,16 +129,22 @@ public class PrefetchExecutor {
     prefetchDelayMillis = conf.getInt("hbase.hfile.prefetch.delay", 1000);
     prefetchDelayVariation = conf.getFloat("hbase.hfile.prefetch.delay.variation", 0.2f);
     int prefetchThreads = conf.getInt("hbase.hfile.thread.prefetch", 4);
-    prefetchExecutorPool = new ScheduledThreadPoolExecutor(prefetchThreads,
-      new ThreadFactory() {
-        @Override
-        public Thread newThread(Runnable r) {
-          String name = "hfile-prefetch-" + System.currentTimeMillis();
-          Thread t = new Thread(r, name);
-          t.setDaemon(true);
-          return t;
-        }
-    });
+    prefetchParallelism = Math.max(1,
+      conf.getInt(PREFETCH_PARALLELISM_KEY, DEFAULT_PREFETCH_PARALLELISM));
+    long rateLimit = conf.getLong(PREFETCH_RATE_LIMIT_KEY, 0);
+    rateLimiter = rateLimit > 0 ? new ByteRateLimiter(rateLimit) : null;
+    String accessStatsPath = conf.get(PREFETCH_ACCESS_STATS_PATH_KEY);
+    accessStatsFile = accessStatsPath != null ? new File(accessStatsPath) : null;
+    accessStatsPersistDelayMillis = conf.getInt(PREFETCH_ACCESS_STATS_PERSIST_DELAY_KEY,
+      DEFAULT_PREFETCH_ACCESS_STATS_PERSIST_DELAY);
+    if (accessStatsFile != null && accessStatsFile.exists()) {
+      loadAccessStats();
+    }
+    prefetchScheduler = new ScheduledThreadPoolExecutor(1,
+      createThreadFactory("hfile-prefetch-scheduler-"));
+    prefetchExecutorPool = new ThreadPoolExecutor(prefetchThreads, prefetchThreads,
+      60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+      createThreadFactory("hfile-prefetch-"));
   }
 
   private static final Random RNG = new Random();
@@ -88,7 +164,25 @@ public class PrefetchExecutor {
             Path.SEPARATOR_CHAR +
         ")");
 
-  public static void request(Path path, Runnable runnable) {
+  private static ThreadFactory createThreadFactory(final String prefix) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        String name = prefix + System.currentTimeMillis();
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  /**
+   * Requests the prefetch of a file.
+   * @param path the file
+   * @param size bytes of the file to be prefetched
+   * @param ranges readers of consecutive ranges of the file, which may be run at once
+   */
+  public static void request(Path path, long size, List<Runnable> ranges) {
     if (!prefetchPathExclude.matcher(path.toString()).find()) {
       long delay;
       if (prefetchDelayMillis > 0) {
@@ -97,32 +191,53 @@ public class PrefetchExecutor {
       } else {
         delay = 0;
       }
+      String regionName = getRegionName(path);
+      Long hotness = regionAccessCounts.get(regionName);
+      final PrefetchRequest request = new PrefetchRequest(path,
+          hotness == null ? 0 : hotness.longValue(), ranges);
+      PrefetchProgress progress = regionProgress.get(regionName);
+      if (progress == null) {
+        progress = new PrefetchProgress();
+        PrefetchProgress existing = regionProgress.putIfAbsent(regionName, progress);
+        if (existing != null) {
+          progress = existing;
+        }
+      }
+      progress.requested.addAndGet(size);
       try {
         if (LOG.isDebugEnabled()) {
-          LOG.debug("Prefetch requested for " + path + ", delay=" + delay + " ms");
+          LOG.debug("Prefetch requested for " + path + ", delay=" + delay + " ms, ranges="
+              + ranges.size() + ", hotness=" + request.hotness);
         }
-        prefetchFutures.put(path, prefetchExecutorPool.schedule(runnable, delay,
-          TimeUnit.MILLISECONDS));
+        prefetchRequests.put(path, request);
+        request.scheduled = prefetchScheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            for (PrefetchRange range : request.ranges) {
+              prefetchExecutorPool.execute(range);
+            }
+          }
+        }, delay, TimeUnit.MILLISECONDS);
       } catch (RejectedExecutionException e) {
-        prefetchFutures.remove(path);
+        prefetchRequests.remove(path);
         LOG.warn("Prefetch request rejected for " + path);
       }
     }
   }
 
   public static void complete(Path path) {
-    prefetchFutures.remove(path);
+    prefetchRequests.remove(path);
     if (LOG.isDebugEnabled()) {
       LOG.debug("Prefetch completed for " + path);
     }
   }
 
   public static void cancel(Path path) {
-    Future<?> future = prefetchFutures.get(path);
-    if (future != null) {
+    PrefetchRequest request = prefetchRequests.get(path);
+    if (request != null) {
       // ok to race with other cancellation attempts
-      future.cancel(true);
-      prefetchFutures.remove(path);
+      request.cancel();
+      prefetchRequests.remove(path);
       if (LOG.isDebugEnabled()) {
         LOG.debug("Prefetch cancelled for " + path);
       }
@@ -130,11 +245,257 @@ public class PrefetchExecutor {
   }
 
   public static boolean isCompleted(Path path) {
-    Future<?> future = prefetchFutures.get(path);
-    if (future != null) {
-      return future.isDone(); 
+    PrefetchRequest request = prefetchRequests.get(path);
+    if (request != null) {
+      return request.isDone();
     }
     return true;
   }
 
+  /**
+   * Counts a block read by a prefetch towards the progress of its region, and waits as long as
+   * the rate limit asks. If interrupted meanwhile, the prefetch is left interrupted.
+   * @param path the file the block was read from
+   * @param size on-disk size of the block
+   */
+  public static void blockPrefetched(Path path, long size) {
+    PrefetchProgress progress = regionProgress.get(getRegionName(path));
+    if (progress != null) {
+      progress.prefetched.addAndGet(size);
+    }
+    if (rateLimiter != null) {
+      long wait = rateLimiter.reserve(size);
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return how many ranges of a file are prefetched at once
+   */
+  static int getPrefetchParallelism() {
+    return prefetchParallelism;
+  }
+
+  /**
+   * Forgets the prefetch progress and read count of a region. If the regionserver is stopping,
+   * remembers how many reads the region served instead, to prefetch it before colder regions
+   * when the regionserver starts again. The read counts are written out in the background, not
+   * by the caller.
+   * @param encodedRegionName the region closed
+   * @param readRequestCount the reads the region served while open
+   * @param stopping whether the region is closed because the regionserver stops
+   */
+  public static void regionClosed(String encodedRegionName, long readRequestCount,
+      boolean stopping) {
+    regionProgress.remove(encodedRegionName);
+    regionAccessCounts.remove(encodedRegionName);
+    if (!stopping || readRequestCount <= 0) {
+      // Moved, split or merged away, or just closed: the count would only pile up
+      return;
+    }
+    stoppedRegionAccessCounts.put(encodedRegionName, readRequestCount);
+    if (accessStatsFile != null && accessStatsDirty.compareAndSet(false, true)) {
+      prefetchScheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          persistAccessStats();
+        }
+      }, accessStatsPersistDelayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Writes the read counts of regions to the access stats file, if they changed since they
+   * were last written. Called as the regionserver stops, once its regions are closed.
+   */
+  public static void persistAccessStats() {
+    if (accessStatsFile != null && accessStatsDirty.getAndSet(false)) {
+      writeAccessStats();
+    }
+  }
+
+  /**
+   * @return bytes of the files of the region requested to be prefetched since it was opened
+   */
+  public static long getRegionPrefetchRequestedSize(String encodedRegionName) {
+    PrefetchProgress progress = regionProgress.get(encodedRegionName);
+    return progress == null ? 0 : progress.requested.get();
+  }
+
+  /**
+   * @return bytes of the files of the region prefetched since it was opened
+   */
+  public static long getRegionPrefetchedSize(String encodedRegionName) {
+    PrefetchProgress progress = regionProgress.get(encodedRegionName);
+    return progress == null ? 0 : progress.prefetched.get();
+  }
+
+  private static String getRegionName(Path path) {
+    // <region>/<family>/<hfile>
+    Path familyDir = path.getParent();
+    Path regionDir = familyDir == null ? null : familyDir.getParent();
+    return regionDir == null ? "" : regionDir.getName();
+  }
+
+  private static synchronized void writeAccessStats() {
+    File tmpFile = new File(accessStatsFile.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new FileOutputStream(tmpFile, false));
+      Map<String,Long> counts = new HashMap<String,Long>(stoppedRegionAccessCounts);
+      out.writeInt(counts.size());
+      for (Map.Entry<String,Long> entry : counts.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue());
+      }
+      out.close();
+      out = null;
+      if (!tmpFile.renameTo(accessStatsFile)) {
+        LOG.warn("Failed to rename " + tmpFile + " to " + accessStatsFile);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to persist region access stats to " + accessStatsFile, e);
+    } finally {
+      IOUtils.closeStream(out);
+    }
+  }
+
+  private static void loadAccessStats() {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new FileInputStream(accessStatsFile));
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        regionAccessCounts.put(in.readUTF(), in.readLong());
+      }
+      LOG.info("Loaded read counts of " + count + " regions from " + accessStatsFile);
+    } catch (IOException e) {
+      LOG.warn("Failed to load region access stats from " + accessStatsFile
+          + ", prefetching in request order", e);
+      regionAccessCounts.clear();
+    } finally {
+      IOUtils.closeStream(in);
+    }
+  }
+
+  /**
+   * Bytes requested and prefetched for a region.
+   */
+  private static class PrefetchProgress {
+    final AtomicLong requested = new AtomicLong(0);
+    final AtomicLong prefetched = new AtomicLong(0);
+  }
+
+  /**
+   * The ranges of a file being prefetched.
+   */
+  private static class PrefetchRequest {
+    private final Path path;
+    private final long hotness;
+    private final PrefetchRange[] ranges;
+    private final AtomicInteger remaining;
+    private volatile ScheduledFuture<?> scheduled;
+    private volatile boolean cancelled = false;
+
+    PrefetchRequest(Path path, long hotness, List<Runnable> ranges) {
+      this.path = path;
+      this.hotness = hotness;
+      long seq = requestSeq.incrementAndGet();
+      this.ranges = new PrefetchRange[ranges.size()];
+      for (int i = 0; i < this.ranges.length; i++) {
+        this.ranges[i] = new PrefetchRange(this, seq, i, ranges.get(i));
+      }
+      this.remaining = new AtomicInteger(this.ranges.length);
+    }
+
+    void rangeDone() {
+      if (remaining.decrementAndGet() == 0 && prefetchRequests.remove(path, this)
+          && LOG.isDebugEnabled()) {
+        LOG.debug("Prefetch completed for " + path);
+      }
+    }
+
+    void cancel() {
+      cancelled = true;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+      for (PrefetchRange range : ranges) {
+        range.cancel(true);
+        prefetchExecutorPool.remove(range);
+      }
+    }
+
+    boolean isDone() {
+      return cancelled || remaining.get() == 0;
+    }
+  }
+
+  /**
+   * A range of a file to prefetch. Ranges of hotter regions are run first, then those of
+   * earlier requests.
+   */
+  private static class PrefetchRange extends FutureTask<Void> implements Comparable<PrefetchRange> {
+    private final PrefetchRequest request;
+    private final long seq;
+    private final int index;
+
+    PrefetchRange(PrefetchRequest request, long seq, int index, Runnable runnable) {
+      super(runnable, null);
+      this.request = request;
+      this.seq = seq;
+      this.index = index;
+    }
+
+    @Override
+    protected void done() {
+      request.rangeDone();
+    }
+
+    @Override
+    public int compareTo(PrefetchRange other) {
+      if (request.hotness != other.request.hotness) {
+        return request.hotness > other.request.hotness ? -1 : 1;
+      }
+      if (seq != other.seq) {
+        return seq < other.seq ? -1 : 1;
+      }
+      return index < other.index ? -1 : (index == other.index ? 0 : 1);
+    }
+  }
+
+  /**
+   * Holds the bytes read to a rate. A read is charged once done; the reads after it wait until
+   * the rate allows for it.
+   */
+  static class ByteRateLimiter {
+    private final long bytesPerSecond;
+    // In nanoseconds, as a block takes well under a millisecond at usual rates
+    private long nextFreeNanos = 0;
+
+    ByteRateLimiter(long bytesPerSecond) {
+      this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param size bytes just read
+     * @return milliseconds to wait before reading on
+     */
+    synchronized long reserve(long size) {
+      long nowNanos = TimeUnit.MILLISECONDS.toNanos(EnvironmentEdgeManager.currentTime());
+      if (nextFreeNanos < nowNanos) {
+        nextFreeNanos = nowNanos;
+      }
+      // What is under a millisecond is left to the reads after this one
+      long wait = TimeUnit.NANOSECONDS.toMillis(nextFreeNanos - nowNanos);
+      nextFreeNanos += size * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+      return wait;
+    }
+  }
 }
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
+
+/**
+ * Adaptive read-ahead of a scanner going through the blocks of a file one after the other. Once
+ * the scan is seen to be sequential, the blocks ahead of it are read in windows, each in one
+ * streaming read rather than one read per block, even by a scanner otherwise using positional
+ * reads. A window is sized for the scan to go through it in a given time at the pace it went
+ * through the window before, so windows grow with the throughput of the scan, within bounds.
+ * The windows of all scanners together are bounded by {@link BlockReadExecutor}.
+ */
+@InterfaceAudience.Private
+class ScanReadAhead {
+  /** Data blocks a scan goes through one after the other before it reads ahead */
+  static final int SEQUENTIAL_BLOCKS = 4;
+
+  private final HFileReaderV2 reader;
+  private final boolean cacheBlocks;
+  private final boolean isCompaction;
+
+  /** Data blocks the scan went through one after the other */
+  private int sequentialBlocks = 0;
+  /** Where the last data block the scan went on to ends, or -1 */
+  private long lastBlockEnd = -1;
+  /** The range of the blocks of the current window; both -1 if there is none */
+  private long windowStart = -1;
+  private long windowEnd = -1;
+  /** When the current window was read */
+  private long windowReadTime;
+  /** Offsets of the blocks of the current window, which may not be taken yet */
+  private List<Long> windowBlocks = Collections.emptyList();
+  /** Bytes reserved for the current window */
+  private long reserved = 0;
+  /** Bytes of the next window, before it is fitted to the pace of the scan */
+  private long windowSize;
+
+  ScanReadAhead(HFileReaderV2 reader, boolean cacheBlocks, boolean isCompaction) {
+    this.reader = reader;
+    this.cacheBlocks = cacheBlocks;
+    this.isCompaction = isCompaction;
+    this.windowSize = reader.readAheadWindowMin;
+  }
+
+  /**
+   * Takes note of the data block the scan went on to from the one before it, and reads the next
+   * window if the scan is sequential and has gone through the current window.
+   * @return whether the block after the given one is read ahead already
+   */
+  boolean next(HFileBlock block) throws IOException {
+    long offset = block.getOffset();
+    long end = offset + block.getOnDiskSizeWithHeader();
+    // Index and Bloom filter blocks may lie between two data blocks, and seeks within the
+    // window are fine
+    boolean sequential = lastBlockEnd >= 0 && offset >= lastBlockEnd
+        && (offset < windowEnd || offset - lastBlockEnd <= reader.readAheadWindowMin);
+    lastBlockEnd = end;
+    if (!sequential) {
+      release();
+      sequentialBlocks = 1;
+      windowSize = reader.readAheadWindowMin;
+      return false;
+    }
+    if (++sequentialBlocks < SEQUENTIAL_BLOCKS) {
+      return false;
+    }
+    if (end < windowEnd) {
+      return true;
+    }
+    readWindow(end, block.getNextBlockOnDiskSizeWithHeader());
+    return end < windowEnd;
+  }
+
+  /** Gives back what the current window holds */
+  void close() {
+    release();
+  }
+
+  private void readWindow(long start, int nextBlockSize) throws IOException {
+    long now = EnvironmentEdgeManager.currentTime();
+    if (windowEnd > windowStart) {
+      // What the scan would go through in the given time at the pace it went through the last
+      // window, but neither more than twice nor less than half the last one
+      long elapsed = Math.max(1, now - windowReadTime);
+      long paced = (windowEnd - windowStart) * reader.readAheadWindowMillis / elapsed;
+      windowSize = Math.max(Math.min(paced, 2 * windowSize), windowSize / 2);
+    }
+    windowSize = Math.max(reader.readAheadWindowMin,
+      Math.min(windowSize, reader.readAheadWindowMax));
+    release();
+
+    long end = Math.min(start + Math.max(windowSize, nextBlockSize),
+      reader.getTrailer().getLoadOnOpenDataOffset());
+    if (end <= start || !BlockReadExecutor.reserveReadAhead(end - start)) {
+      return;
+    }
+    reserved = end - start;
+    windowBlocks = new ArrayList<Long>();
+    windowEnd = reader.readBlocksAhead(start, end, cacheBlocks, isCompaction, windowBlocks);
+    windowStart = start;
+    windowReadTime = now;
+  }
+
+  private void release() {
+    for (Long offset : windowBlocks) {
+      reader.cancelBlockRead(offset);
+    }
+    windowBlocks = Collections.emptyList();
+    windowStart = -1;
+    windowEnd = -1;
+    if (reserved > 0) {
+      BlockReadExecutor.releaseReadAhead(reserved);
+      reserved = 0;
+    }
+  }
+}
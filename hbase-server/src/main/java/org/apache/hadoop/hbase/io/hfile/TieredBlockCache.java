@@ -0,0 +1,437 @@
+/**
+ * Copyright The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.io.hfile.BlockType.BlockCategory;
+import org.apache.hadoop.hbase.io.hfile.bucket.BucketCache;
+
+/**
+ * TieredBlockCache stacks a {@link FirstLevelBlockCache} on top of any number of
+ * {@link BucketCache}s, e.g. off-heap memory and then a file on a local SSD, each larger and
+ * slower than the one above it.
+ * <p>
+ * As in {@link CombinedBlockCache}, index and bloom blocks are cached in the L1 and data blocks
+ * in the first bucket cache. Blocks evicted from a tier to make room are demoted to the tier
+ * below it rather than dropped; only the last tier drops them. A block that keeps being hit in a
+ * lower tier, as counted by a {@link FrequencySketch}, is promoted by caching a copy of it in the
+ * tier above. The lower tier keeps its copy, so that demoting the block again costs nothing.
+ * <p>
+ * Each tier keeps its own {@link CacheStats}, counting the blocks it promoted and demoted too;
+ * {@link #getStats()} gives them per tier, and for the cache as a whole.
+ * <p>
+ * Only a bucket cache on the heap engine serves blocks in place, so no more than one tier should
+ * use it: a returned block is given back to the first tier that has it pinned.
+ */
+@InterfaceAudience.Private
+public class TieredBlockCache implements ResizableBlockCache, HeapSize {
+  private static final Log LOG = LogFactory.getLog(TieredBlockCache.class);
+
+  /** Hits in a lower tier before a block is promoted, by default */
+  public static final int DEFAULT_PROMOTION_HITS = 2;
+
+  private final FirstLevelBlockCache l1;
+  private final BucketCache[] lowerTiers;
+  private final int promotionHits;
+  /** Counts hits in the lower tiers. Not thread safe; guarded by itself */
+  private final FrequencySketch sketch;
+  private final TieredCacheStats tieredCacheStats;
+
+  /**
+   * @param l1 the on-heap top tier
+   * @param lowerTiers the tiers below it, fastest first
+   * @param blockSize approximate size of each block, in bytes
+   * @param promotionHits how many times a block has to be hit in a lower tier to be promoted
+   */
+  public TieredBlockCache(FirstLevelBlockCache l1, List<BucketCache> lowerTiers, long blockSize,
+      int promotionHits) {
+    if (lowerTiers.isEmpty()) {
+      throw new IllegalArgumentException("At least one tier below the L1 is needed");
+    }
+    if (promotionHits < 1 || promotionHits > FrequencySketch.MAX_FREQUENCY) {
+      throw new IllegalArgumentException("Promotion hits must be between 1 and "
+          + FrequencySketch.MAX_FREQUENCY + ", not " + promotionHits);
+    }
+    this.l1 = l1;
+    this.lowerTiers = lowerTiers.toArray(new BucketCache[lowerTiers.size()]);
+    this.promotionHits = promotionHits;
+    long maxItems = 0;
+    CacheStats[] tierStats = new CacheStats[this.lowerTiers.length + 1];
+    tierStats[0] = l1.getStats();
+    for (int i = 0; i < this.lowerTiers.length; i++) {
+      maxItems += this.lowerTiers[i].getMaxSize() / blockSize;
+      tierStats[i + 1] = this.lowerTiers[i].getStats();
+    }
+    this.sketch = new FrequencySketch(maxItems);
+    this.tieredCacheStats = new TieredCacheStats(tierStats);
+    // Victims of each tier go to the one below it
+    l1.setVictimCache(this.lowerTiers[0]);
+    for (int i = 1; i < this.lowerTiers.length; i++) {
+      this.lowerTiers[i - 1].setVictimCache(this.lowerTiers[i]);
+    }
+  }
+
+  @Override
+  public long heapSize() {
+    long heapSize = l1.heapSize();
+    for (BucketCache tier : lowerTiers) {
+      heapSize += tier.heapSize();
+    }
+    return heapSize;
+  }
+
+  @Override
+  public void cacheBlock(BlockCacheKey cacheKey, Cacheable buf, boolean inMemory,
+      final boolean cacheDataInL1) {
+    boolean isMetaBlock = buf.getBlockType().getCategory() != BlockCategory.DATA;
+    if (isMetaBlock || cacheDataInL1) {
+      l1.cacheBlock(cacheKey, buf, inMemory, cacheDataInL1);
+    } else {
+      lowerTiers[0].cacheBlock(cacheKey, buf, inMemory, cacheDataInL1);
+    }
+  }
+
+  @Override
+  public void cacheBlock(BlockCacheKey cacheKey, Cacheable buf) {
+    cacheBlock(cacheKey, buf, false, false);
+  }
+
+  @Override
+  public Cacheable getBlock(BlockCacheKey cacheKey, boolean caching,
+      boolean repeat, boolean updateCacheMetrics) {
+    int tier = 0;
+    // The L1 is only asked for what it has, as on a miss it asks the tier below itself
+    if (l1.containsBlock(cacheKey)) {
+      Cacheable block = l1.getBlock(cacheKey, caching, repeat, updateCacheMetrics);
+      if (block != null) {
+        return block;
+      }
+      // Evicted in the meantime; the L1 has looked in the next tier already
+      tier = 1;
+    } else if (!repeat && updateCacheMetrics) {
+      l1.getStats().miss(caching);
+    }
+    for (; tier < lowerTiers.length; tier++) {
+      Cacheable block = lowerTiers[tier].getBlock(cacheKey, caching, repeat, updateCacheMetrics);
+      if (block != null) {
+        if (!repeat) {
+          promoteIfHot(tier, cacheKey, block);
+        }
+        return block;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Caches a copy of a block hit in the given lower tier in the tier above, if it has been hit
+   * down there often enough.
+   */
+  private void promoteIfHot(int tier, BlockCacheKey cacheKey, Cacheable block) {
+    int hashCode = cacheKey.hashCode();
+    synchronized (sketch) {
+      sketch.increment(hashCode);
+      if (sketch.frequency(hashCode) < promotionHits) {
+        return;
+      }
+    }
+    Cacheable promoted = block;
+    if (block.getMemoryType() == Cacheable.MemoryType.SHARED) {
+      // A view of the lower tier's memory is only good until it is returned
+      promoted = copyOf(cacheKey, block);
+      if (promoted == null) {
+        return;
+      }
+    }
+    if (tier == 0) {
+      l1.cacheBlock(cacheKey, promoted);
+    } else {
+      lowerTiers[tier - 1].cacheBlock(cacheKey, promoted);
+    }
+    lowerTiers[tier].getStats().promoted();
+  }
+
+  private static Cacheable copyOf(BlockCacheKey cacheKey, Cacheable block) {
+    ByteBuffer bb = ByteBuffer.allocate(block.getSerializedLength());
+    block.serialize(bb);
+    bb.rewind();
+    try {
+      return block.getDeserializer().deserialize(bb, true, Cacheable.MemoryType.EXCLUSIVE);
+    } catch (IOException ioe) {
+      LOG.warn("Failed copying block " + cacheKey + " to promote it", ioe);
+      return null;
+    }
+  }
+
+  @Override
+  public boolean isBlockCached(BlockCacheKey cacheKey) {
+    if (l1.containsBlock(cacheKey)) {
+      return true;
+    }
+    for (BucketCache tier : lowerTiers) {
+      if (tier.isBlockCached(cacheKey)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean evictBlock(BlockCacheKey cacheKey) {
+    // A promoted block is in more than one tier
+    boolean evicted = l1.evictBlock(cacheKey);
+    for (BucketCache tier : lowerTiers) {
+      evicted |= tier.evictBlock(cacheKey);
+    }
+    return evicted;
+  }
+
+  @Override
+  public boolean returnBlock(BlockCacheKey cacheKey, Cacheable block) {
+    if (block.getMemoryType() != Cacheable.MemoryType.SHARED) {
+      return false;
+    }
+    for (BucketCache tier : lowerTiers) {
+      if (tier.returnBlock(cacheKey, block)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public int evictBlocksByHfileName(String hfileName) {
+    // The L1 evicts from the tier below it as well
+    int numEvicted = l1.evictBlocksByHfileName(hfileName);
+    for (int i = 1; i < lowerTiers.length; i++) {
+      numEvicted += lowerTiers[i].evictBlocksByHfileName(hfileName);
+    }
+    return numEvicted;
+  }
+
+  @Override
+  public CacheStats getStats() {
+    return this.tieredCacheStats;
+  }
+
+  @Override
+  public void shutdown() {
+    // The L1 shuts down the tier below it as well
+    l1.shutdown();
+    for (int i = 1; i < lowerTiers.length; i++) {
+      lowerTiers[i].shutdown();
+    }
+  }
+
+  @Override
+  public long size() {
+    long size = l1.size();
+    for (BucketCache tier : lowerTiers) {
+      size += tier.size();
+    }
+    return size;
+  }
+
+  @Override
+  public long getFreeSize() {
+    long freeSize = l1.getFreeSize();
+    for (BucketCache tier : lowerTiers) {
+      freeSize += tier.getFreeSize();
+    }
+    return freeSize;
+  }
+
+  @Override
+  public long getCurrentSize() {
+    long currentSize = l1.getCurrentSize();
+    for (BucketCache tier : lowerTiers) {
+      currentSize += tier.getCurrentSize();
+    }
+    return currentSize;
+  }
+
+  @Override
+  public long getBlockCount() {
+    long blockCount = l1.getBlockCount();
+    for (BucketCache tier : lowerTiers) {
+      blockCount += tier.getBlockCount();
+    }
+    return blockCount;
+  }
+
+  /**
+   * The stats of the cache as a whole, from those of its tiers, which are available too. A lookup
+   * goes down the tiers until one of them has the block, so it is a hit if any tier hit it, and a
+   * miss if the last tier missed it.
+   */
+  public static class TieredCacheStats extends CacheStats {
+    private final CacheStats[] tierStats;
+    private final CacheStats lastTierStats;
+
+    TieredCacheStats(CacheStats[] tierStats) {
+      super("TieredBlockCache");
+      this.tierStats = tierStats;
+      this.lastTierStats = tierStats[tierStats.length - 1];
+    }
+
+    /**
+     * @return the stats of each tier, the L1 first
+     */
+    public CacheStats[] getTierStats() {
+      return tierStats;
+    }
+
+    @Override
+    public long getMissCount() {
+      return lastTierStats.getMissCount();
+    }
+
+    @Override
+    public long getMissCachingCount() {
+      return lastTierStats.getMissCachingCount();
+    }
+
+    @Override
+    public long getHitCount() {
+      long sum = 0;
+      for (CacheStats stats : tierStats) {
+        sum += stats.getHitCount();
+      }
+      return sum;
+    }
+
+    @Override
+    public long getHitCachingCount() {
+      long sum = 0;
+      for (CacheStats stats : tierStats) {
+        sum += stats.getHitCachingCount();
+      }
+      return sum;
+    }
+
+    @Override
+    public long getEvictionCount() {
+      long sum = 0;
+      for (CacheStats stats : tierStats) {
+        sum += stats.getEvictionCount();
+      }
+      return sum;
+    }
+
+    @Override
+    public long getEvictedCount() {
+      long sum = 0;
+      for (CacheStats stats : tierStats) {
+        sum += stats.getEvictedCount();
+      }
+      return sum;
+    }
+
+    @Override
+    public long getPromotedCount() {
+      long sum = 0;
+      for (CacheStats stats : tierStats) {
+        sum += stats.getPromotedCount();
+      }
+      return sum;
+    }
+
+    @Override
+    public long getDemotedCount() {
+      long sum = 0;
+      for (CacheStats stats : tierStats) {
+        sum += stats.getDemotedCount();
+      }
+      return sum;
+    }
+
+    @Override
+    public long getFailedInsertCount() {
+      long sum = 0;
+      for (CacheStats stats : tierStats) {
+        sum += stats.getFailedInsertCount();
+      }
+      return sum;
+    }
+
+    @Override
+    public void rollMetricsPeriod() {
+      for (CacheStats stats : tierStats) {
+        stats.rollMetricsPeriod();
+      }
+    }
+
+    @Override
+    public long getSumHitCountsPastNPeriods() {
+      long sum = 0;
+      for (CacheStats stats : tierStats) {
+        sum += stats.getSumHitCountsPastNPeriods();
+      }
+      return sum;
+    }
+
+    @Override
+    public long getSumRequestCountsPastNPeriods() {
+      return getSumHitCountsPastNPeriods() + lastTierStats.getSumRequestCountsPastNPeriods()
+          - lastTierStats.getSumHitCountsPastNPeriods();
+    }
+
+    @Override
+    public long getSumHitCachingCountsPastNPeriods() {
+      long sum = 0;
+      for (CacheStats stats : tierStats) {
+        sum += stats.getSumHitCachingCountsPastNPeriods();
+      }
+      return sum;
+    }
+
+    @Override
+    public long getSumRequestCachingCountsPastNPeriods() {
+      return getSumHitCachingCountsPastNPeriods()
+          + lastTierStats.getSumRequestCachingCountsPastNPeriods()
+          - lastTierStats.getSumHitCachingCountsPastNPeriods();
+    }
+  }
+
+  @Override
+  public Iterator<CachedBlock> iterator() {
+    return new BlockCachesIterator(getBlockCaches());
+  }
+
+  @Override
+  public BlockCache[] getBlockCaches() {
+    BlockCache[] caches = new BlockCache[lowerTiers.length + 1];
+    caches[0] = l1;
+    System.arraycopy(lowerTiers, 0, caches, 1, lowerTiers.length);
+    return caches;
+  }
+
+  @Override
+  public void setMaxSize(long size) {
+    this.l1.setMaxSize(size);
+  }
+}
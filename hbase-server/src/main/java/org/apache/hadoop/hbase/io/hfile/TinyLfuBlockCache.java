@@ -0,0 +1,667 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.io.hfile.bucket.BucketCache;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+import org.apache.hadoop.util.StringUtils;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * An on-heap block cache with a W-TinyLFU policy: recently added blocks are held in a small LRU
+ * window, and past it a block is only let into the main space if it has been asked for more often
+ * than the block it would push out. How often is kept by a {@link FrequencySketch} of all recent
+ * accesses, including those of blocks no longer cached. A scan reading many blocks once each so
+ * cannot push out the blocks the working set keeps coming back to.
+ * <p>
+ * The main space is split in two LRU segments: blocks come in on probation, and move to the
+ * protected segment once read there. Each of window, probation and protected is a doubly linked
+ * list in access order, so making room costs a constant amount of work a block evicted, done by
+ * the thread that caches the block that needs the room. There is no eviction thread, and no sort.
+ * <p>
+ * Lookups are not blocked by the policy. The accesses they count are recorded under a lock that is
+ * only tried; under contention, some accesses go uncounted. In-memory blocks start out protected.
+ * <p>
+ * Blocks let go of to make room are handed to the victim cache, if there is one.
+ * <p>
+ * {@link BlockCacheQuota}s are enforced as in the {@link LruBlockCache}. A table over its max
+ * share loses its blocks on probation first, then those in the window, then protected ones, each
+ * from least recently used. A block of a table at its min share that is picked to make room is
+ * moved to the protected segment instead, as if read again.
+ */
+@InterfaceAudience.Private
+public class TinyLfuBlockCache implements FirstLevelBlockCache {
+  private static final Log LOG = LogFactory.getLog(TinyLfuBlockCache.class);
+
+  /** Share of the cache for the window blocks go to first */
+  static final String WINDOW_PERCENTAGE_CONFIG_NAME = "hbase.tinylfu.blockcache.window.percentage";
+  /** Share of the main space, past the window, for blocks read again since they came in */
+  static final String PROTECTED_PERCENTAGE_CONFIG_NAME =
+      "hbase.tinylfu.blockcache.protected.percentage";
+
+  static final float DEFAULT_WINDOW_FACTOR = 0.01f;
+  static final float DEFAULT_PROTECTED_FACTOR = 0.80f;
+
+  /** Statistics thread */
+  static final int statThreadPeriod = 60 * 5;
+
+  private final ConcurrentHashMap<BlockCacheKey, Node> map;
+
+  /** Guards the segments and the sketch */
+  private final ReentrantLock policyLock = new ReentrantLock();
+  private final FrequencySketch sketch;
+  private final Segment window = new Segment("window");
+  private final Segment probation = new Segment("probation");
+  private final Segment protectedSegment = new Segment("protected");
+
+  /** Heap size of the cached blocks */
+  private final AtomicLong size = new AtomicLong(0);
+  /** How much the tables with a block cache quota hold */
+  private final BlockCacheQuotaUsage quotaUsage = new BlockCacheQuotaUsage();
+  private final CacheStats stats;
+  private final ScheduledExecutorService scheduleThreadPool = Executors.newScheduledThreadPool(1,
+      new ThreadFactoryBuilder().setNameFormat("TinyLfuBlockCacheStatsExecutor")
+          .setDaemon(true).build());
+
+  private volatile long maxSize;
+  private final long blockSize;
+  private final float windowFactor;
+  private final float protectedFactor;
+
+  /** Where to send victims (blocks evicted/missing from the cache) */
+  private BucketCache victimHandler = null;
+
+  public TinyLfuBlockCache(long maxSize, long blockSize, Configuration conf) {
+    this(maxSize, blockSize,
+        conf.getFloat(WINDOW_PERCENTAGE_CONFIG_NAME, DEFAULT_WINDOW_FACTOR),
+        conf.getFloat(PROTECTED_PERCENTAGE_CONFIG_NAME, DEFAULT_PROTECTED_FACTOR));
+  }
+
+  /**
+   * @param maxSize maximum size of this cache, in bytes
+   * @param blockSize expected average size of blocks, in bytes
+   * @param windowFactor share of the cache for the window
+   * @param protectedFactor share of the main space for the protected segment
+   */
+  public TinyLfuBlockCache(long maxSize, long blockSize, float windowFactor,
+      float protectedFactor) {
+    if (windowFactor < 0 || windowFactor >= 1 || protectedFactor < 0 || protectedFactor >= 1) {
+      throw new IllegalArgumentException("Window and protected factors must be in [0, 1)");
+    }
+    this.maxSize = maxSize;
+    this.blockSize = blockSize;
+    this.windowFactor = windowFactor;
+    this.protectedFactor = protectedFactor;
+    this.map = new ConcurrentHashMap<BlockCacheKey, Node>(
+        (int) Math.ceil(1.2 * maxSize / blockSize), LruBlockCache.DEFAULT_LOAD_FACTOR,
+        LruBlockCache.DEFAULT_CONCURRENCY_LEVEL);
+    this.sketch = new FrequencySketch(maxSize / blockSize);
+    this.stats = new CacheStats(this.getClass().getSimpleName());
+    this.scheduleThreadPool.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        logStats();
+      }
+    }, statThreadPeriod, statThreadPeriod, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+    List<Node> victims;
+    policyLock.lock();
+    try {
+      this.sketch.ensureCapacity(maxSize / blockSize);
+      victims = evict();
+    } finally {
+      policyLock.unlock();
+    }
+    handOff(victims);
+  }
+
+  @Override
+  public void cacheBlock(BlockCacheKey cacheKey, Cacheable buf, boolean inMemory,
+      final boolean cacheDataInL1) {
+    Node node = new Node(cacheKey, buf, inMemory);
+    if (map.putIfAbsent(cacheKey, node) != null) {
+      LOG.warn("Cached an already cached block: " + cacheKey
+          + ". This is harmless and can happen in rare cases (see HBASE-8547)");
+      return;
+    }
+    size.addAndGet(node.heapSize);
+    quotaUsage.add(cacheKey, node.heapSize);
+    List<Node> victims;
+    policyLock.lock();
+    try {
+      if (map.get(cacheKey) != node) {
+        // Evicted already, before we got here
+        return;
+      }
+      sketch.increment(cacheKey.hashCode());
+      if (inMemory) {
+        protectedSegment.addLast(node);
+      } else {
+        window.addLast(node);
+      }
+      victims = evict();
+    } finally {
+      policyLock.unlock();
+    }
+    handOff(victims);
+  }
+
+  @Override
+  public void cacheBlock(BlockCacheKey cacheKey, Cacheable buf) {
+    cacheBlock(cacheKey, buf, false, false);
+  }
+
+  @Override
+  public Cacheable getBlock(BlockCacheKey cacheKey, boolean caching, boolean repeat,
+      boolean updateCacheMetrics) {
+    Node node = map.get(cacheKey);
+    if (node == null) {
+      if (!repeat && updateCacheMetrics) stats.miss(caching);
+      if (victimHandler != null) {
+        return victimHandler.getBlock(cacheKey, caching, repeat, updateCacheMetrics);
+      }
+      return null;
+    }
+    if (updateCacheMetrics) stats.hit(caching);
+    if (policyLock.tryLock()) {
+      try {
+        sketch.increment(cacheKey.hashCode());
+        onAccess(node);
+      } finally {
+        policyLock.unlock();
+      }
+    }
+    return node.buf;
+  }
+
+  @Override
+  public boolean containsBlock(BlockCacheKey cacheKey) {
+    return map.containsKey(cacheKey);
+  }
+
+  @Override
+  public boolean isBlockCached(BlockCacheKey cacheKey) {
+    return map.containsKey(cacheKey)
+        || (victimHandler != null && victimHandler.isBlockCached(cacheKey));
+  }
+
+  @Override
+  public boolean returnBlock(BlockCacheKey cacheKey, Cacheable block) {
+    // Blocks held on heap here are never shared; only those got from the victim cache can be
+    if (block.getMemoryType() == Cacheable.MemoryType.SHARED && victimHandler != null) {
+      return victimHandler.returnBlock(cacheKey, block);
+    }
+    return false;
+  }
+
+  @Override
+  public boolean evictBlock(BlockCacheKey cacheKey) {
+    Node node = map.remove(cacheKey);
+    if (node == null) return false;
+    size.addAndGet(-node.heapSize);
+    quotaUsage.add(cacheKey, -node.heapSize);
+    stats.evicted(node.cachedTime);
+    policyLock.lock();
+    try {
+      if (node.segment != null) {
+        node.segment.remove(node);
+      }
+    } finally {
+      policyLock.unlock();
+    }
+    return true;
+  }
+
+  /**
+   * Evicts all blocks for a specific HFile, searching all blocks in the cache.
+   * @return the number of blocks evicted
+   */
+  @Override
+  public int evictBlocksByHfileName(String hfileName) {
+    int numEvicted = 0;
+    for (BlockCacheKey key : map.keySet()) {
+      if (key.getHfileName().equals(hfileName)) {
+        if (evictBlock(key)) ++numEvicted;
+      }
+    }
+    if (victimHandler != null) {
+      numEvicted += victimHandler.evictBlocksByHfileName(hfileName);
+    }
+    return numEvicted;
+  }
+
+  /**
+   * Moves a block read again along: to the back of the window, or from probation into the
+   * protected segment, or to the back of the protected segment. Called holding the policy lock.
+   */
+  private void onAccess(Node node) {
+    Segment segment = node.segment;
+    if (segment == null) {
+      // Evicted since it was looked up
+      return;
+    } else if (segment == probation) {
+      probation.remove(node);
+      protectedSegment.addLast(node);
+    } else {
+      segment.moveToLast(node);
+    }
+  }
+
+  /**
+   * Makes room. Blocks past the window's share go on probation, as do blocks past the protected
+   * segment's share. Then, while the cache is over its size, the block to come on probation
+   * most recently is set against the one that has been on probation longest; the one asked for
+   * least often goes, unless its table is at its min share. Called holding the policy lock.
+   * @return The blocks evicted
+   */
+  private List<Node> evict() {
+    long max = this.maxSize;
+    long windowMax = (long) (max * windowFactor);
+    long protectedMax = (long) ((max - windowMax) * protectedFactor);
+    while (window.size > windowMax && window.first() != null) {
+      Node node = window.first();
+      window.remove(node);
+      probation.addLast(node);
+    }
+    while (protectedSegment.size > protectedMax && protectedSegment.first() != null) {
+      Node node = protectedSegment.first();
+      protectedSegment.remove(node);
+      probation.addLast(node);
+    }
+    List<Node> victims = null;
+    if (quotaUsage.isAnyOverMaxShare(max)) {
+      victims = evictOverMaxShares(max);
+    }
+    // Bounds how many blocks are spared for min shares, in case nothing else is left
+    int spared = 0;
+    while (size.get() > max) {
+      Node victim = probation.first();
+      Node candidate = probation.last();
+      Node evicted;
+      if (victim == null) {
+        // Nothing on probation; take the least recently used of what is left
+        evicted = protectedSegment.first() != null ? protectedSegment.first() : window.first();
+        if (evicted == null) break;
+      } else if (victim == candidate) {
+        evicted = victim;
+      } else {
+        int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+        evicted = candidateFrequency > sketch.frequency(victim.key.hashCode()) ? victim : candidate;
+      }
+      if (spared < map.size()
+          && quotaUsage.isAtMinShare(evicted.key, evicted.heapSize, max)) {
+        evicted.segment.remove(evicted);
+        protectedSegment.addLast(evicted);
+        spared++;
+        continue;
+      }
+      victims = evictNode(evicted, victims);
+    }
+    if (victims != null) stats.evict();
+    return victims;
+  }
+
+  /**
+   * Evicts the blocks of the tables over their max share of the given size, until they are back
+   * under it. Called holding the policy lock.
+   * @return The blocks evicted
+   */
+  private List<Node> evictOverMaxShares(long max) {
+    Map<BlockCacheQuota, Long> overMax = quotaUsage.getBytesOverMaxShare(max);
+    List<Node> victims = null;
+    for (Segment segment : new Segment[] { probation, window, protectedSegment }) {
+      Node node = segment.first();
+      while (node != null && !overMax.isEmpty()) {
+        Node next = node.next;
+        BlockCacheQuota quota = node.key.getQuota();
+        Long over = quota == null ? null : overMax.get(quota);
+        if (over != null) {
+          victims = evictNode(node, victims);
+          if (over > node.heapSize) {
+            overMax.put(quota, over - node.heapSize);
+          } else {
+            overMax.remove(quota);
+          }
+        }
+        node = next;
+      }
+    }
+    return victims;
+  }
+
+  /**
+   * Takes the node out of its segment and of the cache. Called holding the policy lock.
+   * @return <code>victims</code>, with the node added if it was still cached
+   */
+  private List<Node> evictNode(Node node, List<Node> victims) {
+    node.segment.remove(node);
+    if (map.remove(node.key, node)) {
+      size.addAndGet(-node.heapSize);
+      quotaUsage.add(node.key, -node.heapSize);
+      stats.evicted(node.cachedTime);
+      if (victims == null) victims = new ArrayList<Node>();
+      victims.add(node);
+    }
+    return victims;
+  }
+
+  /**
+   * Gives the victim cache, if there is one, the blocks evicted to make room.
+   */
+  private void handOff(List<Node> victims) {
+    if (victims == null || victimHandler == null) return;
+    for (Node node : victims) {
+      victimHandler.cacheBlockWithWait(node.key, node.buf, node.inMemory, false);
+      stats.demoted();
+    }
+  }
+
+  @Override
+  public CacheStats getStats() {
+    return this.stats;
+  }
+
+  public long getMaxSize() {
+    return this.maxSize;
+  }
+
+  @Override
+  public long getCurrentSize() {
+    return this.size.get();
+  }
+
+  @Override
+  public long getFreeSize() {
+    return getMaxSize() - getCurrentSize();
+  }
+
+  @Override
+  public long size() {
+    return getMaxSize();
+  }
+
+  @Override
+  public long getBlockCount() {
+    return map.size();
+  }
+
+  @Override
+  public long heapSize() {
+    return getCurrentSize();
+  }
+
+  /**
+   * @return how much of the cache the tables with a block cache quota hold, by quota
+   */
+  public SortedMap<BlockCacheQuota, Long> getQuotaUsage() {
+    return quotaUsage.getUsage();
+  }
+
+  @VisibleForTesting
+  long getWindowSize() {
+    return window.size;
+  }
+
+  @VisibleForTesting
+  long getProtectedSize() {
+    return protectedSegment.size;
+  }
+
+  public void logStats() {
+    LOG.info("totalSize=" + StringUtils.byteDesc(getCurrentSize()) + ", " +
+        "freeSize=" + StringUtils.byteDesc(getFreeSize()) + ", " +
+        "max=" + StringUtils.byteDesc(getMaxSize()) + ", " +
+        "blockCount=" + getBlockCount() + ", " +
+        "accesses=" + stats.getRequestCount() + ", " +
+        "hits=" + stats.getHitCount() + ", " +
+        "hitRatio=" + (stats.getHitCount() == 0 ?
+          "0, " : (StringUtils.formatPercent(stats.getHitRatio(), 2) + ", ")) +
+        "cachingAccesses=" + stats.getRequestCachingCount() + ", " +
+        "cachingHits=" + stats.getHitCachingCount() + ", " +
+        "cachingHitsRatio=" + (stats.getHitCachingCount() == 0 ?
+          "0, " : (StringUtils.formatPercent(stats.getHitCachingRatio(), 2) + ", ")) +
+        "evictions=" + stats.getEvictionCount() + ", " +
+        "evicted=" + stats.getEvictedCount() + ", " +
+        "evictedPerRun=" + stats.evictedPerEviction());
+  }
+
+  @Override
+  public void setVictimCache(BucketCache handler) {
+    assert victimHandler == null;
+    victimHandler = handler;
+  }
+
+  @Override
+  public void shutdown() {
+    if (victimHandler != null) {
+      victimHandler.shutdown();
+    }
+    this.scheduleThreadPool.shutdown();
+  }
+
+  @Override
+  public Iterator<CachedBlock> iterator() {
+    final Iterator<Node> iterator = map.values().iterator();
+
+    return new Iterator<CachedBlock>() {
+      private final long now = System.nanoTime();
+
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public CachedBlock next() {
+        final Node node = iterator.next();
+        return new CachedBlock() {
+          @Override
+          public String toString() {
+            return BlockCacheUtil.toString(this, now);
+          }
+
+          @Override
+          public BlockPriority getBlockPriority() {
+            if (node.inMemory) return BlockPriority.MEMORY;
+            return node.segment == protectedSegment ? BlockPriority.MULTI : BlockPriority.SINGLE;
+          }
+
+          @Override
+          public BlockType getBlockType() {
+            return node.buf.getBlockType();
+          }
+
+          @Override
+          public long getOffset() {
+            return node.key.getOffset();
+          }
+
+          @Override
+          public long getSize() {
+            return node.buf.heapSize();
+          }
+
+          @Override
+          public long getCachedTime() {
+            return node.cachedTime;
+          }
+
+          @Override
+          public String getFilename() {
+            return node.key.getHfileName();
+          }
+
+          @Override
+          public int compareTo(CachedBlock other) {
+            int diff = this.getFilename().compareTo(other.getFilename());
+            if (diff != 0) return diff;
+            diff = Long.signum(this.getOffset() - other.getOffset());
+            if (diff != 0) return diff;
+            return Long.signum(other.getCachedTime() - this.getCachedTime());
+          }
+
+          @Override
+          public int hashCode() {
+            return node.hashCode();
+          }
+
+          @Override
+          public boolean equals(Object obj) {
+            if (obj instanceof CachedBlock) {
+              return compareTo((CachedBlock) obj) == 0;
+            }
+            return false;
+          }
+        };
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  public BlockCache[] getBlockCaches() {
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return this.getClass().getSimpleName() + "[maxSize=" + getMaxSize()
+        + ", currentSize=" + getCurrentSize() + ", blockCount=" + getBlockCount()
+        + ", windowSize=" + window.size + ", probationSize=" + probation.size
+        + ", protectedSize=" + protectedSegment.size + "]";
+  }
+
+  /**
+   * A cached block, linked into the segment it is in.
+   */
+  private static class Node {
+    static final long PER_BLOCK_OVERHEAD = ClassSize.align(ClassSize.OBJECT
+        + (5 * ClassSize.REFERENCE) + (2 * Bytes.SIZEOF_LONG) + Bytes.SIZEOF_BOOLEAN);
+
+    final BlockCacheKey key;
+    final Cacheable buf;
+    final boolean inMemory;
+    final long heapSize;
+    final long cachedTime = System.nanoTime();
+    // Null while in no segment. The links and segment are only touched under the policy lock.
+    Segment segment;
+    Node prev;
+    Node next;
+
+    Node(BlockCacheKey key, Cacheable buf, boolean inMemory) {
+      this.key = key;
+      this.buf = buf;
+      this.inMemory = inMemory;
+      this.heapSize = ClassSize.align(key.heapSize()) + ClassSize.align(buf.heapSize())
+          + PER_BLOCK_OVERHEAD;
+    }
+  }
+
+  /**
+   * A list of nodes from least to most recently used, and their heap size.
+   */
+  private static class Segment {
+    private final String name;
+    private Node first;
+    private Node last;
+    long size;
+
+    Segment(String name) {
+      this.name = name;
+    }
+
+    Node first() {
+      return first;
+    }
+
+    Node last() {
+      return last;
+    }
+
+    void addLast(Node node) {
+      node.segment = this;
+      node.prev = last;
+      node.next = null;
+      if (last == null) {
+        first = node;
+      } else {
+        last.next = node;
+      }
+      last = node;
+      size += node.heapSize;
+    }
+
+    void remove(Node node) {
+      assert node.segment == this;
+      if (node.prev == null) {
+        first = node.next;
+      } else {
+        node.prev.next = node.next;
+      }
+      if (node.next == null) {
+        last = node.prev;
+      } else {
+        node.next.prev = node.prev;
+      }
+      node.prev = null;
+      node.next = null;
+      node.segment = null;
+      size -= node.heapSize;
+    }
+
+    void moveToLast(Node node) {
+      if (node != last) {
+        remove(node);
+        addLast(node);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return name + "[size=" + size + "]";
+    }
+  }
+}
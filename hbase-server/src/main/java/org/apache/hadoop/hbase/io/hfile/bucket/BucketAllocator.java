@@ -43,8 +43,11 @@ import com.google.common.primitives.Ints;
  * when evicting. It manages an array of buckets, each bucket is associated with
  * a size and caches elements up to this size. For a completely empty bucket, this
  * size could be re-specified dynamically.
- * 
- * This class is not thread safe.
+ * <p>
+ * Allocations are striped by bucket size: each {@link BucketSizeInfo} is locked on its own, so
+ * that writers of blocks of different sizes, and evictions of them, do not wait for each other.
+ * Only taking a completely free bucket from another size goes through the other sizes' locks,
+ * one at a time, never while holding the lock of the size allocating.
  */
 @InterfaceAudience.Private
 @JsonIgnoreProperties({"indexStatistics", "freeSize", "usedSize"})
@@ -72,8 +75,10 @@ public final class BucketAllocator {
       freeCount = itemCount;
       usedCount = 0;
       freeList = new int[itemCount];
+      // Handed out from the end, so the items of a fresh bucket go by ascending offset and the
+      // blocks of a drain can be written together
       for (int i = 0; i < freeCount; ++i)
-        freeList[i] = i;
+        freeList[i] = itemCount - 1 - i;
     }
 
     public boolean isUninstantiated() {
@@ -170,6 +175,9 @@ public final class BucketAllocator {
     }
   }
 
+  /**
+   * The buckets of one size. Guarded by itself, as are the free lists of its buckets.
+   */
   final class BucketSizeInfo {
     // Free bucket means it has space to allocate a block;
     // Completely free bucket means it has no block.
@@ -196,20 +204,15 @@ public final class BucketAllocator {
     }
 
     /**
-     * Find a bucket to allocate a block
-     * @return the offset in the IOEngine
+     * Find a bucket of this size to allocate a block
+     * @return the offset in the IOEngine, or -1 if all the buckets of this size are full
      */
     public long allocateBlock() {
-      Bucket b = null;
-      if (freeBuckets.size() > 0) {
-        // Use up an existing one first...
-        b = (Bucket) freeBuckets.lastKey();
-      }
-      if (b == null) {
-        b = grabGlobalCompletelyFreeBucket();
-        if (b != null) instantiateBucket(b);
+      if (freeBuckets.size() == 0) {
+        return -1;
       }
-      if (b == null) return -1;
+      // Use up an existing one first...
+      Bucket b = (Bucket) freeBuckets.lastKey();
       long result = b.allocate();
       blockAllocated(b);
       return result;
@@ -299,7 +302,7 @@ public final class BucketAllocator {
   private Bucket[] buckets;
   private BucketSizeInfo[] bucketSizeInfos;
   private final long totalSize;
-  private long usedSize = 0;
+  private final AtomicLong usedSize = new AtomicLong(0);
 
   BucketAllocator(long availableSpace, int[] bucketSizes)
       throws BucketAllocatorException {
@@ -379,7 +382,7 @@ public final class BucketAllocator {
       }
       realCacheSize.addAndGet(foundLen);
       buckets[bucketNo].addAllocation(foundOffset);
-      usedSize += buckets[bucketNo].getItemAllocationSize();
+      usedSize.addAndGet(buckets[bucketNo].getItemAllocationSize());
       bucketSizeInfos[bucketSizeIndex].blockAllocated(b);
     }
   }
@@ -396,7 +399,14 @@ public final class BucketAllocator {
   }
 
   public long getUsedSize() {
-    return this.usedSize;
+    return this.usedSize.get();
+  }
+
+  /**
+   * @return The bucket sizes in use, sorted
+   */
+  int[] getBucketSizes() {
+    return this.bucketSizes;
   }
 
   public long getFreeSize() {
@@ -413,7 +423,7 @@ public final class BucketAllocator {
    * @throws BucketAllocatorException,CacheFullException
    * @return the offset in the IOEngine
    */
-  public synchronized long allocateBlock(int blockSize) throws CacheFullException,
+  public long allocateBlock(int blockSize) throws CacheFullException,
       BucketAllocatorException {
     assert blockSize > 0;
     BucketSizeInfo bsi = roundUpToBucketSizeInfo(blockSize);
@@ -422,18 +432,32 @@ public final class BucketAllocator {
         "; adjust BucketCache sizes " + CacheConfig.BUCKET_CACHE_BUCKETS_KEY +
         " to accomodate if size seems reasonable and you want it cached.");
     }
-    long offset = bsi.allocateBlock();
-
-    // Ask caller to free up space and try again!
-    if (offset < 0)
-      throw new CacheFullException(blockSize, bsi.sizeIndex());
-    usedSize += bucketSizes[bsi.sizeIndex()];
+    long offset;
+    synchronized (bsi) {
+      offset = bsi.allocateBlock();
+    }
+    while (offset < 0) {
+      Bucket b = grabGlobalCompletelyFreeBucket();
+      // Ask caller to free up space and try again!
+      if (b == null) {
+        throw new CacheFullException(blockSize, bsi.sizeIndex());
+      }
+      synchronized (bsi) {
+        bsi.instantiateBucket(b);
+        // Another writer of this size may have filled it up in between
+        offset = bsi.allocateBlock();
+      }
+    }
+    usedSize.addAndGet(bucketSizes[bsi.sizeIndex()]);
     return offset;
   }
 
   private Bucket grabGlobalCompletelyFreeBucket() {
     for (BucketSizeInfo bsi : bucketSizeInfos) {
-      Bucket b = bsi.findAndRemoveCompletelyFreeBucket();
+      Bucket b;
+      synchronized (bsi) {
+        b = bsi.findAndRemoveCompletelyFreeBucket();
+      }
       if (b != null) return b;
     }
     return null;
@@ -444,13 +468,20 @@ public final class BucketAllocator {
    * @param offset block's offset
    * @return size freed
    */
-  public synchronized int freeBlock(long offset) {
+  public int freeBlock(long offset) {
     int bucketNo = (int) (offset / bucketCapacity);
     assert bucketNo >= 0 && bucketNo < buckets.length;
     Bucket targetBucket = buckets[bucketNo];
-    bucketSizeInfos[targetBucket.sizeIndex()].freeBlock(targetBucket, offset);
-    usedSize -= targetBucket.getItemAllocationSize();
-    return targetBucket.getItemAllocationSize();
+    // The bucket has the block allocated, so it can not change size meanwhile
+    BucketSizeInfo bsi = bucketSizeInfos[targetBucket.sizeIndex()];
+    int itemSize;
+    synchronized (bsi) {
+      // Read before the bucket may be emptied by the free and taken for another size
+      itemSize = targetBucket.getItemAllocationSize();
+      bsi.freeBlock(targetBucket, offset);
+    }
+    usedSize.addAndGet(-itemSize);
+    return itemSize;
   }
 
   public int sizeIndexOfAllocation(long offset) {
@@ -543,8 +574,11 @@ public final class BucketAllocator {
 
   IndexStatistics[] getIndexStatistics() {
     IndexStatistics[] stats = new IndexStatistics[bucketSizes.length];
-    for (int i = 0; i < stats.length; ++i)
-      stats[i] = bucketSizeInfos[i].statistics();
+    for (int i = 0; i < stats.length; ++i) {
+      synchronized (bucketSizeInfos[i]) {
+        stats[i] = bucketSizeInfos[i].statistics();
+      }
+    }
     return stats;
   }
 
@@ -20,22 +20,21 @@
  */
 package org.apache.hadoop.hbase.io.hfile.bucket;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -46,6 +45,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -53,6 +54,8 @@ import org.apache.hadoop.hbase.classification.InterfaceAudience;
 import org.apache.hadoop.hbase.io.HeapSize;
 import org.apache.hadoop.hbase.io.hfile.BlockCache;
 import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheQuota;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheQuotaUsage;
 import org.apache.hadoop.hbase.io.hfile.BlockCacheUtil;
 import org.apache.hadoop.hbase.io.hfile.BlockPriority;
 import org.apache.hadoop.hbase.io.hfile.BlockType;
@@ -89,6 +92,10 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * <p>It also can be used as a secondary cache (e.g. using a file on ssd/fusionio to store
  * blocks) to enlarge cache space via
  * {@link org.apache.hadoop.hbase.io.hfile.LruBlockCache#setVictimCache}
+ *
+ * <p>Only with the heap {@link ByteBufferIOEngine} are data blocks served in place, pinned until
+ * the reader returns them, see {@link IOEngine#getSharedBuffer(long, int)}. The HFile scanners
+ * work on arrays, so the offheap, file and mmap engines still copy each block read onto the heap.
  */
 @InterfaceAudience.Private
 public class BucketCache implements BlockCache, HeapSize {
@@ -149,7 +156,6 @@ public class BucketCache implements BlockCache, HeapSize {
   private final AtomicLong heapSize = new AtomicLong(0);
   /** Current number of cached elements */
   private final AtomicLong blockNumber = new AtomicLong(0);
-  private final AtomicLong failedBlockAdditions = new AtomicLong(0);
 
   /** Cache access count (sequential ID) */
   private final AtomicLong accessCount = new AtomicLong(0);
@@ -162,7 +168,18 @@ public class BucketCache implements BlockCache, HeapSize {
 
   private final BucketCacheStats cacheStats = new BucketCacheStats();
 
+  /** How much the tables with a block cache quota hold */
+  private final BlockCacheQuotaUsage quotaUsage = new BlockCacheQuotaUsage();
+
+  /** Where blocks evicted to make room go, if anywhere */
+  private BucketCache victimHandler = null;
+
   private final String persistencePath;
+  // Null unless the cache is persisted
+  private final BucketCachePersister persister;
+  // Files with blocks restored from the persisted cache not yet checked to still be there.
+  // Not changed once set.
+  private volatile Set<String> restoredHFileNames = Collections.emptySet();
   private final long cacheCapacity;
   /** Approximate block size */
   private final long blockSize;
@@ -171,6 +188,10 @@ public class BucketCache implements BlockCache, HeapSize {
   private final int ioErrorsTolerationDuration;
   // 1 min
   public static final int DEFAULT_ERROR_TOLERATION_DURATION = 60 * 1000;
+  /** How often changes to a persisted cache are written out, 1 sec as default */
+  public static final long DEFAULT_PERSIST_INTERVAL = 1000;
+  /** Most bytes a writer thread gathers into one write to a file IOEngine, 1 MB */
+  static final int DEFAULT_WRITE_BATCH_SIZE = 1024 * 1024;
 
   // Start time of first IO error when reading or writing IO Engine, it will be
   // reset after a successful read/write.
@@ -216,6 +237,17 @@ public class BucketCache implements BlockCache, HeapSize {
   public BucketCache(String ioEngineName, long capacity, int blockSize, int[] bucketSizes,
       int writerThreadNum, int writerQLen, String persistencePath, int ioErrorsTolerationDuration)
       throws FileNotFoundException, IOException {
+    this(ioEngineName, capacity, blockSize, bucketSizes, writerThreadNum, writerQLen,
+      persistencePath, ioErrorsTolerationDuration, DEFAULT_PERSIST_INTERVAL);
+  }
+
+  /**
+   * @param persistInterval How often, in ms, blocks added and evicted are written out to
+   * <code>persistencePath</code>, if the cache is persisted
+   */
+  public BucketCache(String ioEngineName, long capacity, int blockSize, int[] bucketSizes,
+      int writerThreadNum, int writerQLen, String persistencePath, int ioErrorsTolerationDuration,
+      long persistInterval) throws FileNotFoundException, IOException {
     this.ioEngine = getIOEngineFromName(ioEngineName, capacity);
     this.writerThreads = new WriterThread[writerThreadNum];
     long blockNumCapacity = capacity / blockSize;
@@ -240,14 +272,16 @@ public class BucketCache implements BlockCache, HeapSize {
     this.backingMap = new ConcurrentHashMap<BlockCacheKey, BucketEntry>((int) blockNumCapacity);
 
     if (ioEngine.isPersistent() && persistencePath != null) {
+      this.persister = new BucketCachePersister(persistencePath, capacity,
+          ioEngine.getClass().getName(), bucketAllocator.getBucketSizes());
       try {
-        retrieveFromFile(bucketSizes);
+        retrieveFromFile();
       } catch (IOException ioex) {
         LOG.error("Can't restore from file because of", ioex);
-      } catch (ClassNotFoundException cnfe) {
-        LOG.error("Can't restore from file in rebuild because can't deserialise",cnfe);
-        throw new RuntimeException(cnfe);
+        this.persister.reset();
       }
+    } else {
+      this.persister = null;
     }
     final String threadName = Thread.currentThread().getName();
     this.cacheEnabled = true;
@@ -263,6 +297,18 @@ public class BucketCache implements BlockCache, HeapSize {
     // every five minutes.
     this.scheduleThreadPool.scheduleAtFixedRate(new StatisticsThread(this),
         statThreadPeriod, statThreadPeriod, TimeUnit.SECONDS);
+    if (persister != null) {
+      this.scheduleThreadPool.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            persister.checkpoint(backingMap, deserialiserMap);
+          } catch (IOException ioe) {
+            LOG.warn("Failed persisting bucket cache to " + BucketCache.this.persistencePath, ioe);
+          }
+        }
+      }, persistInterval, persistInterval, TimeUnit.MILLISECONDS);
+    }
     LOG.info("Started bucket cache; ioengine=" + ioEngineName +
         ", capacity=" + StringUtils.byteDesc(capacity) +
       ", blockSize=" + StringUtils.byteDesc(blockSize) + ", writerThreadNum=" +
@@ -305,13 +351,15 @@ public class BucketCache implements BlockCache, HeapSize {
       throws IOException {
     if (ioEngineName.startsWith("file:"))
       return new FileIOEngine(ioEngineName.substring(5), capacity);
+    else if (ioEngineName.startsWith("mmap:"))
+      return new FileMmapIOEngine(ioEngineName.substring(5), capacity);
     else if (ioEngineName.startsWith("offheap"))
       return new ByteBufferIOEngine(capacity, true);
     else if (ioEngineName.startsWith("heap"))
       return new ByteBufferIOEngine(capacity, false);
     else
       throw new IllegalArgumentException(
-          "Don't understand io engine name for cache - prefix with file:, heap or offheap");
+          "Don't understand io engine name for cache - prefix with file:, mmap:, heap or offheap");
   }
 
   /**
@@ -376,7 +424,7 @@ public class BucketCache implements BlockCache, HeapSize {
     }
     if (!successfulAddition) {
       ramCache.remove(cacheKey);
-      failedBlockAdditions.incrementAndGet();
+      cacheStats.failInsert();
     } else {
       this.blockNumber.incrementAndGet();
       this.heapSize.addAndGet(cachedItem.heapSize());
@@ -410,31 +458,49 @@ public class BucketCache implements BlockCache, HeapSize {
     if (bucketEntry != null) {
       long start = System.nanoTime();
       IdLock.Entry lockEntry = null;
+      boolean corrupt = false;
       try {
         lockEntry = offsetLock.getLockEntry(bucketEntry.offset());
         // We can not read here even if backingMap does contain the given key because its offset
         // maybe changed. If we lock BlockCacheKey instead of offset, then we can only check
         // existence here.
-        if (bucketEntry.equals(backingMap.get(key))) {
+        // An entry marked for eviction is only waiting for its readers to be done with it
+        if (bucketEntry.equals(backingMap.get(key)) && !bucketEntry.isMarkedForEvict()) {
           int len = bucketEntry.getLength();
-          ByteBuffer bb = ByteBuffer.allocate(len);
-          int lenRead = ioEngine.read(bb, bucketEntry.offset());
-          if (lenRead != len) {
-            throw new RuntimeException("Only " + lenRead + " bytes read, " + len + " expected");
+          // Serve the block in place if the engine can, pinning it until it is returned
+          ByteBuffer bb = null;
+          Cacheable.MemoryType memType = Cacheable.MemoryType.SHARED;
+          if (bucketEntry.isVerified()) {
+            bb = ioEngine.getSharedBuffer(bucketEntry.offset(), len);
           }
-          CacheableDeserializer<Cacheable> deserializer =
-            bucketEntry.deserializerReference(this.deserialiserMap);
-          Cacheable cachedBlock = deserializer.deserialize(bb, true);
-          long timeTaken = System.nanoTime() - start;
-          if (updateCacheMetrics) {
-            cacheStats.hit(caching);
-            cacheStats.ioHit(timeTaken);
+          if (bb == null) {
+            memType = Cacheable.MemoryType.EXCLUSIVE;
+            bb = ByteBuffer.allocate(len);
+            int lenRead = ioEngine.read(bb, bucketEntry.offset());
+            if (lenRead != len) {
+              throw new RuntimeException("Only " + lenRead + " bytes read, " + len + " expected");
+            }
           }
-          bucketEntry.access(accessCount.incrementAndGet());
-          if (this.ioErrorStartTime > 0) {
-            ioErrorStartTime = -1;
+          if (!bucketEntry.isVerified() && !verifyRestoredBlock(key, bucketEntry, bb)) {
+            corrupt = true;
+          } else {
+            CacheableDeserializer<Cacheable> deserializer =
+              bucketEntry.deserializerReference(this.deserialiserMap);
+            Cacheable cachedBlock = deserializer.deserialize(bb, true, memType);
+            if (cachedBlock.getMemoryType() == Cacheable.MemoryType.SHARED) {
+              bucketEntry.pin();
+            }
+            long timeTaken = System.nanoTime() - start;
+            if (updateCacheMetrics) {
+              cacheStats.hit(caching);
+              cacheStats.ioHit(timeTaken);
+            }
+            bucketEntry.access(accessCount.incrementAndGet());
+            if (this.ioErrorStartTime > 0) {
+              ioErrorStartTime = -1;
+            }
+            return cachedBlock;
           }
-          return cachedBlock;
         }
       } catch (IOException ioex) {
         LOG.error("Failed reading block " + key + " from bucket cache", ioex);
@@ -444,6 +510,9 @@ public class BucketCache implements BlockCache, HeapSize {
           offsetLock.releaseLockEntry(lockEntry);
         }
       }
+      if (corrupt) {
+        evictBlock(key);
+      }
     }
     if (!repeat && updateCacheMetrics) {
       cacheStats.miss(caching);
@@ -451,16 +520,80 @@ public class BucketCache implements BlockCache, HeapSize {
     return null;
   }
 
+  /**
+   * Checks a block restored from a persisted cache against the checksum it was written with; its
+   * space may have been handed out again before its eviction was persisted.
+   */
+  private boolean verifyRestoredBlock(BlockCacheKey key, BucketEntry bucketEntry, ByteBuffer bb) {
+    Checksum checksum = new CRC32();
+    checksum.update(bb.array(), bb.arrayOffset(), bucketEntry.getLength());
+    if ((int) checksum.getValue() != bucketEntry.getChecksum()) {
+      LOG.warn("Checksum mismatch in block " + key + " restored from " + persistencePath
+          + "; evicting it");
+      return false;
+    }
+    bucketEntry.setVerified();
+    return true;
+  }
+
+  /**
+   * Hands a copy of the block about to be freed to make room down to the victim cache. The copy
+   * is queued there without waiting, so a busy lower tier may still drop it.
+   */
+  private void demoteBlock(BlockCacheKey key, BucketEntry bucketEntry) {
+    Cacheable block = null;
+    IdLock.Entry lockEntry = null;
+    try {
+      lockEntry = offsetLock.getLockEntry(bucketEntry.offset());
+      // A restored block is not trusted until a read has verified it
+      if (bucketEntry.equals(backingMap.get(key)) && !bucketEntry.isMarkedForEvict()
+          && bucketEntry.isVerified()) {
+        int len = bucketEntry.getLength();
+        ByteBuffer bb = ByteBuffer.allocate(len);
+        int lenRead = ioEngine.read(bb, bucketEntry.offset());
+        if (lenRead != len) {
+          throw new IOException("Only " + lenRead + " bytes read, " + len + " expected");
+        }
+        block = bucketEntry.deserializerReference(this.deserialiserMap).deserialize(bb, true,
+          Cacheable.MemoryType.EXCLUSIVE);
+      }
+    } catch (IOException ioex) {
+      LOG.warn("Failed reading block " + key + " to demote it", ioex);
+    } finally {
+      if (lockEntry != null) {
+        offsetLock.releaseLockEntry(lockEntry);
+      }
+    }
+    if (block != null) {
+      victimHandler.cacheBlockWithWait(key, block,
+        bucketEntry.getPriority() == BlockPriority.MEMORY, false);
+      cacheStats.demoted();
+    }
+  }
+
   @VisibleForTesting
   void blockEvicted(BlockCacheKey cacheKey, BucketEntry bucketEntry, boolean decrementBlockNumber) {
+    if (persister != null) {
+      persister.removed(cacheKey, bucketEntry);
+    }
     bucketAllocator.freeBlock(bucketEntry.offset());
     realCacheSize.addAndGet(-1 * bucketEntry.getLength());
+    quotaUsage.add(cacheKey, -1 * bucketEntry.getLength());
     blocksByHFile.remove(cacheKey.getHfileName(), cacheKey);
     if (decrementBlockNumber) {
       this.blockNumber.decrementAndGet();
     }
   }
 
+  /**
+   * As in {@link #getBlock(BlockCacheKey, boolean, boolean, boolean)}, the victim cache is not
+   * asked.
+   */
+  @Override
+  public boolean isBlockCached(BlockCacheKey cacheKey) {
+    return cacheEnabled && (ramCache.containsKey(cacheKey) || backingMap.containsKey(cacheKey));
+  }
+
   @Override
   public boolean evictBlock(BlockCacheKey cacheKey) {
     if (!cacheEnabled) {
@@ -483,9 +616,7 @@ public class BucketCache implements BlockCache, HeapSize {
     IdLock.Entry lockEntry = null;
     try {
       lockEntry = offsetLock.getLockEntry(bucketEntry.offset());
-      if (backingMap.remove(cacheKey, bucketEntry)) {
-        blockEvicted(cacheKey, bucketEntry, removedBlock == null);
-      } else {
+      if (!evictBucketEntry(cacheKey, bucketEntry, removedBlock == null)) {
         return false;
       }
     } catch (IOException ie) {
@@ -500,6 +631,62 @@ public class BucketCache implements BlockCache, HeapSize {
     return true;
   }
 
+  /**
+   * Removes the entry from the backing map and frees its space. While readers still hold its
+   * block in place, the entry is only marked, and is evicted when the last of them returns it.
+   * The offset lock of the entry must be held.
+   * @return true if the entry was removed
+   */
+  private boolean evictBucketEntry(BlockCacheKey cacheKey, BucketEntry bucketEntry,
+      boolean decrementBlockNumber) {
+    if (bucketEntry.isPinned()) {
+      if (!bucketEntry.isMarkedForEvict() && backingMap.get(cacheKey) == bucketEntry) {
+        bucketEntry.markForEvict();
+        if (!decrementBlockNumber) {
+          // Already uncounted with its RAM cache entry; count it until its space is freed
+          this.blockNumber.incrementAndGet();
+        }
+      }
+      return false;
+    }
+    if (backingMap.remove(cacheKey, bucketEntry)) {
+      blockEvicted(cacheKey, bucketEntry, decrementBlockNumber);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean returnBlock(BlockCacheKey cacheKey, Cacheable block) {
+    if (block.getMemoryType() != Cacheable.MemoryType.SHARED) {
+      return false;
+    }
+    // A pinned entry stays in the backing map until it is returned
+    BucketEntry bucketEntry = backingMap.get(cacheKey);
+    if (bucketEntry == null) {
+      return false;
+    }
+    IdLock.Entry lockEntry = null;
+    try {
+      lockEntry = offsetLock.getLockEntry(bucketEntry.offset());
+      if (!bucketEntry.isPinned()) {
+        return false;
+      }
+      if (bucketEntry.unpin() == 0 && bucketEntry.isMarkedForEvict()
+          && evictBucketEntry(cacheKey, bucketEntry, true)) {
+        cacheStats.evicted(bucketEntry.getCachedTime());
+      }
+      return true;
+    } catch (IOException ie) {
+      LOG.warn("Failed returning block " + cacheKey);
+      return false;
+    } finally {
+      if (lockEntry != null) {
+        offsetLock.releaseLockEntry(lockEntry);
+      }
+    }
+  }
+
   /*
    * Statistics thread.  Periodically output cache statistics to the log.
    */
@@ -545,7 +732,7 @@ public class BucketCache implements BlockCache, HeapSize {
   }
 
   public long getFailedBlockAdditions() {
-    return this.failedBlockAdditions.get();
+    return this.cacheStats.getFailedInsertCount();
   }
 
   public long getRealCacheSize() {
@@ -582,6 +769,9 @@ public class BucketCache implements BlockCache, HeapSize {
     if (!freeSpaceLock.tryLock()) return;
     try {
       freeInProgress = true;
+      if (quotaUsage.isAnyOverMaxShare(acceptableSize())) {
+        freeOverMaxShares();
+      }
       long bytesToFreeWithoutExtra = 0;
       // Calculate free byte for each bucketSizeinfo
       StringBuffer msgBuffer = LOG.isDebugEnabled()? new StringBuffer(): null;
@@ -618,17 +808,24 @@ public class BucketCache implements BlockCache, HeapSize {
       long bytesToFreeWithExtra = (long) Math.floor(bytesToFreeWithoutExtra
           * (1 + DEFAULT_EXTRA_FREE_FACTOR));
 
-      // Instantiate priority buckets
-      BucketEntryGroup bucketSingle = new BucketEntryGroup(bytesToFreeWithExtra,
+      // Instantiate priority buckets, with room for the blocks left alone to keep tables at
+      // their min share
+      long bytesToQueue = bytesToFreeWithExtra
+          + quotaUsage.getMinShareBytes(bucketAllocator.getTotalSize());
+      BucketEntryGroup bucketSingle = new BucketEntryGroup(bytesToQueue,
           blockSize, singleSize());
-      BucketEntryGroup bucketMulti = new BucketEntryGroup(bytesToFreeWithExtra,
+      BucketEntryGroup bucketMulti = new BucketEntryGroup(bytesToQueue,
           blockSize, multiSize());
-      BucketEntryGroup bucketMemory = new BucketEntryGroup(bytesToFreeWithExtra,
+      BucketEntryGroup bucketMemory = new BucketEntryGroup(bytesToQueue,
           blockSize, memorySize());
 
       // Scan entire map putting bucket entry into appropriate bucket entry
       // group
       for (Map.Entry<BlockCacheKey, BucketEntry> bucketEntryWithKey : backingMap.entrySet()) {
+        if (bucketEntryWithKey.getValue().isMarkedForEvict()) {
+          // Freed once its readers are done with it
+          continue;
+        }
         switch (bucketEntryWithKey.getValue().getPriority()) {
           case SINGLE: {
             bucketSingle.add(bucketEntryWithKey);
@@ -715,15 +912,57 @@ public class BucketCache implements BlockCache, HeapSize {
     }
   }
 
+  /**
+   * Evicts the least recently used blocks of each table over its max share of the cache until
+   * it is down to its max share of the minimum size.
+   */
+  private void freeOverMaxShares() {
+    long minSize = (long) Math.floor(bucketAllocator.getTotalSize() * DEFAULT_MIN_FACTOR);
+    Map<BlockCacheQuota, Long> overMax = quotaUsage.getBytesOverMaxShare(minSize);
+    Map<BlockCacheQuota, CachedEntryQueue> queues =
+        new HashMap<BlockCacheQuota, CachedEntryQueue>();
+    for (Map.Entry<BlockCacheQuota, Long> entry : overMax.entrySet()) {
+      queues.put(entry.getKey(), new CachedEntryQueue(entry.getValue(), blockSize));
+    }
+    for (Map.Entry<BlockCacheKey, BucketEntry> bucketEntryWithKey : backingMap.entrySet()) {
+      BlockCacheQuota quota = bucketEntryWithKey.getKey().getQuota();
+      CachedEntryQueue queue = quota == null ? null : queues.get(quota);
+      if (queue != null && !bucketEntryWithKey.getValue().isMarkedForEvict()) {
+        queue.add(bucketEntryWithKey);
+      }
+    }
+    for (Map.Entry<BlockCacheQuota, CachedEntryQueue> entry : queues.entrySet()) {
+      long toFree = overMax.get(entry.getKey());
+      long freed = 0;
+      Map.Entry<BlockCacheKey, BucketEntry> bucketEntryWithKey;
+      while (freed < toFree && (bucketEntryWithKey = entry.getValue().pollLast()) != null) {
+        if (victimHandler != null) {
+          demoteBlock(bucketEntryWithKey.getKey(), bucketEntryWithKey.getValue());
+        }
+        if (evictBlock(bucketEntryWithKey.getKey())) {
+          freed += bucketEntryWithKey.getValue().getLength();
+        }
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Bucket cache freed " + StringUtils.byteDesc(freed)
+            + " over the max share of " + entry.getKey());
+      }
+    }
+  }
+
   // This handles flushing the RAM cache to IOEngine.
   @VisibleForTesting
   class WriterThread extends HasThread {
     private final BlockingQueue<RAMQueueEntry> inputQueue;
     private volatile boolean writerEnabled = true;
+    private final IOEngineWriteBatch writeBatch;
 
     WriterThread(BlockingQueue<RAMQueueEntry> queue) {
       super("BucketCacheWriterThread");
       this.inputQueue = queue;
+      // Only writes to a file cost a system call each
+      this.writeBatch = new IOEngineWriteBatch(ioEngine,
+          ioEngine instanceof FileIOEngine ? DEFAULT_WRITE_BATCH_SIZE : 0);
     }
 
     // Used for test
@@ -788,7 +1027,7 @@ public class BucketCache implements BlockCache, HeapSize {
             continue;
           }
           BucketEntry bucketEntry =
-            re.writeToCache(ioEngine, bucketAllocator, deserialiserMap, realCacheSize);
+            re.writeToCache(writeBatch, bucketAllocator, deserialiserMap, realCacheSize);
           // Successfully added.  Up index and add bucketEntry. Clear io exceptions.
           bucketEntries[index] = bucketEntry;
           if (ioErrorStartTime > 0) {
@@ -799,6 +1038,7 @@ public class BucketCache implements BlockCache, HeapSize {
           LOG.warn("Failed allocation for " + (re == null ? "" : re.getKey()) + "; " + fle);
           // Presume can't add. Too big? Move index on. Entry will be cleared from ramCache below.
           bucketEntries[index] = null;
+          cacheStats.failInsert();
           index++;
         } catch (CacheFullException cfe) {
           // Cache full when we tried to add. Try freeing space and then retrying (don't up index)
@@ -811,22 +1051,21 @@ public class BucketCache implements BlockCache, HeapSize {
           // Hopefully transient. Retry. checkIOErrorIsTolerated disables cache if problem.
           LOG.error("Failed writing to bucket cache", ioex);
           checkIOErrorIsTolerated();
+          // Blocks batched before this one may not have been written either
+          writeBatch.clear();
+          freeBucketEntries(bucketEntries, index);
         }
       }
 
       // Make sure data pages are written are on media before we update maps.
       try {
+        writeBatch.flush();
         ioEngine.sync();
       } catch (IOException ioex) {
-        LOG.error("Failed syncing IO engine", ioex);
+        LOG.error("Failed writing out or syncing IO engine", ioex);
         checkIOErrorIsTolerated();
         // Since we failed sync, free the blocks in bucket allocator
-        for (int i = 0; i < entries.size(); ++i) {
-          if (bucketEntries[i] != null) {
-            bucketAllocator.freeBlock(bucketEntries[i].offset());
-            bucketEntries[i] = null;
-          }
-        }
+        freeBucketEntries(bucketEntries, size);
       }
 
       // Now add to backingMap if successfully added to bucket cache.  Remove from ramCache if
@@ -835,7 +1074,11 @@ public class BucketCache implements BlockCache, HeapSize {
         BlockCacheKey key = entries.get(i).getKey();
         // Only add if non-null entry.
         if (bucketEntries[i] != null) {
+          if (persister != null) {
+            persister.added(key, bucketEntries[i]);
+          }
           backingMap.put(key, bucketEntries[i]);
+          quotaUsage.add(key, bucketEntries[i].getLength());
         }
         // Always remove from ramCache even if we failed adding it to the block cache above.
         RAMQueueEntry ramCacheEntry = ramCache.remove(key);
@@ -846,9 +1089,7 @@ public class BucketCache implements BlockCache, HeapSize {
           IdLock.Entry lockEntry = null;
           try {
             lockEntry = offsetLock.getLockEntry(bucketEntries[i].offset());
-            if (backingMap.remove(key, bucketEntries[i])) {
-              blockEvicted(key, bucketEntries[i], false);
-            }
+            evictBucketEntry(key, bucketEntries[i], false);
           } catch (IOException e) {
             LOG.warn("failed to free space for " + key, e);
           } finally {
@@ -862,9 +1103,24 @@ public class BucketCache implements BlockCache, HeapSize {
       long used = bucketAllocator.getUsedSize();
       if (used > acceptableSize()) {
         freeSpace("Used=" + used + " > acceptable=" + acceptableSize());
+      } else if (quotaUsage.isAnyOverMaxShare(acceptableSize())) {
+        freeSpace("A block cache quota is over its max share");
       }
       return;
     }
+
+    /**
+     * Frees the allocations of the first <code>count</code> of the given entries, which will
+     * not be cached after all.
+     */
+    private void freeBucketEntries(BucketEntry[] bucketEntries, int count) {
+      for (int i = 0; i < count; ++i) {
+        if (bucketEntries[i] != null) {
+          bucketAllocator.freeBlock(bucketEntries[i].offset());
+          bucketEntries[i] = null;
+        }
+      }
+    }
   }
 
   /**
@@ -889,70 +1145,67 @@ public class BucketCache implements BlockCache, HeapSize {
 
   private void persistToFile() throws IOException {
     assert !cacheEnabled;
-    FileOutputStream fos = null;
-    ObjectOutputStream oos = null;
     try {
-      if (!ioEngine.isPersistent())
-        throw new IOException(
-            "Attempt to persist non-persistent cache mappings!");
-      fos = new FileOutputStream(persistencePath, false);
-      oos = new ObjectOutputStream(fos);
-      oos.writeLong(cacheCapacity);
-      oos.writeUTF(ioEngine.getClass().getName());
-      oos.writeUTF(backingMap.getClass().getName());
-      oos.writeObject(deserialiserMap);
-      oos.writeObject(backingMap);
+      persister.checkpoint(backingMap, deserialiserMap);
     } finally {
-      if (oos != null) oos.close();
-      if (fos != null) fos.close();
+      persister.close();
     }
   }
 
-  @SuppressWarnings("unchecked")
-  private void retrieveFromFile(int[] bucketSizes) throws IOException, BucketAllocatorException,
-      ClassNotFoundException {
-    File persistenceFile = new File(persistencePath);
-    if (!persistenceFile.exists()) {
+  private void retrieveFromFile() throws IOException, BucketAllocatorException {
+    assert !cacheEnabled;
+    ConcurrentHashMap<BlockCacheKey, BucketEntry> map =
+        new ConcurrentHashMap<BlockCacheKey, BucketEntry>(backingMap.size());
+    UniqueIndexMap<Integer> deserMap = new UniqueIndexMap<Integer>();
+    if (!persister.restore(map, deserMap)) {
       return;
     }
-    assert !cacheEnabled;
-    FileInputStream fis = null;
-    ObjectInputStream ois = null;
-    try {
-      if (!ioEngine.isPersistent())
-        throw new IOException(
-            "Attempt to restore non-persistent cache mappings!");
-      fis = new FileInputStream(persistencePath);
-      ois = new ObjectInputStream(fis);
-      long capacitySize = ois.readLong();
-      if (capacitySize != cacheCapacity)
-        throw new IOException("Mismatched cache capacity:"
-            + StringUtils.byteDesc(capacitySize) + ", expected: "
-            + StringUtils.byteDesc(cacheCapacity));
-      String ioclass = ois.readUTF();
-      String mapclass = ois.readUTF();
-      if (!ioEngine.getClass().getName().equals(ioclass))
-        throw new IOException("Class name for IO engine mismatch: " + ioclass
-            + ", expected:" + ioEngine.getClass().getName());
-      if (!backingMap.getClass().getName().equals(mapclass))
-        throw new IOException("Class name for cache map mismatch: " + mapclass
-            + ", expected:" + backingMap.getClass().getName());
-      UniqueIndexMap<Integer> deserMap = (UniqueIndexMap<Integer>) ois
-          .readObject();
-      BucketAllocator allocator = new BucketAllocator(cacheCapacity, bucketSizes,
-          backingMap, realCacheSize);
-      backingMap = (ConcurrentHashMap<BlockCacheKey, BucketEntry>) ois
-          .readObject();
-      bucketAllocator = allocator;
-      deserialiserMap = deserMap;
-    } finally {
-      if (ois != null) ois.close();
-      if (fis != null) fis.close();
-      if (!persistenceFile.delete()) {
-        throw new IOException("Failed deleting persistence file "
-            + persistenceFile.getAbsolutePath());
+    AtomicLong restoredSize = new AtomicLong(0);
+    BucketAllocator allocator = new BucketAllocator(cacheCapacity,
+        bucketAllocator.getBucketSizes(), map, restoredSize);
+    Set<String> hfileNames = new HashSet<String>();
+    for (BlockCacheKey key : map.keySet()) {
+      blocksByHFile.put(key.getHfileName(), key);
+      hfileNames.add(key.getHfileName());
+    }
+    bucketAllocator = allocator;
+    backingMap = map;
+    deserialiserMap = deserMap;
+    realCacheSize.set(restoredSize.get());
+    blockNumber.set(map.size());
+    restoredHFileNames = hfileNames;
+    LOG.info("Restored " + map.size() + " blocks of " + hfileNames.size() + " files, "
+        + StringUtils.byteDesc(restoredSize.get()) + ", from " + persistencePath);
+  }
+
+  /**
+   * @return True if blocks restored from a persisted cache have yet to be checked against the
+   * files still there
+   */
+  public boolean hasRestoredBlocks() {
+    return !restoredHFileNames.isEmpty();
+  }
+
+  /**
+   * Evicts the blocks restored from a persisted cache whose files are no longer there, e.g. as
+   * they were compacted away while this server was down. Blocks cached since the restore are
+   * left alone.
+   * @param existingHFileNames Names of all the files that are there
+   * @return the number of blocks evicted
+   */
+  public int evictBlocksOfMissingFiles(Set<String> existingHFileNames) {
+    Set<String> hfileNames = restoredHFileNames;
+    restoredHFileNames = Collections.emptySet();
+    int numEvicted = 0;
+    int numFiles = 0;
+    for (String hfileName : hfileNames) {
+      if (!existingHFileNames.contains(hfileName)) {
+        numEvicted += evictBlocksByHfileName(hfileName);
+        numFiles++;
       }
     }
+    LOG.info("Evicted " + numEvicted + " restored blocks of " + numFiles + " files gone since");
+    return numEvicted;
   }
 
   /**
@@ -1022,6 +1275,21 @@ public class BucketCache implements BlockCache, HeapSize {
     return this.bucketAllocator;
   }
 
+  /**
+   * Specifies the cache of the next tier down. Blocks freed to make room here are read back and
+   * cached there instead of being dropped. Lookups that miss here are not passed on; that is up
+   * to whoever put the tiers together.
+   * @param victimCache the lower tier
+   */
+  public void setVictimCache(BucketCache victimCache) {
+    assert victimHandler == null;
+    victimHandler = victimCache;
+  }
+
+  BucketCache getVictimHandler() {
+    return this.victimHandler;
+  }
+
   @Override
   public long heapSize() {
     return this.heapSize.get();
@@ -1101,6 +1369,14 @@ public class BucketCache implements BlockCache, HeapSize {
     byte deserialiserIndex;
     private volatile long accessCounter;
     private BlockPriority priority;
+    // CRC32 of the block as written to the IOEngine
+    private int checksum;
+    // False for an entry restored from a persisted cache until its block is read and checks out
+    private volatile boolean verified = true;
+    // Readers holding the block in place; guarded by the offset lock
+    private int refCount;
+    // Evicted while pinned; its space is freed when the last reader returns the block
+    private volatile boolean markedForEvict;
     /**
      * Time this block was cached.  Presumes we are created just before we are added to the cache.
      */
@@ -1117,6 +1393,19 @@ public class BucketCache implements BlockCache, HeapSize {
       }
     }
 
+    /**
+     * Used to restore an entry from a persisted cache. Its block is to be verified on first read.
+     */
+    BucketEntry(long offset, int length, long accessCounter, BlockPriority priority,
+        int checksum) {
+      setOffset(offset);
+      this.length = length;
+      this.accessCounter = accessCounter;
+      this.priority = priority;
+      this.checksum = checksum;
+      this.verified = false;
+    }
+
     long offset() { // Java has no unsigned numbers
       long o = ((long) offsetBase) & 0xFFFFFFFF;
       o += (((long) (offset1)) & 0xFF) << 32;
@@ -1161,6 +1450,46 @@ public class BucketCache implements BlockCache, HeapSize {
       return this.priority;
     }
 
+    long getAccessCounter() {
+      return this.accessCounter;
+    }
+
+    int getChecksum() {
+      return this.checksum;
+    }
+
+    void setChecksum(int checksum) {
+      this.checksum = checksum;
+    }
+
+    boolean isVerified() {
+      return this.verified;
+    }
+
+    void setVerified() {
+      this.verified = true;
+    }
+
+    void pin() {
+      this.refCount++;
+    }
+
+    int unpin() {
+      return --this.refCount;
+    }
+
+    boolean isPinned() {
+      return this.refCount > 0;
+    }
+
+    void markForEvict() {
+      this.markedForEvict = true;
+    }
+
+    boolean isMarkedForEvict() {
+      return this.markedForEvict;
+    }
+
     public long getCachedTime() {
       return cachedTime;
     }
@@ -1193,8 +1522,17 @@ public class BucketCache implements BlockCache, HeapSize {
       Map.Entry<BlockCacheKey, BucketEntry> entry;
       long freedBytes = 0;
       while ((entry = queue.pollLast()) != null) {
-        evictBlock(entry.getKey());
-        freedBytes += entry.getValue().getLength();
+        // Leave the blocks of tables at their min share
+        if (quotaUsage.isAtMinShare(entry.getKey(), entry.getValue().getLength(),
+            bucketAllocator.getTotalSize())) {
+          continue;
+        }
+        if (victimHandler != null) {
+          demoteBlock(entry.getKey(), entry.getValue());
+        }
+        if (evictBlock(entry.getKey())) {
+          freedBytes += entry.getValue().getLength();
+        }
         if (freedBytes >= toFree) {
           return freedBytes;
         }
@@ -1254,7 +1592,7 @@ public class BucketCache implements BlockCache, HeapSize {
       this.accessCounter = accessCounter;
     }
 
-    public BucketEntry writeToCache(final IOEngine ioEngine,
+    public BucketEntry writeToCache(final IOEngineWriteBatch writeBatch,
         final BucketAllocator bucketAllocator,
         final UniqueIndexMap<Integer> deserialiserMap,
         final AtomicLong realCacheSize) throws CacheFullException, IOException,
@@ -1265,6 +1603,8 @@ public class BucketCache implements BlockCache, HeapSize {
       long offset = bucketAllocator.allocateBlock(len);
       BucketEntry bucketEntry = new BucketEntry(offset, len, accessCounter, inMemory);
       bucketEntry.setDeserialiserReference(data.getDeserializer(), deserialiserMap);
+      // Checksummed as it will be read back, so that a persisted cache can be verified
+      Checksum checksum = new CRC32();
       try {
         if (data instanceof HFileBlock) {
           HFileBlock block = (HFileBlock) data;
@@ -1274,12 +1614,19 @@ public class BucketCache implements BlockCache, HeapSize {
             len == sliceBuf.limit() + block.headerSize() + HFileBlock.EXTRA_SERIALIZATION_SPACE;
           ByteBuffer extraInfoBuffer = ByteBuffer.allocate(HFileBlock.EXTRA_SERIALIZATION_SPACE);
           block.serializeExtraInfo(extraInfoBuffer);
-          ioEngine.write(sliceBuf, offset);
-          ioEngine.write(extraInfoBuffer, offset + len - HFileBlock.EXTRA_SERIALIZATION_SPACE);
+          // Room left for the next block's header is zeroed rather than left as it was
+          ByteBuffer gapBuffer =
+              ByteBuffer.allocate(len - sliceBuf.limit() - HFileBlock.EXTRA_SERIALIZATION_SPACE);
+          updateChecksum(checksum, sliceBuf);
+          updateChecksum(checksum, gapBuffer);
+          updateChecksum(checksum, extraInfoBuffer);
+          writeBatch.add(offset, bucketAllocator.sizeOfAllocation(offset), sliceBuf, gapBuffer,
+            extraInfoBuffer);
         } else {
           ByteBuffer bb = ByteBuffer.allocate(len);
           data.serialize(bb);
-          ioEngine.write(bb, offset);
+          updateChecksum(checksum, bb);
+          writeBatch.add(offset, bucketAllocator.sizeOfAllocation(offset), bb);
         }
       } catch (IOException ioe) {
         // free it in bucket allocator
@@ -1287,9 +1634,24 @@ public class BucketCache implements BlockCache, HeapSize {
         throw ioe;
       }
 
+      bucketEntry.setChecksum((int) checksum.getValue());
       realCacheSize.addAndGet(len);
       return bucketEntry;
     }
+
+    private static void updateChecksum(Checksum checksum, ByteBuffer buf) {
+      if (buf.hasArray()) {
+        checksum.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        return;
+      }
+      ByteBuffer dup = buf.duplicate();
+      byte[] chunk = new byte[Math.min(dup.remaining(), 4096)];
+      while (dup.hasRemaining()) {
+        int n = Math.min(chunk.length, dup.remaining());
+        dup.get(chunk, 0, n);
+        checksum.update(chunk, 0, n);
+      }
+    }
   }
 
   /**
@@ -1394,6 +1756,13 @@ public class BucketCache implements BlockCache, HeapSize {
     };
   }
 
+  /**
+   * @return how much of the cache the tables with a block cache quota hold, by quota
+   */
+  public SortedMap<BlockCacheQuota, Long> getQuotaUsage() {
+    return quotaUsage.getUsage();
+  }
+
   @Override
   public BlockCache[] getBlockCaches() {
     return null;
@@ -0,0 +1,470 @@
+/**
+ * Copyright The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile.bucket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
+import org.apache.hadoop.hbase.io.hfile.BlockPriority;
+import org.apache.hadoop.hbase.io.hfile.bucket.BucketCache.BucketEntry;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Keeps the block map of a {@link BucketCache} on a persistent {@link IOEngine} in a local
+ * file, so that a restarted server finds its cache still warm.
+ * <p>
+ * The file is a checkpoint of the whole map, rewritten only now and then, followed by a journal
+ * of the blocks added and evicted since. Changes are queued as they happen and appended to the
+ * journal in batches by {@link #checkpoint(Map, UniqueIndexMap)}; once the journal has grown
+ * past the size of the map a new checkpoint is written in its place. The checkpoint is written
+ * to a temporary file and renamed over the old one, and carries a CRC32 of its content; every
+ * journal batch carries its own. On restore, a journal batch torn by a crash ends the replay
+ * there. The allocator state is not kept: it is rebuilt from the restored map.
+ * <p>
+ * An addition is queued before the entry goes into the map and an eviction after it comes out,
+ * so the journal may miss a block the cache has (it is then just not restored) but not a block
+ * whose space was handed out again. A block whose space was overwritten before its eviction
+ * made it to the journal is caught by its checksum when first read.
+ */
+@InterfaceAudience.Private
+class BucketCachePersister {
+  private static final Log LOG = LogFactory.getLog(BucketCachePersister.class);
+
+  private static final int CHECKPOINT_MAGIC = 0x42434b31; // "BCK1"
+  private static final int JOURNAL_MAGIC = 0x42434a31; // "BCJ1"
+
+  private static final byte END = 0;
+  private static final byte ADD = 1;
+  private static final byte REMOVE = 2;
+
+  /** Most changes written in one journal batch */
+  private static final int MAX_BATCH = 64 * 1024;
+  /** A checkpoint is not rewritten while the journal has fewer changes than this */
+  private static final int MIN_JOURNAL_CHANGES = 10000;
+
+  private final File checkpointFile;
+  private final File journalFile;
+  private final long capacity;
+  private final String ioEngineClass;
+  private final int[] bucketSizes;
+
+  private final Queue<Change> changes = new ConcurrentLinkedQueue<Change>();
+
+  // Guarded by this
+  private long generation = 0;
+  private long journalChanges = 0;
+  private FileOutputStream journalOut;
+  private boolean needsCheckpoint = true;
+
+  BucketCachePersister(String path, long capacity, String ioEngineClass, int[] bucketSizes) {
+    this.checkpointFile = new File(path);
+    this.journalFile = new File(path + ".journal");
+    this.capacity = capacity;
+    this.ioEngineClass = ioEngineClass;
+    this.bucketSizes = bucketSizes;
+  }
+
+  /**
+   * Queues the addition of a block. Call before it is put in the map.
+   */
+  void added(BlockCacheKey key, BucketEntry entry) {
+    changes.add(new Change(key, entry));
+  }
+
+  /**
+   * Queues the eviction of a block. Call after it has been taken out of the map and before its
+   * space is freed.
+   */
+  void removed(BlockCacheKey key, BucketEntry entry) {
+    changes.add(new Change(key, entry.offset()));
+  }
+
+  /**
+   * Reads back the last checkpoint and the journal written after it.
+   * @param map Where to put the restored blocks
+   * @param deserialiserMap Where to map the restored blocks' deserialisers
+   * @return False if there was nothing to restore
+   * @throws IOException If what was persisted does not match this cache or is corrupt. Any
+   * blocks put in <code>map</code> should then be dropped, and {@link #reset()} called.
+   */
+  synchronized boolean restore(Map<BlockCacheKey, BucketEntry> map,
+      UniqueIndexMap<Integer> deserialiserMap) throws IOException {
+    if (!checkpointFile.exists()) {
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    DataInputStream in = new DataInputStream(new CheckedInputStream(
+        new BufferedInputStream(new FileInputStream(checkpointFile)), crc));
+    try {
+      if (in.readInt() != CHECKPOINT_MAGIC) {
+        throw new IOException("Not a bucket cache checkpoint: " + checkpointFile);
+      }
+      long persistedCapacity = in.readLong();
+      if (persistedCapacity != capacity) {
+        throw new IOException("Mismatched cache capacity: " + persistedCapacity
+            + ", expected: " + capacity);
+      }
+      String persistedIoEngineClass = in.readUTF();
+      if (!persistedIoEngineClass.equals(ioEngineClass)) {
+        throw new IOException("Class name for IO engine mismatch: " + persistedIoEngineClass
+            + ", expected: " + ioEngineClass);
+      }
+      int[] persistedBucketSizes = new int[in.readInt()];
+      for (int i = 0; i < persistedBucketSizes.length; i++) {
+        persistedBucketSizes[i] = in.readInt();
+      }
+      if (!Arrays.equals(persistedBucketSizes, bucketSizes)) {
+        throw new IOException("Mismatched bucket sizes: " + Arrays.toString(persistedBucketSizes)
+            + ", expected: " + Arrays.toString(bucketSizes));
+      }
+      long persistedGeneration = in.readLong();
+      byte op;
+      while ((op = in.readByte()) != END) {
+        if (op != ADD) {
+          throw new IOException("Unexpected entry type " + op + " in " + checkpointFile);
+        }
+        BlockCacheKey key = readKey(in);
+        map.put(key, readEntry(in, deserialiserMap));
+      }
+      long expected = crc.getValue();
+      if (in.readLong() != expected) {
+        throw new IOException("Checksum mismatch in " + checkpointFile);
+      }
+      this.generation = persistedGeneration;
+    } finally {
+      in.close();
+    }
+    this.journalChanges = replayJournal(map, deserialiserMap);
+    // Carry on where the journal left off, unless it was not there to be replayed.
+    this.needsCheckpoint = this.journalOut == null;
+    return true;
+  }
+
+  /**
+   * @return Count of changes replayed
+   */
+  private long replayJournal(Map<BlockCacheKey, BucketEntry> map,
+      UniqueIndexMap<Integer> deserialiserMap) throws IOException {
+    if (!journalFile.exists()) {
+      return 0;
+    }
+    long replayed = 0;
+    long validLength = 0;
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+    try {
+      if (in.readInt() != JOURNAL_MAGIC || in.readLong() != generation) {
+        // Left over from before the checkpoint
+        return 0;
+      }
+      validLength = Bytes.SIZEOF_INT + Bytes.SIZEOF_LONG;
+      CRC32 crc = new CRC32();
+      while (true) {
+        int length = in.readInt();
+        byte[] batch = new byte[length];
+        in.readFully(batch);
+        crc.reset();
+        crc.update(batch, 0, length);
+        if (in.readLong() != crc.getValue()) {
+          LOG.warn("Checksum mismatch in " + journalFile + " at " + validLength
+              + "; dropping the rest of it");
+          break;
+        }
+        replayed += replayBatch(new DataInputStream(new ByteArrayInputStream(batch)),
+          map, deserialiserMap);
+        validLength += Bytes.SIZEOF_INT + length + Bytes.SIZEOF_LONG;
+      }
+    } catch (EOFException eof) {
+      // Torn write of the last batch, or just the end of the journal
+    } finally {
+      in.close();
+    }
+    if (validLength == 0) {
+      return 0;
+    }
+    // Later batches are appended right after the last good one
+    RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+    try {
+      raf.setLength(validLength);
+    } finally {
+      raf.close();
+    }
+    this.journalOut = new FileOutputStream(journalFile, true);
+    return replayed;
+  }
+
+  private int replayBatch(DataInputStream in, Map<BlockCacheKey, BucketEntry> map,
+      UniqueIndexMap<Integer> deserialiserMap) throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      byte op = in.readByte();
+      BlockCacheKey key = readKey(in);
+      if (op == ADD) {
+        map.put(key, readEntry(in, deserialiserMap));
+      } else if (op == REMOVE) {
+        long offset = in.readLong();
+        BucketEntry entry = map.get(key);
+        // The block may have been cached again since; only the eviction of this one counts.
+        if (entry != null && entry.offset() == offset) {
+          map.remove(key);
+        }
+      } else {
+        throw new IOException("Unexpected change type " + op + " in " + journalFile);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Appends the changes queued since the last call to the journal, or writes a new checkpoint
+   * if the journal has grown too long.
+   * @param backingMap The cache's block map
+   * @param deserialiserMap The cache's deserialiser map
+   */
+  synchronized void checkpoint(Map<BlockCacheKey, BucketEntry> backingMap,
+      UniqueIndexMap<Integer> deserialiserMap) throws IOException {
+    if (needsCheckpoint
+        || journalChanges > Math.max(MIN_JOURNAL_CHANGES, backingMap.size())) {
+      writeCheckpoint(backingMap, deserialiserMap);
+    } else {
+      appendJournal(deserialiserMap);
+    }
+  }
+
+  private void writeCheckpoint(Map<BlockCacheKey, BucketEntry> backingMap,
+      UniqueIndexMap<Integer> deserialiserMap) throws IOException {
+    closeJournal();
+    this.needsCheckpoint = true;
+    // What is queued now is already in the map; what comes later goes to the new journal.
+    changes.clear();
+    long newGeneration = generation + 1;
+    File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+    FileOutputStream fos = new FileOutputStream(tmpFile, false);
+    try {
+      CRC32 crc = new CRC32();
+      DataOutputStream out = new DataOutputStream(
+          new CheckedOutputStream(new BufferedOutputStream(fos), crc));
+      out.writeInt(CHECKPOINT_MAGIC);
+      out.writeLong(capacity);
+      out.writeUTF(ioEngineClass);
+      out.writeInt(bucketSizes.length);
+      for (int bucketSize : bucketSizes) {
+        out.writeInt(bucketSize);
+      }
+      out.writeLong(newGeneration);
+      for (Map.Entry<BlockCacheKey, BucketEntry> e : backingMap.entrySet()) {
+        out.writeByte(ADD);
+        writeKey(out, e.getKey());
+        writeEntry(out, e.getValue(), deserialiserMap);
+      }
+      out.writeByte(END);
+      out.flush();
+      // The checksum covers everything before it
+      long checksum = crc.getValue();
+      out.writeLong(checksum);
+      out.flush();
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+    if (!tmpFile.renameTo(checkpointFile)) {
+      throw new IOException("Failed rename of " + tmpFile + " to " + checkpointFile);
+    }
+    this.generation = newGeneration;
+
+    // A journal from before the checkpoint is ignored on restore, so a crash here is harmless.
+    FileOutputStream out = new FileOutputStream(journalFile, false);
+    try {
+      DataOutputStream dos = new DataOutputStream(out);
+      dos.writeInt(JOURNAL_MAGIC);
+      dos.writeLong(generation);
+      dos.flush();
+      out.getFD().sync();
+    } catch (IOException ioe) {
+      out.close();
+      throw ioe;
+    }
+    this.journalOut = out;
+    this.journalChanges = 0;
+    this.needsCheckpoint = false;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Wrote bucket cache checkpoint of " + backingMap.size() + " blocks to "
+          + checkpointFile);
+    }
+  }
+
+  private void appendJournal(UniqueIndexMap<Integer> deserialiserMap) throws IOException {
+    ByteArrayOutputStream batch = null;
+    while (!changes.isEmpty()) {
+      if (batch == null) {
+        batch = new ByteArrayOutputStream();
+      }
+      batch.reset();
+      DataOutputStream out = new DataOutputStream(batch);
+      // Count goes first; written over once the batch is made up
+      out.writeInt(0);
+      int count = 0;
+      Change change;
+      while (count < MAX_BATCH && (change = changes.poll()) != null) {
+        if (change.entry != null) {
+          out.writeByte(ADD);
+          writeKey(out, change.key);
+          writeEntry(out, change.entry, deserialiserMap);
+        } else {
+          out.writeByte(REMOVE);
+          writeKey(out, change.key);
+          out.writeLong(change.offset);
+        }
+        count++;
+      }
+      out.flush();
+      byte[] bytes = batch.toByteArray();
+      Bytes.putInt(bytes, 0, count);
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, bytes.length);
+      try {
+        DataOutputStream journal = new DataOutputStream(journalOut);
+        journal.writeInt(bytes.length);
+        journal.write(bytes);
+        journal.writeLong(crc.getValue());
+        journal.flush();
+        journalOut.getFD().sync();
+      } catch (IOException ioe) {
+        // The journal may now end in a partial batch and the changes taken are gone; start over
+        // with a checkpoint next time.
+        closeJournal();
+        this.needsCheckpoint = true;
+        throw ioe;
+      }
+      journalChanges += count;
+    }
+  }
+
+  private void closeJournal() {
+    if (journalOut != null) {
+      try {
+        journalOut.close();
+      } catch (IOException ioe) {
+        LOG.warn("Failed close of " + journalFile, ioe);
+      }
+      journalOut = null;
+    }
+  }
+
+  /**
+   * Drops what was persisted, e.g. after it failed to restore. A new checkpoint is written on
+   * the next call to {@link #checkpoint(Map, UniqueIndexMap)}.
+   */
+  synchronized void reset() {
+    closeJournal();
+    changes.clear();
+    if (checkpointFile.exists() && !checkpointFile.delete()) {
+      LOG.warn("Failed delete of " + checkpointFile);
+    }
+    if (journalFile.exists() && !journalFile.delete()) {
+      LOG.warn("Failed delete of " + journalFile);
+    }
+    this.journalChanges = 0;
+    this.needsCheckpoint = true;
+  }
+
+  synchronized void close() {
+    closeJournal();
+  }
+
+  private static void writeKey(DataOutputStream out, BlockCacheKey key) throws IOException {
+    out.writeUTF(key.getHfileName());
+    out.writeLong(key.getOffset());
+  }
+
+  private static BlockCacheKey readKey(DataInputStream in) throws IOException {
+    String hfileName = in.readUTF();
+    return new BlockCacheKey(hfileName, in.readLong());
+  }
+
+  private static void writeEntry(DataOutputStream out, BucketEntry entry,
+      UniqueIndexMap<Integer> deserialiserMap) throws IOException {
+    out.writeLong(entry.offset());
+    out.writeInt(entry.getLength());
+    // Deserialiser indexes are particular to a run; their ids are not.
+    out.writeInt(deserialiserMap.unmap(entry.deserialiserIndex));
+    out.writeLong(entry.getAccessCounter());
+    out.writeByte(entry.getPriority().ordinal());
+    out.writeInt(entry.getChecksum());
+  }
+
+  private static BucketEntry readEntry(DataInputStream in,
+      UniqueIndexMap<Integer> deserialiserMap) throws IOException {
+    long offset = in.readLong();
+    int length = in.readInt();
+    int deserialiserId = in.readInt();
+    long accessCounter = in.readLong();
+    int priority = in.readByte();
+    if (priority < 0 || priority >= BlockPriority.values().length) {
+      throw new IOException("Unknown block priority " + priority);
+    }
+    BucketEntry entry = new BucketEntry(offset, length, accessCounter,
+        BlockPriority.values()[priority], in.readInt());
+    entry.deserialiserIndex = (byte) deserialiserMap.map(deserialiserId);
+    return entry;
+  }
+
+  /**
+   * A block added, with its entry, or evicted, with the offset it was at.
+   */
+  private static class Change {
+    private final BlockCacheKey key;
+    private final BucketEntry entry;
+    private final long offset;
+
+    Change(BlockCacheKey key, BucketEntry entry) {
+      this.key = key;
+      this.entry = entry;
+      this.offset = entry.offset();
+    }
+
+    Change(BlockCacheKey key, long offset) {
+      this.key = key;
+      this.entry = null;
+      this.offset = offset;
+    }
+  }
+}
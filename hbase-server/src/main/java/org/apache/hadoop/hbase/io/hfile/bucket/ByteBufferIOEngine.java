@@ -78,6 +78,21 @@ public class ByteBufferIOEngine implements IOEngine {
         dstBuffer.arrayOffset());
   }
 
+  /**
+   * Only the heap buffers are served in place; the read path works on arrays, so blocks of the
+   * offheap engine are copied by {@link #read(ByteBuffer, long)}
+   * @param offset The offset in the ByteBufferArray of the first byte
+   * @param length The length of the data
+   * @return a slice of the heap buffer holding the data, or null
+   */
+  @Override
+  public ByteBuffer getSharedBuffer(long offset, int length) {
+    if (direct) {
+      return null;
+    }
+    return bufferArray.asSubBuffer(offset, length);
+  }
+
   /**
    * Transfers data from the given byte buffer to the buffer array
    * @param srcBuffer the given byte buffer from which bytes are to be read
@@ -89,6 +89,15 @@ public class FileIOEngine implements IOEngine {
     return fileChannel.read(dstBuffer, offset);
   }
 
+  /**
+   * Data is always copied out of the file
+   * @return null
+   */
+  @Override
+  public ByteBuffer getSharedBuffer(long offset, int length) {
+    return null;
+  }
+
   /**
    * Transfers data from the given byte buffer to file
    * @param srcBuffer the given byte buffer from which bytes are to be read
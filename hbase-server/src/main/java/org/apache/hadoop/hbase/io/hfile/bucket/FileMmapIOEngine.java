@@ -0,0 +1,205 @@
+/**
+ * Copyright The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile.bucket;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.util.ByteBufferAllocator;
+import org.apache.hadoop.hbase.util.ByteBufferArray;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * IO engine that stores data to a file on the local file system, mapped into memory in segments
+ * through a {@link ByteBufferArray}. Reads and writes are copies to and from the mapping, with
+ * no system call; on fast local storage this comes close to an off-heap cache while holding as
+ * much as a {@link FileIOEngine}.
+ */
+@InterfaceAudience.Private
+public class FileMmapIOEngine implements IOEngine {
+  private static final Log LOG = LogFactory.getLog(FileMmapIOEngine.class);
+
+  // Segments are made large enough that a big cache stays well within the default
+  // vm.max_map_count of 65530 mappings per process.
+  private static final int MAX_SEGMENTS = 16 * 1024;
+  private static final int MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+  private static final int MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+  private final String path;
+  private final long size;
+  private final RandomAccessFile raf;
+  private final FileChannel fileChannel;
+  private final ByteBufferArray bufferArray;
+  private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+  // Segments written since they were last synced
+  private final AtomicIntegerArray dirty;
+  private final int segmentSize;
+
+  public FileMmapIOEngine(String filePath, long fileSize) throws IOException {
+    this.path = filePath;
+    this.size = fileSize;
+    try {
+      raf = new RandomAccessFile(filePath, "rw");
+    } catch (java.io.FileNotFoundException fex) {
+      LOG.error("Can't create bucket cache file " + filePath, fex);
+      throw fex;
+    }
+
+    try {
+      raf.setLength(fileSize);
+    } catch (IOException ioex) {
+      LOG.error("Can't extend bucket cache file; insufficient space for "
+          + StringUtils.byteDesc(fileSize), ioex);
+      raf.close();
+      throw ioex;
+    }
+
+    fileChannel = raf.getChannel();
+    try {
+      bufferArray = new ByteBufferArray(fileSize, getMaxSegmentSize(fileSize),
+          new ByteBufferAllocator() {
+            private long position = 0;
+
+            @Override
+            public ByteBuffer allocate(int size) throws IOException {
+              MappedByteBuffer segment =
+                  fileChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+              position += size;
+              segments.add(segment);
+              return segment;
+            }
+          });
+    } catch (IOException ioex) {
+      LOG.error("Can't map bucket cache file " + filePath, ioex);
+      raf.close();
+      throw ioex;
+    }
+    segmentSize = bufferArray.getBufferSize();
+    dirty = new AtomicIntegerArray(segments.size());
+    LOG.info("Mapped " + StringUtils.byteDesc(fileSize) + " in " + segments.size()
+        + " segments, on the path:" + filePath);
+  }
+
+  private static int getMaxSegmentSize(long fileSize) {
+    long segmentSize = (fileSize + MAX_SEGMENTS - 1) / MAX_SEGMENTS;
+    return (int) Math.min(MAX_SEGMENT_SIZE, Math.max(MIN_SEGMENT_SIZE, segmentSize));
+  }
+
+  @Override
+  public String toString() {
+    return "ioengine=" + this.getClass().getSimpleName() + ", path=" + this.path +
+      ", size=" + String.format("%,d", this.size) + ", segments=" + segments.size();
+  }
+
+  /**
+   * File IO engine is always able to support persistent storage for the cache
+   * @return true
+   */
+  @Override
+  public boolean isPersistent() {
+    return true;
+  }
+
+  /**
+   * Transfers data from the mapped file to the given byte buffer
+   * @param dstBuffer the given byte buffer into which bytes are to be written
+   * @param offset The offset in the file where the first byte to be read
+   * @return number of bytes read
+   * @throws IOException
+   */
+  @Override
+  public int read(ByteBuffer dstBuffer, long offset) throws IOException {
+    assert dstBuffer.hasArray();
+    return bufferArray.getMultiple(offset, dstBuffer.remaining(), dstBuffer.array(),
+        dstBuffer.arrayOffset() + dstBuffer.position());
+  }
+
+  /**
+   * Data is always copied out of the file
+   * @return null
+   */
+  @Override
+  public ByteBuffer getSharedBuffer(long offset, int length) {
+    return null;
+  }
+
+  /**
+   * Transfers data from the given byte buffer to the mapped file
+   * @param srcBuffer the given byte buffer from which bytes are to be read
+   * @param offset The offset in the file where the first byte to be written
+   * @throws IOException
+   */
+  @Override
+  public void write(ByteBuffer srcBuffer, long offset) throws IOException {
+    assert srcBuffer.hasArray();
+    int len = srcBuffer.remaining();
+    bufferArray.putMultiple(offset, len, srcBuffer.array(),
+        srcBuffer.arrayOffset() + srcBuffer.position());
+    if (len > 0) {
+      int last = (int) ((offset + len - 1) / segmentSize);
+      for (int i = (int) (offset / segmentSize); i <= last; i++) {
+        dirty.set(i, 1);
+      }
+    }
+  }
+
+  /**
+   * Flushes the segments written since the last sync to the file
+   * @throws IOException
+   */
+  @Override
+  public void sync() throws IOException {
+    for (int i = 0; i < segments.size(); i++) {
+      if (dirty.get(i) != 0 && dirty.getAndSet(i, 0) != 0) {
+        segments.get(i).force();
+      }
+    }
+  }
+
+  /**
+   * Flush and close the file. The mappings are let go of once no longer referenced.
+   */
+  @Override
+  public void shutdown() {
+    try {
+      sync();
+    } catch (IOException ex) {
+      LOG.error("Can't shutdown cleanly", ex);
+    }
+    try {
+      fileChannel.close();
+    } catch (IOException ex) {
+      LOG.error("Can't shutdown cleanly", ex);
+    }
+    try {
+      raf.close();
+    } catch (IOException ex) {
+      LOG.error("Can't shutdown cleanly", ex);
+    }
+  }
+}
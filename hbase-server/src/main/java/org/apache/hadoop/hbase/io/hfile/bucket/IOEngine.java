@@ -43,6 +43,16 @@ public interface IOEngine {
    */
   int read(ByteBuffer dstBuffer, long offset) throws IOException;
 
+  /**
+   * Gets a view of data in the IOEngine that shares its memory, without copying. The view is
+   * only valid as long as the range is not written again; the caller is responsible for that.
+   * @param offset The offset in the IO engine of the first byte
+   * @param length The length of the data
+   * @return a heap buffer whose position is 0 and limit is length, or null if the data can not
+   *         be served in place and has to be read with {@link #read(ByteBuffer, long)}
+   */
+  ByteBuffer getSharedBuffer(long offset, int length);
+
   /**
    * Transfers data from the given byte buffer to IOEngine
    * @param srcBuffer the given byte buffer from which bytes are to be read
@@ -0,0 +1,114 @@
+/**
+ * Copyright The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile.bucket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+
+/**
+ * Gathers the blocks a {@link BucketCache} writer drains into as few {@link IOEngine} writes as
+ * it can. Each block goes into a single write, whatever number of buffers it is made of, and
+ * blocks allocated one right after the other, as those of a fresh bucket are, share a write; the
+ * unused tail of each allocation in between is written along with them.
+ * <p>
+ * With a capacity of 0 every buffer is written as it is added. Not thread safe; each writer
+ * thread has its own.
+ */
+@InterfaceAudience.Private
+class IOEngineWriteBatch {
+  private final IOEngine ioEngine;
+  /** Null if writes are not batched */
+  private final ByteBuffer buffer;
+  /** Offset in the IOEngine of the first byte of the buffer; -1 if nothing is pending */
+  private long batchOffset = -1;
+  /** Offset in the IOEngine of the end of the last allocation added */
+  private long allocationEnd = -1;
+
+  /**
+   * @param ioEngine where the blocks are written
+   * @param capacity the most bytes to gather into one write; 0 to not gather any
+   */
+  IOEngineWriteBatch(IOEngine ioEngine, int capacity) {
+    this.ioEngine = ioEngine;
+    this.buffer = capacity > 0 ? ByteBuffer.allocate(capacity) : null;
+  }
+
+  /**
+   * Adds a block to be written. It may be written right away, or only on the next
+   * {@link #flush()}.
+   * @param offset where the block is allocated in the IOEngine
+   * @param allocationSize the size of the allocation, at least that of the block
+   * @param parts the buffers the block is made of, in order, from their position to their limit
+   */
+  void add(long offset, int allocationSize, ByteBuffer... parts) throws IOException {
+    int length = 0;
+    for (ByteBuffer part : parts) {
+      length += part.remaining();
+    }
+    if (batchOffset >= 0
+        && (offset != allocationEnd || offset - batchOffset + length > buffer.capacity())) {
+      flush();
+    }
+    if (buffer == null || length > buffer.capacity()) {
+      long partOffset = offset;
+      for (ByteBuffer part : parts) {
+        int partLength = part.remaining();
+        ioEngine.write(part, partOffset);
+        partOffset += partLength;
+      }
+      return;
+    }
+    if (batchOffset < 0) {
+      batchOffset = offset;
+    }
+    buffer.position((int) (offset - batchOffset));
+    for (ByteBuffer part : parts) {
+      buffer.put(part.duplicate());
+    }
+    allocationEnd = offset + allocationSize;
+  }
+
+  /**
+   * Writes out the blocks added since the last flush.
+   */
+  void flush() throws IOException {
+    if (batchOffset < 0) {
+      return;
+    }
+    buffer.flip();
+    try {
+      ioEngine.write(buffer, batchOffset);
+    } finally {
+      clear();
+    }
+  }
+
+  /**
+   * Drops the blocks added since the last flush without writing them.
+   */
+  void clear() {
+    if (buffer != null) {
+      buffer.clear();
+    }
+    batchOffset = -1;
+    allocationEnd = -1;
+  }
+}
@@ -0,0 +1,344 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * An immutable {@link NavigableSet} of {@link Cell}s backed by a sorted array.
+ * <p>
+ * Used for memstore segments that no longer take writes. Compared to a
+ * {@link CellSkipListSet} there is no per-entry node object: a cell costs one
+ * array reference, lookups are binary searches and iteration walks the array.
+ * Views returned by {@link #headSet(Cell, boolean)}, {@link #tailSet(Cell, boolean)}
+ * and {@link #subSet(Cell, boolean, Cell, boolean)} share the backing array.
+ * <p>
+ * All mutating operations throw {@link UnsupportedOperationException}.
+ */
+@InterfaceAudience.Private
+public class CellArraySet implements NavigableSet<Cell> {
+  private final KeyValue.KVComparator comparator;
+  private final Cell[] cells;
+  // View bounds, inclusive from, exclusive to
+  private final int from;
+  private final int to;
+
+  /**
+   * @param c comparator the cells are sorted with
+   * @param cells cells, sorted by <code>c</code> with no duplicates. Not copied.
+   */
+  CellArraySet(final KeyValue.KVComparator c, final Cell[] cells) {
+    this(c, cells, 0, cells.length);
+  }
+
+  private CellArraySet(final KeyValue.KVComparator c, final Cell[] cells, int from, int to) {
+    this.comparator = c;
+    this.cells = cells;
+    this.from = from;
+    this.to = to;
+  }
+
+  /**
+   * Copies the passed sorted set into a new flat set.
+   * @param c comparator <code>set</code> is sorted with
+   * @param set cells to copy
+   * @return a flat copy of <code>set</code>
+   */
+  static CellArraySet copyOf(final KeyValue.KVComparator c, final NavigableSet<Cell> set) {
+    // Size of a CellSkipListSet is O(n), walk it once into a growing array instead
+    Cell[] tmp = new Cell[16];
+    int n = 0;
+    for (Cell cell : set) {
+      if (n == tmp.length) {
+        Cell[] grown = new Cell[tmp.length << 1];
+        System.arraycopy(tmp, 0, grown, 0, n);
+        tmp = grown;
+      }
+      tmp[n++] = cell;
+    }
+    Cell[] exact = new Cell[n];
+    System.arraycopy(tmp, 0, exact, 0, n);
+    return new CellArraySet(c, exact);
+  }
+
+  /**
+   * @return Heap overhead of a flat set holding <code>count</code> cells, not including the
+   * cells themselves.
+   */
+  static long heapOverhead(int count) {
+    return ClassSize.align(ClassSize.ARRAY + (long) count * ClassSize.REFERENCE);
+  }
+
+  /*
+   * @return Index of the first cell in the view that is >= key (or > key when not inclusive);
+   * <code>to</code> if there is none.
+   */
+  private int ceilingIndex(final Cell key, final boolean inclusive) {
+    int low = from;
+    int high = to - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = comparator.compare(cells[mid], key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return inclusive ? mid : mid + 1;
+      }
+    }
+    return low;
+  }
+
+  /*
+   * @return Index of the last cell in the view that is <= key (or < key when not inclusive);
+   * <code>from - 1</code> if there is none.
+   */
+  private int floorIndex(final Cell key, final boolean inclusive) {
+    return ceilingIndex(key, !inclusive) - 1;
+  }
+
+  private Cell cellAt(int i) {
+    return i >= from && i < to ? cells[i] : null;
+  }
+
+  /**
+   * @param kv the key to look for
+   * @return The cell in this set equal to <code>kv</code>, or null
+   */
+  public Cell get(Cell kv) {
+    int i = ceilingIndex(kv, true);
+    if (i < to && comparator.compare(cells[i], kv) == 0) {
+      return cells[i];
+    }
+    return null;
+  }
+
+  /**
+   * Only used to roll back edits, which is rare enough that copying the array is fine.
+   * @return A copy of this set without <code>cell</code>, or this set if it does not
+   * contain <code>cell</code>
+   */
+  CellArraySet without(Cell cell) {
+    int i = ceilingIndex(cell, true);
+    if (i >= to || comparator.compare(cells[i], cell) != 0) {
+      return this;
+    }
+    Cell[] copy = new Cell[size() - 1];
+    System.arraycopy(cells, from, copy, 0, i - from);
+    System.arraycopy(cells, i + 1, copy, i - from, to - i - 1);
+    return new CellArraySet(this.comparator, copy);
+  }
+
+  public Cell ceiling(Cell e) {
+    return cellAt(ceilingIndex(e, true));
+  }
+
+  public Cell higher(Cell e) {
+    return cellAt(ceilingIndex(e, false));
+  }
+
+  public Cell floor(Cell e) {
+    return cellAt(floorIndex(e, true));
+  }
+
+  public Cell lower(Cell e) {
+    return cellAt(floorIndex(e, false));
+  }
+
+  public Iterator<Cell> iterator() {
+    return new Iterator<Cell>() {
+      private int next = from;
+
+      @Override
+      public boolean hasNext() {
+        return next < to;
+      }
+
+      @Override
+      public Cell next() {
+        if (next >= to) {
+          throw new NoSuchElementException();
+        }
+        return cells[next++];
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Immutable");
+      }
+    };
+  }
+
+  public Iterator<Cell> descendingIterator() {
+    return new Iterator<Cell>() {
+      private int next = to - 1;
+
+      @Override
+      public boolean hasNext() {
+        return next >= from;
+      }
+
+      @Override
+      public Cell next() {
+        if (next < from) {
+          throw new NoSuchElementException();
+        }
+        return cells[next--];
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Immutable");
+      }
+    };
+  }
+
+  public NavigableSet<Cell> descendingSet() {
+    throw new UnsupportedOperationException("Not implemented");
+  }
+
+  public SortedSet<Cell> headSet(final Cell toElement) {
+    return headSet(toElement, false);
+  }
+
+  public NavigableSet<Cell> headSet(final Cell toElement, boolean inclusive) {
+    return new CellArraySet(this.comparator, this.cells, from,
+        floorIndex(toElement, inclusive) + 1);
+  }
+
+  public SortedSet<Cell> tailSet(Cell fromElement) {
+    return tailSet(fromElement, true);
+  }
+
+  public NavigableSet<Cell> tailSet(Cell fromElement, boolean inclusive) {
+    return new CellArraySet(this.comparator, this.cells, ceilingIndex(fromElement, inclusive),
+        to);
+  }
+
+  public SortedSet<Cell> subSet(Cell fromElement, Cell toElement) {
+    return subSet(fromElement, true, toElement, false);
+  }
+
+  public NavigableSet<Cell> subSet(Cell fromElement, boolean fromInclusive, Cell toElement,
+      boolean toInclusive) {
+    int start = ceilingIndex(fromElement, fromInclusive);
+    int end = Math.max(start, floorIndex(toElement, toInclusive) + 1);
+    return new CellArraySet(this.comparator, this.cells, start, end);
+  }
+
+  public Comparator<? super Cell> comparator() {
+    return this.comparator;
+  }
+
+  public Cell first() {
+    if (isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return cells[from];
+  }
+
+  public Cell last() {
+    if (isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return cells[to - 1];
+  }
+
+  public Cell pollFirst() {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public Cell pollLast() {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean add(Cell e) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean addAll(Collection<? extends Cell> c) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public void clear() {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean contains(Object o) {
+    return o instanceof Cell && get((Cell) o) != null;
+  }
+
+  public boolean containsAll(Collection<?> c) {
+    for (Object o : c) {
+      if (!contains(o)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean isEmpty() {
+    return from >= to;
+  }
+
+  public boolean remove(Object o) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean removeAll(Collection<?> c) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean retainAll(Collection<?> c) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public int size() {
+    return Math.max(0, to - from);
+  }
+
+  public Object[] toArray() {
+    Object[] result = new Object[size()];
+    System.arraycopy(cells, from, result, 0, result.length);
+    return result;
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T[] toArray(T[] a) {
+    int size = size();
+    if (a.length < size) {
+      a = (T[]) java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), size);
+    }
+    System.arraycopy(cells, from, a, 0, size);
+    if (a.length > size) {
+      a[size] = null;
+    }
+    return a;
+  }
+}
@@ -0,0 +1,783 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.hbase.util.ReflectionUtils;
+import org.apache.hadoop.hbase.util.Threads;
+
+/**
+ * A MemStore that compacts in memory before flushing to disk.
+ * <p>
+ * Writes go to an active {@link CellSkipListSet} as in {@link DefaultMemStore}.
+ * Once the active set grows past a fraction of the region flush size
+ * (<code>hbase.hregion.compacting.memstore.flush.factor</code>), it is pushed
+ * into a pipeline of {@link ImmutableSegment}s and a background task merges
+ * the whole pipeline into a single flat {@link CellArraySet}. The merge runs
+ * the cells through a {@link StoreScanner} in
+ * {@link ScanType#COMPACT_RETAIN_DELETES} mode, exactly like a flush does, so
+ * versions beyond the family's max versions, expired cells and puts masked by
+ * deletes are dropped while delete markers are kept.
+ * <p>
+ * Heap freed by the merge is handed back to the region through the size delta
+ * returned by the next write, so the region only flushes to disk once the
+ * compacted pipeline fills the flush budget. On {@link #snapshot()} the active
+ * set and the pipeline all become the snapshot and any in-flight merge is
+ * discarded.
+ * <p>
+ * Enable per table or per family by setting
+ * <code>hbase.regionserver.memstore.class</code> to this class.
+ * <p>
+ * Like {@link DefaultMemStore} the MemStore functions are called under the
+ * {@link HStore} locks. Writers can run concurrently under the store read
+ * lock, so switching the active set and installing a merged pipeline is
+ * additionally guarded by a lock local to this class.
+ */
+@InterfaceAudience.Private
+public class CompactingMemStore implements MemStore {
+  private static final Log LOG = LogFactory.getLog(CompactingMemStore.class);
+
+  /** Fraction of the region flush size at which the active set is flushed in memory */
+  public static final String IN_MEMORY_FLUSH_FACTOR_KEY =
+      "hbase.hregion.compacting.memstore.flush.factor";
+  static final double IN_MEMORY_FLUSH_FACTOR_DEFAULT = 0.25;
+  /** Number of threads, shared by all compacting memstores, that merge pipelines */
+  public static final String IN_MEMORY_COMPACTION_THREADS_KEY =
+      "hbase.hregion.compacting.memstore.threads";
+  static final int IN_MEMORY_COMPACTION_THREADS_DEFAULT = 1;
+
+  private static ThreadPoolExecutor compactionPool;
+
+  private final Configuration conf;
+  private final KeyValue.KVComparator comparator;
+  // Store we belong to; gives us the ScanInfo and the smallest read point. Null in tests.
+  private final Store store;
+  private final long inMemoryFlushSize;
+
+  // Writers share the read lock; switching the active set and replacing the
+  // pipeline take the write lock.
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  volatile CellSkipListSet active;
+  volatile TimeRangeTracker activeTimeRangeTracker;
+  volatile MemStoreLAB activeAllocator;
+  final AtomicLong activeSize;
+
+  // Immutable segments, newest first. Never modified in place, only replaced.
+  volatile List<ImmutableSegment> pipeline = Collections.emptyList();
+  private volatile long pipelineSize;
+  // Bumped every time the pipeline is replaced; a merge only installs if unchanged
+  private long pipelineVersion;
+
+  // Heap freed by merges that the region has not been told about yet
+  private final AtomicLong reclaimedSize = new AtomicLong();
+  private final AtomicBoolean inMemoryFlushInProgress = new AtomicBoolean(false);
+
+  volatile List<ImmutableSegment> snapshot = Collections.emptyList();
+  private volatile long snapshotSize;
+  private volatile long snapshotId;
+
+  // Used to track when to flush
+  volatile long timeOfOldestEdit = Long.MAX_VALUE;
+
+  /**
+   * Constructor used when the memstore is not attached to a store, in tests.
+   * Pipelines are then merged without dropping any versions.
+   */
+  public CompactingMemStore(final Configuration conf, final KeyValue.KVComparator c) {
+    this(conf, c, null);
+  }
+
+  /**
+   * @param conf configuration
+   * @param c comparator
+   * @param store the store this memstore belongs to
+   */
+  public CompactingMemStore(final Configuration conf, final KeyValue.KVComparator c,
+      final Store store) {
+    this.conf = conf;
+    this.comparator = c;
+    this.store = store;
+    long flushSize = store != null ? store.getMemstoreFlushSize()
+        : conf.getLong(HConstants.HREGION_MEMSTORE_FLUSH_SIZE,
+            HTableDescriptor.DEFAULT_MEMSTORE_FLUSH_SIZE);
+    this.inMemoryFlushSize = (long) (flushSize
+        * conf.getDouble(IN_MEMORY_FLUSH_FACTOR_KEY, IN_MEMORY_FLUSH_FACTOR_DEFAULT));
+    this.active = new CellSkipListSet(c);
+    this.activeTimeRangeTracker = new TimeRangeTracker();
+    this.activeAllocator = createAllocator();
+    this.activeSize = new AtomicLong(0);
+  }
+
+  private MemStoreLAB createAllocator() {
+    if (conf.getBoolean(DefaultMemStore.USEMSLAB_KEY, true)) {
+      String className = conf.get(DefaultMemStore.MSLAB_CLASS_NAME,
+          HeapMemStoreLAB.class.getName());
+      return ReflectionUtils.instantiateWithCustomCtor(className,
+          new Class[] { Configuration.class }, new Object[] { conf });
+    }
+    return null;
+  }
+
+  private static synchronized ThreadPoolExecutor getCompactionPool(Configuration conf) {
+    if (compactionPool == null) {
+      compactionPool = Threads.getBoundedCachedThreadPool(
+          conf.getInt(IN_MEMORY_COMPACTION_THREADS_KEY, IN_MEMORY_COMPACTION_THREADS_DEFAULT),
+          60, TimeUnit.SECONDS, Threads.newDaemonThreadFactory("MemStoreInMemoryCompactor"));
+    }
+    return compactionPool;
+  }
+
+  /**
+   * Must be called with the write lock held.
+   */
+  private void resetActive() {
+    this.active = new CellSkipListSet(this.comparator);
+    this.activeTimeRangeTracker = new TimeRangeTracker();
+    this.activeAllocator = createAllocator();
+    this.activeSize.set(0);
+  }
+
+  /**
+   * Creates a snapshot of the current memstore: the active set and every segment
+   * in the pipeline. Snapshot must be cleared by call to {@link #clearSnapshot(long)}.
+   */
+  @Override
+  public MemStoreSnapshot snapshot() {
+    lock.writeLock().lock();
+    try {
+      // If snapshot currently has entries, then flusher failed or didn't call
+      // cleanup.  Log a warning.
+      if (!this.snapshot.isEmpty()) {
+        LOG.warn("Snapshot called again without clearing previous. " +
+            "Doing nothing. Another ongoing flush or did we fail last attempt?");
+      } else {
+        this.snapshotId = EnvironmentEdgeManager.currentTime();
+        // Hand back to the region what it still counts for merged segments, so the
+        // flush subtracts exactly what the region accounted for this store.
+        this.snapshotSize = keySize() + this.reclaimedSize.getAndSet(0);
+        List<ImmutableSegment> segments =
+            new ArrayList<ImmutableSegment>(this.pipeline.size() + 1);
+        if (!this.active.isEmpty()) {
+          segments.add(ImmutableSegment.wrap(this.active, this.activeTimeRangeTracker,
+              this.activeSize.get(), this.activeAllocator));
+          resetActive();
+        }
+        segments.addAll(this.pipeline);
+        if (!segments.isEmpty()) {
+          this.snapshot = segments;
+          this.pipeline = Collections.emptyList();
+          this.pipelineSize = 0;
+          // Any merge still running is for data that is now being flushed
+          this.pipelineVersion++;
+          timeOfOldestEdit = Long.MAX_VALUE;
+        }
+      }
+      return new MemStoreSnapshot(this.snapshotId, cellsCount(this.snapshot), this.snapshotSize,
+          timeRangeOf(this.snapshot), snapshotScanner(this.snapshot));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private static int cellsCount(List<ImmutableSegment> segments) {
+    int count = 0;
+    for (ImmutableSegment segment : segments) {
+      count += segment.getCellsCount();
+    }
+    return count;
+  }
+
+  private static TimeRangeTracker timeRangeOf(List<ImmutableSegment> segments) {
+    TimeRangeTracker trt = new TimeRangeTracker();
+    for (ImmutableSegment segment : segments) {
+      TimeRangeTracker segmentTrt = segment.getTimeRangeTracker();
+      if (segmentTrt.getMaximumTimestamp() >= 0) {
+        trt.includeTimestamp(segmentTrt.getMinimumTimestamp());
+        trt.includeTimestamp(segmentTrt.getMaximumTimestamp());
+      }
+    }
+    return trt;
+  }
+
+  /*
+   * The flusher takes a single scanner; merge the segments with a heap if there is
+   * more than one. Like the snapshot scanner of DefaultMemStore it sees every cell
+   * and does not pin the allocators, the snapshot keeps them until cleared.
+   */
+  private KeyValueScanner snapshotScanner(List<ImmutableSegment> segments) {
+    List<KeyValueScanner> scanners = new ArrayList<KeyValueScanner>(segments.size());
+    for (ImmutableSegment segment : segments) {
+      SegmentScanner scanner = new SegmentScanner(segment.getCellSet(), this.comparator,
+          segment.getTimeRangeTracker(), Long.MAX_VALUE,
+          Collections.<MemStoreLAB> emptyList());
+      scanner.seek(KeyValue.LOWESTKEY);
+      scanners.add(scanner);
+    }
+    if (scanners.size() == 1) {
+      return scanners.get(0);
+    }
+    try {
+      return new KeyValueHeap(scanners, this.comparator);
+    } catch (IOException e) {
+      // Memstore scanners do no IO
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * The passed snapshot was successfully persisted; it can be let go.
+   * @param id Id of the snapshot to clean out.
+   * @throws UnexpectedStateException
+   * @see #snapshot()
+   */
+  @Override
+  public void clearSnapshot(long id) throws UnexpectedStateException {
+    if (this.snapshotId != id) {
+      throw new UnexpectedStateException("Current snapshot id is " + this.snapshotId + ",passed "
+          + id);
+    }
+    List<ImmutableSegment> segments = this.snapshot;
+    this.snapshot = Collections.emptyList();
+    this.snapshotSize = 0;
+    this.snapshotId = -1;
+    for (ImmutableSegment segment : segments) {
+      segment.close();
+    }
+  }
+
+  @Override
+  public long getFlushableSize() {
+    lock.readLock().lock();
+    try {
+      return this.snapshotSize > 0 ? this.snapshotSize : keySize() + this.reclaimedSize.get();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Write an update
+   * @param cell
+   * @return approximate size of the passed KV and newly added KV which maybe different than the
+   *         passed-in KV. Also carries any heap freed by in-memory compaction since the last
+   *         update, so it can be negative.
+   */
+  @Override
+  public Pair<Long, Cell> add(Cell cell) {
+    Pair<Long, Cell> ret;
+    lock.readLock().lock();
+    try {
+      Cell toAdd = maybeCloneWithAllocator(cell);
+      ret = new Pair<Long, Cell>(internalAdd(toAdd) - this.reclaimedSize.getAndSet(0), toAdd);
+    } finally {
+      lock.readLock().unlock();
+    }
+    maybeFlushInMemory();
+    return ret;
+  }
+
+  /**
+   * Write the updates under one take of the lock.
+   * @param cells
+   * @return approximate size of the passed cells and those newly added. Also carries any heap
+   *         freed by in-memory compaction since the last update, so it can be negative.
+   */
+  @Override
+  public long add(Iterable<Cell> cells) {
+    long size = 0;
+    lock.readLock().lock();
+    try {
+      for (Cell cell : cells) {
+        size += internalAdd(maybeCloneWithAllocator(cell));
+      }
+      size -= this.reclaimedSize.getAndSet(0);
+    } finally {
+      lock.readLock().unlock();
+    }
+    maybeFlushInMemory();
+    return size;
+  }
+
+  @Override
+  public long timeOfOldestEdit() {
+    return timeOfOldestEdit;
+  }
+
+  void setOldestEditTimeToNow() {
+    if (timeOfOldestEdit == Long.MAX_VALUE) {
+      timeOfOldestEdit = EnvironmentEdgeManager.currentTime();
+    }
+  }
+
+  /**
+   * Callers must hold the read lock.
+   */
+  private long internalAdd(final Cell toAdd) {
+    long s = DefaultMemStore.heapSizeChange(toAdd, this.active.add(toAdd));
+    setOldestEditTimeToNow();
+    this.activeTimeRangeTracker.includeTimestamp(toAdd);
+    this.activeSize.addAndGet(s);
+    return s;
+  }
+
+  private Cell maybeCloneWithAllocator(Cell cell) {
+    MemStoreLAB allocator = this.activeAllocator;
+    if (allocator == null) {
+      return cell;
+    }
+
+    Cell copy = allocator.copyCellInto(cell);
+    if (copy == null) {
+      // The allocation was too large, allocator decided
+      // not to do anything with it.
+      return cell;
+    }
+    return copy;
+  }
+
+  /**
+   * Remove n key from the memstore. Only cells that have the same key and the
+   * same memstoreTS are removed. It is ok to not update timeRangeTracker
+   * in this call. Removing from a flat segment copies the segment; this is only
+   * called for error recovery.
+   * @param cell
+   */
+  @Override
+  public void rollback(Cell cell) {
+    lock.writeLock().lock();
+    try {
+      // Snapshot and pipeline are not accounted in this.activeSize; see DefaultMemStore#rollback
+      this.snapshotSize -= rollback(this.snapshot, cell, true);
+      this.pipelineSize -= rollback(this.pipeline, cell, false);
+      Cell found = this.active.get(cell);
+      if (found != null && found.getSequenceId() == cell.getSequenceId()) {
+        this.active.remove(cell);
+        setOldestEditTimeToNow();
+        this.activeSize.addAndGet(-DefaultMemStore.heapSizeChange(cell, true));
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * Must be called with the write lock held.
+   * @return Heap freed by removing the cell from the passed segments
+   */
+  private long rollback(List<ImmutableSegment> segments, Cell cell, boolean isSnapshot) {
+    long freed = 0;
+    List<ImmutableSegment> result = null;
+    for (int i = 0; i < segments.size(); i++) {
+      ImmutableSegment segment = segments.get(i);
+      Cell found;
+      if (segment.getCellSet() instanceof CellSkipListSet) {
+        CellSkipListSet set = (CellSkipListSet) segment.getCellSet();
+        found = set.get(cell);
+        if (found != null && found.getSequenceId() == cell.getSequenceId()) {
+          set.remove(cell);
+          freed += DefaultMemStore.heapSizeChange(cell, true);
+        }
+      } else {
+        found = ((CellArraySet) segment.getCellSet()).get(cell);
+        if (found != null && found.getSequenceId() == cell.getSequenceId()) {
+          ImmutableSegment replacement = segment.without(this.comparator, cell);
+          freed += segment.getSize() - replacement.getSize();
+          if (result == null) {
+            result = new ArrayList<ImmutableSegment>(segments);
+          }
+          result.set(i, replacement);
+        }
+      }
+    }
+    if (result != null) {
+      if (isSnapshot) {
+        this.snapshot = result;
+      } else {
+        this.pipeline = Collections.unmodifiableList(result);
+        this.pipelineVersion++;
+      }
+    }
+    return freed;
+  }
+
+  /**
+   * Write a delete
+   * @param deleteCell
+   * @return approximate size of the passed key and value.
+   */
+  @Override
+  public long delete(Cell deleteCell) {
+    long s;
+    lock.readLock().lock();
+    try {
+      Cell toAdd = maybeCloneWithAllocator(deleteCell);
+      s = internalAdd(toAdd) - this.reclaimedSize.getAndSet(0);
+    } finally {
+      lock.readLock().unlock();
+    }
+    maybeFlushInMemory();
+    return s;
+  }
+
+  /**
+   * @param state column/delete tracking state
+   */
+  @Override
+  public void getRowKeyAtOrBefore(final GetClosestRowBeforeTracker state) {
+    DefaultMemStore.getRowKeyAtOrBefore(this.active, state);
+    for (ImmutableSegment segment : this.pipeline) {
+      DefaultMemStore.getRowKeyAtOrBefore(segment.getCellSet(), state);
+    }
+    for (ImmutableSegment segment : this.snapshot) {
+      DefaultMemStore.getRowKeyAtOrBefore(segment.getCellSet(), state);
+    }
+  }
+
+  /**
+   * Only used by tests. See {@link DefaultMemStore#updateColumnValue}.
+   */
+  @Override
+  public long updateColumnValue(byte[] row, byte[] family, byte[] qualifier, long newValue,
+      long now) {
+    Cell firstCell = KeyValueUtil.createFirstOnRow(row, family, qualifier);
+    // Is there a Cell in an immutable segment with the same TS? If so, upgrade the timestamp a bit.
+    List<ImmutableSegment> immutables = new ArrayList<ImmutableSegment>(this.pipeline);
+    immutables.addAll(this.snapshot);
+    for (ImmutableSegment segment : immutables) {
+      SortedSet<Cell> snSs = segment.getCellSet().tailSet(firstCell);
+      if (!snSs.isEmpty()) {
+        Cell snc = snSs.first();
+        if (CellUtil.matchingRow(snc, firstCell) && CellUtil.matchingQualifier(snc, firstCell)
+            && snc.getTimestamp() == now) {
+          now += 1;
+        }
+      }
+    }
+
+    // the new ts MUST be at least 'now' and at least the most recent ts of the active set
+    for (Cell cell : this.active.tailSet(firstCell)) {
+      if (!CellUtil.matchingColumn(cell, family, qualifier)
+          || !CellUtil.matchingRow(cell, firstCell)) {
+        break;
+      }
+      if (cell.getTypeByte() == KeyValue.Type.Put.getCode() && cell.getTimestamp() > now) {
+        now = cell.getTimestamp();
+      }
+    }
+
+    List<Cell> cells = new ArrayList<Cell>(1);
+    cells.add(new KeyValue(row, family, qualifier, now, Bytes.toBytes(newValue)));
+    return upsert(cells, 1L);
+  }
+
+  /**
+   * Update or insert the specified cells. Older versions are only removed from the
+   * active set; see {@link DefaultMemStore#upsert(Iterable, long)}.
+   * @param cells
+   * @param readpoint readpoint below which we can safely remove duplicate KVs
+   * @return change in memstore size
+   */
+  @Override
+  public long upsert(Iterable<Cell> cells, long readpoint) {
+    long size = 0;
+    lock.readLock().lock();
+    try {
+      for (Cell cell : cells) {
+        size += upsert(cell, readpoint);
+      }
+      size -= this.reclaimedSize.getAndSet(0);
+    } finally {
+      lock.readLock().unlock();
+    }
+    maybeFlushInMemory();
+    return size;
+  }
+
+  /*
+   * Callers must hold the read lock. Does not clone into the MSLAB, see
+   * DefaultMemStore#upsert(Cell, long).
+   */
+  private long upsert(Cell cell, long readpoint) {
+    long addedSize = internalAdd(cell);
+
+    Cell firstCell = KeyValueUtil.createFirstOnRow(
+        cell.getRowArray(), cell.getRowOffset(), cell.getRowLength(),
+        cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength(),
+        cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+    Iterator<Cell> it = this.active.tailSet(firstCell).iterator();
+    // versions visible to oldest scanner
+    int versionsVisible = 0;
+    while (it.hasNext()) {
+      Cell cur = it.next();
+      if (cell == cur) {
+        // ignore the one just put in
+        continue;
+      }
+      // check that this is the row and column we are interested in, otherwise bail
+      if (CellUtil.matchingRow(cell, cur) && CellUtil.matchingQualifier(cell, cur)) {
+        // only remove Puts that concurrent scanners cannot possibly see
+        if (cur.getTypeByte() == KeyValue.Type.Put.getCode() &&
+            cur.getSequenceId() <= readpoint) {
+          if (versionsVisible >= 1) {
+            long delta = DefaultMemStore.heapSizeChange(cur, true);
+            addedSize -= delta;
+            this.activeSize.addAndGet(-delta);
+            it.remove();
+            setOldestEditTimeToNow();
+          } else {
+            versionsVisible++;
+          }
+        }
+      } else {
+        // past the row or column, done
+        break;
+      }
+    }
+    return addedSize;
+  }
+
+  /**
+   * @return scanners on the active set, the pipeline and the snapshot, newest first.
+   */
+  @Override
+  public List<KeyValueScanner> getScanners(long readPt) {
+    lock.readLock().lock();
+    try {
+      List<KeyValueScanner> scanners =
+          new ArrayList<KeyValueScanner>(1 + this.pipeline.size() + this.snapshot.size());
+      List<MemStoreLAB> activeAllocators = this.activeAllocator == null
+          ? Collections.<MemStoreLAB> emptyList()
+          : Collections.singletonList(this.activeAllocator);
+      scanners.add(new SegmentScanner(this.active, this.comparator, this.activeTimeRangeTracker,
+          readPt, activeAllocators));
+      for (ImmutableSegment segment : this.pipeline) {
+        scanners.add(segmentScanner(segment, readPt));
+      }
+      for (ImmutableSegment segment : this.snapshot) {
+        scanners.add(segmentScanner(segment, readPt));
+      }
+      return scanners;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private SegmentScanner segmentScanner(ImmutableSegment segment, long readPt) {
+    return new SegmentScanner(segment.getCellSet(), this.comparator,
+        segment.getTimeRangeTracker(), readPt, segment.getAllocators());
+  }
+
+  /*
+   * Pushes the active set into the pipeline once it is big enough. The switch
+   * itself needs the write lock, which a writer holding the read lock cannot
+   * take, so it is done together with the merge on the compaction pool.
+   */
+  private void maybeFlushInMemory() {
+    if (this.activeSize.get() < this.inMemoryFlushSize
+        || !this.inMemoryFlushInProgress.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      getCompactionPool(conf).execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            flushInMemory();
+          } catch (Throwable t) {
+            LOG.warn("In-memory flush of " + store + " failed; data stays in memory until "
+                + "the next flush", t);
+          } finally {
+            inMemoryFlushInProgress.set(false);
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      this.inMemoryFlushInProgress.set(false);
+      throw e;
+    }
+  }
+
+  /**
+   * Pushes the active set into the pipeline and merges the pipeline into one flat
+   * segment.
+   */
+  void flushInMemory() throws IOException {
+    List<ImmutableSegment> segments;
+    long version;
+    lock.writeLock().lock();
+    try {
+      if (!this.active.isEmpty()) {
+        ImmutableSegment segment = ImmutableSegment.wrap(this.active,
+            this.activeTimeRangeTracker, this.activeSize.get(), this.activeAllocator);
+        List<ImmutableSegment> newPipeline =
+            new ArrayList<ImmutableSegment>(this.pipeline.size() + 1);
+        newPipeline.add(segment);
+        newPipeline.addAll(this.pipeline);
+        this.pipeline = Collections.unmodifiableList(newPipeline);
+        this.pipelineSize += segment.getSize();
+        this.pipelineVersion++;
+        resetActive();
+      }
+      segments = this.pipeline;
+      version = this.pipelineVersion;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (segments.isEmpty() || (segments.size() == 1 && segments.get(0).getCellSet()
+        instanceof CellArraySet)) {
+      return;
+    }
+
+    ImmutableSegment compacted = ImmutableSegment.flat(this.comparator,
+        compact(segments), ImmutableSegment.allocatorsOf(segments));
+
+    lock.writeLock().lock();
+    try {
+      if (version != this.pipelineVersion) {
+        // Snapshot or rollback got in between; the merge is stale
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Discarding in-memory compaction of " + segments.size()
+              + " segments in " + store + "; pipeline changed");
+        }
+        return;
+      }
+      long freed = this.pipelineSize - compacted.getSize();
+      this.pipeline = Collections.singletonList(compacted);
+      this.pipelineSize = compacted.getSize();
+      this.pipelineVersion++;
+      this.reclaimedSize.addAndGet(freed);
+      if (LOG.isTraceEnabled()) {
+        LOG.trace("Compacted " + segments.size() + " segments in " + store + " into "
+            + compacted.getCellsCount() + " cells, freed " + freed + " bytes");
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * @return The cells of the passed segments that a flush would write, in order
+   */
+  private List<Cell> compact(List<ImmutableSegment> segments) throws IOException {
+    List<KeyValueScanner> scanners = new ArrayList<KeyValueScanner>(segments.size());
+    int count = 0;
+    for (ImmutableSegment segment : segments) {
+      // Every cell, committed or not, must survive the merge
+      scanners.add(new SegmentScanner(segment.getCellSet(), this.comparator,
+          segment.getTimeRangeTracker(), Long.MAX_VALUE, Collections.<MemStoreLAB> emptyList()));
+      count += segment.getCellsCount();
+    }
+    List<Cell> cells = new ArrayList<Cell>(count);
+    if (store == null) {
+      for (ImmutableSegment segment : segments) {
+        cells.addAll(segment.getCellSet());
+      }
+      Collections.sort(cells, this.comparator);
+      return cells;
+    }
+
+    Scan scan = new Scan();
+    scan.setMaxVersions(store.getScanInfo().getMaxVersions());
+    InternalScanner scanner = new StoreScanner(store, store.getScanInfo(), scan, scanners,
+        ScanType.COMPACT_RETAIN_DELETES, store.getSmallestReadPoint(),
+        HConstants.OLDEST_TIMESTAMP);
+    try {
+      int compactionKVMax =
+          conf.getInt(HConstants.COMPACTION_KV_MAX, HConstants.COMPACTION_KV_MAX_DEFAULT);
+      List<Cell> kvs = new ArrayList<Cell>();
+      boolean hasMore;
+      do {
+        hasMore = scanner.next(kvs, compactionKVMax);
+        cells.addAll(kvs);
+        kvs.clear();
+      } while (hasMore);
+    } finally {
+      scanner.close();
+    }
+    return cells;
+  }
+
+  public final static long FIXED_OVERHEAD = ClassSize.align(
+      ClassSize.OBJECT + (12 * ClassSize.REFERENCE) + (6 * Bytes.SIZEOF_LONG));
+
+  public final static long DEEP_OVERHEAD = ClassSize.align(FIXED_OVERHEAD +
+      (3 * ClassSize.ATOMIC_LONG) + ClassSize.ATOMIC_BOOLEAN + ClassSize.TIMERANGE_TRACKER +
+      ClassSize.CELL_SKIPLIST_SET + ClassSize.CONCURRENT_SKIPLISTMAP +
+      ClassSize.REENTRANT_LOCK);
+
+  private long keySize() {
+    return this.activeSize.get() + this.pipelineSize;
+  }
+
+  /**
+   * Get the entire heap usage for this MemStore not including keys in the
+   * snapshot.
+   */
+  @Override
+  public long heapSize() {
+    return DEEP_OVERHEAD + keySize();
+  }
+
+  @Override
+  public long size() {
+    return heapSize();
+  }
+
+  @Override
+  public long offHeapSize() {
+    long size = 0;
+    MemStoreLAB allocator = this.activeAllocator;
+    if (allocator != null) {
+      size += allocator.getOffHeapSize();
+    }
+    for (MemStoreLAB segmentAllocator : ImmutableSegment.allocatorsOf(this.pipeline)) {
+      size += segmentAllocator.getOffHeapSize();
+    }
+    for (MemStoreLAB segmentAllocator : ImmutableSegment.allocatorsOf(this.snapshot)) {
+      size += segmentAllocator.getOffHeapSize();
+    }
+    return size;
+  }
+}
@@ -40,10 +40,8 @@ import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.KeyValueUtil;
 import org.apache.hadoop.hbase.client.Scan;
-import org.apache.hadoop.hbase.util.ByteRange;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.ClassSize;
-import org.apache.hadoop.hbase.util.CollectionBackedScanner;
 import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
 import org.apache.hadoop.hbase.util.Pair;
 import org.apache.hadoop.hbase.util.ReflectionUtils;
@@ -81,8 +79,9 @@ public class DefaultMemStore implements MemStore {
   // reference passed.
   volatile CellSkipListSet cellSet;
 
-  // Snapshot of memstore.  Made for flusher.
-  volatile CellSkipListSet snapshot;
+  // Snapshot of memstore.  Made for flusher.  Starts out as the former cellSet
+  // and is replaced by a flat CellArraySet once the flusher starts reading it.
+  volatile NavigableSet<Cell> snapshot;
 
   final KeyValue.KVComparator comparator;
 
@@ -171,7 +170,27 @@ public class DefaultMemStore implements MemStore {
       }
     }
     return new MemStoreSnapshot(this.snapshotId, snapshot.size(), this.snapshotSize,
-        this.snapshotTimeRangeTracker, new CollectionBackedScanner(snapshot, this.comparator));
+        this.snapshotTimeRangeTracker, new SnapshotScanner(this.snapshotId));
+  }
+
+  /**
+   * Replaces the snapshot skip list with a flat {@link CellArraySet}, dropping the
+   * per-cell skip list nodes. Scanners already open on the skip list keep using it.
+   * <p>
+   * Called when the flusher first reads the snapshot. By then the flusher has
+   * waited for in-flight transactions, so no rollback changes the snapshot any
+   * more, and the copy does not happen under the region update lock.
+   * @param id Id of the snapshot to flatten
+   * @return the snapshot, flat unless it was replaced in the meantime
+   */
+  NavigableSet<Cell> flattenSnapshot(long id) {
+    NavigableSet<Cell> current = this.snapshot;
+    if (id != this.snapshotId || current instanceof CellArraySet) {
+      return current;
+    }
+    CellArraySet flat = CellArraySet.copyOf(this.comparator, current);
+    this.snapshot = flat;
+    return flat;
   }
 
   /**
@@ -221,6 +240,23 @@ public class DefaultMemStore implements MemStore {
     return new Pair<Long, Cell>(internalAdd(toAdd), toAdd);
   }
 
+  /**
+   * Write the updates. The size is brought up to date once for all of them.
+   * @param cells
+   * @return approximate size of the passed cells & those newly added
+   */
+  @Override
+  public long add(Iterable<Cell> cells) {
+    long size = 0;
+    for (Cell cell : cells) {
+      Cell toAdd = maybeCloneWithAllocator(cell);
+      size += heapSizeChange(toAdd, addToCellSet(toAdd));
+      timeRangeTracker.includeTimestamp(toAdd);
+    }
+    this.size.addAndGet(size);
+    return size;
+  }
+
   @Override
   public long timeOfOldestEdit() {
     return timeOfOldestEdit;
@@ -262,18 +298,13 @@ public class DefaultMemStore implements MemStore {
       return cell;
     }
 
-    int len = KeyValueUtil.length(cell);
-    ByteRange alloc = allocator.allocateBytes(len);
-    if (alloc == null) {
+    Cell copy = allocator.copyCellInto(cell);
+    if (copy == null) {
       // The allocation was too large, allocator decided
       // not to do anything with it.
       return cell;
     }
-    assert alloc.getBytes() != null;
-    KeyValueUtil.appendToByteArray(cell, alloc.getBytes(), alloc.getOffset());
-    KeyValue newKv = new KeyValue(alloc.getBytes(), alloc.getOffset(), len);
-    newKv.setSequenceId(cell.getSequenceId());
-    return newKv;
+    return copy;
   }
 
   /**
@@ -291,9 +322,16 @@ public class DefaultMemStore implements MemStore {
     // not the snapshot. The flush of this snapshot to disk has not
     // yet started because Store.flush() waits for all rwcc transactions to
     // commit before starting the flush to disk.
-    Cell found = this.snapshot.get(cell);
+    NavigableSet<Cell> snapshotCells = this.snapshot;
+    Cell found = snapshotCells instanceof CellArraySet ? ((CellArraySet) snapshotCells).get(cell)
+        : ((CellSkipListSet) snapshotCells).get(cell);
     if (found != null && found.getSequenceId() == cell.getSequenceId()) {
-      this.snapshot.remove(cell);
+      if (snapshotCells instanceof CellArraySet) {
+        // Flat snapshots are immutable
+        this.snapshot = ((CellArraySet) snapshotCells).without(cell);
+      } else {
+        snapshotCells.remove(cell);
+      }
       long sz = heapSizeChange(cell, true);
       this.snapshotSize -= sz;
     }
@@ -380,7 +418,7 @@ public class DefaultMemStore implements MemStore {
    * @param set
    * @param state Accumulates deletes and candidates.
    */
-  private void getRowKeyAtOrBefore(final NavigableSet<Cell> set,
+  static void getRowKeyAtOrBefore(final NavigableSet<Cell> set,
       final GetClosestRowBeforeTracker state) {
     if (set.isEmpty()) {
       return;
@@ -401,7 +439,7 @@ public class DefaultMemStore implements MemStore {
    * @param state
    * @return True if we found a candidate walking this row.
    */
-  private boolean walkForwardInSingleRow(final SortedSet<Cell> set,
+  private static boolean walkForwardInSingleRow(final NavigableSet<Cell> set,
       final Cell firstOnRow, final GetClosestRowBeforeTracker state) {
     boolean foundCandidate = false;
     SortedSet<Cell> tail = set.tailSet(firstOnRow);
@@ -411,7 +449,7 @@ public class DefaultMemStore implements MemStore {
       // Did we go beyond the target row? If so break.
       if (state.isTooFar(kv, firstOnRow)) break;
       if (state.isExpired(kv)) {
-        i.remove();
+        removeExpired(set, i);
         continue;
       }
       // If we added something, this row is a contender. break.
@@ -429,7 +467,7 @@ public class DefaultMemStore implements MemStore {
    * @param set
    * @param state
    */
-  private void getRowKeyBefore(NavigableSet<Cell> set,
+  private static void getRowKeyBefore(NavigableSet<Cell> set,
       final GetClosestRowBeforeTracker state) {
     Cell firstOnRow = state.getTargetKey();
     for (Member p = memberOfPreviousRow(set, state, firstOnRow);
@@ -625,14 +663,14 @@ public class DefaultMemStore implements MemStore {
    * member in.
    * @return Null or member of row previous to <code>firstOnRow</code>
    */
-  private Member memberOfPreviousRow(NavigableSet<Cell> set,
+  private static Member memberOfPreviousRow(NavigableSet<Cell> set,
       final GetClosestRowBeforeTracker state, final Cell firstOnRow) {
     NavigableSet<Cell> head = set.headSet(firstOnRow, false);
     if (head.isEmpty()) return null;
     for (Iterator<Cell> i = head.descendingIterator(); i.hasNext();) {
       Cell found = i.next();
       if (state.isExpired(found)) {
-        i.remove();
+        removeExpired(head, i);
         continue;
       }
       return new Member(head, found);
@@ -640,6 +678,16 @@ public class DefaultMemStore implements MemStore {
     return null;
   }
 
+  /*
+   * Expired cells are dropped from mutable sets as we walk them. Flat
+   * segments are immutable; there we just step over them.
+   */
+  private static void removeExpired(final NavigableSet<Cell> set, final Iterator<Cell> i) {
+    if (!(set instanceof CellArraySet)) {
+      i.remove();
+    }
+  }
+
   /**
    * @return scanner on memstore and snapshot in this order.
    */
@@ -682,7 +730,7 @@ public class DefaultMemStore implements MemStore {
 
     // The cellSet and snapshot at the time of creating this scanner
     private CellSkipListSet cellSetAtCreation;
-    private CellSkipListSet snapshotAtCreation;
+    private NavigableSet<Cell> snapshotAtCreation;
 
     // the pre-calculated Cell to be returned by peek() or next()
     private Cell theNext;
@@ -999,6 +1047,62 @@ public class DefaultMemStore implements MemStore {
     }
   }
 
+  /*
+   * Scanner over the snapshot handed to the flusher. Flattens the snapshot on
+   * first use, see #flattenSnapshot(long), then seeks by binary search on the
+   * flat array.
+   */
+  private class SnapshotScanner extends NonReversedNonLazyKeyValueScanner {
+    private final long id;
+    private SegmentScanner delegatee;
+
+    SnapshotScanner(long id) {
+      this.id = id;
+    }
+
+    private SegmentScanner getDelegatee() {
+      if (this.delegatee == null) {
+        // The flush has waited for all transactions on the snapshot; read everything
+        this.delegatee = new SegmentScanner(flattenSnapshot(this.id), comparator,
+            snapshotTimeRangeTracker, Long.MAX_VALUE, Collections.<MemStoreLAB> emptyList());
+        this.delegatee.seek(KeyValue.LOWESTKEY);
+      }
+      return this.delegatee;
+    }
+
+    @Override
+    public Cell peek() {
+      return getDelegatee().peek();
+    }
+
+    @Override
+    public Cell next() {
+      return getDelegatee().next();
+    }
+
+    @Override
+    public boolean seek(Cell key) {
+      return getDelegatee().seek(key);
+    }
+
+    @Override
+    public boolean reseek(Cell key) {
+      return getDelegatee().reseek(key);
+    }
+
+    @Override
+    public long getSequenceID() {
+      return 0;
+    }
+
+    @Override
+    public void close() {
+      if (this.delegatee != null) {
+        this.delegatee.close();
+      }
+    }
+  }
+
   public final static long FIXED_OVERHEAD = ClassSize.align(
       ClassSize.OBJECT + (9 * ClassSize.REFERENCE) + (3 * Bytes.SIZEOF_LONG));
 
@@ -1035,6 +1139,20 @@ public class DefaultMemStore implements MemStore {
   public long size() {
     return heapSize();
   }
+
+  @Override
+  public long offHeapSize() {
+    long size = 0;
+    MemStoreLAB allocator = this.allocator;
+    if (allocator != null) {
+      size += allocator.getOffHeapSize();
+    }
+    MemStoreLAB snapshotAllocator = this.snapshotAllocator;
+    if (snapshotAllocator != null) {
+      size += snapshotAllocator.getOffHeapSize();
+    }
+    return size;
+  }
  
   /**
    * Code to help figure if our approximation of object heap sizes is close
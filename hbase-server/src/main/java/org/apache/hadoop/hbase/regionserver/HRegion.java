@@ -118,6 +118,7 @@ import org.apache.hadoop.hbase.io.HeapSize;
 import org.apache.hadoop.hbase.io.TimeRange;
 import org.apache.hadoop.hbase.io.hfile.BlockCache;
 import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.PrefetchExecutor;
 import org.apache.hadoop.hbase.ipc.CallerDisconnectedException;
 import org.apache.hadoop.hbase.ipc.RpcCallContext;
 import org.apache.hadoop.hbase.ipc.RpcServer;
@@ -220,6 +221,15 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
   public static final String LOAD_CFS_ON_DEMAND_CONFIG_KEY =
       "hbase.hregion.scan.loadColumnFamiliesOnDemand";
 
+  /** Conf key for the most recovered edits files read ahead of their replay at the same time */
+  public static final String RECOVERED_EDITS_REPLAY_THREADS =
+      "hbase.hregion.recovered.edits.replay.threads";
+  static final int DEFAULT_RECOVERED_EDITS_REPLAY_THREADS = 3;
+  /** Conf key for the most entries of a recovered edits file read ahead of their replay */
+  public static final String RECOVERED_EDITS_REPLAY_QUEUE_SIZE =
+      "hbase.hregion.recovered.edits.replay.queue.size";
+  static final int DEFAULT_RECOVERED_EDITS_REPLAY_QUEUE_SIZE = 1000;
+
   /**
    * This is the global default value for durability. All tables/mutations not
    * defining a durability or using USE_DEFAULT will default to this value.
@@ -373,6 +383,8 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
 
   // when a region is in recovering state, it can only accept writes not reads
   private volatile boolean isRecovering = false;
+  // Edits replayed to us while recovering, so that those sent again are not applied twice
+  private final ReplayedSequenceIds replayedSequenceIds = new ReplayedSequenceIds();
 
   private volatile Optional<ConfigurationManager> configurationManager;
 
@@ -1017,6 +1029,18 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
     return memstoreSize;
   }
 
+  /**
+   * @return the off heap memory held by the memstores of this region, which
+   *         {@link #getMemstoreSize()} does not count
+   */
+  public long getMemstoreOffHeapSize() {
+    long size = 0;
+    for (Store store : this.stores.values()) {
+      size += store.getMemStoreOffHeapSize();
+    }
+    return size;
+  }
+
   /**
    * Increase the size of mem store in this region and the size of global mem
    * store
@@ -1075,11 +1099,30 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
     boolean wasRecovering = this.isRecovering;
     this.isRecovering = newState;
     if (wasRecovering && !isRecovering) {
+      this.replayedSequenceIds.clear();
       // Call only when wal replay is over.
       coprocessorHost.postLogReplay();
     }
   }
 
+  /**
+   * @param replaySeqId Sequence id of a WAL edit being replayed
+   * @return True if the edit was replayed to this region already since it started recovering
+   */
+  boolean isReplayed(final long replaySeqId) {
+    return this.isRecovering && this.replayedSequenceIds.contains(replaySeqId);
+  }
+
+  /**
+   * Notes that the edit with <code>replaySeqId</code> was replayed, and made durable, while this
+   * region is recovering. See {@link #isReplayed(long)}.
+   */
+  void markReplayed(final long replaySeqId) {
+    if (this.isRecovering) {
+      this.replayedSequenceIds.add(replaySeqId);
+    }
+  }
+
   /**
    * @return True if current region is in recovering
    */
@@ -1358,6 +1401,8 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
       if ( this.metricsRegionWrapper != null) {
         Closeables.closeQuietly(this.metricsRegionWrapper);
       }
+      PrefetchExecutor.regionClosed(getRegionInfo().getEncodedName(), getReadRequestsCount(),
+          rsServices != null && (rsServices.isStopping() || rsServices.isStopped()));
       status.markComplete("Closed");
       LOG.info("Closed " + this);
       return result;
@@ -3275,7 +3320,7 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
     // If catalog region, do not impose resource constraints or block updates.
     if (this.getRegionInfo().isMetaRegion()) return;
 
-    if (this.memstoreSize.get() > this.blockingMemStoreSize) {
+    if (this.memstoreSize.get() + getMemstoreOffHeapSize() > this.blockingMemStoreSize) {
       blockedRequestsCount.increment();
       requestFlush();
       throw new RegionTooBusyException("Above memstore limit, " +
@@ -3284,6 +3329,7 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
           ", server=" + (this.getRegionServerServices() == null ? "unknown" :
           this.getRegionServerServices().getServerName()) +
           ", memstoreSize=" + memstoreSize.get() +
+          ", memstoreOffHeapSize=" + getMemstoreOffHeapSize() +
           ", blockingMemStoreSize=" + blockingMemStoreSize);
     }
   }
@@ -3478,7 +3524,8 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
    * @return True if size is over the flush threshold
    */
   private boolean isFlushSize(final long size) {
-    return size > this.memstoreFlushSize;
+    // The off heap part of the memstores counts toward the flush size too
+    return size + getMemstoreOffHeapSize() > this.memstoreFlushSize;
   }
 
   /**
@@ -3536,6 +3583,7 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
 
     if (files == null || files.isEmpty()) return seqid;
 
+    List<Path> toReplay = new ArrayList<Path>(files.size());
     for (Path edits: files) {
       if (edits == null || !fs.exists(edits)) {
         LOG.warn("Null or non-existent edits file: " + edits);
@@ -3555,31 +3603,49 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
         }
         continue;
       }
+      toReplay.add(edits);
+    }
 
-      try {
-        // replay the edits. Replay can return -1 if everything is skipped, only update
-        // if seqId is greater
-        seqid = Math.max(seqid, replayRecoveredEdits(edits, maxSeqIdInStores, reporter));
-      } catch (IOException e) {
-        boolean skipErrors = conf.getBoolean(
-            HConstants.HREGION_EDITS_REPLAY_SKIP_ERRORS,
-            conf.getBoolean(
-                "hbase.skip.errors",
-                HConstants.DEFAULT_HREGION_EDITS_REPLAY_SKIP_ERRORS));
-        if (conf.get("hbase.skip.errors") != null) {
-          LOG.warn(
-              "The property 'hbase.skip.errors' has been deprecated. Please use " +
-              HConstants.HREGION_EDITS_REPLAY_SKIP_ERRORS + " instead.");
-        }
-        if (skipErrors) {
-          Path p = WALSplitter.moveAsideBadEditsFile(fs, edits);
-          LOG.error(HConstants.HREGION_EDITS_REPLAY_SKIP_ERRORS
-              + "=true so continuing. Renamed " + edits +
-              " as " + p, e);
-        } else {
-          throw e;
+    // Files are read and parsed in parallel but replayed one after the other, in sequence id
+    // order, so that a flush part way through never claims edits not yet replayed.
+    RecoveredEditsPrefetcher prefetcher = null;
+    if (!toReplay.isEmpty()) {
+      prefetcher = new RecoveredEditsPrefetcher(fs, toReplay, conf,
+          conf.getInt(RECOVERED_EDITS_REPLAY_THREADS, DEFAULT_RECOVERED_EDITS_REPLAY_THREADS),
+          conf.getInt(RECOVERED_EDITS_REPLAY_QUEUE_SIZE,
+              DEFAULT_RECOVERED_EDITS_REPLAY_QUEUE_SIZE),
+          "RecoveredEditsReader-" + this.getRegionInfo().getEncodedName());
+    }
+    try {
+      for (Path edits: toReplay) {
+        try {
+          // replay the edits. Replay can return -1 if everything is skipped, only update
+          // if seqId is greater
+          seqid = Math.max(seqid,
+              replayRecoveredEdits(edits, maxSeqIdInStores, reporter, prefetcher));
+        } catch (IOException e) {
+          boolean skipErrors = conf.getBoolean(
+              HConstants.HREGION_EDITS_REPLAY_SKIP_ERRORS,
+              conf.getBoolean(
+                  "hbase.skip.errors",
+                  HConstants.DEFAULT_HREGION_EDITS_REPLAY_SKIP_ERRORS));
+          if (conf.get("hbase.skip.errors") != null) {
+            LOG.warn(
+                "The property 'hbase.skip.errors' has been deprecated. Please use " +
+                HConstants.HREGION_EDITS_REPLAY_SKIP_ERRORS + " instead.");
+          }
+          if (skipErrors) {
+            Path p = WALSplitter.moveAsideBadEditsFile(fs, edits);
+            LOG.error(HConstants.HREGION_EDITS_REPLAY_SKIP_ERRORS
+                + "=true so continuing. Renamed " + edits +
+                " as " + p, e);
+          } else {
+            throw e;
+          }
         }
       }
+    } finally {
+      if (prefetcher != null) prefetcher.close();
     }
     // The edits size added into rsAccounting during this replaying will not
     // be required any more. So just clear it.
@@ -3619,12 +3685,14 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
    * @param maxSeqIdInStores Maximum sequenceid found in each store.  Edits in wal
    * must be larger than this to be replayed for each store.
    * @param reporter
+   * @param prefetcher Reading <code>edits</code> ahead of us
    * @return the sequence id of the last edit added to this region out of the
    * recovered edits log or <code>minSeqId</code> if nothing added from editlogs.
    * @throws IOException
    */
   private long replayRecoveredEdits(final Path edits,
-      Map<byte[], Long> maxSeqIdInStores, final CancelableProgressable reporter)
+      Map<byte[], Long> maxSeqIdInStores, final CancelableProgressable reporter,
+      final RecoveredEditsPrefetcher prefetcher)
     throws IOException {
     String msg = "Replaying edits from " + edits;
     LOG.info(msg);
@@ -3632,9 +3700,9 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
     FileSystem fs = this.fs.getFileSystem();
 
     status.setStatus("Opening recovered edits");
-    WAL.Reader reader = null;
+    RecoveredEditsPrefetcher.EntryReader reader = null;
     try {
-      reader = WALFactory.createReader(fs, edits, conf);
+      reader = prefetcher.getReader(edits);
       long currentEditSeqId = -1;
       long currentReplaySeqId = -1;
       long firstSeqIdInLog = -1;
@@ -3643,6 +3711,8 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
       long intervalEdits = 0;
       WAL.Entry entry;
       Store store = null;
+      // Cells of the current edit bound for store, added to it in one go
+      List<Cell> storeCells = new ArrayList<Cell>();
       boolean reported_once = false;
       ServerNonceManager ng = this.rsServices == null ? null : this.rsServices.getNonceManager();
 
@@ -3730,6 +3800,10 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
             }
             // Figure which store the edit is meant for.
             if (store == null || !CellUtil.matchingFamily(cell, store.getFamily().getName())) {
+              if (!storeCells.isEmpty()) {
+                flush |= restoreEdits(store, storeCells);
+                storeCells.clear();
+              }
               store = getStore(cell);
             }
             if (store == null) {
@@ -3746,13 +3820,16 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
               continue;
             }
             CellUtil.setSequenceId(cell, currentReplaySeqId);
-
-            // Once we are over the limit, restoreEdit will keep returning true to
-            // flush -- but don't flush until we've played all the kvs that make up
-            // the WALEdit.
-            flush |= restoreEdit(store, cell);
+            storeCells.add(cell);
             editsCount++;
           }
+          // Once we are over the limit, restoreEdits will keep returning true to
+          // flush -- but don't flush until we've played all the kvs that make up
+          // the WALEdit.
+          if (!storeCells.isEmpty()) {
+            flush |= restoreEdits(store, storeCells);
+            storeCells.clear();
+          }
           if (flush) {
             internalFlushcache(null, currentEditSeqId, status);
           }
@@ -3819,12 +3896,12 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
 
   /**
    * Used by tests
-   * @param s Store to add edit too.
-   * @param cell Cell to add.
+   * @param s Store to add edits too.
+   * @param cells Cells to add.
    * @return True if we should flush.
    */
-  protected boolean restoreEdit(final Store s, final Cell cell) {
-    long kvSize = s.add(cell).getFirst();
+  protected boolean restoreEdits(final Store s, final List<Cell> cells) {
+    long kvSize = s.add(cells);
     if (this.rsAccounting != null) {
       rsAccounting.addAndGetRegionReplayEditsSize(this.getRegionName(), kvSize);
     }
@@ -5285,6 +5362,43 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
     return results;
   }
 
+  /**
+   * Reads the data blocks a batch of gets will read from the store files into the block cache
+   * up front, reading blocks close to each other in a file together, so that the gets, run one
+   * at a time after, find them cached rather than each reading its own blocks.
+   * @param gets the gets of the batch
+   * @throws IOException read exceptions
+   */
+  public void fetchDataBlocks(List<Get> gets) throws IOException {
+    Map<byte[], List<Get>> familyGets = new TreeMap<byte[], List<Get>>(Bytes.BYTES_COMPARATOR);
+    for (Get get : gets) {
+      if (!rowIsInRange(getRegionInfo(), get.getRow())) {
+        continue;
+      }
+      Collection<byte[]> families = get.hasFamilies() ? get.familySet()
+          : this.htableDescriptor.getFamiliesKeys();
+      for (byte[] family : families) {
+        List<Get> list = familyGets.get(family);
+        if (list == null) {
+          list = new ArrayList<Get>();
+          familyGets.put(family, list);
+        }
+        list.add(get);
+      }
+    }
+    startRegionOperation(Operation.GET);
+    try {
+      for (Map.Entry<byte[], List<Get>> entry : familyGets.entrySet()) {
+        Store store = this.stores.get(entry.getKey());
+        if (store != null) {
+          store.fetchDataBlocks(entry.getValue());
+        }
+      }
+    } finally {
+      closeRegionOperation(Operation.GET);
+    }
+  }
+
   public void mutateRow(RowMutations rm) throws IOException {
     // Don't need nonces here - RowMutations only supports puts and deletes
     mutateRowsWithLocks(rm.getMutations(), Collections.singleton(rm.getRow()));
@@ -6095,7 +6209,7 @@ public class HRegion implements HeapSize, PropagatingConfigurationObserver { //
   public static final long FIXED_OVERHEAD = ClassSize.align(
       ClassSize.OBJECT +
       ClassSize.ARRAY +
-      42 * ClassSize.REFERENCE + 2 * Bytes.SIZEOF_INT +
+      43 * ClassSize.REFERENCE + 2 * Bytes.SIZEOF_INT +
       (12 * Bytes.SIZEOF_LONG) +
       5 * Bytes.SIZEOF_BOOLEAN);
 
@@ -95,7 +95,11 @@ import org.apache.hadoop.hbase.executor.ExecutorService;
 import org.apache.hadoop.hbase.executor.ExecutorType;
 import org.apache.hadoop.hbase.fs.HFileSystem;
 import org.apache.hadoop.hbase.http.InfoServer;
+import org.apache.hadoop.hbase.io.HFileLink;
+import org.apache.hadoop.hbase.io.hfile.BlockCache;
 import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.PrefetchExecutor;
+import org.apache.hadoop.hbase.io.hfile.bucket.BucketCache;
 import org.apache.hadoop.hbase.ipc.RpcClient;
 import org.apache.hadoop.hbase.ipc.RpcClientFactory;
 import org.apache.hadoop.hbase.ipc.RpcServerInterface;
@@ -988,6 +992,8 @@ public class HRegionServer extends HasThread implements RegionServerServices, La
       waitOnAllRegionsToClose(abortRequested);
       LOG.info("stopping server " + this.serverName + "; all regions closed.");
     }
+    // Regions closed lately may not have been written out yet
+    PrefetchExecutor.persistAccessStats();
 
     // fsOk flag may be changed when closing regions throws exception.
     if (this.fsOk) {
@@ -1289,6 +1295,7 @@ public class HRegionServer extends HasThread implements RegionServerServices, La
       ZNodeClearer.writeMyEphemeralNodeOnDisk(getMyEphemeralNodePath());
 
       this.cacheConfig = new CacheConfig(conf);
+      startRestoredBlockCacheCheck();
       this.walFactory = setupWALAndReplication();
       // Init in here rather than in constructor after thread name has been set
       this.metricsRegionServer = new MetricsRegionServer(new MetricsRegionServerWrapperImpl(this));
@@ -1318,6 +1325,54 @@ public class HRegionServer extends HasThread implements RegionServerServices, La
     }
   }
 
+  /**
+   * If the bucket cache came back with blocks persisted before the restart, drops those of store
+   * files removed in the meantime. Done in the background as every store file under the root
+   * dir has to be listed.
+   */
+  private void startRestoredBlockCacheCheck() {
+    final BucketCache bucketCache = findBucketCache(this.cacheConfig.getBlockCache());
+    if (bucketCache == null || !bucketCache.hasRestoredBlocks()) {
+      return;
+    }
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        Set<String> hfileNames = new HashSet<String>();
+        try {
+          for (String name : FSUtils.getTableStoreFilePathMap(fs, rootDir).keySet()) {
+            hfileNames.add(name);
+            if (HFileLink.isHFileLink(name)) {
+              // Blocks are cached under the name of the file linked to
+              hfileNames.add(HFileLink.getReferencedHFileName(name));
+            }
+          }
+        } catch (IOException ioe) {
+          LOG.warn("Failed listing store files; keeping all restored bucket cache blocks", ioe);
+          return;
+        }
+        bucketCache.evictBlocksOfMissingFiles(hfileNames);
+      }
+    };
+    Threads.setDaemonThreadRunning(t, getName() + ".restoredBlockCacheCheck",
+      uncaughtExceptionHandler);
+  }
+
+  private static BucketCache findBucketCache(final BlockCache blockCache) {
+    if (blockCache instanceof BucketCache) {
+      return (BucketCache) blockCache;
+    }
+    if (blockCache != null && blockCache.getBlockCaches() != null) {
+      for (BlockCache cache : blockCache.getBlockCaches()) {
+        BucketCache bucketCache = findBucketCache(cache);
+        if (bucketCache != null) {
+          return bucketCache;
+        }
+      }
+    }
+    return null;
+  }
+
   private void createMyEphemeralNode() throws KeeperException, IOException {
     RegionServerInfo.Builder rsInfo = RegionServerInfo.newBuilder();
     rsInfo.setInfoPort(infoServer != null ? infoServer.getPort() : -1);
@@ -1607,10 +1662,6 @@ public class HRegionServer extends HasThread implements RegionServerServices, La
         conf.getInt("hbase.regionserver.executor.closeregion.threads", 3));
     this.service.startExecutorService(ExecutorType.RS_CLOSE_META,
         conf.getInt("hbase.regionserver.executor.closemeta.threads", 1));
-    if (conf.getBoolean(StoreScanner.STORESCANNER_PARALLEL_SEEK_ENABLE, false)) {
-      this.service.startExecutorService(ExecutorType.RS_PARALLEL_SEEK,
-          conf.getInt("hbase.storescanner.parallel.seek.threads", 10));
-    }
     this.service.startExecutorService(ExecutorType.RS_LOG_REPLAY_OPS,
         conf.getInt("hbase.regionserver.wal.max.splitters", SplitLogWorkerCoordination.DEFAULT_MAX_SPLITTERS));
 
@@ -2307,6 +2358,16 @@ public class HRegionServer extends HasThread implements RegionServerServices, La
    *         last one found wins; i.e. this method may NOT return all regions.
    */
   SortedMap<Long, HRegion> getCopyOfOnlineRegionsSortedBySize() {
+    return getCopyOfOnlineRegionsSortedBySize(false);
+  }
+
+  /**
+   * @param offHeap whether to sort by the off heap memory held by memstores instead
+   * @return A new Map of online regions sorted by region size with the first
+   *         entry being the biggest. If two regions are the same size, then the
+   *         last one found wins; i.e. this method may NOT return all regions.
+   */
+  SortedMap<Long, HRegion> getCopyOfOnlineRegionsSortedBySize(boolean offHeap) {
     // we'll sort the regions in reverse
     SortedMap<Long, HRegion> sortedRegions = new TreeMap<Long, HRegion>(new Comparator<Long>() {
       @Override
@@ -2316,7 +2377,8 @@ public class HRegionServer extends HasThread implements RegionServerServices, La
     });
     // Copy over all regions. Regions are sorted by size with biggest first.
     for (HRegion region : this.onlineRegions.values()) {
-      sortedRegions.put(region.memstoreSize.get(), region);
+      sortedRegions.put(offHeap ? region.getMemstoreOffHeapSize() : region.memstoreSize.get(),
+        region);
     }
     return sortedRegions;
   }
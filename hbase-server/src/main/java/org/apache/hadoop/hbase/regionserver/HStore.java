@@ -56,16 +56,20 @@ import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
 import org.apache.hadoop.hbase.RemoteExceptionHandler;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.Tag;
 import org.apache.hadoop.hbase.TagType;
 import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.conf.ConfigurationManager;
 import org.apache.hadoop.hbase.io.compress.Compression;
 import org.apache.hadoop.hbase.io.crypto.Cipher;
 import org.apache.hadoop.hbase.io.crypto.Encryption;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheAdmissionPolicy;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheQuota;
 import org.apache.hadoop.hbase.io.hfile.CacheConfig;
 import org.apache.hadoop.hbase.io.hfile.HFile;
 import org.apache.hadoop.hbase.io.hfile.HFileContext;
@@ -131,6 +135,12 @@ public class HStore implements Store {
   public static final String BLOCKING_STOREFILES_KEY = "hbase.hstore.blockingStoreFiles";
   public static final int DEFAULT_COMPACTCHECKER_INTERVAL_MULTIPLIER = 1000;
   public static final int DEFAULT_BLOCKING_STOREFILE_COUNT = 7;
+  /**
+   * Configuration key to end unencoded data blocks of the files written with an index of the
+   * rows in them, so that seeks binary-search to the row instead of reading every cell before
+   */
+  public static final String BLOCK_ROW_INDEX_KEY = "hbase.hstore.block.rowindex";
+  public static final boolean DEFAULT_BLOCK_ROW_INDEX = false;
 
   static final Log LOG = LogFactory.getLog(HStore.class);
 
@@ -175,6 +185,7 @@ public class HStore implements Store {
   /** Checksum configuration */
   private ChecksumType checksumType;
   private int bytesPerChecksum;
+  private final boolean blockRowIndex;
 
   // Comparing KeyValues
   private final KeyValue.KVComparator comparator;
@@ -242,13 +253,26 @@ public class HStore implements Store {
     // Why not just pass a HColumnDescriptor in here altogether?  Even if have
     // to clone it?
     scanInfo = new ScanInfo(family, ttl, timeToPurgeDeletes, this.comparator);
-    String className = conf.get(MEMSTORE_CLASS_NAME, DefaultMemStore.class.getName());
-    this.memstore = ReflectionUtils.instantiateWithCustomCtor(className, new Class[] {
-        Configuration.class, KeyValue.KVComparator.class }, new Object[] { conf, this.comparator });
+    Class<? extends MemStore> memstoreClass =
+        conf.getClass(MEMSTORE_CLASS_NAME, DefaultMemStore.class, MemStore.class);
+    String className = memstoreClass.getName();
+    if (CompactingMemStore.class.isAssignableFrom(memstoreClass)) {
+      // Needs the store for its ScanInfo and smallest read point when compacting in memory
+      this.memstore = ReflectionUtils.instantiateWithCustomCtor(className, new Class[] {
+          Configuration.class, KeyValue.KVComparator.class, Store.class },
+          new Object[] { conf, this.comparator, this });
+    } else {
+      this.memstore = ReflectionUtils.instantiateWithCustomCtor(className, new Class[] {
+          Configuration.class, KeyValue.KVComparator.class },
+          new Object[] { conf, this.comparator });
+    }
     this.offPeakHours = OffPeakHours.getInstance(conf);
 
     // Setting up cache configuration for this family
     this.cacheConf = new CacheConfig(conf, family);
+    this.cacheConf.setAdmissionPolicy(
+      BlockCacheAdmissionPolicy.forFamily(conf, getTableName(), family.getName()));
+    this.cacheConf.setQuota(BlockCacheQuota.forTable(conf, getTableName()));
 
     this.verifyBulkLoads = conf.getBoolean("hbase.hstore.bulkload.verify", false);
 
@@ -274,6 +298,7 @@ public class HStore implements Store {
     this.checksumType = getChecksumType(conf);
     // initilize bytes per checksum
     this.bytesPerChecksum = getBytesPerChecksum(conf);
+    this.blockRowIndex = conf.getBoolean(BLOCK_ROW_INDEX_KEY, DEFAULT_BLOCK_ROW_INDEX);
     flushRetriesNumber = conf.getInt(
         "hbase.hstore.flush.retries.number", DEFAULT_FLUSH_RETRIES_NUMBER);
     pauseTime = conf.getInt(HConstants.HBASE_SERVER_PAUSE, HConstants.DEFAULT_HBASE_SERVER_PAUSE);
@@ -644,6 +669,16 @@ public class HStore implements Store {
     }
   }
 
+  @Override
+  public long add(final Iterable<Cell> cells) {
+    lock.readLock().lock();
+    try {
+      return this.memstore.add(cells);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
   @Override
   public long timeOfOldestEdit() {
     return memstore.timeOfOldestEdit();
@@ -994,6 +1029,7 @@ public class HStore implements Store {
                                 .withHBaseCheckSum(true)
                                 .withDataBlockEncoding(family.getDataBlockEncoding())
                                 .withEncryptionContext(cryptoContext)
+                                .withIncludesRowIndex(blockRowIndex)
                                 .build();
     return hFileContext;
   }
@@ -1083,6 +1119,41 @@ public class HStore implements Store {
     return scanners;
   }
 
+  @Override
+  public int fetchDataBlocks(List<Get> gets) throws IOException {
+    // As in StoreScanner, files can only be ruled out by TTL if minVersions is 0
+    long oldestUnexpiredTS = scanInfo.getMinVersions() == 0
+        ? EnvironmentEdgeManager.currentTime() - scanInfo.getTtl() : Long.MIN_VALUE;
+    List<Scan> scans = new ArrayList<Scan>(gets.size());
+    for (Get get : gets) {
+      if (get.getCacheBlocks()) {
+        scans.add(new Scan(get));
+      }
+    }
+    if (scans.isEmpty()) {
+      return 0;
+    }
+    int fetched = 0;
+    for (StoreFile sf : getStorefiles()) {
+      StoreFile.Reader reader = sf.getReader();
+      if (reader == null) {
+        continue;
+      }
+      List<Cell> keys = new ArrayList<Cell>(scans.size());
+      for (Scan scan : scans) {
+        if (reader.passesKeyRangeFilter(scan)
+            && reader.passesTimerangeFilter(scan, oldestUnexpiredTS)
+            && reader.passesBloomFilter(scan, scan.getFamilyMap().get(family.getName()))) {
+          // Seek as StoreScanner does; without the family the key sorts before the first
+          // index key of the row, which may be in the block before
+          keys.add(KeyValueUtil.createFirstOnRow(scan.getStartRow(), family.getName(), null));
+        }
+      }
+      fetched += reader.fetchDataBlocks(keys, false, true);
+    }
+    return fetched;
+  }
+
   @Override
   public void addChangedReaderObserver(ChangedReadersObserver o) {
     this.changedReaderObservers.add(o);
@@ -1863,25 +1934,29 @@ public class HStore implements Store {
     }
     // Get a scanner that caches blocks and that uses pread.
     HFileScanner scanner = r.getScanner(true, true, false);
-    // Seek scanner.  If can't seek it, return.
-    if (!seekToScanner(scanner, firstOnRow, firstKV)) return false;
-    // If we found candidate on firstOnRow, just return. THIS WILL NEVER HAPPEN!
-    // Unlikely that there'll be an instance of actual first row in table.
-    if (walkForwardInSingleRow(scanner, firstOnRow, state)) return true;
-    // If here, need to start backing up.
-    while (scanner.seekBefore(firstOnRow.getBuffer(), firstOnRow.getKeyOffset(),
-       firstOnRow.getKeyLength())) {
-      Cell kv = scanner.getKeyValue();
-      if (!state.isTargetTable(kv)) break;
-      if (!state.isBetterCandidate(kv)) break;
-      // Make new first on row.
-      firstOnRow = new KeyValue(kv.getRow(), HConstants.LATEST_TIMESTAMP);
-      // Seek scanner.  If can't seek it, break.
+    try {
+      // Seek scanner.  If can't seek it, return.
       if (!seekToScanner(scanner, firstOnRow, firstKV)) return false;
-      // If we find something, break;
+      // If we found candidate on firstOnRow, just return. THIS WILL NEVER HAPPEN!
+      // Unlikely that there'll be an instance of actual first row in table.
       if (walkForwardInSingleRow(scanner, firstOnRow, state)) return true;
+      // If here, need to start backing up.
+      while (scanner.seekBefore(firstOnRow.getBuffer(), firstOnRow.getKeyOffset(),
+         firstOnRow.getKeyLength())) {
+        Cell kv = scanner.getKeyValue();
+        if (!state.isTargetTable(kv)) break;
+        if (!state.isBetterCandidate(kv)) break;
+        // Make new first on row.
+        firstOnRow = new KeyValue(kv.getRow(), HConstants.LATEST_TIMESTAMP);
+        // Seek scanner.  If can't seek it, break.
+        if (!seekToScanner(scanner, firstOnRow, firstKV)) return false;
+        // If we find something, break;
+        if (walkForwardInSingleRow(scanner, firstOnRow, state)) return true;
+      }
+      return false;
+    } finally {
+      scanner.close();
     }
-    return false;
   }
 
   /*
@@ -2078,6 +2153,11 @@ public class HStore implements Store {
     return this.memstore.size();
   }
 
+  @Override
+  public long getMemStoreOffHeapSize() {
+    return this.memstore.offHeapSize();
+  }
+
   @Override
   public int getCompactPriority() {
     int priority = this.storeEngine.getStoreFileManager().getStoreCompactionPriority();
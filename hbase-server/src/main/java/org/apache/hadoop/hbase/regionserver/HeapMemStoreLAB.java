@@ -18,6 +18,7 @@
  */
 package org.apache.hadoop.hbase.regionserver;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -26,6 +27,9 @@ import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.hadoop.hbase.classification.InterfaceAudience;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
 import org.apache.hadoop.hbase.util.ByteRange;
 import org.apache.hadoop.hbase.util.SimpleMutableByteRange;
 
@@ -83,9 +87,13 @@ public class HeapMemStoreLAB implements MemStoreLAB {
   }
 
   public HeapMemStoreLAB(Configuration conf) {
+    this(conf, MemStoreChunkPool.getPool(conf));
+  }
+
+  HeapMemStoreLAB(Configuration conf, MemStoreChunkPool chunkPool) {
     chunkSize = conf.getInt(CHUNK_SIZE_KEY, CHUNK_SIZE_DEFAULT);
     maxAlloc = conf.getInt(MAX_ALLOC_KEY, MAX_ALLOC_DEFAULT);
-    this.chunkPool = MemStoreChunkPool.getPool(conf);
+    this.chunkPool = chunkPool;
 
     // if we don't exclude allocations >CHUNK_SIZE, we'd infiniteloop on one!
     Preconditions.checkArgument(
@@ -111,6 +119,9 @@ public class HeapMemStoreLAB implements MemStoreLAB {
 
     while (true) {
       Chunk c = getOrMakeChunk();
+      if (c == null) {
+        return null;
+      }
 
       // Try to allocate from this chunk
       int allocOffset = c.alloc(size);
@@ -126,6 +137,35 @@ public class HeapMemStoreLAB implements MemStoreLAB {
     }
   }
 
+  @Override
+  public Cell copyCellInto(Cell cell) {
+    int len = KeyValueUtil.length(cell);
+    ByteRange alloc = allocateBytes(len);
+    if (alloc == null) {
+      return null;
+    }
+    assert alloc.getBytes() != null;
+    KeyValueUtil.appendToByteArray(cell, alloc.getBytes(), alloc.getOffset());
+    KeyValue newKv = new KeyValue(alloc.getBytes(), alloc.getOffset(), len);
+    newKv.setSequenceId(cell.getSequenceId());
+    return newKv;
+  }
+
+  /**
+   * All chunks are on heap.
+   */
+  @Override
+  public long getOffHeapSize() {
+    return 0;
+  }
+
+  /**
+   * @return number of chunks held, 0 once they are put back to the pool
+   */
+  int getChunkCount() {
+    return reclaimed.get() ? 0 : chunkQueue.size();
+  }
+
   /**
    * Close this instance since it won't be used any more, try to put the chunks
    * back to pool
@@ -166,7 +206,7 @@ public class HeapMemStoreLAB implements MemStoreLAB {
    * <code>c</code>. Postcondition is that curChunk.get()
    * != c
    */
-  private void tryRetireChunk(Chunk c) {
+  void tryRetireChunk(Chunk c) {
     curChunk.compareAndSet(c, null);
     // If the CAS succeeds, that means that we won the race
     // to retire the chunk. We could use this opportunity to
@@ -179,8 +219,9 @@ public class HeapMemStoreLAB implements MemStoreLAB {
   /**
    * Get the current chunk, or, if there is no current chunk,
    * allocate a new one from the JVM.
+   * @return the chunk, or null if the pool has no more chunks to hand out
    */
-  private Chunk getOrMakeChunk() {
+  Chunk getOrMakeChunk() {
     while (true) {
       // Try to get the chunk
       Chunk c = curChunk.get();
@@ -192,6 +233,9 @@ public class HeapMemStoreLAB implements MemStoreLAB {
       // against other allocators to CAS in an uninitialized chunk
       // (which is cheap to allocate)
       c = (chunkPool != null) ? chunkPool.getChunk() : new Chunk(chunkSize);
+      if (c == null) {
+        return null;
+      }
       if (curChunk.compareAndSet(null, c)) {
         // we won race - now we need to actually do the expensive
         // allocation step
@@ -225,7 +269,7 @@ public class HeapMemStoreLAB implements MemStoreLAB {
     private AtomicInteger allocCount = new AtomicInteger();
 
     /** Size of chunk in bytes */
-    private final int size;
+    protected final int size;
 
     /**
      * Create an uninitialized chunk. Note that memory is not allocated yet, so
@@ -244,9 +288,7 @@ public class HeapMemStoreLAB implements MemStoreLAB {
     public void init() {
       assert nextFreeOffset.get() == UNINITIALIZED;
       try {
-        if (data == null) {
-          data = new byte[size];
-        }
+        allocateData();
       } catch (OutOfMemoryError e) {
         boolean failInit = nextFreeOffset.compareAndSet(UNINITIALIZED, OOM);
         assert failInit; // should be true.
@@ -261,6 +303,15 @@ public class HeapMemStoreLAB implements MemStoreLAB {
           "Multiple threads tried to init same chunk");
     }
 
+    /**
+     * Claims the memory backing this chunk, unless a previous use of this chunk already did.
+     */
+    protected void allocateData() {
+      if (data == null) {
+        data = new byte[size];
+      }
+    }
+
     /**
      * Reset the offset to UNINITIALIZED before before reusing an old chunk
      */
@@ -291,7 +342,7 @@ public class HeapMemStoreLAB implements MemStoreLAB {
           return -1;
         }
 
-        if (oldOffset + size > data.length) {
+        if (oldOffset + size > this.size) {
           return -1; // alloc doesn't fit
         }
 
@@ -309,7 +360,30 @@ public class HeapMemStoreLAB implements MemStoreLAB {
     public String toString() {
       return "Chunk@" + System.identityHashCode(this) +
         " allocs=" + allocCount.get() + "waste=" +
-        (data.length - nextFreeOffset.get());
+        (size - nextFreeOffset.get());
+    }
+  }
+
+  /**
+   * A chunk backed by a direct {@link ByteBuffer} instead of a byte[], so its
+   * memory is outside of the java heap.
+   */
+  static class OffheapChunk extends Chunk {
+    private ByteBuffer buffer;
+
+    OffheapChunk(int size) {
+      super(size);
+    }
+
+    @Override
+    protected void allocateData() {
+      if (buffer == null) {
+        buffer = ByteBuffer.allocateDirect(size);
+      }
+    }
+
+    ByteBuffer getBuffer() {
+      return buffer;
     }
   }
 }
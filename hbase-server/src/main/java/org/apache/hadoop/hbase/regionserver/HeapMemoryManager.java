@@ -339,6 +339,10 @@ public class HeapMemoryManager {
       case ABOVE_LOWER_MARK:
         unblockedFlushCount.incrementAndGet();
         break;
+      case ABOVE_OFFHEAP_HIGHER_MARK:
+      case ABOVE_OFFHEAP_LOWER_MARK:
+        // Giving memstores more heap would not help with their off heap memory
+        break;
       default:
         // In case of normal flush don't do any action.
         break;
@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * A memstore segment that no longer takes writes. Holds the cells, their
+ * {@link TimeRangeTracker}, their heap size and the {@link MemStoreLAB}s whose
+ * chunks the cells point into. The allocators are only closed once the segment
+ * itself is released, after it was flushed or replaced by a compacted segment.
+ * <p>
+ * The cells are either the {@link CellSkipListSet} of a former active segment,
+ * or a flat {@link CellArraySet} once the segment has been flattened or compacted.
+ */
+@InterfaceAudience.Private
+class ImmutableSegment {
+  private final NavigableSet<Cell> cells;
+  private final int cellsCount;
+  private final TimeRangeTracker timeRangeTracker;
+  private final long size;
+  private final List<MemStoreLAB> allocators;
+
+  ImmutableSegment(NavigableSet<Cell> cells, int cellsCount, TimeRangeTracker timeRangeTracker,
+      long size, List<MemStoreLAB> allocators) {
+    this.cells = cells;
+    this.cellsCount = cellsCount;
+    this.timeRangeTracker = timeRangeTracker;
+    this.size = size;
+    this.allocators = allocators;
+  }
+
+  /**
+   * Wraps a former active segment without copying it.
+   * @param cellSet the active cells; must not be written to any more
+   * @param trt time range of <code>cellSet</code>
+   * @param size heap size of <code>cellSet</code>, including skip list overhead
+   * @param allocator allocator <code>cellSet</code> was cloned into; may be null
+   */
+  static ImmutableSegment wrap(CellSkipListSet cellSet, TimeRangeTracker trt, long size,
+      MemStoreLAB allocator) {
+    List<MemStoreLAB> allocators = allocator == null ? Collections.<MemStoreLAB> emptyList()
+        : Collections.singletonList(allocator);
+    return new ImmutableSegment(cellSet, cellSet.size(), trt, size, allocators);
+  }
+
+  /**
+   * Creates a flat segment out of cells that are already sorted and unique.
+   * @param c comparator the cells are sorted with
+   * @param sortedCells cells in <code>c</code> order
+   * @param allocators allocators the cells may point into
+   */
+  static ImmutableSegment flat(KeyValue.KVComparator c, List<Cell> sortedCells,
+      List<MemStoreLAB> allocators) {
+    Cell[] array = sortedCells.toArray(new Cell[sortedCells.size()]);
+    TimeRangeTracker trt = new TimeRangeTracker();
+    long size = CellArraySet.heapOverhead(array.length);
+    for (Cell cell : array) {
+      trt.includeTimestamp(cell);
+      size += heapSizeOf(cell);
+    }
+    return new ImmutableSegment(new CellArraySet(c, array), array.length, trt, size, allocators);
+  }
+
+  /**
+   * @return Heap used by a single cell in a flat segment, not counting the array slot.
+   */
+  static long heapSizeOf(Cell cell) {
+    return ClassSize.align(CellUtil.estimatedHeapSizeOf(cell));
+  }
+
+  /**
+   * Used to roll back an edit, which is rare enough that copying the segment is fine.
+   * @return A flat copy of this segment without <code>cell</code>
+   */
+  ImmutableSegment without(KeyValue.KVComparator c, Cell cell) {
+    List<Cell> remaining = new ArrayList<Cell>(cellsCount);
+    for (Cell cur : cells) {
+      if (c.compare(cur, cell) != 0) {
+        remaining.add(cur);
+      }
+    }
+    return flat(c, remaining, allocators);
+  }
+
+  /**
+   * @return Union of the allocators of the passed segments
+   */
+  static List<MemStoreLAB> allocatorsOf(List<ImmutableSegment> segments) {
+    List<MemStoreLAB> allocators = new ArrayList<MemStoreLAB>();
+    for (ImmutableSegment segment : segments) {
+      allocators.addAll(segment.allocators);
+    }
+    return allocators;
+  }
+
+  NavigableSet<Cell> getCellSet() {
+    return cells;
+  }
+
+  int getCellsCount() {
+    return cellsCount;
+  }
+
+  TimeRangeTracker getTimeRangeTracker() {
+    return timeRangeTracker;
+  }
+
+  long getSize() {
+    return size;
+  }
+
+  boolean isFlat() {
+    return cells instanceof CellArraySet;
+  }
+
+  List<MemStoreLAB> getAllocators() {
+    return allocators;
+  }
+
+  /**
+   * Releases the allocators of this segment. Chunks go back to the pool once the
+   * last scanner on them is closed.
+   */
+  void close() {
+    for (MemStoreLAB allocator : allocators) {
+      allocator.close();
+    }
+  }
+}
@@ -31,6 +31,7 @@ import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.RemoteExceptionHandler;
 import org.apache.hadoop.hbase.Server;
 import org.apache.hadoop.hbase.regionserver.wal.FailedLogCloseException;
+import org.apache.hadoop.hbase.wal.BalancedRegionGroupingProvider;
 import org.apache.hadoop.hbase.wal.WAL;
 import org.apache.hadoop.hbase.regionserver.wal.WALActionsListener;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -67,6 +68,13 @@ public class LogRoller extends HasThread {
   private final int threadWakeFrequency;
 
   public void addWAL(final WAL wal) {
+    if (wal instanceof BalancedRegionGroupingProvider.GroupWAL) {
+      // Groups move between the WALs underneath, so roll those instead.
+      for (WAL delegate : ((BalancedRegionGroupingProvider.GroupWAL)wal).getWALs()) {
+        addWAL(delegate);
+      }
+      return;
+    }
     if (null == walNeedsRoll.putIfAbsent(wal, Boolean.FALSE)) {
       wal.registerWALActionsListener(new WALActionsListener.Base() {
         @Override
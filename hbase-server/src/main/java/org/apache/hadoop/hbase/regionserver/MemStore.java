@@ -67,6 +67,14 @@ public interface MemStore extends HeapSize {
    */
   Pair<Long, Cell> add(final Cell cell);
 
+  /**
+   * Write the updates, all in one go
+   * @param cells
+   * @return approximate size of the passed cells and those newly added which maybe different from
+   *         the passed in ones.
+   */
+  long add(Iterable<Cell> cells);
+
   /**
    * @return Oldest timestamp of all the Cells in the MemStore
    */
@@ -137,4 +145,10 @@ public interface MemStore extends HeapSize {
    * @return Total memory occupied by this MemStore.
    */
   long size();
+
+  /**
+   * @return Off heap memory held by this MemStore, snapshot included. Unlike {@link #size()},
+   *         only non zero with an off heap {@link MemStoreLAB}.
+   */
+  long offHeapSize();
 }
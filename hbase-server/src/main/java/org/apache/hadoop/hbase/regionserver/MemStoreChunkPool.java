@@ -32,6 +32,7 @@ import org.apache.hadoop.hbase.classification.InterfaceAudience;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.io.util.HeapMemorySizeUtil;
 import org.apache.hadoop.hbase.regionserver.HeapMemStoreLAB.Chunk;
+import org.apache.hadoop.hbase.regionserver.HeapMemStoreLAB.OffheapChunk;
 import org.apache.hadoop.util.StringUtils;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -49,6 +50,12 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * {@link MemStoreChunkPool#getChunk()} is called when MemStoreLAB allocating
  * bytes, and {@link MemStoreChunkPool#putbackChunks(BlockingQueue)} is called
  * when MemStore clearing snapshot for flush
+ * 
+ * A second, separate instance holding off heap chunks backs the
+ * {@link OffheapMemStoreLAB}, see {@link MemStoreChunkPool#getOffheapPool(Configuration)}.
+ * Unlike on heap chunks, all off heap chunks come from that pool, which keeps count
+ * of the chunks handed out to memstores and hands out no more than the configured
+ * off heap memstore size.
  */
 @SuppressWarnings("javadoc")
 @InterfaceAudience.Private
@@ -63,8 +70,11 @@ public class MemStoreChunkPool {
   private static MemStoreChunkPool globalInstance;
   /** Boolean whether we have disabled the memstore chunk pool entirely. */
   static boolean chunkPoolDisabled = false;
+  // Static reference to the MemStoreChunkPool of off heap chunks
+  private static volatile MemStoreChunkPool offheapInstance;
 
   private final int maxCount;
+  private final boolean offheap;
 
   // A queue of reclaimed chunks
   private final BlockingQueue<Chunk> reclaimedChunks;
@@ -76,20 +86,29 @@ public class MemStoreChunkPool {
   private static final int statThreadPeriod = 60 * 5;
   private AtomicLong createdChunkCount = new AtomicLong();
   private AtomicLong reusedChunkCount = new AtomicLong();
+  // Chunks handed out by getChunk() and not yet put back
+  private AtomicLong usedChunkCount = new AtomicLong();
 
   MemStoreChunkPool(Configuration conf, int chunkSize, int maxCount,
       int initialCount) {
+    this(conf, chunkSize, maxCount, initialCount, false);
+  }
+
+  MemStoreChunkPool(Configuration conf, int chunkSize, int maxCount,
+      int initialCount, boolean offheap) {
     this.maxCount = maxCount;
     this.chunkSize = chunkSize;
+    this.offheap = offheap;
     this.reclaimedChunks = new LinkedBlockingQueue<Chunk>();
     for (int i = 0; i < initialCount; i++) {
-      Chunk chunk = new Chunk(chunkSize);
+      Chunk chunk = newChunk();
       chunk.init();
       reclaimedChunks.add(chunk);
     }
     final String n = Thread.currentThread().getName();
     scheduleThreadPool = Executors.newScheduledThreadPool(1,
-        new ThreadFactoryBuilder().setNameFormat(n+"-MemStoreChunkPool Statistics")
+        new ThreadFactoryBuilder().setNameFormat(n + "-MemStoreChunkPool"
+            + (offheap ? " Offheap" : "") + " Statistics")
             .setDaemon(true).build());
     this.scheduleThreadPool.scheduleAtFixedRate(new StatisticsThread(this),
         statThreadPeriod, statThreadPeriod, TimeUnit.SECONDS);
@@ -98,12 +117,26 @@ public class MemStoreChunkPool {
   /**
    * Poll a chunk from the pool, reset it if not null, else create a new chunk
    * to return
-   * @return a chunk
+   * @return a chunk, or null if this is the off heap pool and its max count of
+   *         chunks is already handed out
    */
   Chunk getChunk() {
+    if (offheap) {
+      // Direct memory is capped by the off heap memstore size; callers keep the
+      // cell on heap instead
+      long used;
+      do {
+        used = usedChunkCount.get();
+        if (used >= maxCount) {
+          return null;
+        }
+      } while (!usedChunkCount.compareAndSet(used, used + 1));
+    } else {
+      usedChunkCount.incrementAndGet();
+    }
     Chunk chunk = reclaimedChunks.poll();
     if (chunk == null) {
-      chunk = new Chunk(chunkSize);
+      chunk = newChunk();
       createdChunkCount.incrementAndGet();
     } else {
       chunk.reset();
@@ -112,12 +145,18 @@ public class MemStoreChunkPool {
     return chunk;
   }
 
+  private Chunk newChunk() {
+    return offheap ? new OffheapChunk(chunkSize) : new Chunk(chunkSize);
+  }
+
   /**
    * Add the chunks to the pool, when the pool achieves the max size, it will
    * skip the remaining chunks
    * @param chunks
    */
   void putbackChunks(BlockingQueue<Chunk> chunks) {
+    // Chunks that do not fit in the pool any more are left to GC
+    usedChunkCount.addAndGet(-chunks.size());
     int maxNumToPutback = this.maxCount - reclaimedChunks.size();
     if (maxNumToPutback <= 0) {
       return;
@@ -131,6 +170,7 @@ public class MemStoreChunkPool {
    * @param chunk
    */
   void putbackChunk(Chunk chunk) {
+    usedChunkCount.decrementAndGet();
     if (reclaimedChunks.size() >= this.maxCount) {
       return;
     }
@@ -141,6 +181,13 @@ public class MemStoreChunkPool {
     return this.reclaimedChunks.size();
   }
 
+  /**
+   * @return bytes in chunks handed out to MemStoreLABs and not put back yet
+   */
+  long getUsedSize() {
+    return this.usedChunkCount.get() * this.chunkSize;
+  }
+
   /*
    * Only used in testing
    */
@@ -168,7 +215,9 @@ public class MemStoreChunkPool {
     long created = createdChunkCount.get();
     long reused = reusedChunkCount.get();
     long total = created + reused;
-    LOG.debug("Stats: current pool size=" + reclaimedChunks.size()
+    LOG.debug("Stats" + (offheap ? " (offheap)" : "") + ": current pool size="
+        + reclaimedChunks.size()
+        + ",used chunk count=" + usedChunkCount.get()
         + ",created chunk count=" + created
         + ",reused chunk count=" + reused
         + ",reuseRatio=" + (total == 0 ? "0" : StringUtils.formatPercent(
@@ -215,4 +264,45 @@ public class MemStoreChunkPool {
     }
   }
 
+  /**
+   * @param conf
+   * @return the global MemStoreChunkPool instance of off heap chunks, or null if no off heap
+   *         memstore size is configured
+   */
+  static MemStoreChunkPool getOffheapPool(Configuration conf) {
+    if (offheapInstance != null) return offheapInstance;
+
+    synchronized (MemStoreChunkPool.class) {
+      if (offheapInstance != null) return offheapInstance;
+      long offheapMemStoreLimit = HeapMemorySizeUtil.getOffheapGlobalMemstoreSize(conf);
+      if (offheapMemStoreLimit <= 0) {
+        return null;
+      }
+      int chunkSize = conf.getInt(HeapMemStoreLAB.CHUNK_SIZE_KEY,
+          HeapMemStoreLAB.CHUNK_SIZE_DEFAULT);
+      // Direct memory is only given back on GC, keep all of it pooled
+      int maxCount = (int) (offheapMemStoreLimit / chunkSize);
+      float initialCountPercentage = conf.getFloat(CHUNK_POOL_INITIALSIZE_KEY,
+          POOL_INITIAL_SIZE_DEFAULT);
+      if (initialCountPercentage > 1.0 || initialCountPercentage < 0) {
+        throw new IllegalArgumentException(CHUNK_POOL_INITIALSIZE_KEY
+            + " must be between 0.0 and 1.0");
+      }
+      int initialCount = (int) (initialCountPercentage * maxCount);
+      LOG.info("Allocating off heap MemStoreChunkPool with chunk size "
+          + StringUtils.byteDesc(chunkSize) + ", max count " + maxCount + ", initial count "
+          + initialCount);
+      offheapInstance = new MemStoreChunkPool(conf, chunkSize, maxCount, initialCount, true);
+      return offheapInstance;
+    }
+  }
+
+  /**
+   * @return bytes in off heap chunks used by memstores, 0 if there is no off heap pool
+   */
+  static long getOffheapUsedSize() {
+    MemStoreChunkPool pool = offheapInstance;
+    return pool == null ? 0 : pool.getUsedSize();
+  }
+
 }
@@ -85,6 +85,9 @@ class MemStoreFlusher implements FlushRequester {
   protected long globalMemStoreLimit;
   protected float globalMemStoreLimitLowMarkPercent;
   protected long globalMemStoreLimitLowMark;
+  // Limits for the off heap memory of memstores, 0 when they only use the heap
+  private final long globalMemStoreOffHeapLimit;
+  private final long globalMemStoreOffHeapLimitLowMark;
 
   private long blockingWaitTime;
   private final Counter updatesBlockedMsHighWater = new Counter();
@@ -109,6 +112,9 @@ class MemStoreFlusher implements FlushRequester {
         HeapMemorySizeUtil.getGlobalMemStoreLowerMark(conf, globalMemStorePercent);
     this.globalMemStoreLimitLowMark = 
         (long) (this.globalMemStoreLimit * this.globalMemStoreLimitLowMarkPercent);
+    this.globalMemStoreOffHeapLimit = HeapMemorySizeUtil.getOffheapGlobalMemstoreSize(conf);
+    this.globalMemStoreOffHeapLimitLowMark =
+        (long) (this.globalMemStoreOffHeapLimit * this.globalMemStoreLimitLowMarkPercent);
 
     this.blockingWaitTime = conf.getInt("hbase.hstore.blockingWaitTime",
       90000);
@@ -118,6 +124,8 @@ class MemStoreFlusher implements FlushRequester {
       StringUtils.humanReadableInt(this.globalMemStoreLimit) +
       ", globalMemStoreLimitLowMark=" +
       StringUtils.humanReadableInt(this.globalMemStoreLimitLowMark) +
+      ", globalMemStoreOffHeapLimit=" +
+      StringUtils.humanReadableInt(this.globalMemStoreOffHeapLimit) +
       ", maxHeap=" + StringUtils.humanReadableInt(max));
   }
 
@@ -132,8 +140,11 @@ class MemStoreFlusher implements FlushRequester {
    * @return true if successful
    */
   private boolean flushOneForGlobalPressure() {
+    // When only off heap memory is short, flush the regions holding most of it
+    boolean offHeap = !isAboveHeapLowWaterMark() && isAboveOffHeapLowWaterMark();
+    String pressure = offHeap ? "off heap" : "heap";
     SortedMap<Long, HRegion> regionsBySize =
-        server.getCopyOfOnlineRegionsSortedBySize();
+        server.getCopyOfOnlineRegionsSortedBySize(offHeap);
 
     Set<HRegion> excludedRegions = new HashSet<HRegion>();
 
@@ -153,19 +164,19 @@ class MemStoreFlusher implements FlushRequester {
       }
 
       HRegion regionToFlush;
-      if (bestFlushableRegion != null &&
-          bestAnyRegion.memstoreSize.get() > 2 * bestFlushableRegion.memstoreSize.get()) {
+      if (bestFlushableRegion != null && getMemstoreSize(bestAnyRegion, offHeap)
+          > 2 * getMemstoreSize(bestFlushableRegion, offHeap)) {
         // Even if it's not supposed to be flushed, pick a region if it's more than twice
         // as big as the best flushable one - otherwise when we're under pressure we make
         // lots of little flushes and cause lots of compactions, etc, which just makes
         // life worse!
         if (LOG.isDebugEnabled()) {
-          LOG.debug("Under global heap pressure: " +
+          LOG.debug("Under global " + pressure + " pressure: " +
             "Region " + bestAnyRegion.getRegionNameAsString() + " has too many " +
             "store files, but is " +
-            StringUtils.humanReadableInt(bestAnyRegion.memstoreSize.get()) +
+            StringUtils.humanReadableInt(getMemstoreSize(bestAnyRegion, offHeap)) +
             " vs best flushable region's " +
-            StringUtils.humanReadableInt(bestFlushableRegion.memstoreSize.get()) +
+            StringUtils.humanReadableInt(getMemstoreSize(bestFlushableRegion, offHeap)) +
             ". Choosing the bigger.");
         }
         regionToFlush = bestAnyRegion;
@@ -179,7 +190,7 @@ class MemStoreFlusher implements FlushRequester {
 
       Preconditions.checkState(regionToFlush.memstoreSize.get() > 0);
 
-      LOG.info("Flush of region " + regionToFlush + " due to global heap pressure");
+      LOG.info("Flush of region " + regionToFlush + " due to global " + pressure + " pressure");
       flushedOne = flushRegion(regionToFlush, true);
       if (!flushedOne) {
         LOG.info("Excluding unflushable region " + regionToFlush +
@@ -254,6 +265,13 @@ class MemStoreFlusher implements FlushRequester {
     }
   }
 
+  /**
+   * @return the memstore size of the region, on heap or off heap
+   */
+  private static long getMemstoreSize(HRegion region, boolean offHeap) {
+    return offHeap ? region.getMemstoreOffHeapSize() : region.memstoreSize.get();
+  }
+
   private HRegion getBiggestMemstoreRegion(
       SortedMap<Long, HRegion> regionsBySize,
       Set<HRegion> excludedRegions,
@@ -278,21 +296,39 @@ class MemStoreFlusher implements FlushRequester {
   }
 
   /**
-   * Return true if global memory usage is above the high watermark
+   * Return true if global memory usage, on or off heap, is above the high watermark
    */
   private boolean isAboveHighWaterMark() {
-    return server.getRegionServerAccounting().
-      getGlobalMemstoreSize() >= globalMemStoreLimit;
+    return isAboveHeapHighWaterMark() || isAboveOffHeapHighWaterMark();
   }
 
   /**
-   * Return true if we're above the high watermark
+   * Return true if global memory usage, on or off heap, is above the low watermark
    */
   private boolean isAboveLowWaterMark() {
+    return isAboveHeapLowWaterMark() || isAboveOffHeapLowWaterMark();
+  }
+
+  private boolean isAboveHeapHighWaterMark() {
+    return server.getRegionServerAccounting().
+      getGlobalMemstoreSize() >= globalMemStoreLimit;
+  }
+
+  private boolean isAboveHeapLowWaterMark() {
     return server.getRegionServerAccounting().
       getGlobalMemstoreSize() >= globalMemStoreLimitLowMark;
   }
 
+  private boolean isAboveOffHeapHighWaterMark() {
+    return globalMemStoreOffHeapLimit > 0 && server.getRegionServerAccounting().
+      getGlobalMemstoreOffHeapSize() >= globalMemStoreOffHeapLimit;
+  }
+
+  private boolean isAboveOffHeapLowWaterMark() {
+    return globalMemStoreOffHeapLimit > 0 && server.getRegionServerAccounting().
+      getGlobalMemstoreOffHeapSize() >= globalMemStoreOffHeapLimitLowMark;
+  }
+
   public void requestFlush(HRegion r) {
     synchronized (regionsInQueue) {
       if (!regionsInQueue.containsKey(r)) {
@@ -481,7 +517,13 @@ class MemStoreFlusher implements FlushRequester {
   private void notifyFlushRequest(HRegion region, boolean emergencyFlush) {
     FlushType type = FlushType.NORMAL;
     if (emergencyFlush) {
-      type = isAboveHighWaterMark() ? FlushType.ABOVE_HIGHER_MARK : FlushType.ABOVE_LOWER_MARK;
+      if (isAboveHeapLowWaterMark()) {
+        type = isAboveHeapHighWaterMark() ? FlushType.ABOVE_HIGHER_MARK
+            : FlushType.ABOVE_LOWER_MARK;
+      } else {
+        type = isAboveOffHeapHighWaterMark() ? FlushType.ABOVE_OFFHEAP_HIGHER_MARK
+            : FlushType.ABOVE_OFFHEAP_LOWER_MARK;
+      }
     }
     for (FlushRequestListener listener : flushRequestListeners) {
       listener.flushRequested(type, region);
@@ -527,8 +569,11 @@ class MemStoreFlusher implements FlushRequester {
               LOG.info("Blocking updates on " + server.toString() +
                 ": the global memstore size " +
                 StringUtils.humanReadableInt(server.getRegionServerAccounting().getGlobalMemstoreSize()) +
-                " is >= than blocking " +
-                StringUtils.humanReadableInt(globalMemStoreLimit) + " size");
+                " (off heap " + StringUtils.humanReadableInt(
+                  server.getRegionServerAccounting().getGlobalMemstoreOffHeapSize()) +
+                ") is >= than blocking " +
+                StringUtils.humanReadableInt(globalMemStoreLimit) + " (off heap " +
+                StringUtils.humanReadableInt(globalMemStoreOffHeapLimit) + ") size");
             }
             blocked = true;
             wakeupFlushThread();
@@ -730,5 +775,7 @@ class MemStoreFlusher implements FlushRequester {
 }
 
 enum FlushType {
-  NORMAL, ABOVE_LOWER_MARK, ABOVE_HIGHER_MARK;
+  NORMAL, ABOVE_LOWER_MARK, ABOVE_HIGHER_MARK,
+  // Flushes for pressure on the off heap memory of memstores
+  ABOVE_OFFHEAP_LOWER_MARK, ABOVE_OFFHEAP_HIGHER_MARK;
 }
@@ -17,6 +17,7 @@
  */
 package org.apache.hadoop.hbase.regionserver;
 
+import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.classification.InterfaceAudience;
 import org.apache.hadoop.hbase.util.ByteRange;
 
@@ -46,6 +47,19 @@ public interface MemStoreLAB {
    */
   ByteRange allocateBytes(int size);
 
+  /**
+   * Copies the passed cell into memory owned by this MemStoreLAB. If the cell is larger than the
+   * maximum size specified for this allocator, returns null.
+   * @param cell
+   * @return the copy of <code>cell</code>, carrying over its sequence id
+   */
+  Cell copyCellInto(Cell cell);
+
+  /**
+   * @return bytes of off heap memory held by this MemStoreLAB, 0 once it is given back
+   */
+  long getOffHeapSize();
+
   /**
    * Close instance since it won't be used any more, try to put the chunks back to pool
    */
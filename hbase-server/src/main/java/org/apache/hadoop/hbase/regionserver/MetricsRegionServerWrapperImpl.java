@@ -258,6 +258,14 @@ class MetricsRegionServerWrapperImpl
     return this.cacheStats.getEvictedCount();
   }
 
+  @Override
+  public long getBlockCacheFailedInsertionCount() {
+    if (this.cacheStats == null) {
+      return 0;
+    }
+    return this.cacheStats.getFailedInsertCount();
+  }
+
   @Override
   public double getBlockCacheHitPercent() {
     if (this.cacheStats == null) {
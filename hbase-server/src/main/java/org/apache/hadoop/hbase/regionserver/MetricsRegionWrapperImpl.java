@@ -31,6 +31,7 @@ import org.apache.hadoop.hbase.classification.InterfaceAudience;
 import org.apache.hadoop.hbase.CompatibilitySingletonFactory;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.io.hfile.PrefetchExecutor;
 import org.apache.hadoop.metrics2.MetricsExecutor;
 
 @InterfaceAudience.Private
@@ -135,6 +136,16 @@ public class MetricsRegionWrapperImpl implements MetricsRegionWrapper, Closeable
     return this.region.compactionsFinished.get();
   }
 
+  @Override
+  public long getPrefetchRequestedSize() {
+    return PrefetchExecutor.getRegionPrefetchRequestedSize(getRegionName());
+  }
+
+  @Override
+  public long getPrefetchedSize() {
+    return PrefetchExecutor.getRegionPrefetchedSize(getRegionName());
+  }
+
   public class HRegionMetricsWrapperRunnable implements Runnable {
 
     @Override
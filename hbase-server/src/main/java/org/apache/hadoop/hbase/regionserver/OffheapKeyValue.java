@@ -0,0 +1,262 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.SettableSequenceId;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.util.ByteBufferUtils;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * A {@link Cell} whose value and tags live in a direct {@link ByteBuffer}, made by
+ * {@link OffheapMemStoreLAB}.
+ * <p>
+ * The key is kept on heap, serialized as in a {@link KeyValue}, so the comparators
+ * and everything else looking at row, family, qualifier, timestamp and type work on
+ * arrays as before. The value and tags are only read when the cell is handed out
+ * of the memstore: {@link #getValueArray()} and {@link #getTagsArray()} copy them
+ * out of the buffer on every call and have an offset of 0. The cell does not keep
+ * these copies, which would sit on heap uncounted for as long as the memstore
+ * lives. Use {@link #getValueBuffer()} and {@link #getValuePosition()} to read the
+ * value in place.
+ * <p>
+ * {@link #heapSize()} only counts the on heap part, see {@link #offHeapSize()} for
+ * the rest.
+ */
+@InterfaceAudience.Private
+public class OffheapKeyValue implements Cell, HeapSize, SettableSequenceId {
+  private static final int ROW_OFFSET = Bytes.SIZEOF_SHORT;
+  private static final int TIMESTAMP_TYPE_SIZE = Bytes.SIZEOF_LONG + Bytes.SIZEOF_BYTE;
+
+  public static final long FIXED_OVERHEAD = ClassSize.align(ClassSize.OBJECT
+      + 2 * ClassSize.REFERENCE + 5 * Bytes.SIZEOF_INT + Bytes.SIZEOF_LONG);
+
+  private final byte[] key;
+  private final int keyOffset;
+  private final int keyLength;
+  // Value followed by tags
+  private final ByteBuffer buffer;
+  private final int valuePosition;
+  private final int valueLength;
+  private final int tagsLength;
+  private long seqId;
+
+  /**
+   * @param key array holding the key, serialized as in a {@link KeyValue}
+   * @param keyOffset offset of the key in <code>key</code>
+   * @param keyLength length of the key
+   * @param buffer buffer holding the value followed by the tags
+   * @param valuePosition position of the value in <code>buffer</code>
+   * @param valueLength length of the value
+   * @param tagsLength length of the tags, right after the value
+   * @param seqId sequence id of the cell
+   */
+  public OffheapKeyValue(byte[] key, int keyOffset, int keyLength, ByteBuffer buffer,
+      int valuePosition, int valueLength, int tagsLength, long seqId) {
+    this.key = key;
+    this.keyOffset = keyOffset;
+    this.keyLength = keyLength;
+    this.buffer = buffer;
+    this.valuePosition = valuePosition;
+    this.valueLength = valueLength;
+    this.tagsLength = tagsLength;
+    this.seqId = seqId;
+  }
+
+  @Override
+  public byte[] getRowArray() {
+    return this.key;
+  }
+
+  @Override
+  public int getRowOffset() {
+    return this.keyOffset + ROW_OFFSET;
+  }
+
+  @Override
+  public short getRowLength() {
+    return Bytes.toShort(this.key, this.keyOffset);
+  }
+
+  @Override
+  public byte[] getFamilyArray() {
+    return this.key;
+  }
+
+  @Override
+  public int getFamilyOffset() {
+    return getRowOffset() + getRowLength() + Bytes.SIZEOF_BYTE;
+  }
+
+  @Override
+  public byte getFamilyLength() {
+    return this.key[getFamilyOffset() - Bytes.SIZEOF_BYTE];
+  }
+
+  @Override
+  public byte[] getQualifierArray() {
+    return this.key;
+  }
+
+  @Override
+  public int getQualifierOffset() {
+    return getFamilyOffset() + getFamilyLength();
+  }
+
+  @Override
+  public int getQualifierLength() {
+    return this.keyOffset + this.keyLength - TIMESTAMP_TYPE_SIZE - getQualifierOffset();
+  }
+
+  @Override
+  public long getTimestamp() {
+    return Bytes.toLong(this.key, this.keyOffset + this.keyLength - TIMESTAMP_TYPE_SIZE);
+  }
+
+  @Override
+  public byte getTypeByte() {
+    return this.key[this.keyOffset + this.keyLength - 1];
+  }
+
+  @Override
+  @Deprecated
+  public long getMvccVersion() {
+    return this.seqId;
+  }
+
+  @Override
+  public long getSequenceId() {
+    return this.seqId;
+  }
+
+  @Override
+  public void setSequenceId(long seqId) {
+    this.seqId = seqId;
+  }
+
+  /**
+   * Copies the value out of the buffer on every call.
+   */
+  @Override
+  public byte[] getValueArray() {
+    return copyFromBuffer(this.valuePosition, this.valueLength);
+  }
+
+  @Override
+  public int getValueOffset() {
+    return 0;
+  }
+
+  @Override
+  public int getValueLength() {
+    return this.valueLength;
+  }
+
+  /**
+   * Copies the tags out of the buffer on every call.
+   */
+  @Override
+  public byte[] getTagsArray() {
+    return copyFromBuffer(this.valuePosition + this.valueLength, this.tagsLength);
+  }
+
+  @Override
+  public int getTagsOffset() {
+    return 0;
+  }
+
+  @Override
+  public int getTagsLength() {
+    return this.tagsLength;
+  }
+
+  /**
+   * @return the buffer holding the value. Do not change its position or limit, it is
+   * shared with other cells.
+   */
+  public ByteBuffer getValueBuffer() {
+    return this.buffer;
+  }
+
+  /**
+   * @return position of the value in {@link #getValueBuffer()}
+   */
+  public int getValuePosition() {
+    return this.valuePosition;
+  }
+
+  @Override
+  @Deprecated
+  public byte[] getValue() {
+    return getValueArray();
+  }
+
+  @Override
+  @Deprecated
+  public byte[] getFamily() {
+    return CellUtil.cloneFamily(this);
+  }
+
+  @Override
+  @Deprecated
+  public byte[] getQualifier() {
+    return CellUtil.cloneQualifier(this);
+  }
+
+  @Override
+  @Deprecated
+  public byte[] getRow() {
+    return CellUtil.cloneRow(this);
+  }
+
+  private byte[] copyFromBuffer(int position, int length) {
+    byte[] copy = new byte[length];
+    if (length > 0) {
+      ByteBufferUtils.copyFromBufferToArray(copy, this.buffer, position, 0, length);
+    }
+    return copy;
+  }
+
+  /**
+   * Counts the key bytes, which are on heap, but not the value and tags.
+   */
+  @Override
+  public long heapSize() {
+    return FIXED_OVERHEAD + ClassSize.align(ClassSize.ARRAY) + ClassSize.align(this.keyLength);
+  }
+
+  /**
+   * @return number of bytes this cell holds outside of the java heap
+   */
+  public long offHeapSize() {
+    return this.valueLength + this.tagsLength;
+  }
+
+  @Override
+  public String toString() {
+    return KeyValue.keyToString(this.key, this.keyOffset, this.keyLength) + "/vlen="
+        + this.valueLength + "/seqid=" + this.seqId;
+  }
+}
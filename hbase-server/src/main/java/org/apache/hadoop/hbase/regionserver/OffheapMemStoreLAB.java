@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.io.util.HeapMemorySizeUtil;
+import org.apache.hadoop.hbase.util.ByteBufferUtils;
+import org.apache.hadoop.hbase.util.ByteRange;
+
+/**
+ * A {@link MemStoreLAB} that keeps cell values off the java heap.
+ * <p>
+ * Values and tags are copied into chunks backed by direct ByteBuffers, taken from
+ * the off heap {@link MemStoreChunkPool}. Keys are copied into regular on heap
+ * chunks, so that the memstore can keep comparing cells on arrays. The copies are
+ * {@link OffheapKeyValue}s.
+ * <p>
+ * Enable by setting <code>hbase.regionserver.mslab.class</code> to this class and
+ * {@link HeapMemorySizeUtil#OFFHEAP_MEMSTORE_SIZE_KEY} to the amount of off heap
+ * memory the memstores of the regionserver may use. The memory is accounted for
+ * separately from the heap, see
+ * {@link RegionServerAccounting#getGlobalMemstoreOffHeapSize()}. Once all of it is
+ * in use, cells are kept on heap as they are, until flushes give chunks back.
+ */
+@InterfaceAudience.Private
+public class OffheapMemStoreLAB extends HeapMemStoreLAB {
+  // Keys stay on heap
+  private final HeapMemStoreLAB keyAllocator;
+
+  public OffheapMemStoreLAB(Configuration conf) {
+    super(conf, getOffheapPool(conf));
+    this.keyAllocator = new HeapMemStoreLAB(conf);
+  }
+
+  private static MemStoreChunkPool getOffheapPool(Configuration conf) {
+    // Direct buffers are expensive to allocate and only freed by GC, so always pool them
+    MemStoreChunkPool pool = MemStoreChunkPool.getOffheapPool(conf);
+    if (pool == null) {
+      throw new IllegalArgumentException(HeapMemorySizeUtil.OFFHEAP_MEMSTORE_SIZE_KEY
+          + " must be set to use " + OffheapMemStoreLAB.class.getSimpleName());
+    }
+    return pool;
+  }
+
+  /**
+   * Allocates on heap, through the allocator used for keys.
+   */
+  @Override
+  public ByteRange allocateBytes(int size) {
+    return this.keyAllocator.allocateBytes(size);
+  }
+
+  @Override
+  public Cell copyCellInto(Cell cell) {
+    int keyLength = KeyValueUtil.keyLength(cell);
+    int valueLength = cell.getValueLength();
+    int tagsLength = cell.getTagsLength();
+    int offheapLength = valueLength + tagsLength;
+    if (offheapLength > maxAlloc || keyLength > maxAlloc) {
+      return null;
+    }
+
+    while (true) {
+      Chunk c = getOrMakeChunk();
+      if (c == null) {
+        // All the off heap memory is in use, the cell stays on heap
+        return null;
+      }
+      int allocOffset = c.alloc(offheapLength);
+      if (allocOffset != -1) {
+        ByteRange keyRange = this.keyAllocator.allocateBytes(keyLength);
+        KeyValueUtil.appendKeyTo(cell, keyRange.getBytes(), keyRange.getOffset());
+        ByteBuffer buffer = ((OffheapChunk) c).getBuffer();
+        ByteBufferUtils.copyFromArrayToBuffer(buffer, allocOffset, cell.getValueArray(),
+            cell.getValueOffset(), valueLength);
+        if (tagsLength > 0) {
+          ByteBufferUtils.copyFromArrayToBuffer(buffer, allocOffset + valueLength,
+              cell.getTagsArray(), cell.getTagsOffset(), tagsLength);
+        }
+        return new OffheapKeyValue(keyRange.getBytes(), keyRange.getOffset(), keyLength, buffer,
+            allocOffset, valueLength, tagsLength, cell.getSequenceId());
+      }
+      tryRetireChunk(c);
+    }
+  }
+
+  /**
+   * Counts whole chunks, as {@link RegionServerAccounting#getGlobalMemstoreOffHeapSize()}
+   * does.
+   */
+  @Override
+  public long getOffHeapSize() {
+    return (long) getChunkCount() * chunkSize;
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    this.keyAllocator.close();
+  }
+
+  @Override
+  public void incScannerCount() {
+    super.incScannerCount();
+    this.keyAllocator.incScannerCount();
+  }
+
+  @Override
+  public void decScannerCount() {
+    super.decScannerCount();
+    this.keyAllocator.decScannerCount();
+  }
+}
@@ -514,6 +514,37 @@ public class RSRpcServices implements HBaseRPCErrorHandler,
     return r;
   }
 
+  /**
+   * Reads the data blocks the gets among the given actions will read into the block cache up
+   * front, if there are more than one. Failures are left for the gets themselves to run into.
+   * @return the gets among the actions, in order, or null if there are less than two
+   */
+  private List<Get> fetchDataBlocks(final HRegion region, final RegionAction actions) {
+    List<Get> gets = new ArrayList<Get>();
+    try {
+      for (ClientProtos.Action action: actions.getActionList()) {
+        if (action.hasGet()) {
+          gets.add(ProtobufUtil.toGet(action.getGet()));
+        }
+      }
+    } catch (IOException e) {
+      // Reported for the action it is of below
+      return null;
+    }
+    if (gets.size() < 2) {
+      return null;
+    }
+    try {
+      region.fetchDataBlocks(gets);
+    } catch (IOException e) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Failed fetching the data blocks of " + gets.size() + " gets in "
+            + region.getRegionNameAsString(), e);
+      }
+    }
+    return gets;
+  }
+
   /**
    * Run through the regionMutation <code>rm</code> and per Mutation, do the work, and then when
    * done, add an instance of a {@link ResultOrException} that corresponds to each Mutation.
@@ -533,6 +564,9 @@ public class RSRpcServices implements HBaseRPCErrorHandler,
     // ResultOrException instance that matches each Put or Delete is then added down in the
     // doBatchOp call.  We should be staying aligned though the Put and Delete are deferred/batched
     List<ClientProtos.Action> mutations = null;
+    // Read the blocks a batch of gets needs together up front, rather than get by get
+    List<Get> gets = fetchDataBlocks(region, actions);
+    int getIndex = 0;
     for (ClientProtos.Action action: actions.getActionList()) {
       ClientProtos.ResultOrException.Builder resultOrExceptionBuilder = null;
       try {
@@ -540,7 +574,7 @@ public class RSRpcServices implements HBaseRPCErrorHandler,
         if (action.hasGet()) {
           long before = EnvironmentEdgeManager.currentTime();
           try {
-            Get get = ProtobufUtil.toGet(action.getGet());
+            Get get = gets != null ? gets.get(getIndex++) : ProtobufUtil.toGet(action.getGet());
             r = region.get(get);
           } finally {
             if (regionServer.metricsRegionServer != null) {
@@ -1488,42 +1522,70 @@ public class RSRpcServices implements HBaseRPCErrorHandler,
         entries.get(0).getKey().getEncodedRegionName().toStringUtf8());
       RegionCoprocessorHost coprocessorHost = region.getCoprocessorHost();
       List<Pair<WALKey, WALEdit>> walEntries = new ArrayList<Pair<WALKey, WALEdit>>();
-      for (WALEntry entry : entries) {
-        if (regionServer.nonceManager != null) {
-          long nonceGroup = entry.getKey().hasNonceGroup()
-            ? entry.getKey().getNonceGroup() : HConstants.NO_NONCE;
-          long nonce = entry.getKey().hasNonce() ? entry.getKey().getNonce() : HConstants.NO_NONCE;
-          regionServer.nonceManager.reportOperationFromWal(nonceGroup, nonce, entry.getKey().getWriteTime());
-        }
-        Pair<WALKey, WALEdit> walEntry = (coprocessorHost == null) ? null :
-          new Pair<WALKey, WALEdit>();
-        List<WALSplitter.MutationReplay> edits = WALSplitter.getMutationsFromWALEntry(entry,
-          cells, walEntry);
-        if (coprocessorHost != null) {
-          // Start coprocessor replay here. The coprocessor is for each WALEdit instead of a
-          // KeyValue.
-          if (coprocessorHost.preWALRestore(region.getRegionInfo(), walEntry.getFirst(),
-            walEntry.getSecond())) {
-            // if bypass this log entry, ignore it ...
-            continue;
+      // Sequence ids of the entries applied here, marked replayed once they are durable
+      List<Long> replayedSeqIds = new ArrayList<Long>(entries.size());
+      try {
+        for (WALEntry entry : entries) {
+          if (regionServer.nonceManager != null) {
+            long nonceGroup = entry.getKey().hasNonceGroup()
+              ? entry.getKey().getNonceGroup() : HConstants.NO_NONCE;
+            long nonce = entry.getKey().hasNonce()
+              ? entry.getKey().getNonce() : HConstants.NO_NONCE;
+            regionServer.nonceManager.reportOperationFromWal(nonceGroup, nonce,
+              entry.getKey().getWriteTime());
           }
-          walEntries.add(walEntry);
-        }
-        if(edits!=null && !edits.isEmpty()) {
+          Pair<WALKey, WALEdit> walEntry = (coprocessorHost == null) ? null :
+            new Pair<WALKey, WALEdit>();
+          List<WALSplitter.MutationReplay> edits = WALSplitter.getMutationsFromWALEntry(entry,
+            cells, walEntry);
           long replaySeqId = (entry.getKey().hasOrigSequenceNumber()) ?
             entry.getKey().getOrigSequenceNumber() : entry.getKey().getLogSequenceNumber();
-          OperationStatus[] result = doReplayBatchOp(region, edits, replaySeqId);
-          // check if it's a partial success
-          for (int i = 0; result != null && i < result.length; i++) {
-            if (result[i] != OperationStatus.SUCCESS) {
-              throw new IOException(result[i].getExceptionMsg());
+          if (region.isReplayed(replaySeqId)) {
+            // Sent again, by a retry or a redone split task; it is in already.
+            continue;
+          }
+          if (coprocessorHost != null) {
+            // Start coprocessor replay here. The coprocessor is for each WALEdit instead of a
+            // KeyValue.
+            if (coprocessorHost.preWALRestore(region.getRegionInfo(), walEntry.getFirst(),
+              walEntry.getSecond())) {
+              // if bypass this log entry, ignore it ...
+              continue;
             }
+            walEntries.add(walEntry);
           }
+          if(edits!=null && !edits.isEmpty()) {
+            OperationStatus[] result = doReplayBatchOp(region, edits, replaySeqId);
+            // check if it's a partial success
+            for (int i = 0; result != null && i < result.length; i++) {
+              if (result[i] != OperationStatus.SUCCESS) {
+                throw new IOException(result[i].getExceptionMsg());
+              }
+            }
+          }
+          replayedSeqIds.add(replaySeqId);
         }
+      } catch (IOException ie) {
+        // Most likely the region is too busy to take more for now. The replay will be sent again
+        // once it has flushed; keep it from applying what got in so far a second time.
+        if (!replayedSeqIds.isEmpty()) {
+          try {
+            region.syncWal();
+            for (Long replayedSeqId : replayedSeqIds) {
+              region.markReplayed(replayedSeqId);
+            }
+          } catch (IOException syncException) {
+            LOG.warn("Failed sync of replayed edits", syncException);
+          }
+        }
+        throw ie;
       }
 
       //sync wal at the end because ASYNC_WAL is used above
       region.syncWal();
+      for (Long replayedSeqId : replayedSeqIds) {
+        region.markReplayed(replayedSeqId);
+      }
 
       if (coprocessorHost != null) {
         for (Pair<WALKey, WALEdit> wal : walEntries) {
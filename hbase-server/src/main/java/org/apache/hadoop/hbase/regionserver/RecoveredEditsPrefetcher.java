@@ -0,0 +1,231 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.wal.WAL;
+import org.apache.hadoop.hbase.wal.WALFactory;
+
+/**
+ * Reads recovered edits files ahead of their replay, several at a time, so that replay is not
+ * left waiting on the filesystem and on parsing between one entry and the next. Entries are
+ * still handed out file by file in the order the files were given; only the reading is done in
+ * parallel. At most <code>threads</code> files past the one being replayed are read ahead, and
+ * each file's reader is held up once it is <code>queueSize</code> entries ahead of replay.
+ * <p>
+ * Not thread safe; meant to be used by the one thread replaying the edits.
+ */
+@InterfaceAudience.Private
+class RecoveredEditsPrefetcher implements Closeable {
+  private static final Log LOG = LogFactory.getLog(RecoveredEditsPrefetcher.class);
+
+  // Markers put in a file's queue: the file was opened, and there is nothing more to come.
+  private static final WAL.Entry OPENED = new WAL.Entry();
+  private static final WAL.Entry END = new WAL.Entry();
+
+  private final FileSystem fs;
+  private final Configuration conf;
+  private final int threads;
+  private final ThreadPoolExecutor pool;
+  private final List<Prefetch> prefetches;
+  private final Map<Path, Prefetch> prefetchesByPath = new HashMap<Path, Prefetch>();
+  private int nextToStart = 0;
+  private volatile boolean closed = false;
+
+  /**
+   * @param files The files, in the order they are to be replayed
+   * @param threads Most files to read at the same time
+   * @param queueSize Most entries a file's reader may be ahead of replay
+   */
+  RecoveredEditsPrefetcher(final FileSystem fs, final List<Path> files,
+      final Configuration conf, final int threads, final int queueSize,
+      final String threadNamePrefix) {
+    this.fs = fs;
+    this.conf = conf;
+    this.threads = Math.max(1, threads);
+    this.prefetches = new ArrayList<Prefetch>(files.size());
+    for (Path file : files) {
+      Prefetch prefetch = new Prefetch(file, Math.max(1, queueSize));
+      this.prefetches.add(prefetch);
+      this.prefetchesByPath.put(file, prefetch);
+    }
+    this.pool = HRegion.getOpenAndCloseThreadPool(this.threads, threadNamePrefix);
+    startPrefetches(this.threads);
+  }
+
+  /**
+   * Readers are started in file order and never more than {@link #threads} ahead of the one
+   * being replayed; the file replay waits on is always among those running.
+   */
+  private void startPrefetches(final int upTo) {
+    while (nextToStart < prefetches.size() && nextToStart < upTo) {
+      pool.execute(prefetches.get(nextToStart++));
+    }
+  }
+
+  /**
+   * Waits for <code>file</code> to be opened.
+   * @return A reader over the entries of <code>file</code>, as read ahead.
+   * @throws IOException The exception opening <code>file</code> failed with.
+   */
+  EntryReader getReader(final Path file) throws IOException {
+    Prefetch prefetch = prefetchesByPath.get(file);
+    if (prefetch == null) {
+      throw new IllegalArgumentException("Not prefetching " + file);
+    }
+    startPrefetches(prefetches.indexOf(prefetch) + threads + 1);
+    prefetch.awaitOpen();
+    return prefetch;
+  }
+
+  @Override
+  public void close() {
+    this.closed = true;
+    // Interrupts readers waiting on replay to catch up
+    this.pool.shutdownNow();
+  }
+
+  /**
+   * Hands out the entries of one file in order. Unlike a {@link WAL.Reader}, it cannot seek:
+   * the entries are read ahead by another thread, which has moved on from any position.
+   */
+  interface EntryReader extends Closeable {
+    /**
+     * @return The next entry, or null if there are no more.
+     * @throws IOException The exception reading the file failed with.
+     */
+    WAL.Entry next() throws IOException;
+  }
+
+  private class Prefetch implements Runnable, EntryReader {
+    private final Path file;
+    private final BlockingQueue<WAL.Entry> entries;
+    // Written before END is queued, read after it is taken.
+    private volatile Throwable error;
+    private volatile boolean cancelled = false;
+    // Only touched by the replaying thread
+    private boolean done = false;
+
+    Prefetch(final Path file, final int queueSize) {
+      this.file = file;
+      this.entries = new ArrayBlockingQueue<WAL.Entry>(queueSize);
+    }
+
+    @Override
+    public void run() {
+      WAL.Reader reader = null;
+      try {
+        reader = WALFactory.createReader(fs, file, conf);
+        if (!put(OPENED)) return;
+        WAL.Entry entry;
+        while ((entry = reader.next()) != null) {
+          if (!put(entry)) return;
+        }
+      } catch (InterruptedException ie) {
+        // Closed under us; no one is waiting on the rest.
+        return;
+      } catch (Throwable t) {
+        this.error = t;
+      } finally {
+        if (reader != null) {
+          try {
+            reader.close();
+          } catch (IOException ioe) {
+            LOG.warn("Failed close of recovered edits reader " + file, ioe);
+          }
+        }
+      }
+      try {
+        put(END);
+      } catch (InterruptedException ie) {
+        // As above
+      }
+    }
+
+    /**
+     * @return False if replay gave up on this file, or on all of them, while we waited for room.
+     */
+    private boolean put(final WAL.Entry entry) throws InterruptedException {
+      while (!cancelled && !closed) {
+        if (entries.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private WAL.Entry take() throws IOException {
+      if (closed) {
+        throw new InterruptedIOException("Prefetch of " + file + " closed");
+      }
+      WAL.Entry entry;
+      try {
+        entry = entries.take();
+      } catch (InterruptedException ie) {
+        throw (InterruptedIOException)new InterruptedIOException(
+            "Interrupted waiting on " + file).initCause(ie);
+      }
+      if (entry == END) {
+        done = true;
+        Throwable t = this.error;
+        if (t instanceof IOException) throw (IOException)t;
+        if (t instanceof RuntimeException) throw (RuntimeException)t;
+        if (t instanceof Error) throw (Error)t;
+        if (t != null) throw new IOException(t);
+      }
+      return entry;
+    }
+
+    void awaitOpen() throws IOException {
+      WAL.Entry entry = take();
+      assert entry == OPENED || entry == END;
+    }
+
+    @Override
+    public WAL.Entry next() throws IOException {
+      if (done) return null;
+      WAL.Entry entry = take();
+      return entry == END ? null : entry;
+    }
+
+    @Override
+    public void close() throws IOException {
+      // The reader behind us closes its file once it sees this
+      this.cancelled = true;
+      this.done = true;
+      this.entries.clear();
+    }
+  }
+}
@@ -28,6 +28,8 @@ import org.apache.hadoop.hbase.util.Bytes;
 /**
  * RegionServerAccounting keeps record of some basic real time information about
  * the Region Server. Currently, it only keeps record the global memstore size. 
+ * The on heap and off heap memory used by memstores are accounted for separately;
+ * off heap memory is only used with the {@link OffheapMemStoreLAB}.
  */
 @InterfaceAudience.Private
 public class RegionServerAccounting {
@@ -40,11 +42,20 @@ public class RegionServerAccounting {
     new ConcurrentSkipListMap<byte[], AtomicLong>(Bytes.BYTES_COMPARATOR);
 
   /**
-   * @return the global Memstore size in the RegionServer
+   * @return the global Memstore size in the RegionServer. Only counts memory on the
+   *         java heap.
    */
   public long getGlobalMemstoreSize() {
     return atomicGlobalMemstoreSize.get();
   }
+
+  /**
+   * @return the global off heap Memstore size in the RegionServer, that is the size of
+   *         the off heap MemStoreLAB chunks held by memstores
+   */
+  public long getGlobalMemstoreOffHeapSize() {
+    return MemStoreChunkPool.getOffheapUsedSize();
+  }
   
   /**
    * @param memStoreSize the Memstore size will be added to 
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+
+/**
+ * Sequence ids of the WAL edits replayed to a recovering region. With them, edits sent a second
+ * time -- a replay call retried after it timed out or was turned away part way through, or a log
+ * split task done over after its worker died -- are not applied twice. The sequence ids of a
+ * region's edits are unique to it and mostly come one after the other, so they are kept as
+ * ranges.
+ */
+@InterfaceAudience.Private
+class ReplayedSequenceIds {
+  // First sequence id of a range -> its last. Ranges neither overlap nor touch.
+  private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+  synchronized boolean contains(final long seqId) {
+    Map.Entry<Long, Long> range = ranges.floorEntry(seqId);
+    return range != null && range.getValue() >= seqId;
+  }
+
+  synchronized void add(final long seqId) {
+    long first = seqId;
+    long last = seqId;
+    Map.Entry<Long, Long> lower = ranges.floorEntry(seqId);
+    if (lower != null) {
+      if (lower.getValue() >= seqId) return;
+      if (lower.getValue() == seqId - 1) {
+        first = lower.getKey();
+      }
+    }
+    Long higherLast = ranges.remove(seqId + 1);
+    if (higherLast != null) {
+      last = higherLast;
+    }
+    ranges.put(first, last);
+  }
+
+  /**
+   * @return How many ranges the sequence ids make up
+   */
+  synchronized int getRangeCount() {
+    return ranges.size();
+  }
+
+  synchronized void clear() {
+    ranges.clear();
+  }
+}
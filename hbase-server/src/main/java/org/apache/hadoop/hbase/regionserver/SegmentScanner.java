@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.SortedSet;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.client.Scan;
+
+/**
+ * A {@link KeyValueScanner} over a single memstore segment, either the active
+ * {@link CellSkipListSet} or an {@link ImmutableSegment}. Works like the
+ * MemStoreScanner of {@link DefaultMemStore} restricted to one set: cells newer
+ * than the read point are skipped, and reversed scans are supported.
+ * <p>
+ * The {@link MemStoreLAB}s passed in are held open until the scanner is closed.
+ */
+@InterfaceAudience.Private
+class SegmentScanner extends NonLazyKeyValueScanner {
+  private final NavigableSet<Cell> cells;
+  private final KeyValue.KVComparator comparator;
+  private final TimeRangeTracker timeRangeTracker;
+  private final long readPoint;
+  private List<MemStoreLAB> allocators;
+
+  private Iterator<Cell> iter;
+  // last iterated Cell, to restore iterator state after reseek
+  private Cell lastIterated = null;
+  // the pre-calculated Cell to be returned by peek() or next()
+  private Cell theNext;
+
+  // A flag represents whether could stop skipping Cells for MVCC
+  // if have encountered the next row. Only used for reversed scan
+  private boolean stopSkippingCellsIfNextRow = false;
+
+  SegmentScanner(NavigableSet<Cell> cells, KeyValue.KVComparator comparator,
+      TimeRangeTracker timeRangeTracker, long readPoint, List<MemStoreLAB> allocators) {
+    this.cells = cells;
+    this.comparator = comparator;
+    this.timeRangeTracker = timeRangeTracker;
+    this.readPoint = readPoint;
+    this.allocators = allocators;
+    for (MemStoreLAB allocator : allocators) {
+      allocator.incScannerCount();
+    }
+  }
+
+  /**
+   * Lock on 'this' must be held by caller.
+   * @return Next Cell visible at the read point, or null
+   */
+  private Cell getNext() {
+    Cell startCell = theNext;
+    Cell v = null;
+    try {
+      while (iter.hasNext()) {
+        v = iter.next();
+        if (v.getSequenceId() <= this.readPoint) {
+          return v;
+        }
+        if (stopSkippingCellsIfNextRow && startCell != null
+            && comparator.compareRows(v, startCell) > 0) {
+          return null;
+        }
+      }
+      return null;
+    } finally {
+      if (v != null) {
+        lastIterated = v;
+      }
+    }
+  }
+
+  @Override
+  public synchronized Cell peek() {
+    return theNext;
+  }
+
+  @Override
+  public synchronized Cell next() {
+    if (theNext == null) {
+      return null;
+    }
+    final Cell ret = theNext;
+    theNext = getNext();
+    return ret;
+  }
+
+  @Override
+  public synchronized boolean seek(Cell key) {
+    if (key == null) {
+      close();
+      return false;
+    }
+    iter = cells.tailSet(key).iterator();
+    lastIterated = null;
+    theNext = getNext();
+    return theNext != null;
+  }
+
+  @Override
+  public synchronized boolean reseek(Cell key) {
+    // Do not go back past what we already iterated; see DefaultMemStore.MemStoreScanner#reseek
+    Cell from = lastIterated == null || comparator.compare(key, lastIterated) > 0 ? key
+        : lastIterated;
+    iter = cells.tailSet(from).iterator();
+    theNext = getNext();
+    return theNext != null;
+  }
+
+  /**
+   * All memstore segments hold the latest data among all files.
+   */
+  @Override
+  public long getSequenceID() {
+    return Long.MAX_VALUE;
+  }
+
+  @Override
+  public synchronized void close() {
+    this.theNext = null;
+    this.iter = null;
+    this.lastIterated = null;
+    if (this.allocators != null) {
+      for (MemStoreLAB allocator : this.allocators) {
+        allocator.decScannerCount();
+      }
+      this.allocators = null;
+    }
+  }
+
+  @Override
+  public boolean shouldUseScanner(Scan scan, SortedSet<byte[]> columns,
+      long oldestUnexpiredTS) {
+    return timeRangeTracker.includesTimeRange(scan.getTimeRange())
+        && timeRangeTracker.getMaximumTimestamp() >= oldestUnexpiredTS;
+  }
+
+  @Override
+  public synchronized boolean backwardSeek(Cell key) {
+    seek(key);
+    if (peek() == null || comparator.compareRows(peek(), key) > 0) {
+      return seekToPreviousRow(key);
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized boolean seekToPreviousRow(Cell key) {
+    Cell firstKeyOnRow = KeyValueUtil.createFirstOnRow(key.getRowArray(), key.getRowOffset(),
+        key.getRowLength());
+    SortedSet<Cell> head = cells.headSet(firstKeyOnRow);
+    if (head.isEmpty()) {
+      theNext = null;
+      return false;
+    }
+    Cell lastCellBeforeRow = head.last();
+    Cell firstKeyOnPreviousRow = KeyValueUtil.createFirstOnRow(lastCellBeforeRow.getRowArray(),
+        lastCellBeforeRow.getRowOffset(), lastCellBeforeRow.getRowLength());
+    this.stopSkippingCellsIfNextRow = true;
+    seek(firstKeyOnPreviousRow);
+    this.stopSkippingCellsIfNextRow = false;
+    if (peek() == null || comparator.compareRows(peek(), firstKeyOnPreviousRow) > 0) {
+      return seekToPreviousRow(lastCellBeforeRow);
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized boolean seekToLastRow() {
+    if (cells.isEmpty()) {
+      return false;
+    }
+    Cell last = cells.last();
+    Cell firstCellOnLastRow = KeyValueUtil.createFirstOnRow(last.getRowArray(),
+        last.getRowOffset(), last.getRowLength());
+    if (seek(firstCellOnLastRow)) {
+      return true;
+    } else {
+      return seekToPreviousRow(last);
+    }
+  }
+}
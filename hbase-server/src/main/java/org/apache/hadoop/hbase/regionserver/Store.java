@@ -31,6 +31,7 @@ import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.conf.PropagatingConfigurationObserver;
 import org.apache.hadoop.hbase.io.HeapSize;
@@ -105,6 +106,16 @@ public interface Store extends HeapSize, StoreConfigInformation, PropagatingConf
     long readPt
   ) throws IOException;
 
+  /**
+   * Reads the data blocks the given gets will read from the store files into the block cache up
+   * front, reading blocks close to each other in a file together rather than one at a time.
+   * Files the gets are ruled out of by key range, time range or Bloom filter are skipped.
+   * @param gets gets on this store's family
+   * @return the number of blocks cached
+   * @throws IOException on failure
+   */
+  int fetchDataBlocks(List<Get> gets) throws IOException;
+
   ScanInfo getScanInfo();
 
   /**
@@ -129,6 +140,13 @@ public interface Store extends HeapSize, StoreConfigInformation, PropagatingConf
    */
   Pair<Long, Cell> add(Cell cell);
 
+  /**
+   * Adds values to the memstore
+   * @param cells
+   * @return memstore size delta
+   */
+  long add(Iterable<Cell> cells);
+
   /**
    * When was the last edit done in the memstore
    */
@@ -270,6 +288,12 @@ public interface Store extends HeapSize, StoreConfigInformation, PropagatingConf
    */
   long getMemStoreSize();
 
+  /**
+   * @return The off heap memory held by this store's memstore, in bytes. Not part of
+   *         {@link #getMemStoreSize()}.
+   */
+  long getMemStoreOffHeapSize();
+
   /**
    * @return The amount of memory we could flush from this memstore; usually this is equal to
    * {@link #getMemStoreSize()} unless we are carrying snapshots and then it will be the size of
@@ -26,6 +26,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.UUID;
@@ -1149,6 +1150,30 @@ public class StoreFile {
       reader.close(evictOnClose);
     }
 
+    /**
+     * Reads the data blocks holding the given keys into the block cache up front, in as few
+     * reads as possible.
+     * @see HFile.Reader#fetchDataBlocks(List, boolean, boolean)
+     */
+    public int fetchDataBlocks(List<? extends Cell> keys, boolean toLastKey, boolean pread)
+        throws IOException {
+      return reader.fetchDataBlocks(keys, toLastKey, pread);
+    }
+
+    /**
+     * @see HFile.Reader#readDataBlockAsync(Cell, boolean)
+     */
+    public long readDataBlockAsync(Cell key, boolean cacheBlock) throws IOException {
+      return reader.readDataBlockAsync(key, cacheBlock);
+    }
+
+    /**
+     * @see HFile.Reader#cancelBlockRead(long)
+     */
+    public void cancelBlockRead(long offset) {
+      reader.cancelBlockRead(offset);
+    }
+
     /**
      * Check if this storeFile may contain keys within the TimeRange that
      * have not expired (i.e. not older than oldestUnexpiredTS).
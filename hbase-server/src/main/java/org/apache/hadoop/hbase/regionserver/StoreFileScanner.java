@@ -67,6 +67,9 @@ public class StoreFileScanner implements KeyValueScanner {
   
   private long readPt;
 
+  /** Offset of the block {@link #startSeekRead(Cell, boolean)} started reading, or -1 */
+  private long seekReadOffset = -1;
+
   /**
    * Implements a {@link KeyValueScanner} on top of the specified {@link HFileScanner}
    * @param hfs HFile scanner
@@ -167,12 +170,30 @@ public class StoreFileScanner implements KeyValueScanner {
         }
       } finally {
         realSeekDone = true;
+        cancelSeekRead();
       }
     } catch (IOException ioe) {
       throw new IOException("Could not seek " + this + " to key " + key, ioe);
     }
   }
 
+  /**
+   * Starts reading the data block a seek to the given key lands in, in the background, for the
+   * next {@link #seek(Cell)} to wait for rather than read it itself. This way the blocks of
+   * several scanners are read at once while the scanners are sought one after the other.
+   */
+  void startSeekRead(Cell key, boolean cacheBlocks) throws IOException {
+    cancelSeekRead();
+    seekReadOffset = reader.readDataBlockAsync(key, cacheBlocks);
+  }
+
+  private void cancelSeekRead() {
+    if (seekReadOffset >= 0) {
+      reader.cancelBlockRead(seekReadOffset);
+      seekReadOffset = -1;
+    }
+  }
+
   public boolean reseek(Cell key) throws IOException {
     if (seekCount != null) seekCount.incrementAndGet();
 
@@ -231,8 +252,9 @@ public class StoreFileScanner implements KeyValueScanner {
   }
 
   public void close() {
-    // Nothing to close on HFileScanner?
     cur = null;
+    cancelSeekRead();
+    hfs.close();
   }
 
   /**
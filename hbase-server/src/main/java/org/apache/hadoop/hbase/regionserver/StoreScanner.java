@@ -20,11 +20,9 @@
 package org.apache.hadoop.hbase.regionserver;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NavigableSet;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
@@ -40,10 +38,8 @@ import org.apache.hadoop.hbase.KeyValue.KVComparator;
 import org.apache.hadoop.hbase.KeyValueUtil;
 import org.apache.hadoop.hbase.client.IsolationLevel;
 import org.apache.hadoop.hbase.client.Scan;
-import org.apache.hadoop.hbase.executor.ExecutorService;
 import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.regionserver.ScanQueryMatcher.MatchCode;
-import org.apache.hadoop.hbase.regionserver.handler.ParallelSeekHandler;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
 
@@ -74,7 +70,6 @@ public class StoreScanner extends NonReversedNonLazyKeyValueScanner
    * A flag that enables StoreFileScanner parallel-seeking
    */
   protected boolean isParallelSeekEnabled = false;
-  protected ExecutorService executor;
   protected final Scan scan;
   protected final NavigableSet<byte[]> columns;
   protected final long oldestUnexpiredTS;
@@ -155,7 +150,6 @@ public class StoreScanner extends NonReversedNonLazyKeyValueScanner
       if (rsService == null || !rsService.getConfiguration().getBoolean(
             STORESCANNER_PARALLEL_SEEK_ENABLE, false)) return;
       isParallelSeekEnabled = true;
-      executor = rsService.getExecutorService();
     }
   }
 
@@ -185,6 +179,9 @@ public class StoreScanner extends NonReversedNonLazyKeyValueScanner
 
     // Pass columns to try to filter out unnecessary StoreFiles.
     List<KeyValueScanner> scanners = getScannersNoCompaction();
+    if (scanUsePread && !isGet && cacheBlocks) {
+      fetchDataBlocks(scanners);
+    }
 
     // Seek all scanners to the start of the Row (or if the exact matching row
     // key does not exist, then to the start of the next matching Row).
@@ -348,6 +345,33 @@ public class StoreScanner extends NonReversedNonLazyKeyValueScanner
     }
   }
 
+  /**
+   * Reads the data blocks of a short scan into the block cache up front, those of each store
+   * file from the start row to the stop row in one read where they are few enough, rather than
+   * block by block as the scan goes.
+   */
+  private void fetchDataBlocks(List<KeyValueScanner> scanners) {
+    byte[] family = store.getFamily().getName();
+    List<Cell> keys = new ArrayList<Cell>(2);
+    keys.add(KeyValueUtil.createFirstOnRow(scan.getStartRow(), family, null));
+    if (!Bytes.equals(scan.getStopRow(), HConstants.EMPTY_END_ROW)) {
+      keys.add(KeyValueUtil.createFirstOnRow(scan.getStopRow(), family, null));
+    }
+    for (KeyValueScanner scanner : scanners) {
+      if (!(scanner instanceof StoreFileScanner)) {
+        continue;
+      }
+      try {
+        ((StoreFileScanner) scanner).getReader().fetchDataBlocks(keys, true, true);
+      } catch (IOException e) {
+        // The seek reads the blocks itself, running into the failure if it is real
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Failed fetching the data blocks of a scan of " + store, e);
+        }
+      }
+    }
+  }
+
   protected void resetKVHeap(List<? extends KeyValueScanner> scanners,
       KVComparator comparator) throws IOException {
     // Combine all seeked scanners with a heap
@@ -784,7 +808,8 @@ public class StoreScanner extends NonReversedNonLazyKeyValueScanner
   }
 
   /**
-   * Seek storefiles in parallel to optimize IO latency as much as possible
+   * Seeks the scanners, reading the data blocks the store file scanners land in all at once in
+   * the background first, so that each seek only waits for its own block.
    * @param scanners the list {@link KeyValueScanner}s to be read from
    * @param kv the KeyValue on which the operation is being requested
    * @throws IOException
@@ -792,32 +817,13 @@ public class StoreScanner extends NonReversedNonLazyKeyValueScanner
   private void parallelSeek(final List<? extends KeyValueScanner>
       scanners, final Cell kv) throws IOException {
     if (scanners.isEmpty()) return;
-    int storeFileScannerCount = scanners.size();
-    CountDownLatch latch = new CountDownLatch(storeFileScannerCount);
-    List<ParallelSeekHandler> handlers = 
-        new ArrayList<ParallelSeekHandler>(storeFileScannerCount);
     for (KeyValueScanner scanner : scanners) {
       if (scanner instanceof StoreFileScanner) {
-        ParallelSeekHandler seekHandler = new ParallelSeekHandler(scanner, kv,
-          this.readPt, latch);
-        executor.submit(seekHandler);
-        handlers.add(seekHandler);
-      } else {
-        scanner.seek(kv);
-        latch.countDown();
+        ((StoreFileScanner) scanner).startSeekRead(kv, cacheBlocks);
       }
     }
-
-    try {
-      latch.await();
-    } catch (InterruptedException ie) {
-      throw (InterruptedIOException)new InterruptedIOException().initCause(ie);
-    }
-
-    for (ParallelSeekHandler handler : handlers) {
-      if (handler.getErr() != null) {
-        throw new IOException(handler.getErr());
-      }
+    for (KeyValueScanner scanner : scanners) {
+      scanner.seek(kv);
     }
   }
 
@@ -0,0 +1,252 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.util.Threads;
+
+/**
+ * An output stream whose writes never block and whose syncs complete through a callback.
+ * <p>
+ * Writes are buffered in memory. {@link #sync(SyncCallback)} hands what was written so far to a
+ * single I/O thread and returns. The I/O thread takes all syncs that queued up while it was busy,
+ * writes their bytes out to the wrapped stream, runs one <code>hflush</code> for all of them and
+ * then calls their callbacks, in the order the syncs were asked for. Syncs that arrive while a
+ * <code>hflush</code> is in flight are so batched into the next one, without a thread per sync
+ * waiting on the filesystem.
+ * <p>
+ * Once a write to or a sync of the wrapped stream failed, all syncs after it fail with the same
+ * error; the stream needs to be replaced.
+ * <p>
+ * {@link #write(byte[], int, int)} and {@link #sync(SyncCallback)} are meant to be called by a
+ * single thread, like the WAL ring buffer consumer. Callbacks run on the I/O thread and must not
+ * block.
+ */
+@InterfaceAudience.Private
+public class AsyncFSOutput extends OutputStream {
+  private static final Log LOG = LogFactory.getLog(AsyncFSOutput.class);
+
+  /**
+   * Told of the outcome of a {@link AsyncFSOutput#sync(SyncCallback)}.
+   */
+  public interface SyncCallback {
+    /**
+     * Called from the I/O thread.
+     * @param t Null if all bytes written before the sync were flushed out, else why they
+     * were not.
+     */
+    void syncDone(Throwable t);
+  }
+
+  /**
+   * Bytes to write out and who to tell once they have been flushed.
+   */
+  private static class SyncRequest {
+    private final ByteArrayOutputStream data;
+    private final SyncCallback callback;
+
+    SyncRequest(final ByteArrayOutputStream data, final SyncCallback callback) {
+      this.data = data;
+      this.callback = callback;
+    }
+  }
+
+  // Tells the I/O thread to exit
+  private static final SyncRequest CLOSE = new SyncRequest(null, null);
+
+  private final FSDataOutputStream out;
+  private final int bufferSize;
+  private final BlockingQueue<SyncRequest> syncRequests = new LinkedBlockingQueue<SyncRequest>();
+  private final Thread ioThread;
+  private ByteArrayOutputStream buffer;
+  // Position of the wrapped stream when we were made, plus all bytes written to us since
+  private volatile long length;
+  private volatile Throwable failure;
+  private boolean closed = false;
+
+  /**
+   * @param out Stream to write to. Not closed by {@link #close()}.
+   * @param bufferSize Initial size of the buffer collecting writes between syncs.
+   * @param name Name of the I/O thread.
+   * @throws IOException If we fail to get the position of <code>out</code>.
+   */
+  public AsyncFSOutput(final FSDataOutputStream out, final int bufferSize, final String name)
+  throws IOException {
+    this.out = out;
+    this.bufferSize = bufferSize;
+    this.buffer = new ByteArrayOutputStream(bufferSize);
+    this.length = out.getPos();
+    this.ioThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runSyncs();
+      }
+    });
+    Threads.setDaemonThreadRunning(this.ioThread, name);
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    this.buffer.write(b);
+    this.length++;
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    this.buffer.write(b, off, len);
+    this.length += len;
+  }
+
+  /**
+   * Does nothing. Use one of the sync methods to get written bytes out.
+   */
+  @Override
+  public void flush() {
+  }
+
+  /**
+   * Starts getting all bytes written so far out to the filesystem. Does not block.
+   * @param callback Called once the bytes are out, or failed to get out.
+   */
+  public void sync(final SyncCallback callback) {
+    ByteArrayOutputStream data;
+    synchronized (this) {
+      if (this.closed) {
+        callback.syncDone(new IOException("Stream closed"));
+        return;
+      }
+      data = this.buffer;
+      this.buffer = new ByteArrayOutputStream(this.bufferSize);
+      // Add under the lock so syncs are queued in the order their bytes were written
+      this.syncRequests.add(new SyncRequest(data, callback));
+    }
+  }
+
+  /**
+   * Gets all bytes written so far out to the filesystem and waits till they are.
+   * @throws IOException If the bytes could not be written out.
+   */
+  public void sync() throws IOException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final Throwable [] result = new Throwable[1];
+    sync(new SyncCallback() {
+      @Override
+      public void syncDone(Throwable t) {
+        result[0] = t;
+        latch.countDown();
+      }
+    });
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      IOException ioe = new InterruptedIOException();
+      ioe.initCause(e);
+      throw ioe;
+    }
+    if (result[0] != null) {
+      throw result[0] instanceof IOException? (IOException)result[0]: new IOException(result[0]);
+    }
+  }
+
+  /**
+   * @return Length of the file once all bytes written so far are out.
+   */
+  public long getLength() {
+    return this.length;
+  }
+
+  /**
+   * Gets all bytes written so far out and stops the I/O thread. The wrapped stream is left
+   * open, the caller may append a trailer to it before closing it.
+   * @throws IOException If the bytes could not be written out.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (this.closed) return;
+    }
+    try {
+      sync();
+    } finally {
+      synchronized (this) {
+        this.closed = true;
+        this.syncRequests.add(CLOSE);
+      }
+      try {
+        this.ioThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void runSyncs() {
+    List<SyncRequest> batch = new ArrayList<SyncRequest>();
+    while (true) {
+      try {
+        batch.add(this.syncRequests.take());
+      } catch (InterruptedException e) {
+        // Only close stops us; syncs queued behind would never complete otherwise.
+        LOG.warn("Interrupted; continuing until closed");
+        continue;
+      }
+      this.syncRequests.drainTo(batch);
+      boolean close = batch.get(batch.size() - 1) == CLOSE;
+      if (close) batch.remove(batch.size() - 1);
+      if (!batch.isEmpty()) {
+        Throwable t = this.failure;
+        if (t == null) {
+          try {
+            for (SyncRequest request: batch) {
+              request.data.writeTo(this.out);
+            }
+            this.out.flush();
+            this.out.hflush();
+          } catch (Throwable e) {
+            // Includes NPE from DFSOutputStream on a concurrent close
+            LOG.warn("Failed sync; failing this and all later syncs", e);
+            this.failure = t = e;
+          }
+        }
+        for (SyncRequest request: batch) {
+          try {
+            request.callback.syncDone(t);
+          } catch (Throwable e) {
+            LOG.warn("Sync callback threw; continuing", e);
+          }
+        }
+        batch.clear();
+      }
+      if (close) return;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.wal.WALProvider.Writer;
+
+/**
+ * A {@link FSHLog} that syncs without <code>SyncRunner</code> threads.
+ * <p>
+ * Appends go through the ring buffer as in {@link FSHLog}, but are written by an
+ * {@link AsyncProtobufLogWriter} which only serializes them into memory. When the ring buffer
+ * consumer has a batch of syncs, it hands them to the writer along with a callback and goes back
+ * to the ring buffer. The writer's I/O thread flushes the batch, and any that queued up behind
+ * it, with a single <code>hflush</code> and then runs the callback, which marks the
+ * {@link SyncFuture}s done. There is no thread parked per outstanding sync and no handoff from
+ * the consumer to a sync thread.
+ */
+@InterfaceAudience.Private
+public class AsyncFSWAL extends FSHLog {
+
+  /**
+   * @see FSHLog#FSHLog(FileSystem, Path, String, String, Configuration, List, boolean, String,
+   * String)
+   */
+  public AsyncFSWAL(final FileSystem fs, final Path rootDir, final String logDir,
+      final String archiveDir, final Configuration conf,
+      final List<WALActionsListener> listeners,
+      final boolean failIfWALExists, final String prefix, final String suffix)
+      throws IOException {
+    super(fs, rootDir, logDir, archiveDir, conf, listeners, failIfWALExists, prefix, suffix);
+  }
+
+  /**
+   * Called from the constructor of {@link FSHLog}; must not use any state of ours.
+   */
+  @Override
+  protected Writer createWriterInstance(final Path path) throws IOException {
+    AsyncProtobufLogWriter writer = new AsyncProtobufLogWriter();
+    writer.init(this.fs, path, this.conf, false);
+    return writer;
+  }
+
+  @Override
+  int getSyncRunnerCount() {
+    return 0;
+  }
+
+  @Override
+  boolean syncAsync(final long sequence, final SyncFuture [] syncFutures,
+      final int syncFutureCount) {
+    // Copy, the consumer reuses the array for the next batch
+    final SyncFuture [] batch = Arrays.copyOf(syncFutures, syncFutureCount);
+    final long start = System.nanoTime();
+    preSync(batch[0], start);
+    // The writer is only swapped at a safe point, when no syncs are outstanding
+    ((AsyncProtobufLogWriter)this.writer).sync(new AsyncFSOutput.SyncCallback() {
+      @Override
+      public void syncDone(Throwable t) {
+        syncCompleted(sequence, batch, t, System.nanoTime() - start);
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Does for an async sync what a <code>SyncRunner</code> does once its sync returns.
+   */
+  private void syncCompleted(long sequence, final SyncFuture [] syncFutures, final Throwable t,
+      final long timeInNanos) {
+    if (t == null) {
+      sequence = updateHighestSyncedSequence(sequence);
+    } else {
+      LOG.error("Error syncing, request close of wal ", t);
+    }
+    for (SyncFuture syncFuture: syncFutures) {
+      if (!syncFuture.done(sequence, t)) throw new IllegalStateException(syncFuture.toString());
+    }
+    if (t != null) {
+      requestLogRoll();
+    } else {
+      checkLogRoll();
+    }
+    postSync(timeInNanos, syncFutures.length);
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.wal.WAL.Entry;
+
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Writer for protobuf-based WAL that appends through an {@link AsyncFSOutput}. Appends only
+ * serialize into memory; {@link #sync(AsyncFSOutput.SyncCallback)} gets them out to the
+ * filesystem without blocking the caller. The files written are the same as those of
+ * {@link ProtobufLogWriter}.
+ */
+@InterfaceAudience.Private
+public class AsyncProtobufLogWriter extends ProtobufLogWriter {
+  /** Initial size of the buffer collecting appends between two syncs */
+  public static final String BUFFER_SIZE_KEY = "hbase.regionserver.wal.async.buffer.size";
+  static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private Path path;
+  protected AsyncFSOutput asyncOutput;
+
+  @Override
+  public void init(FileSystem fs, Path path, Configuration conf, boolean overwritable)
+  throws IOException {
+    this.path = path;
+    super.init(fs, path, conf, overwritable);
+  }
+
+  @Override
+  protected Compression.Algorithm getBlockCompression(Configuration conf) {
+    // Entries go to the async output as they come; there is no block to gather them in.
+    return null;
+  }
+
+  @Override
+  protected void initAfterHeader(boolean doCompress) throws IOException {
+    // The header went straight to the stream; all that follows goes by way of the async output.
+    this.asyncOutput = new AsyncFSOutput(this.output,
+        conf.getInt(BUFFER_SIZE_KEY, DEFAULT_BUFFER_SIZE), "AsyncFSOutput-" + path.getName());
+    WALCellCodec codec = getCodec(conf, this.compressionContext);
+    this.cellEncoder = codec.getEncoder(this.asyncOutput);
+    this.keyOutput = CodedOutputStream.newInstance(this.asyncOutput);
+    if (doCompress) {
+      this.compressor = codec.getByteStringCompressor();
+    }
+  }
+
+  @Override
+  public void append(Entry entry) throws IOException {
+    entry.setCompressionContext(compressionContext);
+    // The async output is already a buffer; no need to go by way of another.
+    writeEntry(entry);
+  }
+
+  /**
+   * Starts a sync of all appends so far. Does not block.
+   * @param callback Called once the sync completes, from the I/O thread.
+   */
+  public void sync(final AsyncFSOutput.SyncCallback callback) {
+    this.asyncOutput.sync(callback);
+  }
+
+  @Override
+  public void sync() throws IOException {
+    try {
+      this.asyncOutput.sync();
+    } catch (NullPointerException npe) {
+      // Concurrent close...
+      throw new IOException(npe);
+    }
+  }
+
+  @Override
+  public long getLength() throws IOException {
+    try {
+      return this.asyncOutput.getLength();
+    } catch (NullPointerException npe) {
+      // Concurrent close...
+      throw new IOException(npe);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.asyncOutput != null) {
+      try {
+        // Get out what was appended since the last sync; the trailer goes straight to the stream.
+        this.asyncOutput.close();
+      } finally {
+        this.asyncOutput = null;
+        super.close();
+      }
+    }
+  }
+}
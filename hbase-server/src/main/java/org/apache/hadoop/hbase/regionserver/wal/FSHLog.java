@@ -46,6 +46,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
@@ -196,6 +197,24 @@ public class FSHLog implements WAL {
    */
   private final AtomicLong highestSyncedSequence = new AtomicLong(0);
 
+  /**
+   * Count and approx size of the appends handed to the writer. Only written by the ring buffer
+   * consumer.
+   */
+  private volatile long appendedEntries = 0;
+  private volatile long appendedBytes = 0;
+
+  /**
+   * {@link #appendedEntries} and {@link #appendedBytes} as of the start of the latest sync.
+   */
+  private final AtomicLong syncedEntries = new AtomicLong(0);
+  private final AtomicLong syncedBytes = new AtomicLong(0);
+
+  /**
+   * Decides how long SyncRunners hold a sync for others to join it.
+   */
+  private final GroupCommitTuner groupCommitTuner;
+
   /**
    * file system instance
    */
@@ -549,6 +568,7 @@ public class FSHLog implements WAL {
     this.slowSyncNs =
         1000000 * conf.getInt("hbase.regionserver.hlog.slowsync.ms",
           DEFAULT_SLOW_SYNC_TIME_MS);
+    this.groupCommitTuner = new GroupCommitTuner(conf);
     // handle the reflection necessary to call getNumCurrentReplicas(). TODO: Replace with
     // HdfsDataOutputStream#getCurrentBlockReplication() and go without reflection.
     this.getNumCurrentReplicas = getGetNumCurrentReplicas(this.hdfs_out);
@@ -574,8 +594,7 @@ public class FSHLog implements WAL {
     // because SyncFuture.NOT_DONE = 0.
     this.disruptor.getRingBuffer().next();
     this.ringBufferEventHandler =
-      new RingBufferEventHandler(conf.getInt("hbase.regionserver.hlog.syncer.count", 5),
-        maxHandlersCount);
+      new RingBufferEventHandler(getSyncRunnerCount(), maxHandlersCount);
     this.disruptor.handleExceptionsWith(new RingBufferExceptionHandler());
     this.disruptor.handleEventsWith(new RingBufferEventHandler [] {this.ringBufferEventHandler});
     // Presize our map of SyncFutures by handler objects.
@@ -1184,6 +1203,8 @@ public class FSHLog implements WAL {
   private class SyncRunner extends HasThread {
     private volatile long sequence;
     private final BlockingQueue<SyncFuture> syncFutures;
+    // True while we hold our sync for more syncs to join it
+    private volatile boolean gathering = false;
  
     /**
      * UPDATE! 
@@ -1253,22 +1274,20 @@ public class FSHLog implements WAL {
     }
 
     /**
-     * @param sequence The sequence we ran the filesystem sync against.
-     * @return Current highest synced sequence.
+     * Wait <code>waitNanos</code>, letting the ring buffer consumer know it should hand any syncs
+     * meantime to us.
      */
-    private long updateHighestSyncedSequence(long sequence) {
-      long currentHighestSyncedSequence;
-      // Set the highestSyncedSequence IFF our current sequence id is the 'highest'.
-      do {
-        currentHighestSyncedSequence = highestSyncedSequence.get();
-        if (currentHighestSyncedSequence >= sequence) {
-          // Set the sync number to current highwater mark; might be able to let go more
-          // queued sync futures
-          sequence = currentHighestSyncedSequence;
-          break;
+    private void gather(final long waitNanos) {
+      this.gathering = true;
+      try {
+        long deadline = System.nanoTime() + waitNanos;
+        for (long left = waitNanos; left > 0 && !isInterrupted();
+            left = deadline - System.nanoTime()) {
+          LockSupport.parkNanos(this, left);
         }
-      } while (!highestSyncedSequence.compareAndSet(currentHighestSyncedSequence, sequence));
-      return sequence;
+      } finally {
+        this.gathering = false;
+      }
     }
 
     public void run() {
@@ -1295,15 +1314,24 @@ public class FSHLog implements WAL {
             }
             break;
           }
-          // I got something.  Lets run.  Save off current sequence number in case it changes
-          // while we run.
+          // I got something.  If the filesystem is busy, hold on a little so more appends and
+          // syncs can make it into this sync.
+          long waitNanos = groupCommitTuner.getWaitNanos();
+          if (waitNanos > 0) {
+            gather(waitNanos);
+            // Syncs may have been offered us meantime; their appends are with the writer too.
+            currentSequence = this.sequence;
+          }
+          // Lets run.  Save off current sequence number in case it changes while we run.
           TraceScope scope = Trace.continueSpan(takeSyncFuture.getSpan());
           long start = System.nanoTime();
+          preSync(takeSyncFuture, start);
           Throwable t = null;
           try {
             Trace.addTimelineAnnotation("syncing writer");
             writer.sync();
             Trace.addTimelineAnnotation("writer synced");
+            groupCommitTuner.syncCompleted(System.nanoTime() - start);
             currentSequence = updateHighestSyncedSequence(currentSequence);
           } catch (IOException e) {
             LOG.error("Error syncing, request close of wal ", e);
@@ -1333,6 +1361,49 @@ public class FSHLog implements WAL {
     }
   }
 
+  /**
+   * @param sequence The sequence we ran the filesystem sync against.
+   * @return Current highest synced sequence.
+   */
+  long updateHighestSyncedSequence(long sequence) {
+    long currentHighestSyncedSequence;
+    // Set the highestSyncedSequence IFF our current sequence id is the 'highest'.
+    do {
+      currentHighestSyncedSequence = highestSyncedSequence.get();
+      if (currentHighestSyncedSequence >= sequence) {
+        // Set the sync number to current highwater mark; might be able to let go more
+        // queued sync futures
+        sequence = currentHighestSyncedSequence;
+        break;
+      }
+    } while (!highestSyncedSequence.compareAndSet(currentHighestSyncedSequence, sequence));
+    return sequence;
+  }
+
+  /**
+   * Called by the ring buffer consumer when it has a batch of syncs to run. The default returns
+   * false and the batch is handed to one of the {@link SyncRunner}s. A subclass whose writer can
+   * sync without blocking a thread can instead start the sync here, take over the passed futures
+   * and return true; it is then up to it to update the highest synced sequence and to mark the
+   * futures done when the sync completes. Must not block.
+   * @param sequence The sequence on the ring buffer of the last sync in the batch; all appends up
+   * to here have been handed to the writer.
+   * @param syncFutures The futures to complete. The array is reused once this method returns.
+   * @param syncFutureCount How many of <code>syncFutures</code> are in the batch.
+   * @return True if the sync was started here.
+   */
+  boolean syncAsync(final long sequence, final SyncFuture [] syncFutures,
+      final int syncFutureCount) {
+    return false;
+  }
+
+  /**
+   * @return How many {@link SyncRunner} threads to run. Called from the constructor.
+   */
+  int getSyncRunnerCount() {
+    return this.conf.getInt("hbase.regionserver.hlog.syncer.count", 5);
+  }
+
   /**
    * Schedule a log roll if needed.
    */
@@ -1454,7 +1525,7 @@ public class FSHLog implements WAL {
     return syncFuture.reset(sequence, span);
   }
 
-  private void postSync(final long timeInNanos, final int handlerSyncs) {
+  void postSync(final long timeInNanos, final int handlerSyncs) {
     if (timeInNanos > this.slowSyncNs) {
       String msg =
           new StringBuilder().append("Slow sync cost: ")
@@ -1470,6 +1541,34 @@ public class FSHLog implements WAL {
     }
   }
 
+  /**
+   * Tell listeners about a sync about to start.
+   * @param oldest The first, so oldest, of the syncs this sync will release.
+   * @param startNanos When the sync starts.
+   */
+  void preSync(final SyncFuture oldest, final long startNanos) {
+    if (listeners.isEmpty()) return;
+    long entries = advanceTo(this.syncedEntries, this.appendedEntries);
+    long bytes = advanceTo(this.syncedBytes, this.appendedBytes);
+    long waitTime = startNanos - oldest.getStartNanos();
+    for (WALActionsListener listener : listeners) {
+      listener.preSync(entries, bytes, waitTime);
+    }
+  }
+
+  /**
+   * Moves <code>counter</code> up to <code>value</code>.
+   * @return How much it moved; 0 if it was at or past <code>value</code> already.
+   */
+  private static long advanceTo(final AtomicLong counter, final long value) {
+    long current;
+    do {
+      current = counter.get();
+      if (current >= value) return 0;
+    } while (!counter.compareAndSet(current, value));
+    return value - current;
+  }
+
   private long postAppend(final Entry e, final long elapsedTime) {
     long len = 0;
     if (!listeners.isEmpty()) {
@@ -1819,6 +1918,17 @@ public class FSHLog implements WAL {
       }
     }
 
+    /**
+     * @return Index of a SyncRunner holding its sync for others to join, else of the next
+     * SyncRunner round robin.
+     */
+    private int nextSyncRunnerIndex() {
+      for (int i = 0; i < this.syncRunners.length; i++) {
+        if (this.syncRunners[i].gathering) return i;
+      }
+      return (this.syncRunnerIndex + 1) % this.syncRunners.length;
+    }
+
     private void cleanupOutstandingSyncsOnException(final long sequence, final Exception e) {
       for (int i = 0; i < this.syncFuturesCount; i++) this.syncFutures[i].done(sequence, e);
       this.syncFuturesCount = 0;
@@ -1880,13 +1990,17 @@ public class FSHLog implements WAL {
         //     ensuring that it can't grow without bound and overflow.
         //   * note that the value after the increment must be positive, because the most it could have
         //     been prior was Integer.MAX_INT - 1 and we only increment by 1.
-        this.syncRunnerIndex = (this.syncRunnerIndex + 1) % this.syncRunners.length;
         try {
           // Below expects that the offer 'transfers' responsibility for the outstanding syncs to the
           // syncRunner. We should never get an exception in here. HBASE-11145 was because queue
           // was sized exactly to the count of user handlers but we could have more if we factor in
           // meta handlers doing opens and closes.
-          this.syncRunners[this.syncRunnerIndex].offer(sequence, this.syncFutures, this.syncFuturesCount);
+          groupCommitTuner.syncRequested(System.nanoTime());
+          if (!syncAsync(sequence, this.syncFutures, this.syncFuturesCount)) {
+            this.syncRunnerIndex = nextSyncRunnerIndex();
+            this.syncRunners[this.syncRunnerIndex].offer(sequence, this.syncFutures,
+              this.syncFuturesCount);
+          }
         } catch (Exception e) {
           cleanupOutstandingSyncsOnException(sequence, e);
           throw e;
@@ -1979,7 +2093,8 @@ public class FSHLog implements WAL {
         
         coprocessorHost.postWALWrite(entry.getHRegionInfo(), entry.getKey(), entry.getEdit());
         // Update metrics.
-        postAppend(entry, EnvironmentEdgeManager.currentTime() - start);
+        appendedBytes += postAppend(entry, EnvironmentEdgeManager.currentTime() - start);
+        appendedEntries++;
       } catch (Exception e) {
         LOG.warn("Could not append. Requesting close of wal", e);
         requestLogRoll();
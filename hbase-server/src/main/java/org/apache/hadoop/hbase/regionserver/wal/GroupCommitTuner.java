@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+
+/**
+ * Works out how long a WAL sync should be held back so more appends and syncs can join it.
+ * <p>
+ * Holding a sync only pays when the filesystem is the bottleneck: if batches of syncs arrive
+ * further apart than a sync takes, there is no one to wait for and any hold is added latency.
+ * So we keep moving averages of the sync latency and of the gap between batches of syncs
+ * handed over by the ring buffer consumer. While batches arrive faster than syncs complete,
+ * the window is a fraction of the sync latency, capped at a few arrival gaps (waiting longer
+ * gathers little more) and at a configured maximum. Otherwise it is zero.
+ * <p>
+ * The maximum is set with {@link #MAX_WAIT_KEY}; the default of zero turns holding off.
+ */
+@InterfaceAudience.Private
+class GroupCommitTuner {
+  /** Longest a sync will be held, in microseconds. Zero turns holding off. */
+  static final String MAX_WAIT_KEY = "hbase.regionserver.wal.groupcommit.max.wait.us";
+  static final long DEFAULT_MAX_WAIT_US = 0;
+
+  // Weight of a new sample in the moving averages
+  private static final double ALPHA = 0.1;
+  // Hold a sync for at most this fraction of the sync latency...
+  private static final double SYNC_FRACTION = 0.5;
+  // ...and for no more than this many arrival gaps
+  private static final int MAX_ARRIVALS = 4;
+
+  private final long maxWaitNanos;
+  private double avgSyncNanos = 0;
+  private double avgArrivalGapNanos = Double.MAX_VALUE;
+  private long lastArrivalNanos = 0;
+  private volatile long waitNanos = 0;
+
+  GroupCommitTuner(final Configuration conf) {
+    this(TimeUnit.MICROSECONDS.toNanos(conf.getLong(MAX_WAIT_KEY, DEFAULT_MAX_WAIT_US)));
+  }
+
+  GroupCommitTuner(final long maxWaitNanos) {
+    this.maxWaitNanos = maxWaitNanos;
+  }
+
+  /**
+   * Called when a batch of syncs is handed over to be synced.
+   * @param nowNanos Current {@link System#nanoTime()}.
+   */
+  synchronized void syncRequested(final long nowNanos) {
+    if (this.maxWaitNanos <= 0) return;
+    if (this.lastArrivalNanos != 0) {
+      double gap = nowNanos - this.lastArrivalNanos;
+      this.avgArrivalGapNanos = this.avgArrivalGapNanos == Double.MAX_VALUE ?
+          gap : ALPHA * gap + (1 - ALPHA) * this.avgArrivalGapNanos;
+    }
+    this.lastArrivalNanos = nowNanos;
+    tune();
+  }
+
+  /**
+   * Called when a filesystem sync succeeded.
+   * @param syncNanos How long the sync took, not counting any hold.
+   */
+  synchronized void syncCompleted(final long syncNanos) {
+    if (this.maxWaitNanos <= 0) return;
+    this.avgSyncNanos = this.avgSyncNanos == 0 ?
+        syncNanos : ALPHA * syncNanos + (1 - ALPHA) * this.avgSyncNanos;
+    tune();
+  }
+
+  private void tune() {
+    if (this.avgArrivalGapNanos >= this.avgSyncNanos) {
+      // Light load; nothing would join a held sync.
+      this.waitNanos = 0;
+      return;
+    }
+    double window = Math.min(SYNC_FRACTION * this.avgSyncNanos,
+        MAX_ARRIVALS * this.avgArrivalGapNanos);
+    this.waitNanos = Math.min(this.maxWaitNanos, (long) window);
+  }
+
+  /**
+   * @return How long to hold the next sync, in nanoseconds.
+   */
+  long getWaitNanos() {
+    return this.waitNanos;
+  }
+}
@@ -50,6 +50,13 @@ public class MetricsWAL extends WALActionsListener.Base {
     source.incrementSyncTime(timeInNanos/1000000L);
   }
 
+  @Override
+  public void preSync(final long appends, final long bytes, final long waitTimeNanos) {
+    source.incrementAppendsPerSync(appends);
+    source.incrementBytesPerSync(bytes);
+    source.incrementSyncWaitTime(waitTimeNanos/1000000L);
+  }
+
   @Override
   public void postAppend(final long size, final long time) {
     source.incrementAppendCount();
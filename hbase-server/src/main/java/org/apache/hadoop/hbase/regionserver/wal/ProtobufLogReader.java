@@ -19,6 +19,7 @@
 
 package org.apache.hadoop.hbase.regionserver.wal;
 
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -35,6 +36,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.hbase.codec.Codec;
 import org.apache.hadoop.hbase.io.LimitInputStream;
+import org.apache.hadoop.hbase.io.compress.Compression;
 import org.apache.hadoop.hbase.HBaseInterfaceAudience;
 import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
 import org.apache.hadoop.hbase.protobuf.generated.WALProtos;
@@ -57,6 +59,16 @@ import com.google.protobuf.InvalidProtocolBufferException;
  * {@link ProtobufLogReader#initReader(FSDataInputStream)}. A WALTrailer is an extensible structure
  * which is appended at the end of the WAL. This is empty for now; it can contain some meta
  * information such as Region level stats, etc in future.
+ * <p>
+ * A WAL written with block compression names {@link #BLOCK_WRITER_CLS_NAME} as its writer in
+ * the header, and has blocks where the WALEdits would be, each of them
+ * &lt;onDiskSize int&gt;&lt;uncompressedSize int&gt;&lt;Compression.Algorithm ordinal byte&gt;
+ * &lt;onDiskSize bytes of WALEdits, compressed&gt;. Positions handed out while in a block are
+ * those of the block, so a seek lands on a block. Seeking a reader back to the block it read
+ * its last entry from, as replication does after a {@link #reset()}, goes on from the entry
+ * after that one. Any other seek to a block reads it from its first entry: a new reader resuming
+ * from a position handed out in a block, as replication does after a restart, reads entries
+ * again.
  */
 @InterfaceAudience.LimitedPrivate({HBaseInterfaceAudience.COPROC, HBaseInterfaceAudience.PHOENIX, HBaseInterfaceAudience.CONFIG})
 public class ProtobufLogReader extends ReaderBase {
@@ -71,6 +83,12 @@ public class ProtobufLogReader extends ReaderBase {
    * Configuration name of WAL Trailer's warning size. If a waltrailer's size is greater than the
    * configured size, providers should log a warning. e.g. this is used with Protobuf reader/writer.
    */
+  /**
+   * Writer class name in the header of a WAL written in compressed blocks. Not the name of a
+   * class, so that readers which do not know of blocks refuse the WAL.
+   */
+  static final String BLOCK_WRITER_CLS_NAME = "ProtobufLogWriter.Blocks";
+  static final int BLOCK_HEADER_SIZE = Bytes.SIZEOF_INT * 2 + Bytes.SIZEOF_BYTE;
   static final String WAL_TRAILER_WARN_SIZE = "hbase.regionserver.waltrailer.warn.size";
   static final int DEFAULT_WAL_TRAILER_WARN_SIZE = 1024 * 1024; // 1MB
 
@@ -79,6 +97,13 @@ public class ProtobufLogReader extends ReaderBase {
   protected WALCellCodec.ByteStringUncompressor byteStringUncompressor;
   protected boolean hasCompression = false;
   protected boolean hasTagCompression = false;
+  protected boolean hasBlocks = false;
+  // The block entries are being read from, and where in the file it starts.
+  private BlockInputStream block;
+  private long blockPosition = -1;
+  // The block the last entry was read from, and where in it that entry ends, if not at its end.
+  private long lastEntryBlockPosition = -1;
+  private int lastEntryBlockOffset;
   // walEditsStopOffset is the position of the last byte to read. After reading the last WALEdit entry
   // in the wal, the inputstream's position is equal to walEditsStopOffset.
   private long walEditsStopOffset;
@@ -90,6 +115,7 @@ public class ProtobufLogReader extends ReaderBase {
   private static List<String> writerClsNames = new ArrayList<String>();
   static {
     writerClsNames.add(ProtobufLogWriter.class.getSimpleName());
+    writerClsNames.add(BLOCK_WRITER_CLS_NAME);
   }
 
   enum WALHdrResult {
@@ -129,9 +155,23 @@ public class ProtobufLogReader extends ReaderBase {
 
   @Override
   public long getPosition() throws IOException {
+    if (isInBlock()) return this.blockPosition;
     return inputStream.getPos();
   }
 
+  private boolean isInBlock() {
+    return this.block != null && this.block.available() > 0;
+  }
+
+  @Override
+  public void seek(long pos) throws IOException {
+    super.seek(pos);
+    if (this.hasBlocks && pos == this.lastEntryBlockPosition && readBlock()) {
+      // Skipped rather than read again, which would also upset any compression dictionaries
+      this.block.skip(this.lastEntryBlockOffset);
+    }
+  }
+
   @Override
   public void reset() throws IOException {
     String clsName = initInternal(null, false);
@@ -197,6 +237,10 @@ public class ProtobufLogReader extends ReaderBase {
       WALProtos.WALHeader header = builder.build();
       this.hasCompression = header.hasHasCompression() && header.getHasCompression();
       this.hasTagCompression = header.hasHasTagCompression() && header.getHasTagCompression();
+      this.hasBlocks = BLOCK_WRITER_CLS_NAME.equals(header.getWriterClsName());
+      if (this.hasBlocks) {
+        this.block = new BlockInputStream();
+      }
     }
     this.inputStream = stream;
     this.walEditsStopOffset = this.fileLength;
@@ -276,7 +320,7 @@ public class ProtobufLogReader extends ReaderBase {
   @Override
   protected void initAfterCompression(String cellCodecClsName) throws IOException {
     WALCellCodec codec = getCodec(this.conf, cellCodecClsName, this.compressionContext);
-    this.cellDecoder = codec.getDecoder(this.inputStream);
+    this.cellDecoder = codec.getDecoder(this.hasBlocks ? this.block : this.inputStream);
     if (this.hasCompression) {
       this.byteStringUncompressor = codec.getByteStringUncompressor();
     }
@@ -294,6 +338,9 @@ public class ProtobufLogReader extends ReaderBase {
 
   @Override
   protected boolean readNext(Entry entry) throws IOException {
+    if (this.hasBlocks) {
+      return readNextFromBlocks(entry);
+    }
     while (true) {
       // OriginalPosition might be < 0 on local fs; if so, it is useless to us.
       long originalPosition = this.inputStream.getPos();
@@ -375,6 +422,97 @@ public class ProtobufLogReader extends ReaderBase {
     }
   }
 
+  private boolean readNextFromBlocks(Entry entry) throws IOException {
+    while (true) {
+      if (!isInBlock() && !readBlock()) {
+        return false;
+      }
+      // The block was read whole; anything amiss in it is corruption, not a WAL cut short.
+      WALKey.Builder builder = WALKey.newBuilder();
+      if (!builder.mergeDelimitedFrom(this.block) || !builder.isInitialized()) {
+        throw new IOException("Partial PB in WAL block at " + this.blockPosition + " of "
+            + this.path);
+      }
+      WALKey walKey = builder.build();
+      entry.getKey().readFieldsFromPb(walKey, this.byteStringUncompressor);
+      if (!walKey.hasFollowingKvCount() || 0 == walKey.getFollowingKvCount()) {
+        LOG.trace("WALKey has no KVs that follow it; trying the next one");
+        continue;
+      }
+      int expectedCells = walKey.getFollowingKvCount();
+      int actualCells = entry.getEdit().readFromCells(cellDecoder, expectedCells);
+      if (expectedCells != actualCells) {
+        throw new IOException("Only read " + actualCells + " of " + expectedCells
+            + " WAL KVs in block at " + this.blockPosition + " of " + this.path);
+      }
+      // Past the last entry of a block the position is that of the next block, nothing to keep
+      this.lastEntryBlockPosition = isInBlock() ? this.blockPosition : -1;
+      this.lastEntryBlockOffset = this.block.getPosition();
+      return true;
+    }
+  }
+
+  /**
+   * Reads the block at the current position and makes it the one entries are read from.
+   * @return False if there is no whole block left to read. The position is left where it was.
+   */
+  private boolean readBlock() throws IOException {
+    long position = this.inputStream.getPos();
+    if (trailerPresent && position > 0 && position == this.walEditsStopOffset) {
+      return false;
+    }
+    try {
+      int onDiskSize;
+      int uncompressedSize;
+      int algorithm;
+      try {
+        onDiskSize = this.inputStream.readInt();
+        uncompressedSize = this.inputStream.readInt();
+        algorithm = this.inputStream.readUnsignedByte();
+      } catch (IOException ioe) {
+        // Some streams do not say EOF when they mean it
+        IOException realEofEx = extractHiddenEof(ioe);
+        throw (EOFException) new EOFException("EOF reading WAL block header at "
+            + position).initCause(realEofEx != null ? realEofEx : ioe);
+      }
+      if (onDiskSize < 0 || uncompressedSize < 0
+          || algorithm >= Compression.Algorithm.values().length
+          || (algorithm == Compression.Algorithm.NONE.ordinal()
+              && onDiskSize != uncompressedSize)) {
+        // A header only partly written looks much like this
+        throw new EOFException("Invalid WAL block header at " + position + ", onDiskSize="
+            + onDiskSize + ", uncompressedSize=" + uncompressedSize + ", algorithm=" + algorithm);
+      }
+      long available = this.inputStream.available();
+      if (available > 0 && available < onDiskSize) {
+        throw new EOFException("Available stream not enough for WAL block, available="
+            + available + ", onDiskSize=" + onDiskSize);
+      }
+      if (trailerPresent && position + BLOCK_HEADER_SIZE + onDiskSize > walEditsStopOffset) {
+        throw new EOFException("WAL block at " + position + " runs into the WALTrailer");
+      }
+      Compression.Algorithm compression = Compression.Algorithm.values()[algorithm];
+      byte[] blockBytes = this.block.getBuffer(uncompressedSize);
+      if (compression == Compression.Algorithm.NONE) {
+        this.inputStream.readFully(blockBytes, 0, uncompressedSize);
+      } else {
+        byte[] onDiskBytes = new byte[onDiskSize];
+        this.inputStream.readFully(onDiskBytes);
+        Compression.decompress(blockBytes, 0, new ByteArrayInputStream(onDiskBytes), onDiskSize,
+            uncompressedSize, compression);
+      }
+      this.block.setLength(uncompressedSize);
+      this.blockPosition = position;
+      return true;
+    } catch (EOFException eof) {
+      LOG.trace("Encountered a partial WAL block, seeking back to last good position in file",
+          eof);
+      if (position < 0) throw eof;
+      seekOnFs(position);
+      return false;
+    }
+  }
+
   private IOException extractHiddenEof(Exception ex) {
     // There are two problems we are dealing with here. Hadoop stream throws generic exception
     // for EOF, not EOFException; and scanner further hides it inside RuntimeException.
@@ -397,5 +535,45 @@ public class ProtobufLogReader extends ReaderBase {
   @Override
   protected void seekOnFs(long pos) throws IOException {
     this.inputStream.seek(pos);
+    if (this.block != null) {
+      // Whatever was left of the block is not where we now are
+      this.block.setLength(0);
+    }
+  }
+
+  /**
+   * The decompressed bytes of a block, read from by the cell decoder as well as for the keys.
+   * The buffer is kept from one block to the next.
+   */
+  static class BlockInputStream extends ByteArrayInputStream {
+    BlockInputStream() {
+      super(new byte[0]);
+    }
+
+    /**
+     * @return The buffer, at least <code>size</code> bytes long, to put the next block in
+     */
+    byte[] getBuffer(final int size) {
+      if (this.buf.length < size) {
+        this.buf = new byte[size];
+      }
+      return this.buf;
+    }
+
+    /**
+     * @return How far into the block reading has got
+     */
+    int getPosition() {
+      return this.pos;
+    }
+
+    /**
+     * Starts reading the first <code>length</code> bytes of the buffer over from its start.
+     */
+    void setLength(final int length) {
+      this.pos = 0;
+      this.mark = 0;
+      this.count = length;
+    }
   }
 }
@@ -19,7 +19,9 @@
 
 package org.apache.hadoop.hbase.regionserver.wal;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,23 +33,62 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.HBaseInterfaceAudience;
 import org.apache.hadoop.hbase.codec.Codec;
+import org.apache.hadoop.hbase.io.compress.Compression;
 import org.apache.hadoop.hbase.protobuf.generated.WALProtos.WALHeader;
+import org.apache.hadoop.hbase.protobuf.generated.WALProtos.WALKey;
 import org.apache.hadoop.hbase.protobuf.generated.WALProtos.WALTrailer;
 import org.apache.hadoop.hbase.util.FSUtils;
 import org.apache.hadoop.hbase.wal.WAL.Entry;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
 
 import static org.apache.hadoop.hbase.regionserver.wal.ProtobufLogReader.WAL_TRAILER_WARN_SIZE;
 import static org.apache.hadoop.hbase.regionserver.wal.ProtobufLogReader.DEFAULT_WAL_TRAILER_WARN_SIZE;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.CodedOutputStream;
+
 /**
  * Writer for protobuf-based WAL.
+ * <p>Each entry is serialized, key and cells, into a buffer the writer reuses from append to
+ * append and goes to the stream in a single write. Appends come from one thread at a time.
+ * <p>With {@link #BLOCK_COMPRESSION_KEY} set, entries are instead gathered into blocks that are
+ * compressed whole and written once they reach {@link #BLOCK_SIZE_KEY} bytes, on each sync, and
+ * on close. See {@link ProtobufLogReader} for the block layout.
  */
 @InterfaceAudience.LimitedPrivate(HBaseInterfaceAudience.CONFIG)
 public class ProtobufLogWriter extends WriterBase {
+  /**
+   * Largest append buffer kept for reuse. One grown past this by an unusually big edit is let go
+   * after the append rather than held for the life of the writer.
+   */
+  public static final String APPEND_BUFFER_MAX_SIZE_KEY =
+      "hbase.regionserver.wal.append.buffer.max.size";
+  static final int DEFAULT_APPEND_BUFFER_MAX_SIZE = 1024 * 1024;
+  static final int INITIAL_APPEND_BUFFER_SIZE = 16 * 1024;
+  /**
+   * Algorithm to compress blocks of entries with, by name, e.g. "snappy" or "lz4". Unset or
+   * "none" writes entries one by one, as a WAL always was.
+   */
+  public static final String BLOCK_COMPRESSION_KEY = "hbase.regionserver.wal.block.compression";
+  /** Uncompressed size at which a block is written out ahead of the next sync */
+  public static final String BLOCK_SIZE_KEY = "hbase.regionserver.wal.block.size";
+  static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
   private final Log LOG = LogFactory.getLog(this.getClass());
   protected FSDataOutputStream output;
   protected Codec.Encoder cellEncoder;
   protected WALCellCodec.ByteStringCompressor compressor;
+  /** Reused to write the WALKey of each entry; WALKey#writeDelimitedTo makes a new one per call. */
+  protected CodedOutputStream keyOutput;
+  private AppendBuffer appendBuffer;
+  // Block compression state; blockCompression is null when entries are not written in blocks.
+  // The pending block is appendBuffer, shared with the syncing threads under its lock.
+  private Compression.Algorithm blockCompression;
+  private int blockSize;
+  private Compressor blockCompressor;
+  private CompressionOutputStream blockCompressionStream;
+  private ByteArrayOutputStream compressedBlock;
   private boolean trailerWritten;
   private WALTrailer trailer;
   // maximum size of the wal Trailer in bytes. If a user writes/reads a trailer with size larger
@@ -66,7 +107,9 @@ public class ProtobufLogWriter extends WriterBase {
   protected WALHeader buildWALHeader(Configuration conf, WALHeader.Builder builder)
       throws IOException {
     if (!builder.hasWriterClsName()) {
-      builder.setWriterClsName(ProtobufLogWriter.class.getSimpleName());
+      // Readers that know nothing of blocks must not take them for entries
+      builder.setWriterClsName(blockCompression != null ?
+          ProtobufLogReader.BLOCK_WRITER_CLS_NAME : ProtobufLogWriter.class.getSimpleName());
     }
     if (!builder.hasCellCodecClsName()) {
       builder.setCellCodecClsName(WALCellCodec.getWALCellCodecClass(conf));
@@ -74,6 +117,16 @@ public class ProtobufLogWriter extends WriterBase {
     return builder.build();
   }
 
+  /**
+   * @return The algorithm to compress blocks of entries with, or null to write entries one by one
+   */
+  protected Compression.Algorithm getBlockCompression(Configuration conf) {
+    String name = conf.get(BLOCK_COMPRESSION_KEY);
+    if (name == null) return null;
+    Compression.Algorithm algorithm = Compression.getCompressionAlgorithmByName(name);
+    return algorithm == Compression.Algorithm.NONE ? null : algorithm;
+  }
+
   @Override
   @SuppressWarnings("deprecation")
   public void init(FileSystem fs, Path path, Configuration conf, boolean overwritable)
@@ -89,6 +142,7 @@ public class ProtobufLogWriter extends WriterBase {
         FSUtils.getDefaultBlockSize(fs, path));
     output = fs.createNonRecursive(path, overwritable, bufferSize, replication, blockSize, null);
     output.write(ProtobufLogReader.PB_WAL_MAGIC);
+    this.blockCompression = getBlockCompression(conf);
     boolean doTagCompress = doCompress
         && conf.getBoolean(CompressionContext.ENABLE_WAL_TAGS_COMPRESSION, true);
     buildWALHeader(conf,
@@ -100,23 +154,117 @@ public class ProtobufLogWriter extends WriterBase {
     // instantiate trailer to default value.
     trailer = WALTrailer.newBuilder().build();
     if (LOG.isTraceEnabled()) {
-      LOG.trace("Initialized protobuf WAL=" + path + ", compression=" + doCompress);
+      LOG.trace("Initialized protobuf WAL=" + path + ", compression=" + doCompress
+          + ", blockCompression=" + blockCompression);
     }
   }
 
   protected void initAfterHeader(boolean doCompress) throws IOException {
     WALCellCodec codec = getCodec(conf, this.compressionContext);
-    this.cellEncoder = codec.getEncoder(this.output);
+    this.cellEncoder = codec.getEncoder(initAppendBuffer());
     if (doCompress) {
       this.compressor = codec.getByteStringCompressor();
     }
+    if (this.blockCompression != null) {
+      initBlockCompression();
+    }
+  }
+
+  private void initBlockCompression() throws IOException {
+    this.blockSize = conf.getInt(BLOCK_SIZE_KEY, DEFAULT_BLOCK_SIZE);
+    this.compressedBlock = new ByteArrayOutputStream(INITIAL_APPEND_BUFFER_SIZE);
+    this.blockCompressor = this.blockCompression.getCompressor();
+    this.blockCompressionStream =
+        this.blockCompression.createPlainCompressionStream(compressedBlock, blockCompressor);
+  }
+
+  /**
+   * Sets up the buffer entries are serialized into and {@link #keyOutput} over it.
+   * @return The stream the cell encoder is to write to
+   */
+  protected OutputStream initAppendBuffer() {
+    this.appendBuffer = new AppendBuffer(INITIAL_APPEND_BUFFER_SIZE,
+        conf.getInt(APPEND_BUFFER_MAX_SIZE_KEY, DEFAULT_APPEND_BUFFER_MAX_SIZE));
+    this.keyOutput = CodedOutputStream.newInstance(this.appendBuffer);
+    return this.appendBuffer;
   }
 
   @Override
   public void append(Entry entry) throws IOException {
     entry.setCompressionContext(compressionContext);
-    entry.getKey().getBuilder(compressor).
-      setFollowingKvCount(entry.getEdit().size()).build().writeDelimitedTo(output);
+    if (this.blockCompression != null) {
+      appendToBlock(entry);
+      return;
+    }
+    writeEntry(entry);
+    try {
+      this.appendBuffer.writeTo(this.output);
+    } finally {
+      this.appendBuffer.reset();
+    }
+  }
+
+  private void appendToBlock(Entry entry) throws IOException {
+    synchronized (this.appendBuffer) {
+      int blockEnd = this.appendBuffer.size();
+      boolean written = false;
+      try {
+        writeEntry(entry);
+        written = true;
+      } finally {
+        // Leave no part of a failed entry in the block
+        if (!written) this.appendBuffer.truncate(blockEnd);
+      }
+      if (this.appendBuffer.size() >= this.blockSize) {
+        writeBlock();
+      }
+    }
+  }
+
+  /**
+   * Writes out the pending block, if there is one, compressed unless compressing does not make
+   * it any smaller. Called holding the appendBuffer lock.
+   */
+  private void writeBlock() throws IOException {
+    int size = this.appendBuffer.size();
+    if (size == 0) return;
+    try {
+      compressedBlock.reset();
+      blockCompressionStream.resetState();
+      blockCompressionStream.write(this.appendBuffer.getBuffer(), 0, size);
+      blockCompressionStream.flush();
+      blockCompressionStream.finish();
+      if (compressedBlock.size() < size) {
+        writeBlockHeader(compressedBlock.size(), size, blockCompression);
+        compressedBlock.writeTo(this.output);
+      } else {
+        writeBlockHeader(size, size, Compression.Algorithm.NONE);
+        this.appendBuffer.writeTo(this.output);
+      }
+    } finally {
+      this.appendBuffer.reset();
+    }
+  }
+
+  private void writeBlockHeader(int onDiskSize, int uncompressedSize,
+      Compression.Algorithm algorithm) throws IOException {
+    this.output.writeInt(onDiskSize);
+    this.output.writeInt(uncompressedSize);
+    this.output.writeByte(algorithm.ordinal());
+  }
+
+  /**
+   * Serializes <code>entry</code> to whatever {@link #keyOutput} and {@link #cellEncoder} were
+   * made over. The bytes are the same as writing the key with
+   * {@link WALKey#writeDelimitedTo(java.io.OutputStream)} and then encoding the cells.
+   */
+  protected void writeEntry(Entry entry) throws IOException {
+    WALKey key = entry.getKey().getBuilder(compressor).
+      setFollowingKvCount(entry.getEdit().size()).build();
+    this.keyOutput.writeRawVarint32(key.getSerializedSize());
+    key.writeTo(this.keyOutput);
+    // Out of the CodedOutputStream before the cells go after it.
+    this.keyOutput.flush();
     for (Cell cell : entry.getEdit().getCells()) {
       // cellEncoder must assume little about the stream, since we write PB and cells in turn.
       cellEncoder.write(cell);
@@ -127,6 +275,16 @@ public class ProtobufLogWriter extends WriterBase {
   public void close() throws IOException {
     if (this.output != null) {
       try {
+        if (this.blockCompression != null && this.appendBuffer != null) {
+          try {
+            synchronized (this.appendBuffer) {
+              writeBlock();
+            }
+          } finally {
+            this.blockCompression.returnCompressor(this.blockCompressor);
+            this.blockCompressor = null;
+          }
+        }
         if (!trailerWritten) writeWALTrailer();
         this.output.close();
       } catch (NullPointerException npe) {
@@ -166,6 +324,11 @@ public class ProtobufLogWriter extends WriterBase {
   @Override
   public void sync() throws IOException {
     try {
+      if (this.blockCompression != null) {
+        synchronized (this.appendBuffer) {
+          writeBlock();
+        }
+      }
       // This looks to be a noop but its what we have always done.  Leaving for now.
       this.output.flush();
       // TODO: Add in option to call hsync. See HBASE-5954 Allow proper fsync support for HBase
@@ -194,4 +357,48 @@ public class ProtobufLogWriter extends WriterBase {
   void setWALTrailer(WALTrailer walTrailer) {
     this.trailer = walTrailer;
   }
+
+  @VisibleForTesting
+  int getAppendBufferCapacity() {
+    return this.appendBuffer.capacity();
+  }
+
+  /**
+   * Holds one serialized entry at a time. Hands its array to the stream as is, and gives up an
+   * array grown past <code>maxSize</code> on reset.
+   */
+  static class AppendBuffer extends ByteArrayOutputStream {
+    private final int initialSize;
+    private final int maxSize;
+
+    AppendBuffer(final int initialSize, final int maxSize) {
+      super(initialSize);
+      this.initialSize = initialSize;
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    public synchronized void reset() {
+      super.reset();
+      if (this.buf.length > this.maxSize) {
+        this.buf = new byte[this.initialSize];
+      }
+    }
+
+    int capacity() {
+      return this.buf.length;
+    }
+
+    byte[] getBuffer() {
+      return this.buf;
+    }
+
+    /**
+     * Drops all written after the first <code>size</code> bytes.
+     */
+    void truncate(final int size) {
+      assert size <= this.count;
+      this.count = size;
+    }
+  }
 }
@@ -48,6 +48,7 @@ public class SecureProtobufLogReader extends ProtobufLogReader {
   static {
     writerClsNames.add(ProtobufLogWriter.class.getSimpleName());
     writerClsNames.add(SecureProtobufLogWriter.class.getSimpleName());
+    writerClsNames.add(BLOCK_WRITER_CLS_NAME);
   }
 
   @Override
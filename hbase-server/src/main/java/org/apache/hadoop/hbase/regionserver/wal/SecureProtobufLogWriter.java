@@ -32,6 +32,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.classification.InterfaceAudience;
 import org.apache.hadoop.hbase.HBaseInterfaceAudience;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.io.compress.Compression;
 import org.apache.hadoop.hbase.io.crypto.Cipher;
 import org.apache.hadoop.hbase.io.crypto.Encryption;
 import org.apache.hadoop.hbase.io.crypto.Encryptor;
@@ -84,11 +85,17 @@ public class SecureProtobufLogWriter extends ProtobufLogWriter {
     return super.buildWALHeader(conf, builder);
   }
 
+  @Override
+  protected Compression.Algorithm getBlockCompression(Configuration conf) {
+    // Encrypted cells do not compress, and the header names this writer, not the block format.
+    return null;
+  }
+
   @Override
   protected void initAfterHeader(boolean doCompress) throws IOException {
     if (conf.getBoolean(HConstants.ENABLE_WAL_ENCRYPTION, false) && encryptor != null) {
       WALCellCodec codec = SecureWALCellCodec.getCodec(this.conf, encryptor);
-      this.cellEncoder = codec.getEncoder(this.output);
+      this.cellEncoder = codec.getEncoder(initAppendBuffer());
       // We do not support compression
       this.compressionContext = null;
     } else {
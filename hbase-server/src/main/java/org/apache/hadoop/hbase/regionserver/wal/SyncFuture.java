@@ -73,6 +73,11 @@ class SyncFuture {
 
   private Thread t;
 
+  /**
+   * When we were reset, in nanoseconds; i.e. when the handler asked for the sync.
+   */
+  private long startNanos;
+
   /**
    * Optionally carry a disconnected scope to the SyncRunner.
    */
@@ -105,6 +110,7 @@ class SyncFuture {
     this.doneSequence = NOT_DONE;
     this.ringBufferSequence = sequence;
     this.span = span;
+    this.startNanos = System.nanoTime();
     return this;
   }
 
@@ -113,6 +119,13 @@ class SyncFuture {
     return "done=" + isDone() + ", ringBufferSequence=" + this.ringBufferSequence;
   }
 
+  /**
+   * @return When the sync was asked for, as returned by {@link System#nanoTime()}.
+   */
+  synchronized long getStartNanos() {
+    return this.startNanos;
+  }
+
   synchronized long getRingBufferSequence() {
     return this.ringBufferSequence;
   }
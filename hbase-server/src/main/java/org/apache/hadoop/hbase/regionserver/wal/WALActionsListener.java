@@ -113,6 +113,16 @@ public interface WALActionsListener {
    */
   void postSync(final long timeInNanos, final int handlerSyncs);
 
+  /**
+   * For notification just before a writer sync starts.  Used by metrics system at least.
+   * @param appends How many appends were written since the previous sync started; i.e. how many
+   * this sync will make durable.
+   * @param bytes Approx length of the cells in those appends.
+   * @param waitTimeNanos How long the oldest sync handler call this sync will release has waited
+   * for it to start, in nanoseconds.
+   */
+  void preSync(final long appends, final long bytes, final long waitTimeNanos);
+
   static class Base implements WALActionsListener {
     @Override
     public void preLogRoll(Path oldPath, Path newPath) throws IOException {}
@@ -143,5 +153,8 @@ public interface WALActionsListener {
 
     @Override
     public void postSync(final long timeInNanos, final int handlerSyncs) {}
+
+    @Override
+    public void preSync(final long appends, final long bytes, final long waitTimeNanos) {}
   }
 }
@@ -19,6 +19,7 @@
 package org.apache.hadoop.hbase.regionserver.wal;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -34,7 +35,9 @@ import org.apache.hadoop.hbase.CellScanner;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.RegionTooBusyException;
 import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.ConnectionUtils;
 import org.apache.hadoop.hbase.client.HConnection;
 import org.apache.hadoop.hbase.client.RegionServerCallable;
 import org.apache.hadoop.hbase.client.RpcRetryingCallerFactory;
@@ -56,12 +59,26 @@ import com.google.protobuf.ServiceException;
  * <p/>
  * This class uses the native HBase client in order to replay WAL entries.
  * <p/>
+ * Edits go out in calls of at most {@link #MAX_BATCH_SIZE_KEY} entries and
+ * {@link #MAX_BATCH_HEAP_SIZE_KEY} bytes. A region that is too busy to take them has them sent
+ * again, after a pause, for up to {@link #BUSY_TIMEOUT_KEY}; the region server skips those it
+ * already has, so it is safe to send edits more than once.
+ * <p/>
  */
 @InterfaceAudience.Private
 public class WALEditsReplaySink {
 
   private static final Log LOG = LogFactory.getLog(WALEditsReplaySink.class);
-  private static final int MAX_BATCH_SIZE = 1024;
+  /** Most entries replayed in one call */
+  public static final String MAX_BATCH_SIZE_KEY = "hbase.regionserver.logreplay.max.batch.size";
+  static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+  /** Most heap taken up by the edits replayed in one call */
+  public static final String MAX_BATCH_HEAP_SIZE_KEY =
+      "hbase.regionserver.logreplay.max.batch.heapsize";
+  static final long DEFAULT_MAX_BATCH_HEAP_SIZE = 8 * 1024 * 1024;
+  /** How long to keep at a region too busy to take its edits before giving up */
+  public static final String BUSY_TIMEOUT_KEY = "hbase.regionserver.logreplay.busy.timeout";
+  static final long DEFAULT_BUSY_TIMEOUT = 5 * 60 * 1000;
 
   private final Configuration conf;
   private final HConnection conn;
@@ -70,6 +87,10 @@ public class WALEditsReplaySink {
   private final AtomicLong totalReplayedEdits = new AtomicLong();
   private final boolean skipErrors;
   private final int replayTimeout;
+  private final int maxBatchSize;
+  private final long maxBatchHeapSize;
+  private final long busyTimeout;
+  private final long pause;
   private RpcControllerFactory rpcControllerFactory;
 
   /**
@@ -89,6 +110,10 @@ public class WALEditsReplaySink {
       HConstants.DEFAULT_HREGION_EDITS_REPLAY_SKIP_ERRORS);
     // a single replay operation time out and default is 60 seconds
     this.replayTimeout = conf.getInt("hbase.regionserver.logreplay.timeout", 60000);
+    this.maxBatchSize = Math.max(1, conf.getInt(MAX_BATCH_SIZE_KEY, DEFAULT_MAX_BATCH_SIZE));
+    this.maxBatchHeapSize = conf.getLong(MAX_BATCH_HEAP_SIZE_KEY, DEFAULT_MAX_BATCH_HEAP_SIZE);
+    this.busyTimeout = conf.getLong(BUSY_TIMEOUT_KEY, DEFAULT_BUSY_TIMEOUT);
+    this.pause = conf.getLong(HConstants.HBASE_CLIENT_PAUSE, HConstants.DEFAULT_HBASE_CLIENT_PAUSE);
     this.rpcControllerFactory = RpcControllerFactory.instantiate(conf);
   }
 
@@ -130,13 +155,10 @@ public class WALEditsReplaySink {
       // send edits in chunks
       int totalActions = allActions.size();
       int replayedActions = 0;
-      int curBatchSize = 0;
-      for (; replayedActions < totalActions;) {
-        curBatchSize = (totalActions > (MAX_BATCH_SIZE + replayedActions)) ? MAX_BATCH_SIZE
-                : (totalActions - replayedActions);
-        replayEdits(loc, curRegion, allActions.subList(replayedActions,
-          replayedActions + curBatchSize));
-        replayedActions += curBatchSize;
+      while (replayedActions < totalActions) {
+        int curBatchEnd = getBatchEnd(allActions, replayedActions);
+        replayEdits(loc, curRegion, allActions.subList(replayedActions, curBatchEnd));
+        replayedActions = curBatchEnd;
       }
     }
 
@@ -159,24 +181,74 @@ public class WALEditsReplaySink {
         + this.totalReplayedEdits;
   }
 
+  /**
+   * @return End, exclusive, of the batch starting at <code>start</code>; it has at least the
+   *         one entry.
+   */
+  private int getBatchEnd(final List<Entry> entries, final int start) {
+    int end = start;
+    long heapSize = 0;
+    while (end < entries.size() && end - start < this.maxBatchSize) {
+      heapSize += entries.get(end).getEdit().heapSize();
+      if (end > start && heapSize > this.maxBatchHeapSize) break;
+      end++;
+    }
+    return end;
+  }
+
   private void replayEdits(final HRegionLocation regionLoc, final HRegionInfo regionInfo,
       final List<Entry> entries) throws IOException {
-    try {
-      RpcRetryingCallerFactory factory = RpcRetryingCallerFactory.instantiate(conf, null);
-      ReplayServerCallable<ReplicateWALEntryResponse> callable =
-          new ReplayServerCallable<ReplicateWALEntryResponse>(this.conn, this.tableName, regionLoc,
-              regionInfo, entries);
-      factory.<ReplicateWALEntryResponse> newCaller().callWithRetries(callable, this.replayTimeout);
-    } catch (IOException ie) {
-      if (skipErrors) {
-        LOG.warn(HConstants.HREGION_EDITS_REPLAY_SKIP_ERRORS
-            + "=true so continuing replayEdits with error:" + ie.getMessage());
-      } else {
-        throw ie;
+    long busySince = -1;
+    int busyTries = 0;
+    while (true) {
+      try {
+        RpcRetryingCallerFactory factory = RpcRetryingCallerFactory.instantiate(conf, null);
+        ReplayServerCallable<ReplicateWALEntryResponse> callable =
+            new ReplayServerCallable<ReplicateWALEntryResponse>(this.conn, this.tableName,
+                regionLoc, regionInfo, entries);
+        factory.<ReplicateWALEntryResponse> newCaller().callWithRetries(callable,
+          this.replayTimeout);
+        return;
+      } catch (IOException ie) {
+        if (isRegionTooBusy(ie)) {
+          // Back off until the region has flushed; it skips what it got of this batch already.
+          long now = EnvironmentEdgeManager.currentTime();
+          if (busySince < 0) busySince = now;
+          if (now - busySince < this.busyTimeout) {
+            long sleep = ConnectionUtils.getPauseTime(this.pause, busyTries++);
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Region " + regionInfo.getEncodedName() + " too busy to replay "
+                  + entries.size() + " edits, trying again in " + sleep + "ms");
+            }
+            try {
+              Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+              throw (InterruptedIOException)new InterruptedIOException(
+                  "Interrupted waiting on busy region " + regionInfo.getEncodedName())
+                  .initCause(e);
+            }
+            continue;
+          }
+        }
+        if (skipErrors) {
+          LOG.warn(HConstants.HREGION_EDITS_REPLAY_SKIP_ERRORS
+              + "=true so continuing replayEdits with error:" + ie.getMessage());
+          return;
+        } else {
+          throw ie;
+        }
       }
     }
   }
 
+  private static boolean isRegionTooBusy(final Throwable t) {
+    for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+      if (cause instanceof RegionTooBusyException) return true;
+      if (cause.getCause() == cause) break;
+    }
+    return false;
+  }
+
   /**
    * Callable that handles the <code>replay</code> method call going against a single regionserver
    * @param <R>
@@ -24,7 +24,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -74,15 +77,27 @@ import com.google.common.util.concurrent.Service;
  * A stream is considered down when we cannot contact a region server on the
  * peer cluster for more than 55 seconds by default.
  * <p/>
- *
+ * A region server may write more than one WAL at a time. Logs are queued per WAL group, i.e.
+ * per WAL file name prefix, and only a group's own newer log tells us one of its logs is
+ * finished. The source takes turns between the groups that have something to read, keeping a
+ * reader and position per group.
  */
 @InterfaceAudience.Private
 public class ReplicationSource extends Thread
     implements ReplicationSourceInterface {
 
   public static final Log LOG = LogFactory.getLog(ReplicationSource.class);
-  // Queue of logs to process
+  // Queues of logs to process, one per WAL group
+  private final ConcurrentNavigableMap<String, WALGroup> walGroups =
+      new ConcurrentSkipListMap<String, WALGroup>();
+  // The group being read; its queue, reader, log and position are swapped in below
+  private WALGroup currentGroup;
+  // Queue of logs to process for the current group
   private PriorityBlockingQueue<Path> queue;
+  // Initial capacity of the queue of each group
+  private int queueCapacity;
+  // Turns in a row the groups had nothing to ship
+  private int idleTurns = 0;
   private ReplicationQueues replicationQueues;
   private ReplicationPeers replicationPeers;
 
@@ -169,10 +184,7 @@ public class ReplicationSource extends Thread
         this.conf.getLong("replication.source.sleepforretries", 1000);    // 1 second
     this.maxRetriesMultiplier =
         this.conf.getInt("replication.source.maxretriesmultiplier", 300); // 5 minutes @ 1 sec per
-    this.queue =
-        new PriorityBlockingQueue<Path>(
-            this.conf.getInt("hbase.regionserver.maxlogs", 32),
-            new LogsComparator());
+    this.queueCapacity = this.conf.getInt("hbase.regionserver.maxlogs", 32);
     long bandwidth = this.conf.getLong("replication.source.per.peer.node.bandwidth", 0);
     this.throttler = new ReplicationThrottler((double)bandwidth/10.0);
     this.replicationQueues = replicationQueues;
@@ -180,7 +192,6 @@ public class ReplicationSource extends Thread
     this.manager = manager;
     this.fs = fs;
     this.metrics = metrics;
-    this.repLogReader = new ReplicationWALReaderManager(this.fs, this.conf);
     this.clusterId = clusterId;
 
     this.peerClusterZnode = peerClusterZnode;
@@ -200,9 +211,18 @@ public class ReplicationSource extends Thread
 
   @Override
   public void enqueueLog(Path log) {
-    this.queue.put(log);
-    int queueSize = queue.size();
-    this.metrics.setSizeOfLogQueue(queueSize);
+    String name = DefaultWALProvider.getWALPrefixFromWALName(log.getName());
+    WALGroup group = this.walGroups.get(name);
+    if (group == null) {
+      group = new WALGroup(name);
+      WALGroup extant = this.walGroups.putIfAbsent(name, group);
+      if (extant != null) {
+        group = extant;
+      }
+    }
+    group.queue.put(log);
+    int queueSize = group.queue.size();
+    this.metrics.setSizeOfLogQueue(getSizeOfLogQueues());
     // This will log a warning for each new log that gets created above the warn threshold
     if (queueSize > this.logQueueWarnThreshold) {
       LOG.warn("Queue size: " + queueSize +
@@ -277,19 +297,22 @@ public class ReplicationSource extends Thread
     }
     LOG.info("Replicating "+clusterId + " -> " + peerClusterId);
 
-    // If this is recovered, the queue is already full and the first log
-    // normally has a position (unless the RS failed between 2 logs)
+    // If this is recovered, the queues are already full and the first log
+    // of each normally has a position (unless the RS failed between 2 logs)
     if (this.replicationQueueInfo.isQueueRecovered()) {
-      try {
-        this.repLogReader.setPosition(this.replicationQueues.getLogPosition(this.peerClusterZnode,
-          this.queue.peek().getName()));
-        if (LOG.isTraceEnabled()) {
-          LOG.trace("Recovered queue started with log " + this.queue.peek() +
-              " at position " + this.repLogReader.getPosition());
+      for (WALGroup group : this.walGroups.values()) {
+        try {
+          group.repLogReader.setPosition(this.replicationQueues.getLogPosition(
+            this.peerClusterZnode, group.queue.peek().getName()));
+          if (LOG.isTraceEnabled()) {
+            LOG.trace("Recovered queue started with log " + group.queue.peek() +
+                " at position " + group.repLogReader.getPosition());
+          }
+        } catch (ReplicationException e) {
+          this.terminate("Couldn't get the position of this recovered queue " +
+              this.peerClusterZnode, e);
+          break;
         }
-      } catch (ReplicationException e) {
-        this.terminate("Couldn't get the position of this recovered queue " +
-            this.peerClusterZnode, e);
       }
     }
     // Loop until we close down
@@ -301,6 +324,8 @@ public class ReplicationSource extends Thread
         }
         continue;
       }
+      // Give the next WAL group with something to read its turn
+      nextWALGroup();
       Path oldPath = getCurrentPath(); //note that in the current scenario,
                                        //oldPath will be null when a log roll
                                        //happens.
@@ -401,11 +426,16 @@ public class ReplicationSource extends Thread
           // set "ageOfLastShippedOp" to <now> to indicate that we're current
           this.metrics.setAgeOfLastShippedOp(EnvironmentEdgeManager.currentTime());
         }
-        if (sleepForRetries("Nothing to replicate", sleepMultiplier)) {
-          sleepMultiplier++;
+        // Don't hold up the other WAL groups; sleep once none of them had anything
+        if (gotIOE || ++this.idleTurns >= this.walGroups.size()) {
+          this.idleTurns = 0;
+          if (sleepForRetries("Nothing to replicate", sleepMultiplier)) {
+            sleepMultiplier++;
+          }
         }
         continue;
       }
+      this.idleTurns = 0;
       sleepMultiplier = 1;
       shipEdits(currentWALisBeingWrittenTo, entries);
     }
@@ -484,10 +514,14 @@ public class ReplicationSource extends Thread
    * @return true if a path was obtained, false if not
    */
   protected boolean getNextPath() {
+    if (this.queue == null) {
+      // Nothing enqueued yet
+      return false;
+    }
     try {
       if (this.currentPath == null) {
         this.currentPath = queue.poll(this.sleepForRetries, TimeUnit.MILLISECONDS);
-        this.metrics.setSizeOfLogQueue(queue.size());
+        this.metrics.setSizeOfLogQueue(getSizeOfLogQueues());
         if (this.currentPath != null) {
           this.manager.cleanOldLogs(this.currentPath.getName(),
               this.peerId,
@@ -762,7 +796,7 @@ public class ReplicationSource extends Thread
 
   /**
    * If the queue isn't empty, switch to the next one
-   * Else if this is a recovered queue, it means we're done!
+   * Else if this is a recovered queue, this WAL group is done, and once all of them are, we're done!
    * Else we'll just continue to try reading the log file
    * @return true if we're done with the current file, false if we should
    * continue trying to read from it
@@ -785,6 +819,17 @@ public class ReplicationSource extends Thread
       this.reader = null;
       return true;
     } else if (this.replicationQueueInfo.isQueueRecovered()) {
+      if (this.walGroups.size() > 1) {
+        LOG.info("Finished recovering WAL group " + this.currentGroup.name +
+            " with the following stats " + getStats());
+        this.currentPath = null;
+        this.repLogReader.finishCurrentFile();
+        this.reader = null;
+        this.walGroups.remove(this.currentGroup.name);
+        this.currentGroup = null;
+        this.queue = null;
+        return true;
+      }
       this.manager.closeRecoveredQueue(this);
       LOG.info("Finished recovering the queue with the following stats " + getStats());
       this.running = false;
@@ -793,6 +838,74 @@ public class ReplicationSource extends Thread
     return false;
   }
 
+  /**
+   * Move on to the next WAL group, in name order, that has a log to read, saving the state of the
+   * current one. Stays put if no other group has anything.
+   */
+  private void nextWALGroup() {
+    if (this.currentGroup != null && this.walGroups.size() == 1) {
+      return;
+    }
+    String after = this.currentGroup == null ? null : this.currentGroup.name;
+    WALGroup next = null;
+    for (int i = 0; i < this.walGroups.size() && next == null; i++) {
+      Map.Entry<String, WALGroup> entry = after == null ? null : this.walGroups.higherEntry(after);
+      if (entry == null) {
+        entry = this.walGroups.firstEntry();
+      }
+      if (entry == null) {
+        return;
+      }
+      WALGroup group = entry.getValue();
+      if (group != this.currentGroup && (group.currentPath != null || !group.queue.isEmpty())) {
+        next = group;
+      }
+      after = entry.getKey();
+    }
+    if (next == null) {
+      if (this.currentGroup == null && !this.walGroups.isEmpty()) {
+        next = this.walGroups.firstEntry().getValue();
+      } else {
+        return;
+      }
+    }
+    if (this.currentGroup != null) {
+      this.currentGroup.currentPath = this.currentPath;
+      this.currentGroup.lastLoggedPosition = this.lastLoggedPosition;
+    }
+    this.currentGroup = next;
+    this.queue = next.queue;
+    this.repLogReader = next.repLogReader;
+    this.currentPath = next.currentPath;
+    this.lastLoggedPosition = next.lastLoggedPosition;
+  }
+
+  private int getSizeOfLogQueues() {
+    int size = 0;
+    for (WALGroup group : this.walGroups.values()) {
+      size += group.queue.size();
+    }
+    return size;
+  }
+
+  /**
+   * The logs of one WAL group and where we are in them. Only the fields of the group being read
+   * are out of date; the source holds those while the group has its turn.
+   */
+  private class WALGroup {
+    final String name;
+    final PriorityBlockingQueue<Path> queue;
+    final ReplicationWALReaderManager repLogReader;
+    Path currentPath;
+    long lastLoggedPosition = -1;
+
+    WALGroup(String name) {
+      this.name = name;
+      this.queue = new PriorityBlockingQueue<Path>(queueCapacity, new LogsComparator());
+      this.repLogReader = new ReplicationWALReaderManager(fs, conf);
+    }
+  }
+
   @Override
   public void startup() {
     String n = Thread.currentThread().getName();
@@ -889,7 +1002,7 @@ public class ReplicationSource extends Thread
 
   @Override
   public String getStats() {
-    long position = this.repLogReader.getPosition();
+    long position = this.repLogReader == null ? 0 : this.repLogReader.getPosition();
     return "Total replicated edits: " + totalReplicatedEdits +
       ", currently replicating from: " + this.currentPath +
       " at position: " + position;
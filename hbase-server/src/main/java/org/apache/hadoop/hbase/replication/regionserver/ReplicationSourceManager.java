@@ -55,6 +55,7 @@ import org.apache.hadoop.hbase.replication.ReplicationPeers;
 import org.apache.hadoop.hbase.replication.ReplicationQueueInfo;
 import org.apache.hadoop.hbase.replication.ReplicationQueues;
 import org.apache.hadoop.hbase.replication.ReplicationTracker;
+import org.apache.hadoop.hbase.wal.DefaultWALProvider;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
@@ -93,8 +94,8 @@ public class ReplicationSourceManager implements ReplicationListener {
   private final Map<String, SortedSet<String>> walsByIdRecoveredQueues;
   private final Configuration conf;
   private final FileSystem fs;
-  // The path to the latest log we saw, for new coming sources
-  private Path latestPath;
+  // The paths to the latest log we saw of each WAL group, for new coming sources
+  private final Map<String, Path> latestPaths;
   // Path to the wals directories
   private final Path logDir;
   // Path to the wal archive
@@ -132,6 +133,7 @@ public class ReplicationSourceManager implements ReplicationListener {
     this.server = server;
     this.walsById = new HashMap<String, SortedSet<String>>();
     this.walsByIdRecoveredQueues = new ConcurrentHashMap<String, SortedSet<String>>();
+    this.latestPaths = new HashMap<String, Path>();
     this.oldsources = new CopyOnWriteArrayList<ReplicationSourceInterface>();
     this.conf = conf;
     this.fs = fs;
@@ -179,8 +181,8 @@ public class ReplicationSourceManager implements ReplicationListener {
   }
 
   /**
-   * Cleans a log file and all older files from ZK. Called when we are sure that a
-   * log file is closed and has no more entries.
+   * Cleans a log file and all older files of the same WAL group from ZK. Called when we are sure
+   * that a log file is closed and has no more entries.
    * @param key Path to the log
    * @param id id of the peer cluster
    * @param queueRecovered Whether this is a recovered queue
@@ -202,12 +204,19 @@ public class ReplicationSourceManager implements ReplicationListener {
  }
   
   private void cleanOldLogs(SortedSet<String> wals, String key, String id) {
-    SortedSet<String> walSet = wals.headSet(key);
+    // Logs of other WAL groups are read separately and may still be in use
+    String group = DefaultWALProvider.getWALPrefixFromWALName(key);
+    List<String> walSet = new ArrayList<String>();
+    for (String wal : wals.headSet(key)) {
+      if (group.equals(DefaultWALProvider.getWALPrefixFromWALName(wal))) {
+        walSet.add(wal);
+      }
+    }
     LOG.debug("Removing " + walSet.size() + " logs in the list: " + walSet);
     for (String wal : walSet) {
       this.replicationQueues.removeLog(id, wal);
     }
-    walSet.clear();
+    wals.removeAll(walSet);
   }
 
   /**
@@ -251,9 +260,9 @@ public class ReplicationSourceManager implements ReplicationListener {
     synchronized (this.walsById) {
       this.sources.add(src);
       this.walsById.put(id, new TreeSet<String>());
-      // Add the latest wal to that source's queue
-      if (this.latestPath != null) {
-        String name = this.latestPath.getName();
+      // Add the latest wal of each group to that source's queue
+      for (Path latestPath : this.latestPaths.values()) {
+        String name = latestPath.getName();
         this.walsById.get(id).add(name);
         try {
           this.replicationQueues.addLog(src.getPeerClusterZnode(), name);
@@ -264,7 +273,7 @@ public class ReplicationSourceManager implements ReplicationListener {
           server.stop(message);
           throw e;
         }
-        src.enqueueLog(this.latestPath);
+        src.enqueueLog(latestPath);
       }
     }
     src.startup();
@@ -346,9 +355,8 @@ public class ReplicationSourceManager implements ReplicationListener {
         }
         wals.add(name);
       }
+      this.latestPaths.put(DefaultWALProvider.getWALPrefixFromWALName(name), newLog);
     }
-
-    this.latestPath = newLog;
   }
 
   void postLogRoll(Path newLog) throws IOException {
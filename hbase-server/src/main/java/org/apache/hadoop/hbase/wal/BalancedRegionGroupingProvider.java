@@ -0,0 +1,413 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.wal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
+
+import com.google.common.annotations.VisibleForTesting;
+
+// imports for classes still in regionserver.wal
+import org.apache.hadoop.hbase.regionserver.wal.FailedLogCloseException;
+import org.apache.hadoop.hbase.regionserver.wal.WALActionsListener;
+import org.apache.hadoop.hbase.regionserver.wal.WALCoprocessorHost;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+
+/**
+ * A {@link BoundedRegionGroupingProvider} that places region groups on its N delegate WALs by
+ * observed write rate rather than round robin, and moves a group to a cooler WAL while it is
+ * online when one WAL gets hot.
+ * <p>
+ * Each group gets a {@link GroupWAL} that sits in front of the delegate WAL currently carrying
+ * it and counts the bytes appended through it. Every "hbase.wal.regiongrouping.balance.interval"
+ * milliseconds the per-group rates are summed per delegate. If the busiest delegate is more than
+ * "hbase.wal.regiongrouping.balance.slop" above the mean, the busiest group on it that still
+ * narrows the gap to the coolest delegate is told to move there. A new group goes to the least
+ * loaded delegate.
+ * <p>
+ * A group only changes WAL when one of its regions starts a flush, while the region holds off
+ * updates. The old WAL is synced first, so every edit already appended there is durable and has
+ * its sequence id before anything goes to the new WAL. The old WAL may still hold unflushed edits
+ * of the group, so flush bookkeeping goes to every WAL the group has used; there are at most N.
+ * <p>
+ * Select with "hbase.wal.provider" set to "balancedmultiwal".
+ */
+@InterfaceAudience.Private
+public class BalancedRegionGroupingProvider extends BoundedRegionGroupingProvider {
+  private static final Log LOG = LogFactory.getLog(BalancedRegionGroupingProvider.class);
+
+  static final String BALANCE_INTERVAL = "hbase.wal.regiongrouping.balance.interval";
+  static final long DEFAULT_BALANCE_INTERVAL = 60000;
+  static final String BALANCE_SLOP = "hbase.wal.regiongrouping.balance.slop";
+  static final float DEFAULT_BALANCE_SLOP = 0.2f;
+
+  private final ConcurrentMap<byte[], GroupWAL> groups =
+      new ConcurrentSkipListMap<byte[], GroupWAL>(Bytes.BYTES_COMPARATOR);
+  private long balanceInterval;
+  private float slop;
+  private long lastBalanceTime;
+  // Bytes per second carried by each delegate as of the last balance, and the groups on each
+  private long[] loads;
+  private int[] groupCounts;
+
+  @Override
+  public void init(final WALFactory factory, final Configuration conf,
+      final List<WALActionsListener> listeners, final String providerId) throws IOException {
+    super.init(factory, conf, listeners, providerId);
+    this.balanceInterval = conf.getLong(BALANCE_INTERVAL, DEFAULT_BALANCE_INTERVAL);
+    this.slop = conf.getFloat(BALANCE_SLOP, DEFAULT_BALANCE_SLOP);
+    this.loads = new long[delegates.length];
+    this.groupCounts = new int[delegates.length];
+    this.lastBalanceTime = EnvironmentEdgeManager.currentTime();
+  }
+
+  @Override
+  public WAL getWAL(final byte[] identifier) throws IOException {
+    final byte[] group = strategy.group(identifier);
+    GroupWAL wal = groups.get(group);
+    if (null == wal) {
+      wal = createGroupWAL(group, identifier);
+    }
+    balance(EnvironmentEdgeManager.currentTime());
+    return wal;
+  }
+
+  private synchronized GroupWAL createGroupWAL(final byte[] group, final byte[] identifier)
+      throws IOException {
+    GroupWAL wal = groups.get(group);
+    if (null != wal) {
+      return wal;
+    }
+    final WAL[] wals = new WAL[delegates.length];
+    for (int i = 0; i < delegates.length; i++) {
+      wals[i] = delegates[i].getWAL(identifier);
+    }
+    final int index = leastLoaded();
+    groupCounts[index]++;
+    wal = new GroupWAL(Bytes.toStringBinary(group), wals, index);
+    groups.put(group, wal);
+    return wal;
+  }
+
+  private int leastLoaded() {
+    int result = 0;
+    for (int i = 1; i < loads.length; i++) {
+      if (loads[i] < loads[result] ||
+          (loads[i] == loads[result] && groupCounts[i] < groupCounts[result])) {
+        result = i;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Sample the write rate of every group and, if one delegate is carrying too much of it, pick a
+   * group to move off it. Does nothing until the balance interval has passed.
+   * @param now current time in milliseconds
+   */
+  @VisibleForTesting
+  synchronized void balance(final long now) {
+    final long elapsed = now - lastBalanceTime;
+    if (elapsed < balanceInterval || elapsed <= 0) {
+      return;
+    }
+    lastBalanceTime = now;
+    Arrays.fill(loads, 0);
+    long total = 0;
+    for (GroupWAL wal : groups.values()) {
+      wal.sampleRate(elapsed);
+      loads[wal.target] += wal.rate;
+      total += wal.rate;
+    }
+    int hottest = 0;
+    int coolest = 0;
+    for (int i = 1; i < loads.length; i++) {
+      if (loads[i] > loads[hottest]) hottest = i;
+      if (loads[i] < loads[coolest]) coolest = i;
+    }
+    final double mean = (double)total / loads.length;
+    if (hottest == coolest || loads[hottest] <= mean * (1 + slop)) {
+      return;
+    }
+    // A group carrying more than the gap would only make the coolest delegate the hottest one.
+    final long gap = loads[hottest] - loads[coolest];
+    GroupWAL move = null;
+    for (GroupWAL wal : groups.values()) {
+      if (wal.target == hottest && wal.rate > 0 && wal.rate < gap &&
+          (move == null || wal.rate > move.rate)) {
+        move = wal;
+      }
+    }
+    if (move == null) {
+      return;
+    }
+    LOG.info("Moving WAL group " + move.name + " writing " + move.rate + " bytes/sec from WAL " +
+        hottest + " (" + loads[hottest] + " bytes/sec) to WAL " + coolest + " (" + loads[coolest] +
+        " bytes/sec); it will switch at its next flush");
+    loads[hottest] -= move.rate;
+    loads[coolest] += move.rate;
+    groupCounts[hottest]--;
+    groupCounts[coolest]++;
+    move.target = coolest;
+  }
+
+  @VisibleForTesting
+  GroupWAL getGroupWAL(final byte[] identifier) {
+    return groups.get(strategy.group(identifier));
+  }
+
+  /**
+   * The WAL handed out for a region group. Appends go to one of the provider's delegate WALs
+   * and it moves the group to another delegate when told to by the balancer.
+   * <p>
+   * Log rolling is per delegate: {@link #getWALs()} gives the WALs to roll.
+   */
+  @InterfaceAudience.Private
+  public class GroupWAL implements WAL {
+    private final String name;
+    private final WAL[] wals;
+    // Held for read around appends, for write while we move to another delegate
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Delegates that may hold edits of this group, i.e. every one we have appended to
+    private final List<WAL> used = new CopyOnWriteArrayList<WAL>();
+    // Delegates each region flushing right now started its flush on
+    private final ConcurrentMap<byte[], WAL[]> flushing =
+        new ConcurrentSkipListMap<byte[], WAL[]>(Bytes.BYTES_COMPARATOR);
+    private final AtomicLong appendedBytes = new AtomicLong(0);
+    // Delegate we append to, and the one the balancer wants us on
+    private volatile int index;
+    volatile int target;
+    // Guarded by the provider
+    private long lastAppendedBytes = 0;
+    long rate = 0;
+
+    GroupWAL(final String name, final WAL[] wals, final int index) {
+      this.name = name;
+      this.wals = wals;
+      this.index = index;
+      this.target = index;
+      this.used.add(wals[index]);
+    }
+
+    void sampleRate(final long elapsedMs) {
+      final long bytes = appendedBytes.get();
+      rate = (bytes - lastAppendedBytes) * 1000 / elapsedMs;
+      lastAppendedBytes = bytes;
+    }
+
+    /**
+     * @return the delegate WAL appends currently go to
+     */
+    @VisibleForTesting
+    WAL getCurrentWAL() {
+      return wals[index];
+    }
+
+    /**
+     * @return all WALs this group can be written to. Roll these rather than the group.
+     */
+    public List<WAL> getWALs() {
+      return Arrays.asList(wals);
+    }
+
+    /**
+     * Move to the delegate the balancer picked, if it picked one. Called with the flushing region
+     * holding off its updates; we still take the write lock for other regions in the group.
+     */
+    private void maybeSwitch() {
+      if (target == index) {
+        return;
+      }
+      lock.writeLock().lock();
+      try {
+        final int to = target;
+        if (to == index) {
+          return;
+        }
+        // Everything appended so far is durable and stamped before the new delegate sees an edit
+        try {
+          wals[index].sync();
+        } catch (IOException exception) {
+          LOG.warn("Failed sync of WAL " + index + ", not moving WAL group " + name, exception);
+          return;
+        }
+        if (!used.contains(wals[to])) {
+          used.add(wals[to]);
+        }
+        LOG.debug("WAL group " + name + " moved from WAL " + index + " to WAL " + to);
+        index = to;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    @Override
+    public long append(HTableDescriptor htd, HRegionInfo info, WALKey key, WALEdit edits,
+        AtomicLong sequenceId, boolean inMemstore, List<Cell> memstoreKVs) throws IOException {
+      final long txid;
+      lock.readLock().lock();
+      try {
+        txid = wals[index].append(htd, info, key, edits, sequenceId, inMemstore, memstoreKVs);
+      } finally {
+        lock.readLock().unlock();
+      }
+      appendedBytes.addAndGet(edits.heapSize());
+      return txid;
+    }
+
+    @Override
+    public void sync() throws IOException {
+      wals[index].sync();
+    }
+
+    @Override
+    public void sync(long txid) throws IOException {
+      // If we moved since the append, the move synced the old delegate already.
+      wals[index].sync(txid);
+    }
+
+    @Override
+    public boolean startCacheFlush(final byte[] encodedRegionName) {
+      maybeSwitch();
+      final WAL[] started = used.toArray(new WAL[used.size()]);
+      for (int i = 0; i < started.length; i++) {
+        if (!started[i].startCacheFlush(encodedRegionName)) {
+          for (int j = 0; j < i; j++) {
+            started[j].abortCacheFlush(encodedRegionName);
+          }
+          return false;
+        }
+      }
+      flushing.put(encodedRegionName, started);
+      return true;
+    }
+
+    @Override
+    public void completeCacheFlush(final byte[] encodedRegionName) {
+      final WAL[] started = flushing.remove(encodedRegionName);
+      if (started != null) {
+        for (WAL wal : started) {
+          wal.completeCacheFlush(encodedRegionName);
+        }
+      }
+      balance(EnvironmentEdgeManager.currentTime());
+    }
+
+    @Override
+    public void abortCacheFlush(final byte[] encodedRegionName) {
+      final WAL[] started = flushing.remove(encodedRegionName);
+      if (started != null) {
+        for (WAL wal : started) {
+          wal.abortCacheFlush(encodedRegionName);
+        }
+      }
+    }
+
+    @Override
+    public long getEarliestMemstoreSeqNum(final byte[] encodedRegionName) {
+      long result = HConstants.NO_SEQNUM;
+      for (WAL wal : used) {
+        final long seqNum = wal.getEarliestMemstoreSeqNum(encodedRegionName);
+        if (seqNum != HConstants.NO_SEQNUM &&
+            (result == HConstants.NO_SEQNUM || seqNum < result)) {
+          result = seqNum;
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public WALCoprocessorHost getCoprocessorHost() {
+      return wals[index].getCoprocessorHost();
+    }
+
+    @Override
+    public void registerWALActionsListener(final WALActionsListener listener) {
+      for (WAL wal : wals) {
+        wal.registerWALActionsListener(listener);
+      }
+    }
+
+    @Override
+    public boolean unregisterWALActionsListener(final WALActionsListener listener) {
+      boolean result = false;
+      for (WAL wal : wals) {
+        result |= wal.unregisterWALActionsListener(listener);
+      }
+      return result;
+    }
+
+    @Override
+    public byte[][] rollWriter() throws FailedLogCloseException, IOException {
+      return rollWriter(false);
+    }
+
+    @Override
+    public byte[][] rollWriter(boolean force) throws FailedLogCloseException, IOException {
+      List<byte[]> regions = null;
+      for (WAL wal : wals) {
+        final byte[][] toFlush = wal.rollWriter(force);
+        if (toFlush != null) {
+          if (regions == null) {
+            regions = new ArrayList<byte[]>();
+          }
+          regions.addAll(Arrays.asList(toFlush));
+        }
+      }
+      return regions == null ? null : regions.toArray(new byte[regions.size()][]);
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+      for (WAL wal : wals) {
+        wal.shutdown();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (WAL wal : wals) {
+        wal.close();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "GroupWAL " + name + " on " + wals[index];
+    }
+  }
+}
@@ -42,7 +42,7 @@ public class BoundedRegionGroupingProvider extends RegionGroupingProvider {
 
   static final String NUM_REGION_GROUPS = "hbase.wal.regiongrouping.numgroups";
   static final int DEFAULT_NUM_REGION_GROUPS = 2;
-  private WALProvider[] delegates;
+  WALProvider[] delegates;
   private AtomicInteger counter = new AtomicInteger(0);
 
   @Override
@@ -94,11 +94,24 @@ public class DefaultWALProvider implements WALProvider {
       providerId = DEFAULT_PROVIDER_ID;
     }
     final String logPrefix = factory.factoryId + WAL_FILE_NAME_DELIMITER + providerId;
-    log = new FSHLog(FileSystem.get(conf), FSUtils.getRootDir(conf),
+    log = createWAL(FileSystem.get(conf), FSUtils.getRootDir(conf),
         getWALDirectoryName(factory.factoryId), HConstants.HREGION_OLDLOGDIR_NAME, conf, listeners,
         true, logPrefix, META_WAL_PROVIDER_ID.equals(providerId) ? META_WAL_PROVIDER_ID : null);
   }
 
+  /**
+   * Makes the WAL handed out by this provider. Override to use a different {@link FSHLog}.
+   * @see FSHLog#FSHLog(FileSystem, Path, String, String, Configuration, List, boolean, String,
+   * String)
+   */
+  protected FSHLog createWAL(final FileSystem fs, final Path rootDir, final String logDir,
+      final String archiveDir, final Configuration conf, final List<WALActionsListener> listeners,
+      final boolean failIfWALExists, final String prefix, final String suffix)
+      throws IOException {
+    return new FSHLog(fs, rootDir, logDir, archiveDir, conf, listeners, failIfWALExists, prefix,
+        suffix);
+  }
+
   @Override
   public WAL getWAL(final byte[] identifier) throws IOException {
    return log;
@@ -222,6 +235,22 @@ public class DefaultWALProvider implements WALProvider {
     return pattern.matcher(filename).matches();
   }
 
+  /**
+   * Get the &lt;wal-name&gt; part of a WAL file name, see {@link #validateWALFilename(String)}.
+   * All files written by the same WAL share it, so it names the group a file belongs to when a
+   * server writes more than one WAL at a time.
+   * @param name name of a WAL file, without any directory
+   * @return the file name less the creation timestamp and any meta suffix, or an empty string
+   *         if there is no timestamp to take off
+   */
+  public static String getWALPrefixFromWALName(String name) {
+    if (name.endsWith(META_WAL_PROVIDER_ID)) {
+      name = name.substring(0, name.length() - META_WAL_PROVIDER_ID.length());
+    }
+    int endIndex = name.lastIndexOf(WAL_FILE_NAME_DELIMITER);
+    return endIndex < 0 ? "" : name.substring(0, endIndex);
+  }
+
   /**
    * Construct the directory name for all WALs on a given server.
    *
@@ -62,6 +62,11 @@ import org.apache.hadoop.hbase.regionserver.wal.WALActionsListener;
  *                             FileSystem interface, normally HDFS.</li>
  *   <li><em>multiwal</em> : a provider that will use multiple "filesystem" wal instances per region
  *                           server.</li>
+ *   <li><em>asyncfs</em> : like "filesystem", but syncs complete from callbacks of a non-blocking
+ *                          writer rather than on dedicated sync threads.</li>
+ *   <li><em>balancedmultiwal</em> : like "multiwal", but region groups are placed on the wal
+ *                                   instances by write rate and moved off a wal that gets hot.
+ *                                   </li>
  * </ul>
  *
  * Alternatively, you may provide a custome implementation of {@link WALProvider} by class name.
@@ -77,7 +82,9 @@ public class WALFactory {
   static enum Providers {
     defaultProvider(DefaultWALProvider.class),
     filesystem(DefaultWALProvider.class),
-    multiwal(BoundedRegionGroupingProvider.class);
+    multiwal(BoundedRegionGroupingProvider.class),
+    asyncfs(AsyncFSWALProvider.class),
+    balancedmultiwal(BalancedRegionGroupingProvider.class);
 
     Class<? extends WALProvider> clazz;
     Providers(Class<? extends WALProvider> clazz) {
@@ -184,6 +184,9 @@ public class WALSplitter {
   // Failed region server that the wal file being split belongs to
   protected String failedServerName = "";
 
+  // Name of the wal file being split
+  private String fileBeingSplit = null;
+
   // Number of writer threads
   private final int numWriterThreads;
 
@@ -288,6 +291,7 @@ public class WALSplitter {
       SPLIT_SKIP_ERRORS_DEFAULT);
     int interval = conf.getInt("hbase.splitlog.report.interval.loglines", 1024);
     Path logPath = logfile.getPath();
+    this.fileBeingSplit = logPath.getName();
     boolean outputSinkStarted = false;
     boolean progress_failed = false;
     int editsCount = 0;
@@ -518,9 +522,22 @@ public class WALSplitter {
    * @return Path to file into which to dump split log edits.
    * @throws IOException
    */
-  @SuppressWarnings("deprecation")
   static Path getRegionSplitEditsPath(final FileSystem fs,
       final Entry logEntry, final Path rootDir, boolean isCreate)
+  throws IOException {
+    return getRegionSplitEditsPath(fs, logEntry, rootDir, null, isCreate);
+  }
+
+  /**
+   * Like {@link #getRegionSplitEditsPath(FileSystem, Entry, Path, boolean)}, but the file name
+   * also carries the name of the WAL being split. A server writing several WALs at once leaves
+   * several to be split concurrently, possibly with edits for the same region; this keeps their
+   * in-progress files for a region apart however their sequence ids fall.
+   * @param fileBeingSplit name of the WAL file the edits come from. may be null
+   */
+  @SuppressWarnings("deprecation")
+  static Path getRegionSplitEditsPath(final FileSystem fs,
+      final Entry logEntry, final Path rootDir, final String fileBeingSplit, boolean isCreate)
   throws IOException {
     Path tableDir = FSUtils.getTableDir(rootDir, logEntry.getKey().getTablename());
     String encodedRegionName = Bytes.toString(logEntry.getKey().getEncodedRegionName());
@@ -554,6 +571,9 @@ public class WALSplitter {
     // Append file name ends with RECOVERED_LOG_TMPFILE_SUFFIX to ensure
     // region's replayRecoveredEdits will not delete it
     String fileName = formatRecoveredEditsFileName(logEntry.getKey().getLogSeqNum());
+    if (fileBeingSplit != null) {
+      fileName = fileName + "-" + fileBeingSplit;
+    }
     fileName = getTmpRecoveredEditsFileName(fileName);
     return new Path(dir, fileName);
   }
@@ -1426,7 +1446,7 @@ public class WALSplitter {
      * @return a path with a write for that path. caller should close.
      */
     private WriterAndPath createWAP(byte[] region, Entry entry, Path rootdir) throws IOException {
-      Path regionedits = getRegionSplitEditsPath(fs, entry, rootdir, true);
+      Path regionedits = getRegionSplitEditsPath(fs, entry, rootdir, fileBeingSplit, true);
       if (regionedits == null) {
         return null;
       }
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.hadoop.hbase.io.encoding;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.io.hfile.HFileContext;
+import org.apache.hadoop.hbase.io.hfile.HFileContextBuilder;
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Test {@link ColumnarDataBlockEncoder} on wide, sparse rows
+ */
+@Category(SmallTests.class)
+public class TestColumnarDataBlockEncoder {
+  private static final DataBlockEncoding ENCODING = DataBlockEncoding.COLUMNAR;
+  private static final int ROWS = 50;
+  private static final int COLUMNS = 100;
+
+  private final HFileContext meta = new HFileContextBuilder()
+      .withHBaseCheckSum(false)
+      .withIncludesMvcc(true)
+      .withIncludesTags(false)
+      .build();
+
+  @Test
+  public void testWideRows() throws IOException {
+    List<KeyValue> kvs = createKeyValues(0);
+    HFileBlockEncodingContext encodingCtx = ENCODING.getEncoder().newDataBlockEncodingContext(
+        ENCODING, HConstants.HFILEBLOCK_DUMMY_HEADER, meta);
+    ByteBuffer block = TestDataBlockEncoders.encodeKeyValues(ENCODING, kvs, encodingCtx);
+    int unencodedSize = 0;
+    for (KeyValue kv : kvs) {
+      unencodedSize += kv.getLength();
+    }
+    // Rows and families are stored once per row, not once per cell
+    assertTrue(block.limit() < unencodedSize);
+
+    DataBlockEncoder.EncodedSeeker seeker = createSeeker(block);
+    for (KeyValue kv : kvs) {
+      assertEquals(kv, KeyValueUtil.copyToNewKeyValue(seeker.getKeyValue()));
+      seeker.next();
+    }
+    assertFalse(seeker.next());
+
+    // Seeks forward and back, within rows and across them
+    for (int i = kvs.size() - 1; i > 0; i -= 7) {
+      KeyValue kv = kvs.get(i);
+      seeker.rewind();
+      assertEquals(0, seeker.seekToKeyInBlock(kv, false));
+      assertEquals(kv, KeyValueUtil.copyToNewKeyValue(seeker.getKeyValue()));
+      assertEquals(ByteBuffer.wrap(kv.getValueArray(), kv.getValueOffset(), kv.getValueLength()),
+          seeker.getValueShallowCopy());
+      seeker.rewind();
+      assertEquals(1, seeker.seekToKeyInBlock(kv, true));
+      assertEquals(kvs.get(i - 1), KeyValueUtil.copyToNewKeyValue(seeker.getKeyValue()));
+      // Going on from the cell before
+      assertTrue(seeker.next());
+      assertEquals(kv, KeyValueUtil.copyToNewKeyValue(seeker.getKeyValue()));
+    }
+  }
+
+  @Test
+  public void testEncodingStateReused() throws IOException {
+    HFileBlockEncodingContext encodingCtx = ENCODING.getEncoder().newDataBlockEncodingContext(
+        ENCODING, HConstants.HFILEBLOCK_DUMMY_HEADER, meta);
+    for (int block = 0; block < 3; block++) {
+      List<KeyValue> kvs = createKeyValues(block * ROWS);
+      ByteBuffer encoded = TestDataBlockEncoders.encodeKeyValues(ENCODING, kvs, encodingCtx);
+      assertEquals(kvs.get(0).getKeyLength(),
+          ENCODING.getEncoder().getFirstKeyInBlock(encoded).limit());
+      DataBlockEncoder.EncodedSeeker seeker = createSeeker(encoded);
+      int count = 0;
+      do {
+        assertEquals(kvs.get(count++), KeyValueUtil.copyToNewKeyValue(seeker.getKeyValue()));
+      } while (seeker.next());
+      assertEquals(kvs.size(), count);
+    }
+  }
+
+  private DataBlockEncoder.EncodedSeeker createSeeker(ByteBuffer block) {
+    DataBlockEncoder encoder = ENCODING.getEncoder();
+    DataBlockEncoder.EncodedSeeker seeker = encoder.createSeeker(KeyValue.COMPARATOR,
+        encoder.newDataBlockDecodingContext(meta));
+    seeker.setCurrentBuffer(block);
+    return seeker;
+  }
+
+  /**
+   * Rows with a few of many columns set, in two families, with values and timestamps that
+   * differ between the columns.
+   */
+  private static List<KeyValue> createKeyValues(int firstRow) {
+    List<KeyValue> kvs = new ArrayList<KeyValue>();
+    byte[][] families = { Bytes.toBytes("a"), Bytes.toBytes("b") };
+    for (int row = firstRow; row < firstRow + ROWS; row++) {
+      byte[] rowKey = Bytes.toBytes(String.format("row%05d", row));
+      for (byte[] family : families) {
+        for (int column = row % 3; column < COLUMNS; column += 1 + row % 17) {
+          KeyValue kv = new KeyValue(rowKey, family, Bytes.toBytes(String.format("q%03d", column)),
+              1000L + column, Bytes.toBytes("value" + row * column));
+          kv.setSequenceId(row);
+          kvs.add(kv);
+        }
+      }
+    }
+    return kvs;
+  }
+}
@@ -271,6 +271,12 @@ public class CacheTestUtils {
           throws IOException {
         return deserialize(b);
       }
+
+      @Override
+      public Cacheable deserialize(ByteBuffer b, boolean reuse, MemoryType memType)
+          throws IOException {
+        return deserialize(b);
+      }
     };
 
     final byte[] buf;
@@ -312,10 +318,15 @@ public class CacheTestUtils {
     public BlockType getBlockType() {
       return BlockType.DATA;
     }
+
+    @Override
+    public MemoryType getMemoryType() {
+      return MemoryType.EXCLUSIVE;
+    }
   }
 
 
-  private static HFileBlockPair[] generateHFileBlocks(int blockSize,
+  public static HFileBlockPair[] generateHFileBlocks(int blockSize,
       int numBlocks) {
     HFileBlockPair[] returnedBlocks = new HFileBlockPair[numBlocks];
     Random rand = new Random();
@@ -367,8 +378,16 @@ public class CacheTestUtils {
     return returnedBlocks;
   }
 
-  private static class HFileBlockPair {
+  public static class HFileBlockPair {
     BlockCacheKey blockName;
     HFileBlock block;
+
+    public BlockCacheKey getBlockName() {
+      return this.blockName;
+    }
+
+    public HFileBlock getBlock() {
+      return this.block;
+    }
   }
 }
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheAdmissionPolicy.Caller;
+import org.apache.hadoop.hbase.io.hfile.BlockType.BlockCategory;
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+@Category({SmallTests.class})
+public class TestBlockCacheAdmissionPolicy {
+  private static final int MIN_REQUESTS = 100;
+
+  @Test
+  public void testAdmission() {
+    BlockCacheAdmissionPolicy policy = new BlockCacheAdmissionPolicy(0.2f, MIN_REQUESTS);
+    // Too few lookups to tell yet
+    assertTrue(policy.admit(Caller.SCAN, BlockCategory.DATA));
+    assertTrue(policy.admit(Caller.PREFETCH, BlockCategory.DATA));
+    assertTrue(policy.admit(Caller.WRITE, BlockCategory.DATA));
+    assertFalse(policy.admit(Caller.COMPACTION, BlockCategory.DATA));
+
+    // A full table scan: nothing read again
+    for (int i = 0; i < MIN_REQUESTS; i++) {
+      policy.recordAccess(false);
+    }
+    assertEquals(0, policy.getHitRatio(), 0.001);
+    int admitted = 0;
+    for (int i = 0; i < BlockCacheAdmissionPolicy.ADMIT_ANYWAY_INTERVAL; i++) {
+      if (policy.admit(Caller.SCAN, BlockCategory.DATA)) {
+        admitted++;
+      }
+    }
+    assertEquals(1, admitted);
+    assertEquals(BlockCacheAdmissionPolicy.ADMIT_ANYWAY_INTERVAL - 1,
+      policy.getRejectedCount(Caller.SCAN));
+    assertEquals(1, policy.getRejectedCount(Caller.COMPACTION));
+
+    // Gets, and index and bloom blocks, are always cached
+    assertTrue(policy.admit(Caller.GET, BlockCategory.DATA));
+    assertTrue(policy.admit(Caller.SCAN, BlockCategory.INDEX));
+    assertTrue(policy.admit(Caller.COMPACTION, BlockCategory.BLOOM));
+
+    // Cached blocks being read again
+    for (int i = 0; i < MIN_REQUESTS / 2; i++) {
+      policy.recordAccess(true);
+    }
+    assertTrue(policy.getHitRatio() > 0.2);
+    assertTrue(policy.admit(Caller.PREFETCH, BlockCategory.DATA));
+    assertTrue(policy.admit(Caller.SCAN, BlockCategory.DATA));
+  }
+
+  @Test
+  public void testDecay() {
+    BlockCacheAdmissionPolicy policy = new BlockCacheAdmissionPolicy(0.2f, MIN_REQUESTS);
+    int window = MIN_REQUESTS * BlockCacheAdmissionPolicy.DECAY_FACTOR;
+    for (int i = 0; i < window - 1; i++) {
+      policy.recordAccess(true);
+    }
+    assertEquals(1, policy.getHitRatio(), 0.001);
+    // Misses weigh more once the old hits have been halved
+    for (int i = 0; i < window; i++) {
+      policy.recordAccess(false);
+    }
+    assertTrue(policy.getHitRatio() < 0.5);
+  }
+
+  @Test
+  public void testForFamily() {
+    Configuration conf = HBaseConfiguration.create();
+    TableName tableName = TableName.valueOf("testForFamily");
+    assertNull(BlockCacheAdmissionPolicy.forFamily(conf, tableName, Bytes.toBytes("f")));
+    conf.setBoolean(BlockCacheAdmissionPolicy.ADMISSION_ENABLED_KEY, true);
+    BlockCacheAdmissionPolicy policy =
+        BlockCacheAdmissionPolicy.forFamily(conf, tableName, Bytes.toBytes("f"));
+    assertNotNull(policy);
+    // Shared by the stores of the family in all regions
+    assertSame(policy, BlockCacheAdmissionPolicy.forFamily(conf, tableName, Bytes.toBytes("f")));
+    assertFalse(policy == BlockCacheAdmissionPolicy.forFamily(conf, tableName,
+      Bytes.toBytes("g")));
+  }
+}
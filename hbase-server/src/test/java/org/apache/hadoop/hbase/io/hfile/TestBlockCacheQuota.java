@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+@Category({SmallTests.class})
+public class TestBlockCacheQuota {
+
+  @Test
+  public void testForTable() {
+    Configuration conf = HBaseConfiguration.create();
+    TableName table = TableName.valueOf("ns1", "t1");
+    TableName other = TableName.valueOf("ns1", "t2");
+    assertNull(BlockCacheQuota.forTable(conf, table));
+
+    conf.setFloat("hbase.blockcache.quota.@ns1.max.share", 0.5f);
+    BlockCacheQuota quota = BlockCacheQuota.forTable(conf, table);
+    assertEquals("@ns1", quota.getName());
+    assertEquals(0, quota.getMinShare(), 0.001);
+    assertEquals(0.5, quota.getMaxShare(), 0.001);
+    // All tables of the namespace count against its quota
+    assertSame(quota, BlockCacheQuota.forTable(conf, other));
+
+    // A quota of the table's own comes first
+    conf.setFloat("hbase.blockcache.quota.ns1:t1.min.share", 0.2f);
+    BlockCacheQuota tableQuota = BlockCacheQuota.forTable(conf, table);
+    assertEquals("ns1:t1", tableQuota.getName());
+    assertEquals(0.2, tableQuota.getMinShare(), 0.001);
+    assertEquals(1, tableQuota.getMaxShare(), 0.001);
+    assertFalse(tableQuota.equals(quota));
+
+    conf.setFloat("hbase.blockcache.quota.ns1:t1.max.share", 0.1f);
+    try {
+      BlockCacheQuota.forTable(conf, table);
+      fail("A min share over the max share should not be accepted");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testUsage() {
+    BlockCacheQuota quota = new BlockCacheQuota("testUsage", 0.2f, 0.5f);
+    BlockCacheQuotaUsage usage = new BlockCacheQuotaUsage();
+    BlockCacheKey key = new BlockCacheKey("file", 0, quota);
+    usage.add(new BlockCacheKey("other", 0), 1000);
+    assertTrue(usage.getUsage().isEmpty());
+
+    usage.add(key, 300);
+    assertTrue(usage.isAtMinShare(key, 200, 1000));
+    assertFalse(usage.isAtMinShare(key, 100, 1000));
+    assertFalse(usage.isOverMaxShare(quota, 1000));
+    assertEquals(200, usage.getMinShareBytes(1000));
+
+    usage.add(key, 300);
+    assertTrue(usage.isOverMaxShare(quota, 1000));
+    assertTrue(usage.isAnyOverMaxShare(1000));
+    assertEquals(100, (long) usage.getBytesOverMaxShare(1000).get(quota));
+
+    usage.add(key, -600);
+    assertEquals(0, usage.getUsage(quota));
+    assertFalse(usage.isAnyOverMaxShare(1000));
+  }
+
+  @Test
+  public void testIndexBlocksCachedOnWrite() throws IOException {
+    HBaseTestingUtility util = new HBaseTestingUtility();
+    Configuration conf = util.getConfiguration();
+    // Index chunks small enough for leaf and intermediate index blocks to be written
+    conf.setInt(HFileBlockIndex.MAX_CHUNK_SIZE_KEY, 128);
+    LruBlockCache cache = new LruBlockCache(16 * 1024 * 1024, 1024, false);
+    CacheConfig cacheConf = new CacheConfig(cache, true, false, true, true, true, false, false,
+        false, false);
+    BlockCacheQuota quota = new BlockCacheQuota("testIndexBlocksCachedOnWrite", 0, 0.5f);
+    cacheConf.setQuota(quota);
+    HFile.Writer writer = HFile.getWriterFactory(conf, cacheConf)
+        .withPath(util.getTestFileSystem(), new Path(util.getDataTestDir(), "indexquota"))
+        .withFileContext(new HFileContextBuilder().withBlockSize(1024).build())
+        .withComparator(KeyValue.COMPARATOR)
+        .create();
+    for (int row = 0; row < 1000; row++) {
+      writer.append(new KeyValue(Bytes.toBytes(String.format("row%05d", row)),
+          Bytes.toBytes("family"), Bytes.toBytes("qual"), Bytes.toBytes("value" + row)));
+    }
+    writer.close();
+
+    Set<BlockType> types = EnumSet.noneOf(BlockType.class);
+    for (CachedBlock block : cache) {
+      types.add(block.getBlockType());
+    }
+    assertTrue(types.contains(BlockType.LEAF_INDEX));
+    assertTrue(types.contains(BlockType.INTERMEDIATE_INDEX));
+    // Index blocks count against the quota of the store that wrote them, as data blocks do
+    assertEquals(cache.getCurrentSize(), (long) cache.getQuotaUsage().get(quota));
+    cache.shutdown();
+  }
+}
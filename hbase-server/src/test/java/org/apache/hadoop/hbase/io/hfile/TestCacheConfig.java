@@ -80,6 +80,13 @@ public class TestCacheConfig {
       LOG.info("Deserialized " + b);
       return cacheable;
     }
+
+    @Override
+    public Cacheable deserialize(ByteBuffer b, boolean reuse, Cacheable.MemoryType memType)
+        throws IOException {
+      LOG.info("Deserialized " + b + ", reuse=" + reuse + ", memType=" + memType);
+      return cacheable;
+    }
   };
 
   static class IndexCacheEntry extends DataCacheEntry {
@@ -137,6 +144,11 @@ public class TestCacheConfig {
     public BlockType getBlockType() {
       return BlockType.DATA;
     }
+
+    @Override
+    public MemoryType getMemoryType() {
+      return MemoryType.EXCLUSIVE;
+    }
   };
 
   static class MetaCacheEntry extends DataCacheEntry {
@@ -211,6 +223,15 @@ public class TestCacheConfig {
     assertTrue(cc.getBlockCache() instanceof LruBlockCache);
   }
 
+  @Test
+  public void testCacheConfigTinyLfuBlockCache() {
+    this.conf.set(CacheConfig.BLOCKCACHE_POLICY_KEY, "TinyLFU");
+    CacheConfig cc = new CacheConfig(this.conf);
+    assertTrue(cc.isBlockCacheEnabled());
+    basicBlockCacheOps(cc, false, true);
+    assertTrue(cc.getBlockCache() instanceof TinyLfuBlockCache);
+  }
+
   /**
    * Assert that the caches are deployed with CombinedBlockCache and of the appropriate sizes.
    */
@@ -259,6 +280,32 @@ public class TestCacheConfig {
     assertEquals(bcSize, bc.getMaxSize() / (1024 * 1024));
   }
 
+  /**
+   * Assert that when BUCKET_CACHE_TIERED_KEY is set, the L1, the L2 and the tiers configured
+   * below it are deployed in a TieredBlockCache, each handing its victims down to the next.
+   */
+  @Test
+  public void testTieredBucketCacheConfig() {
+    this.conf.set(HConstants.BUCKET_CACHE_IOENGINE_KEY, "offheap");
+    this.conf.setInt(HConstants.BUCKET_CACHE_SIZE_KEY, 100);
+    this.conf.setBoolean(CacheConfig.BUCKET_CACHE_TIERED_KEY, true);
+    this.conf.set(CacheConfig.BUCKET_CACHE_LOWER_TIERS_IOENGINES_KEY, "heap");
+    this.conf.set(CacheConfig.BUCKET_CACHE_LOWER_TIERS_SIZES_KEY, "50");
+    CacheConfig cc = new CacheConfig(this.conf);
+    basicBlockCacheOps(cc, false, false);
+    assertTrue(cc.getBlockCache() instanceof TieredBlockCache);
+    BlockCache [] bcs = cc.getBlockCache().getBlockCaches();
+    assertEquals(3, bcs.length);
+    assertTrue(bcs[0] instanceof LruBlockCache);
+    LruBlockCache lbc = (LruBlockCache)bcs[0];
+    assertTrue(bcs[1] instanceof BucketCache);
+    BucketCache l2 = (BucketCache)bcs[1];
+    assertEquals(100, l2.getMaxSize() / (1024 * 1024));
+    assertTrue(lbc.getVictimHandler() == l2);
+    assertTrue(bcs[2] instanceof BucketCache);
+    assertEquals(50, ((BucketCache)bcs[2]).getMaxSize() / (1024 * 1024));
+  }
+
   /**
    * Assert that when BUCKET_CACHE_COMBINED_KEY is false, the non-default, that we deploy
    * LruBlockCache as L1 with a BucketCache for L2.
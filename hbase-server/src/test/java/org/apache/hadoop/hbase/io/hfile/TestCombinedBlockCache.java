@@ -18,14 +18,21 @@
 package org.apache.hadoop.hbase.io.hfile;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import org.apache.hadoop.hbase.io.hfile.CacheTestUtils.HFileBlockPair;
 import org.apache.hadoop.hbase.io.hfile.CombinedBlockCache.CombinedCacheStats;
+import org.apache.hadoop.hbase.io.hfile.bucket.BucketCache;
 import org.apache.hadoop.hbase.testclassification.SmallTests;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
 @Category({SmallTests.class})
 public class TestCombinedBlockCache {
+  private static final int BLOCK_SIZE = 8192;
+
   @Test
   public void testCombinedCacheStats() {
     CacheStats lruCacheStats = new CacheStats("lruCacheStats", 2);
@@ -88,4 +95,37 @@ public class TestCombinedBlockCache {
     assertEquals(0.75, stats.getHitRatioPastNPeriods(), delta);
     assertEquals(0.8, stats.getHitCachingRatioPastNPeriods(), delta);
   }
+
+  @Test
+  public void testCacheUnpackedIfHot() throws Exception {
+    LruBlockCache lruCache = new LruBlockCache(1024 * 1024, BLOCK_SIZE, false);
+    BucketCache bucketCache = new BucketCache("heap", 32 * 1024 * 1024, BLOCK_SIZE, null,
+        CacheConfig.DEFAULT_BUCKET_CACHE_WRITER_THREADS,
+        CacheConfig.DEFAULT_BUCKET_CACHE_WRITER_QUEUE, null);
+    CombinedBlockCache cache = new CombinedBlockCache(lruCache, bucketCache, BLOCK_SIZE, 2);
+    try {
+      HFileBlockPair[] blocks = CacheTestUtils.generateHFileBlocks(4096, 2);
+      BlockCacheKey key = blocks[0].getBlockName();
+      // Data blocks go to the bucket cache
+      cache.cacheBlock(key, blocks[0].getBlock());
+      assertFalse(lruCache.containsBlock(key));
+
+      // Unpacked once; not hot yet
+      assertFalse(cache.cacheUnpackedIfHot(key, blocks[1].getBlock()));
+      assertFalse(lruCache.containsBlock(key));
+      // Unpacked again; kept in the L1, the packed block staying in the bucket cache
+      assertTrue(cache.cacheUnpackedIfHot(key, blocks[1].getBlock()));
+      assertSame(blocks[1].getBlock(), cache.getBlock(key, true, false, true));
+      assertEquals(1, bucketCache.getBlockCount());
+      assertEquals(1, bucketCache.getStats().getPromotedCount());
+      assertFalse(cache.cacheUnpackedIfHot(key, blocks[1].getBlock()));
+
+      // Evicted from both
+      assertTrue(cache.evictBlock(key));
+      assertFalse(lruCache.containsBlock(key));
+      assertEquals(0, bucketCache.getBlockCount());
+    } finally {
+      cache.shutdown();
+    }
+  }
 }
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Test reading HFile blocks in the background
+ */
+@Category(SmallTests.class)
+public class TestHFileAsyncBlockRead {
+  private static final HBaseTestingUtility TEST_UTIL = new HBaseTestingUtility();
+  private static final int ROWS = 300;
+
+  private static Configuration conf;
+  private static FileSystem fs;
+  private static Path path;
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws IOException {
+    conf = new Configuration(TEST_UTIL.getConfiguration());
+    conf.setBoolean(HFileReaderV2.SCANNER_READ_AHEAD_KEY, true);
+    fs = TEST_UTIL.getTestFileSystem();
+    path = new Path(TEST_UTIL.getDataTestDir(), "asyncblockread");
+    HFileContext context = new HFileContextBuilder().withBlockSize(1024).build();
+    HFile.Writer writer = HFile.getWriterFactory(conf, new CacheConfig(conf))
+        .withPath(fs, path)
+        .withFileContext(context)
+        .withComparator(KeyValue.COMPARATOR)
+        .create();
+    for (int row = 0; row < ROWS; row++) {
+      writer.append(createKeyValue(row));
+    }
+    writer.close();
+  }
+
+  @Test
+  public void testReadBlockAsync() throws IOException, InterruptedException, ExecutionException {
+    HFileReaderV2 reader = createReader();
+    Future<HFileBlock> read = reader.readBlockAsync(0, -1, false, false, BlockType.DATA, null);
+    HFileBlock block = read.get();
+    HFileBlock expected = reader.readBlock(0, -1, false, true, false, true, BlockType.DATA, null);
+    assertEquals(expected.getBlockType(), block.getBlockType());
+    assertEquals(expected.getOnDiskSizeWithHeader(), block.getOnDiskSizeWithHeader());
+    reader.returnBlock(block);
+    reader.returnBlock(expected);
+    reader.close(true);
+  }
+
+  @Test
+  public void testScanWithReadAhead() throws IOException {
+    HFileReaderV2 reader = createReader();
+    HFileScanner scanner = reader.getScanner(true, false);
+    assertTrue(scanner.seekTo());
+    int count = 0;
+    do {
+      assertEquals(createKeyValue(count), scanner.getKeyValue());
+      count++;
+    } while (scanner.next());
+    assertEquals(ROWS, count);
+
+    // Going elsewhere while a block is read ahead
+    assertTrue(scanner.seekTo());
+    for (int row = 0; row < ROWS; row += 40) {
+      assertEquals(0, scanner.seekTo(createKeyValue(row)));
+      for (int i = 1; i < 10 && row + i < ROWS; i++) {
+        assertTrue(scanner.next());
+      }
+    }
+    scanner.close();
+    // The block read ahead is given up with the scanner
+    assertEquals(0, reader.getBlockReadCount());
+    reader.close(true);
+  }
+
+  @Test
+  public void testSeekAfterReadDataBlockAsync() throws IOException {
+    HFileReaderV2 reader = createReader();
+    HFileScanner scanner = reader.getScanner(true, true);
+    for (int row = 0; row < ROWS; row += 13) {
+      KeyValue kv = createKeyValue(row);
+      long offset = reader.readDataBlockAsync(kv, true);
+      assertTrue(offset >= 0);
+      assertEquals(0, scanner.seekTo(kv));
+      assertEquals(kv, scanner.getKeyValue());
+      reader.cancelBlockRead(offset);
+    }
+    // Not needed after all
+    long offset = reader.readDataBlockAsync(createKeyValue(ROWS - 1), true);
+    assertTrue(offset >= 0);
+    // The read is someone else's, not to be cancelled by a second caller
+    assertEquals(-1, reader.readDataBlockAsync(createKeyValue(ROWS - 1), true));
+    assertEquals(1, reader.getBlockReadCount());
+    reader.cancelBlockRead(offset);
+    assertEquals(0, reader.getBlockReadCount());
+    assertEquals(-1, reader.readDataBlockAsync(KeyValueUtil.createFirstOnRow(Bytes.toBytes("a")),
+      true));
+    scanner.close();
+    reader.close(true);
+  }
+
+  private static HFileReaderV2 createReader() throws IOException {
+    HFile.Reader reader = HFile.createReader(fs, path, new CacheConfig(conf), conf);
+    reader.loadFileInfo();
+    return (HFileReaderV2) reader;
+  }
+
+  private static KeyValue createKeyValue(int row) {
+    return new KeyValue(Bytes.toBytes(String.format("row%05d", row)), Bytes.toBytes("family"),
+        Bytes.toBytes("qual"), 1L, Bytes.toBytes("value" + row));
+  }
+}
@@ -184,6 +184,10 @@ public class TestHFileBlockIndex {
 
       return prevBlock;
     }
+
+    @Override
+    public void returnBlock(HFileBlock block) {
+    }
   }
 
   private void readIndex(boolean useTags) throws IOException {
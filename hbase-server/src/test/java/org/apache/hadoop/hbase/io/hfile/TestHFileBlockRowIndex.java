@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Test seeking in files whose data blocks end with a row index
+ */
+@Category(SmallTests.class)
+public class TestHFileBlockRowIndex {
+  private static final HBaseTestingUtility TEST_UTIL = new HBaseTestingUtility();
+  private static final byte[] FAMILY = Bytes.toBytes("family");
+  private static final int ROWS = 500;
+  private static final int QUALIFIERS = 3;
+
+  @Test
+  public void testSeekV2() throws IOException {
+    testSeek(2, DataBlockEncoding.NONE);
+  }
+
+  @Test
+  public void testSeekV3() throws IOException {
+    testSeek(3, DataBlockEncoding.NONE);
+  }
+
+  @Test
+  public void testEncodedBlocksHaveNoRowIndex() throws IOException {
+    testSeek(2, DataBlockEncoding.FAST_DIFF);
+  }
+
+  private void testSeek(int version, DataBlockEncoding encoding) throws IOException {
+    Configuration conf = new Configuration(TEST_UTIL.getConfiguration());
+    conf.setInt(HFile.FORMAT_VERSION_KEY, version);
+    FileSystem fs = TEST_UTIL.getTestFileSystem();
+    Path path = new Path(TEST_UTIL.getDataTestDir(), "rowindex-" + version + "-" + encoding);
+    CacheConfig cacheConf = new CacheConfig(conf);
+    HFileContext context = new HFileContextBuilder().withBlockSize(1024)
+        .withDataBlockEncoding(encoding).withIncludesRowIndex(true).build();
+    HFile.Writer writer = HFile.getWriterFactory(conf, cacheConf)
+        .withPath(fs, path)
+        .withFileContext(context)
+        .withComparator(KeyValue.COMPARATOR)
+        .create();
+    for (int row = 0; row < ROWS; row++) {
+      for (int q = 0; q < QUALIFIERS; q++) {
+        writer.append(createKeyValue(row, q));
+      }
+    }
+    writer.close();
+
+    HFile.Reader reader = HFile.createReader(fs, path, cacheConf, conf);
+    reader.loadFileInfo();
+    assertEquals(encoding == DataBlockEncoding.NONE,
+      reader.getFileContext().isIncludesRowIndex());
+    HFileScanner scanner = reader.getScanner(false, true);
+
+    // Every cell is found, and nothing but the cells is read
+    assertTrue(scanner.seekTo());
+    int count = 0;
+    do {
+      assertEquals(createKeyValue(count / QUALIFIERS, count % QUALIFIERS),
+        scanner.getKeyValue());
+      count++;
+    } while (scanner.next());
+    assertEquals(ROWS * QUALIFIERS, count);
+
+    for (int row = 0; row < ROWS; row++) {
+      for (int q = 0; q < QUALIFIERS; q++) {
+        KeyValue kv = createKeyValue(row, q);
+        assertEquals(0, scanner.seekTo(kv));
+        assertEquals(kv, scanner.getKeyValue());
+      }
+    }
+
+    // Going forward from the current cell only
+    assertTrue(scanner.seekTo());
+    for (int row = 0; row < ROWS; row += 7) {
+      KeyValue kv = createKeyValue(row, QUALIFIERS - 1);
+      assertEquals(0, scanner.reseekTo(kv));
+      assertEquals(kv, scanner.getKeyValue());
+    }
+
+    for (int row = 1; row < ROWS; row++) {
+      assertTrue(scanner.seekBefore(createKeyValue(row, 0)));
+      assertEquals(createKeyValue(row - 1, QUALIFIERS - 1), scanner.getKeyValue());
+      assertTrue(scanner.seekBefore(createKeyValue(row, 1)));
+      assertEquals(createKeyValue(row, 0), scanner.getKeyValue());
+    }
+    assertFalse(scanner.seekBefore(createKeyValue(0, 0)));
+    reader.close(true);
+  }
+
+  private static KeyValue createKeyValue(int row, int qualifier) {
+    return new KeyValue(Bytes.toBytes(String.format("row%05d", row)), FAMILY,
+        Bytes.toBytes("q" + qualifier), 1L, Bytes.toBytes("value" + row + "-" + qualifier));
+  }
+}
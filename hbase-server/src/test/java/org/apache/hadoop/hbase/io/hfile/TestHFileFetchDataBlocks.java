@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Test {@link HFile.Reader#fetchDataBlocks(List, boolean, boolean)}
+ */
+@Category(SmallTests.class)
+public class TestHFileFetchDataBlocks {
+  private static final HBaseTestingUtility TEST_UTIL = new HBaseTestingUtility();
+  private static final int ROWS = 300;
+  private static final int BLOCK_SIZE = 1024;
+  private static final byte[] FAMILY = Bytes.toBytes("family");
+
+  private static Configuration conf;
+  private static FileSystem fs;
+  private static Path path;
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws IOException {
+    conf = TEST_UTIL.getConfiguration();
+    fs = TEST_UTIL.getTestFileSystem();
+    path = new Path(TEST_UTIL.getDataTestDir(), "fetchdatablocks");
+    HFileContext context = new HFileContextBuilder().withBlockSize(BLOCK_SIZE).build();
+    HFile.Writer writer = HFile.getWriterFactory(conf, new CacheConfig(conf))
+        .withPath(fs, path)
+        .withFileContext(context)
+        .withComparator(KeyValue.COMPARATOR)
+        .create();
+    for (int row = 0; row < ROWS; row++) {
+      writer.append(createKeyValue(row));
+    }
+    writer.close();
+  }
+
+  @Test
+  public void testFetchKeys() throws IOException {
+    LruBlockCache cache = new LruBlockCache(16 * 1024 * 1024, BLOCK_SIZE, false);
+    HFile.Reader reader = createReader(cache);
+    List<Cell> keys = Arrays.<Cell>asList(createKey(250), createKey(10), createKey(12),
+      createKey(100));
+    int fetched = reader.fetchDataBlocks(keys, false, true);
+    assertTrue(fetched >= 3);
+    assertEquals(fetched, cache.getBlockCount());
+    // All cached already
+    assertEquals(0, reader.fetchDataBlocks(keys, false, true));
+
+    HFileScanner scanner = reader.getScanner(true, true);
+    for (Cell key : keys) {
+      scanner.seekTo(key);
+    }
+    assertEquals(0, cache.getStats().getMissCount());
+    assertTrue(cache.getStats().getHitCount() >= keys.size());
+    reader.close(true);
+  }
+
+  @Test
+  public void testFetchToLastKey() throws IOException {
+    LruBlockCache cache = new LruBlockCache(16 * 1024 * 1024, BLOCK_SIZE, false);
+    HFile.Reader reader = createReader(cache);
+    List<Cell> keys = new ArrayList<Cell>();
+    keys.add(createKey(20));
+    keys.add(createKey(150));
+    assertTrue(reader.fetchDataBlocks(keys, true, true) > 2);
+
+    // A short scan over the range finds every block cached
+    HFileScanner scanner = reader.getScanner(true, true);
+    assertEquals(0, scanner.seekTo(createKeyValue(20)));
+    for (int row = 21; row <= 150; row++) {
+      assertTrue(scanner.next());
+      assertEquals(createKeyValue(row), scanner.getKeyValue());
+    }
+    assertEquals(0, cache.getStats().getMissCount());
+    reader.close(true);
+  }
+
+  @Test
+  public void testFetchFirstRowOfBlock() throws IOException {
+    LruBlockCache cache = new LruBlockCache(16 * 1024 * 1024, BLOCK_SIZE, false);
+    HFile.Reader reader = createReader(cache);
+    HFileBlockIndex.BlockIndexReader index = reader.getDataBlockIndexReader();
+    assertTrue(index.getRootBlockCount() > 2);
+    // The index key of the second block sorts between the last row of the first block and the
+    // first row of the second
+    byte[] indexRow = CellUtil.cloneRow(KeyValue.createKeyValueFromKey(index.getRootBlockKey(1)));
+    int row = 0;
+    while (Bytes.compareTo(CellUtil.cloneRow(createKey(row)), indexRow) < 0) {
+      row++;
+    }
+    assertEquals(1, reader.fetchDataBlocks(Arrays.<Cell>asList(createKey(row)), false, true));
+    assertTrue(cache.isBlockCached(new BlockCacheKey(reader.getName(),
+        index.getRootBlockOffset(1))));
+    assertFalse(cache.isBlockCached(new BlockCacheKey(reader.getName(),
+        index.getRootBlockOffset(0))));
+    reader.close(true);
+  }
+
+  private static HFile.Reader createReader(BlockCache cache) throws IOException {
+    CacheConfig cacheConf = new CacheConfig(cache, true, false, false, false, false, false, false,
+        false, false);
+    HFile.Reader reader = HFile.createReader(fs, path, cacheConf, conf);
+    reader.loadFileInfo();
+    return reader;
+  }
+
+  /**
+   * @return the first key of the row in the family, as the store seeks to
+   */
+  private static KeyValue createKey(int row) {
+    return KeyValueUtil.createFirstOnRow(Bytes.toBytes(String.format("row%05d", row)), FAMILY,
+        null);
+  }
+
+  private static KeyValue createKeyValue(int row) {
+    return new KeyValue(Bytes.toBytes(String.format("row%05d", row)), FAMILY,
+        Bytes.toBytes("qual"), 1L, Bytes.toBytes("value" + row));
+  }
+}
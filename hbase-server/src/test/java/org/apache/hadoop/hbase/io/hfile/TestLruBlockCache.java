@@ -19,6 +19,7 @@
 package org.apache.hadoop.hbase.io.hfile;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.nio.ByteBuffer;
@@ -691,6 +692,55 @@ public class TestLruBlockCache {
     assertEquals(0.5, stats.getHitCachingRatioPastNPeriods(), delta);
   }
 
+  @Test
+  public void testCacheQuotas() throws Exception {
+    long maxSize = 100000;
+    long blockSize = calculateBlockSizeDefault(maxSize, 10);
+
+    LruBlockCache cache = new LruBlockCache(maxSize, blockSize, false);
+    BlockCacheQuota hot = new BlockCacheQuota("hot", 0.3f, 1);
+    BlockCacheQuota scanned = new BlockCacheQuota("scanned", 0, 0.3f);
+
+    CachedItem [] hotBlocks = generateFixedBlocks(3, blockSize, "hot", hot);
+    CachedItem [] scannedBlocks = generateFixedBlocks(10, blockSize, "scanned", scanned);
+    CachedItem [] blocks = generateFixedBlocks(10, blockSize, "block", null);
+
+    for (CachedItem block : hotBlocks) {
+      cache.cacheBlock(block.cacheKey, block);
+    }
+    long hotSize = cache.getQuotaUsage().get(hot);
+    assertTrue(hotSize > 0);
+
+    // The scan can only push out its own blocks
+    for (CachedItem block : scannedBlocks) {
+      cache.cacheBlock(block.cacheKey, block);
+    }
+    assertTrue(cache.getQuotaUsage().get(scanned) <= maxSize * 0.3f);
+    assertEquals(scannedBlocks[9], cache.getBlock(scannedBlocks[9].cacheKey, true, false, true));
+    assertNull(cache.getBlock(scannedBlocks[0].cacheKey, true, false, true));
+    assertEquals(hotSize, (long) cache.getQuotaUsage().get(hot));
+
+    // Blocks of tables at their min share are not evicted to make room
+    for (CachedItem block : blocks) {
+      cache.cacheBlock(block.cacheKey, block);
+    }
+    assertTrue(cache.getStats().getEvictionCount() > 0);
+    for (CachedItem block : hotBlocks) {
+      assertEquals(block, cache.getBlock(block.cacheKey, true, false, true));
+    }
+    assertEquals(hotSize, (long) cache.getQuotaUsage().get(hot));
+    assertTrue(cache.heapSize() < maxSize);
+  }
+
+  private CachedItem [] generateFixedBlocks(int numBlocks, long size, String pfx,
+      BlockCacheQuota quota) {
+    CachedItem [] blocks = new CachedItem[numBlocks];
+    for(int i=0;i<numBlocks;i++) {
+      blocks[i] = new CachedItem(pfx + i, (int) size, quota);
+    }
+    return blocks;
+  }
+
   private CachedItem [] generateFixedBlocks(int numBlocks, int size, String pfx) {
     CachedItem [] blocks = new CachedItem[numBlocks];
     for(int i=0;i<numBlocks;i++) {
@@ -742,7 +792,11 @@ public class TestLruBlockCache {
     int size;
 
     CachedItem(String blockName, int size) {
-      this.cacheKey = new BlockCacheKey(blockName, 0);
+      this(blockName, size, null);
+    }
+
+    CachedItem(String blockName, int size, BlockCacheQuota quota) {
+      this.cacheKey = new BlockCacheKey(blockName, 0, quota);
       this.size = size;
     }
 
@@ -778,6 +832,11 @@ public class TestLruBlockCache {
       return BlockType.DATA;
     }
 
+    @Override
+    public MemoryType getMemoryType() {
+      return MemoryType.EXCLUSIVE;
+    }
+
   }
 
 }
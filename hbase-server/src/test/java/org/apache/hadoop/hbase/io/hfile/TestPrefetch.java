@@ -30,6 +30,8 @@ import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.testclassification.SmallTests;
 import org.apache.hadoop.hbase.fs.HFileSystem;
 import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
+import org.apache.hadoop.hbase.util.ManualEnvironmentEdge;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -65,6 +67,52 @@ public class TestPrefetch {
     readStoreFile(storeFile);
   }
 
+  @Test(timeout=60000)
+  public void testPrefetchProgress() throws Exception {
+    Path storeFile = writeStoreFile();
+    String regionName = storeFile.getParent().getParent().getName();
+    readStoreFile(storeFile);
+    long requested = PrefetchExecutor.getRegionPrefetchRequestedSize(regionName);
+    assertTrue(requested > 0);
+    // The ranges cover the file block by block
+    assertEquals(requested, PrefetchExecutor.getRegionPrefetchedSize(regionName));
+
+    PrefetchExecutor.regionClosed(regionName, 0, false);
+    assertEquals(0, PrefetchExecutor.getRegionPrefetchRequestedSize(regionName));
+    assertEquals(0, PrefetchExecutor.getRegionPrefetchedSize(regionName));
+  }
+
+  @Test
+  public void testByteRateLimiter() {
+    ManualEnvironmentEdge edge = new ManualEnvironmentEdge();
+    edge.setValue(1000);
+    EnvironmentEdgeManager.injectEdge(edge);
+    try {
+      PrefetchExecutor.ByteRateLimiter limiter = new PrefetchExecutor.ByteRateLimiter(1000);
+      assertEquals(0, limiter.reserve(500));
+      assertEquals(500, limiter.reserve(500));
+      assertEquals(1000, limiter.reserve(100));
+      edge.incValue(500);
+      assertEquals(600, limiter.reserve(100));
+      // Idle time is not saved up
+      edge.incValue(5000);
+      assertEquals(0, limiter.reserve(1000));
+      assertEquals(1000, limiter.reserve(1000));
+
+      // At 100 MB/s a 64KB block takes 0.625 ms, which is carried over to the next blocks
+      limiter = new PrefetchExecutor.ByteRateLimiter(100 * 1024 * 1024);
+      edge.incValue(5000);
+      for (int i = 0; i < 16; i++) {
+        assertTrue(limiter.reserve(64 * 1024) < 10);
+      }
+      assertEquals(10, limiter.reserve(64 * 1024));
+      edge.incValue(5);
+      assertEquals(5, limiter.reserve(64 * 1024));
+    } finally {
+      EnvironmentEdgeManager.reset();
+    }
+  }
+
   private void readStoreFile(Path storeFilePath) throws Exception {
     // Open the file
     HFileReaderV2 reader = (HFileReaderV2) HFile.createReader(fs,
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Test {@link ScanReadAhead}
+ */
+@Category(SmallTests.class)
+public class TestScanReadAhead {
+  private static final HBaseTestingUtility TEST_UTIL = new HBaseTestingUtility();
+  private static final int ROWS = 3000;
+
+  private static Configuration conf;
+  private static FileSystem fs;
+  private static Path path;
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws IOException {
+    conf = new Configuration(TEST_UTIL.getConfiguration());
+    conf.setBoolean(HFileReaderV2.READ_AHEAD_WINDOW_KEY, true);
+    conf.setInt(HFileReaderV2.READ_AHEAD_WINDOW_MIN_KEY, 4 * 1024);
+    conf.setInt(HFileReaderV2.READ_AHEAD_WINDOW_MAX_KEY, 64 * 1024);
+    fs = TEST_UTIL.getTestFileSystem();
+    path = new Path(TEST_UTIL.getDataTestDir(), "scanreadahead");
+    HFileContext context = new HFileContextBuilder().withBlockSize(1024).build();
+    HFile.Writer writer = HFile.getWriterFactory(conf, new CacheConfig(conf))
+        .withPath(fs, path)
+        .withFileContext(context)
+        .withComparator(KeyValue.COMPARATOR)
+        .create();
+    for (int row = 0; row < ROWS; row++) {
+      writer.append(createKeyValue(row));
+    }
+    writer.close();
+  }
+
+  @Test
+  public void testSequentialScan() throws IOException {
+    HFile.Reader reader = createReader();
+    long before = BlockReadExecutor.getReadAheadBytes();
+    // Positional reads are given up for the windows
+    HFileScanner scanner = reader.getScanner(false, true);
+    assertTrue(scanner.seekTo());
+    boolean readAhead = false;
+    int count = 0;
+    do {
+      assertEquals(createKeyValue(count), scanner.getKeyValue());
+      readAhead |= BlockReadExecutor.getReadAheadBytes() > before;
+      count++;
+    } while (scanner.next());
+    assertEquals(ROWS, count);
+    assertTrue(readAhead);
+    scanner.close();
+    assertEquals(before, BlockReadExecutor.getReadAheadBytes());
+    reader.close(true);
+  }
+
+  @Test
+  public void testSeeksWhileReadingAhead() throws IOException {
+    HFile.Reader reader = createReader();
+    long before = BlockReadExecutor.getReadAheadBytes();
+    HFileScanner scanner = reader.getScanner(true, false);
+    assertTrue(scanner.seekTo());
+    // Stretches going on sequentially, with jumps within the window, back and far ahead
+    int[] starts = { 0, 1000, 1100, 300, 2500 };
+    for (int start : starts) {
+      assertEquals(0, scanner.seekTo(createKeyValue(start)));
+      for (int row = start + 1; row < start + 400 && row < ROWS; row++) {
+        assertTrue(scanner.next());
+        assertEquals(createKeyValue(row), scanner.getKeyValue());
+      }
+    }
+    scanner.close();
+    assertEquals(before, BlockReadExecutor.getReadAheadBytes());
+    reader.close(true);
+  }
+
+  @Test
+  public void testCloseWhileReadingAhead() throws IOException {
+    HFile.Reader reader = createReader();
+    long before = BlockReadExecutor.getReadAheadBytes();
+    HFileScanner scanner = reader.getScanner(true, true);
+    assertTrue(scanner.seekTo());
+    for (int row = 1; row < ROWS / 5; row++) {
+      assertTrue(scanner.next());
+    }
+    assertTrue(BlockReadExecutor.getReadAheadBytes() > before);
+    // The window is given back with the scanner, well before the end of the file
+    scanner.close();
+    assertEquals(before, BlockReadExecutor.getReadAheadBytes());
+    reader.close(true);
+  }
+
+  private static HFile.Reader createReader() throws IOException {
+    HFile.Reader reader = HFile.createReader(fs, path, new CacheConfig(conf), conf);
+    reader.loadFileInfo();
+    return reader;
+  }
+
+  private static KeyValue createKeyValue(int row) {
+    return new KeyValue(Bytes.toBytes(String.format("row%05d", row)), Bytes.toBytes("family"),
+        Bytes.toBytes("qual"), 1L, Bytes.toBytes("value" + row));
+  }
+}
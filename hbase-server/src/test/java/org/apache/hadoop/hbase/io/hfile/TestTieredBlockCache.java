@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.io.hfile.CacheTestUtils.HFileBlockPair;
+import org.apache.hadoop.hbase.io.hfile.TieredBlockCache.TieredCacheStats;
+import org.apache.hadoop.hbase.io.hfile.bucket.BucketCache;
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+@Category({SmallTests.class})
+public class TestTieredBlockCache {
+  private static final int BLOCK_SIZE = 8192;
+
+  @Test
+  public void testTieredCacheStats() {
+    CacheStats l1Stats = new CacheStats("l1Stats", 2);
+    CacheStats l2Stats = new CacheStats("l2Stats", 2);
+    CacheStats l3Stats = new CacheStats("l3Stats", 2);
+    TieredCacheStats stats = new TieredCacheStats(new CacheStats[] { l1Stats, l2Stats, l3Stats });
+
+    double delta = 0.01;
+
+    // a hit in the L1, a hit in the L2, and a lookup missing all three tiers
+    l1Stats.hit(true);
+    l1Stats.miss(true);
+    l2Stats.hit(false);
+    l1Stats.miss(true);
+    l2Stats.miss(true);
+    l3Stats.miss(true);
+
+    assertEquals(3, stats.getRequestCount());
+    assertEquals(2, stats.getRequestCachingCount());
+    assertEquals(1, stats.getMissCount());
+    assertEquals(1, stats.getMissCachingCount());
+    assertEquals(2, stats.getHitCount());
+    assertEquals(1, stats.getHitCachingCount());
+    assertEquals(0.67, stats.getHitRatio(), delta);
+
+    l2Stats.promoted();
+    l1Stats.demoted();
+    l2Stats.demoted();
+    assertEquals(1, stats.getPromotedCount());
+    assertEquals(2, stats.getDemotedCount());
+    assertEquals(3, stats.getTierStats().length);
+
+    stats.rollMetricsPeriod();
+    assertEquals(2, stats.getSumHitCountsPastNPeriods());
+    assertEquals(3, stats.getSumRequestCountsPastNPeriods());
+    assertEquals(1, stats.getSumHitCachingCountsPastNPeriods());
+    assertEquals(2, stats.getSumRequestCachingCountsPastNPeriods());
+  }
+
+  @Test
+  public void testPromotion() throws Exception {
+    LruBlockCache l1 = new LruBlockCache(1024 * 1024, BLOCK_SIZE, false);
+    BucketCache l2 = new BucketCache("heap", 32 * 1024 * 1024, BLOCK_SIZE, null,
+        CacheConfig.DEFAULT_BUCKET_CACHE_WRITER_THREADS,
+        CacheConfig.DEFAULT_BUCKET_CACHE_WRITER_QUEUE, null);
+    BucketCache l3 = new BucketCache("heap", 32 * 1024 * 1024, BLOCK_SIZE, null,
+        CacheConfig.DEFAULT_BUCKET_CACHE_WRITER_THREADS,
+        CacheConfig.DEFAULT_BUCKET_CACHE_WRITER_QUEUE, null);
+    TieredBlockCache cache = new TieredBlockCache(l1, Arrays.asList(l2, l3), BLOCK_SIZE, 2);
+    try {
+      HFileBlockPair block = CacheTestUtils.generateHFileBlocks(4096, 1)[0];
+      BlockCacheKey key = block.getBlockName();
+      // Data blocks go to the first bucket cache
+      cache.cacheBlock(key, block.getBlock());
+      assertFalse(l1.containsBlock(key));
+      assertEquals(1, l2.getBlockCount());
+
+      // Hit once in the L2; not hot yet
+      getAndReturn(cache, key, block);
+      assertFalse(l1.containsBlock(key));
+      // Hit again; promoted to the L1, staying in the L2 as well
+      getAndReturn(cache, key, block);
+      assertTrue(l1.containsBlock(key));
+      assertEquals(1, l2.getStats().getPromotedCount());
+      assertEquals(1, l2.getBlockCount());
+
+      long l1Hits = l1.getStats().getHitCount();
+      long l2Hits = l2.getStats().getHitCount();
+      getAndReturn(cache, key, block);
+      assertEquals(l1Hits + 1, l1.getStats().getHitCount());
+      assertEquals(l2Hits, l2.getStats().getHitCount());
+
+      // Evicted from every tier
+      assertTrue(cache.evictBlock(key));
+      assertNull(cache.getBlock(key, false, false, true));
+      assertEquals(1, cache.getStats().getMissCount());
+    } finally {
+      cache.shutdown();
+    }
+  }
+
+  private static void getAndReturn(TieredBlockCache cache, BlockCacheKey key,
+      HFileBlockPair block) {
+    Cacheable cached = cache.getBlock(key, true, false, true);
+    assertNotNull(cached);
+    assertEquals(block.getBlock(), cached);
+    cache.returnBlock(key, cached);
+  }
+}
@@ -0,0 +1,257 @@
+/**
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.apache.hadoop.hbase.util.ClassSize;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests the TinyLfuBlockCache, alone and on the same access trace as the LruBlockCache.
+ */
+@Category(SmallTests.class)
+public class TestTinyLfuBlockCache {
+  private static final int BLOCK_SIZE = 10 * 1024;
+  private static final int CACHE_BLOCKS = 100;
+  private static final long MAX_SIZE = CACHE_BLOCKS * (BLOCK_SIZE + 1024);
+
+  @Test
+  public void testCacheSimple() {
+    TinyLfuBlockCache cache = new TinyLfuBlockCache(MAX_SIZE, BLOCK_SIZE,
+        TinyLfuBlockCache.DEFAULT_WINDOW_FACTOR, TinyLfuBlockCache.DEFAULT_PROTECTED_FACTOR);
+    CachedItem[] blocks = generateBlocks(10, "block");
+    for (CachedItem block : blocks) {
+      assertNull(cache.getBlock(block.cacheKey, true, false, true));
+    }
+    long expectedSize = 0;
+    for (CachedItem block : blocks) {
+      cache.cacheBlock(block.cacheKey, block);
+      expectedSize += block.heapSize();
+    }
+    assertEquals(blocks.length, cache.getBlockCount());
+    assertTrue(cache.getCurrentSize() > expectedSize);
+    for (CachedItem block : blocks) {
+      assertTrue(cache.getBlock(block.cacheKey, true, false, true) == block);
+    }
+    assertEquals(blocks.length, cache.getStats().getHitCount());
+    assertEquals(blocks.length, cache.getStats().getMissCount());
+    // Read again, all but the one still in the window are protected now
+    assertTrue(cache.getWindowSize() > 0);
+    assertEquals(cache.getCurrentSize() - cache.getWindowSize(), cache.getProtectedSize());
+
+    // Caching again changes nothing
+    cache.cacheBlock(blocks[0].cacheKey, blocks[0]);
+    assertEquals(blocks.length, cache.getBlockCount());
+
+    assertTrue(cache.evictBlock(blocks[0].cacheKey));
+    assertFalse(cache.evictBlock(blocks[0].cacheKey));
+    assertFalse(cache.containsBlock(blocks[0].cacheKey));
+    assertEquals(blocks.length - 1, cache.getBlockCount());
+    assertEquals(blocks.length - 1, cache.evictBlocksByHfileName("block"));
+    assertEquals(0, cache.getBlockCount());
+    assertEquals(0, cache.getCurrentSize());
+    assertEquals(0, cache.getProtectedSize());
+    cache.shutdown();
+  }
+
+  @Test
+  public void testEvictsToMaxSize() {
+    TinyLfuBlockCache cache = new TinyLfuBlockCache(MAX_SIZE, BLOCK_SIZE,
+        TinyLfuBlockCache.DEFAULT_WINDOW_FACTOR, TinyLfuBlockCache.DEFAULT_PROTECTED_FACTOR);
+    CachedItem[] blocks = generateBlocks(CACHE_BLOCKS * 2, "block");
+    for (CachedItem block : blocks) {
+      cache.cacheBlock(block.cacheKey, block);
+      assertTrue(cache.getCurrentSize() <= MAX_SIZE);
+    }
+    assertTrue(cache.getBlockCount() >= CACHE_BLOCKS);
+    assertEquals(blocks.length, cache.getBlockCount() + cache.getStats().getEvictedCount());
+
+    // Shrinking evicts right away
+    cache.setMaxSize(MAX_SIZE / 2);
+    assertTrue(cache.getCurrentSize() <= MAX_SIZE / 2);
+    cache.shutdown();
+  }
+
+  /**
+   * A working set read over and over, then a scan of many more blocks than fit, then the
+   * working set again: all of it is still cached. The LruBlockCache, on the same trace, loses
+   * some of it to the scan.
+   */
+  @Test
+  public void testScanResistance() {
+    TinyLfuBlockCache tinyLfu = new TinyLfuBlockCache(MAX_SIZE, BLOCK_SIZE,
+        TinyLfuBlockCache.DEFAULT_WINDOW_FACTOR, TinyLfuBlockCache.DEFAULT_PROTECTED_FACTOR);
+    LruBlockCache lru = new LruBlockCache(MAX_SIZE, BLOCK_SIZE, false);
+    CachedItem[] hot = generateBlocks(CACHE_BLOCKS * 6 / 10, "hot");
+    CachedItem[] scan = generateBlocks(CACHE_BLOCKS * 10, "scan");
+    int tinyLfuHits = replayTrace(tinyLfu, hot, scan);
+    int lruHits = replayTrace(lru, hot, scan);
+    assertEquals(hot.length, tinyLfuHits);
+    assertTrue("tinyLfuHits=" + tinyLfuHits + ", lruHits=" + lruHits, tinyLfuHits > lruHits);
+    tinyLfu.shutdown();
+    lru.shutdown();
+  }
+
+  /**
+   * @return Hits reading the working set after the scan
+   */
+  private int replayTrace(BlockCache cache, CachedItem[] hot, CachedItem[] scan) {
+    for (int round = 0; round < 5; round++) {
+      for (CachedItem block : hot) {
+        readThrough(cache, block);
+      }
+    }
+    for (CachedItem block : scan) {
+      readThrough(cache, block);
+    }
+    int hits = 0;
+    for (CachedItem block : hot) {
+      if (readThrough(cache, block)) hits++;
+    }
+    return hits;
+  }
+
+  /**
+   * Reads a block the way a reader does, caching it on a miss.
+   * @return Whether it was a hit
+   */
+  private boolean readThrough(BlockCache cache, CachedItem block) {
+    if (cache.getBlock(block.cacheKey, true, false, true) != null) {
+      return true;
+    }
+    cache.cacheBlock(block.cacheKey, block);
+    return false;
+  }
+
+  @Test
+  public void testFrequencySketch() {
+    FrequencySketch sketch = new FrequencySketch(512);
+    int hot = "hot".hashCode();
+    for (int i = 0; i < 20; i++) {
+      sketch.increment(hot);
+    }
+    assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency(hot));
+    for (int i = 0; i < 100; i++) {
+      int item = ("item" + i).hashCode();
+      sketch.increment(item);
+      assertTrue(sketch.frequency(item) >= 1);
+    }
+    assertTrue(sketch.frequency(hot) > sketch.frequency("cold".hashCode()));
+    // Enough increments age all counters
+    for (int i = 0; i < 10 * 512; i++) {
+      sketch.increment(("other" + i).hashCode());
+    }
+    assertTrue(sketch.frequency(hot) < FrequencySketch.MAX_FREQUENCY);
+  }
+
+  @Test
+  public void testCacheQuotas() {
+    TinyLfuBlockCache cache = new TinyLfuBlockCache(MAX_SIZE, BLOCK_SIZE,
+        TinyLfuBlockCache.DEFAULT_WINDOW_FACTOR, TinyLfuBlockCache.DEFAULT_PROTECTED_FACTOR);
+    BlockCacheQuota hot = new BlockCacheQuota("hot", 0.3f, 1);
+    BlockCacheQuota scanned = new BlockCacheQuota("scanned", 0, 0.3f);
+    CachedItem[] hotBlocks = generateBlocks(CACHE_BLOCKS / 4, "hot", hot);
+    CachedItem[] scannedBlocks = generateBlocks(CACHE_BLOCKS, "scanned", scanned);
+    CachedItem[] blocks = generateBlocks(CACHE_BLOCKS * 2, "block", null);
+
+    for (CachedItem block : hotBlocks) {
+      cache.cacheBlock(block.cacheKey, block);
+    }
+    long hotSize = cache.getQuotaUsage().get(hot);
+    assertTrue(hotSize > 0);
+
+    // The scan can only push out its own blocks
+    for (CachedItem block : scannedBlocks) {
+      cache.cacheBlock(block.cacheKey, block);
+    }
+    assertTrue(cache.getQuotaUsage().get(scanned) <= MAX_SIZE * 0.3f);
+    assertTrue(cache.containsBlock(scannedBlocks[CACHE_BLOCKS - 1].cacheKey));
+    assertFalse(cache.containsBlock(scannedBlocks[0].cacheKey));
+    assertEquals(hotSize, (long) cache.getQuotaUsage().get(hot));
+
+    // Blocks of tables at their min share are not evicted to make room
+    for (CachedItem block : blocks) {
+      cache.cacheBlock(block.cacheKey, block);
+    }
+    for (CachedItem block : hotBlocks) {
+      assertTrue(cache.containsBlock(block.cacheKey));
+    }
+    assertEquals(hotSize, (long) cache.getQuotaUsage().get(hot));
+    assertTrue(cache.getCurrentSize() <= MAX_SIZE);
+  }
+
+  private CachedItem[] generateBlocks(int numBlocks, String hfileName) {
+    return generateBlocks(numBlocks, hfileName, null);
+  }
+
+  private CachedItem[] generateBlocks(int numBlocks, String hfileName, BlockCacheQuota quota) {
+    CachedItem[] blocks = new CachedItem[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      blocks[i] = new CachedItem(hfileName, i, BLOCK_SIZE, quota);
+    }
+    return blocks;
+  }
+
+  private static class CachedItem implements Cacheable {
+    BlockCacheKey cacheKey;
+    int size;
+
+    CachedItem(String hfileName, long offset, int size, BlockCacheQuota quota) {
+      this.cacheKey = new BlockCacheKey(hfileName, offset, quota);
+      this.size = size;
+    }
+
+    @Override
+    public long heapSize() {
+      return ClassSize.align(size);
+    }
+
+    @Override
+    public int getSerializedLength() {
+      return 0;
+    }
+
+    @Override
+    public CacheableDeserializer<Cacheable> getDeserializer() {
+      return null;
+    }
+
+    @Override
+    public void serialize(ByteBuffer destination) {
+    }
+
+    @Override
+    public BlockType getBlockType() {
+      return BlockType.DATA;
+    }
+
+    @Override
+    public MemoryType getMemoryType() {
+      return MemoryType.EXCLUSIVE;
+    }
+  }
+}
@@ -19,17 +19,24 @@
 package org.apache.hadoop.hbase.io.hfile.bucket;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
 import org.apache.hadoop.hbase.io.hfile.CacheTestUtils;
+import org.apache.hadoop.hbase.io.hfile.CacheTestUtils.HFileBlockPair;
 import org.apache.hadoop.hbase.io.hfile.Cacheable;
 import org.apache.hadoop.hbase.io.hfile.bucket.BucketAllocator.BucketSizeInfo;
 import org.apache.hadoop.hbase.io.hfile.bucket.BucketAllocator.IndexStatistics;
@@ -166,6 +173,47 @@ public class TestBucketCache {
     assertEquals(0, mAllocator.getUsedSize());
   }
 
+  @Test
+  public void testBucketAllocatorConcurrently() throws Exception {
+    final BucketAllocator mAllocator = cache.getAllocator();
+    final List<Integer> BLOCKSIZES = Arrays.asList(4 * 1024, 8 * 1024, 64 * 1024, 96 * 1024);
+    final Set<Long> allocated = Collections.synchronizedSet(new HashSet<Long>());
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    Thread[] threads = new Thread[BLOCKSIZES.size() * 2];
+    for (int i = 0; i < threads.length; i++) {
+      final int blockSize = BLOCKSIZES.get(i % BLOCKSIZES.size());
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 1000; j++) {
+              long offset;
+              try {
+                offset = mAllocator.allocateBlock(blockSize);
+              } catch (CacheFullException cfe) {
+                continue;
+              }
+              // No other thread may have been given the same allocation
+              if (!allocated.add(offset)) {
+                failed.set(true);
+              }
+              allocated.remove(offset);
+              mAllocator.freeBlock(offset);
+            }
+          } catch (BucketAllocatorException bae) {
+            failed.set(true);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertFalse(failed.get());
+    assertEquals(0, mAllocator.getUsedSize());
+  }
+
   @Test
   public void testCacheSimple() throws Exception {
     CacheTestUtils.testCacheSimple(cache, BLOCK_SIZE, NUM_QUERIES);
@@ -218,4 +266,63 @@ public class TestBucketCache {
     assertTrue(cache.getCurrentSize() > 0L);
     assertTrue("We should have a block!", cache.iterator().hasNext());
   }
+
+  @Test
+  public void testPinnedBlockNotFreed() throws Exception {
+    HFileBlockPair block = CacheTestUtils.generateHFileBlocks(4096, 1)[0];
+    BlockCacheKey key = block.getBlockName();
+    cacheAndWaitUntilFlushedToBucket(cache, key, block.getBlock());
+    Cacheable first = cache.getBlock(key, false, false, false);
+    Cacheable second = cache.getBlock(key, false, false, false);
+    assertEquals(Cacheable.MemoryType.SHARED, first.getMemoryType());
+    assertEquals(block.getBlock(), first);
+    long usedSize = cache.getAllocator().getUsedSize();
+
+    // Evicting a block in use only marks it
+    assertFalse(cache.evictBlock(key));
+    assertNull(cache.getBlock(key, false, false, false));
+    assertEquals(1, cache.getBlockCount());
+    assertEquals(usedSize, cache.getAllocator().getUsedSize());
+    assertTrue(cache.returnBlock(key, first));
+    assertTrue(cache.backingMap.containsKey(key));
+    assertEquals(block.getBlock(), second);
+
+    // Freed once the last reader is done with it
+    assertTrue(cache.returnBlock(key, second));
+    assertFalse(cache.backingMap.containsKey(key));
+    assertEquals(0, cache.getBlockCount());
+    assertTrue(cache.getAllocator().getUsedSize() < usedSize);
+  }
+
+  @Test
+  public void testEvictedBlocksDemoted() throws Exception {
+    BucketCache upper = new BucketCache(ioEngineName, 8 * 1024 * 1024, constructedBlockSize,
+        constructedBlockSizes, writeThreads, writerQLen, persistencePath);
+    upper.setVictimCache(cache);
+    try {
+      HFileBlockPair[] blocks = CacheTestUtils.generateHFileBlocks(4096, 4000);
+      // Overfill it, so some blocks have to be freed
+      for (HFileBlockPair block : blocks) {
+        upper.cacheBlockWithWait(block.getBlockName(), block.getBlock(), false, true);
+      }
+      // Freed asynchronously, by the writer threads
+      int demoted = 0;
+      while (demoted == 0) {
+        Thread.sleep(10);
+        for (HFileBlockPair block : blocks) {
+          if (!upper.backingMap.containsKey(block.getBlockName())) {
+            Cacheable cached = cache.getBlock(block.getBlockName(), false, false, false);
+            if (cached != null) {
+              assertEquals(block.getBlock(), cached);
+              cache.returnBlock(block.getBlockName(), cached);
+              demoted++;
+            }
+          }
+        }
+      }
+      assertTrue(upper.getStats().getDemotedCount() >= demoted);
+    } finally {
+      upper.shutdown();
+    }
+  }
 }
@@ -0,0 +1,253 @@
+/**
+ * Copyright The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile.bucket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
+import org.apache.hadoop.hbase.io.hfile.Cacheable;
+import org.apache.hadoop.hbase.io.hfile.CacheTestUtils.ByteArrayCacheable;
+import org.apache.hadoop.hbase.io.hfile.bucket.BucketCache.BucketEntry;
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests persisting a {@link BucketCache} across restarts.
+ */
+@Category(SmallTests.class)
+public class TestBucketCachePersister {
+  private static final long CAPACITY = 32 * 1024 * 1024;
+  private static final int BLOCK_SIZE = 8192;
+  private static final int[] BUCKET_SIZES = { 4 * 1024 + 1024, 8 * 1024 + 1024 };
+
+  private final HBaseTestingUtility htu = new HBaseTestingUtility();
+  private String cacheFile;
+  private String persistencePath;
+
+  @Before
+  public void setUp() throws IOException {
+    File dir = new File(htu.getDataTestDir().toString());
+    assertTrue(dir.mkdirs() || dir.isDirectory());
+    cacheFile = new File(dir, "bucket.cache").getPath();
+    persistencePath = new File(dir, "bucket.persistence").getPath();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    htu.cleanupTestDir();
+  }
+
+  private BucketCache createCache() throws IOException {
+    return new BucketCache("file:" + cacheFile, CAPACITY, BLOCK_SIZE, BUCKET_SIZES,
+        BucketCache.DEFAULT_WRITER_THREADS, BucketCache.DEFAULT_WRITER_QUEUE_ITEMS,
+        persistencePath, BucketCache.DEFAULT_ERROR_TOLERATION_DURATION, 100);
+  }
+
+  private static void cacheAndWaitUntilFlushed(BucketCache cache, BlockCacheKey key,
+      byte[] data) throws InterruptedException {
+    cache.cacheBlock(key, new ByteArrayCacheable(data));
+    while (!cache.backingMap.containsKey(key)) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static byte[] serialize(Cacheable block) {
+    ByteBuffer bb = ByteBuffer.allocate(block.getSerializedLength());
+    block.serialize(bb);
+    return bb.array();
+  }
+
+  private static byte[] bytes(int length, int seed) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i * 31 + seed);
+    }
+    return data;
+  }
+
+  @Test
+  public void testRestoreOnRestart() throws Exception {
+    BlockCacheKey kept = new BlockCacheKey("kept", 0);
+    BlockCacheKey evicted = new BlockCacheKey("kept", 1000);
+    BlockCacheKey ofRemovedFile = new BlockCacheKey("removed", 0);
+    BucketCache cache = createCache();
+    cacheAndWaitUntilFlushed(cache, kept, bytes(1000, 1));
+    cacheAndWaitUntilFlushed(cache, evicted, bytes(1000, 2));
+    cacheAndWaitUntilFlushed(cache, ofRemovedFile, bytes(3000, 3));
+    assertTrue(cache.evictBlock(evicted));
+    long size = cache.getRealCacheSize();
+    cache.shutdown();
+
+    cache = createCache();
+    try {
+      assertEquals(2, cache.getBlockCount());
+      assertEquals(size, cache.getRealCacheSize());
+      assertTrue(cache.getAllocator().getUsedSize() >= size);
+      assertNull(cache.getBlock(evicted, false, false, false));
+      assertArrayEquals(serialize(new ByteArrayCacheable(bytes(1000, 1))),
+        serialize(cache.getBlock(kept, false, false, false)));
+
+      assertTrue(cache.hasRestoredBlocks());
+      assertEquals(1, cache.evictBlocksOfMissingFiles(Collections.singleton("kept")));
+      assertFalse(cache.hasRestoredBlocks());
+      assertNull(cache.getBlock(ofRemovedFile, false, false, false));
+      assertEquals(1, cache.getBlockCount());
+    } finally {
+      cache.shutdown();
+    }
+  }
+
+  @Test
+  public void testOverwrittenBlockNotServed() throws Exception {
+    BlockCacheKey key = new BlockCacheKey("file", 0);
+    BucketCache cache = createCache();
+    cacheAndWaitUntilFlushed(cache, key, bytes(1000, 1));
+    long offset = cache.backingMap.get(key).offset();
+    cache.shutdown();
+
+    // As if the space went to another block before the eviction was persisted
+    RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+    try {
+      raf.seek(offset + 100);
+      raf.write(bytes(100, 7));
+    } finally {
+      raf.close();
+    }
+
+    cache = createCache();
+    try {
+      assertEquals(1, cache.getBlockCount());
+      assertNull(cache.getBlock(key, false, false, false));
+      assertEquals(0, cache.getBlockCount());
+      assertFalse(cache.backingMap.containsKey(key));
+    } finally {
+      cache.shutdown();
+    }
+  }
+
+  @Test
+  public void testJournalReplay() throws Exception {
+    UniqueIndexMap<Integer> deserialiserMap = new UniqueIndexMap<Integer>();
+    Map<BlockCacheKey, BucketEntry> map = new HashMap<BlockCacheKey, BucketEntry>();
+    BucketCachePersister persister = createPersister();
+    assertFalse(persister.restore(map, deserialiserMap));
+    BlockCacheKey first = new BlockCacheKey("file", 0);
+    BlockCacheKey second = new BlockCacheKey("file", 100);
+    map.put(first, createEntry(0, deserialiserMap));
+    // Writes a checkpoint with the first block
+    persister.checkpoint(map, deserialiserMap);
+
+    BucketEntry secondEntry = createEntry(BUCKET_SIZES[0] * 4, deserialiserMap);
+    persister.added(second, secondEntry);
+    map.put(second, secondEntry);
+    map.remove(first);
+    persister.removed(first, createEntry(0, deserialiserMap));
+    // Goes to the journal
+    persister.checkpoint(map, deserialiserMap);
+    persister.close();
+
+    // A batch torn by a crash
+    FileOutputStream out = new FileOutputStream(persistencePath + ".journal", true);
+    try {
+      out.write(new byte[] { 0, 0, 1, 0, 42 });
+    } finally {
+      out.close();
+    }
+
+    Map<BlockCacheKey, BucketEntry> restored = new HashMap<BlockCacheKey, BucketEntry>();
+    persister = createPersister();
+    assertTrue(persister.restore(restored, new UniqueIndexMap<Integer>()));
+    assertEquals(1, restored.size());
+    BucketEntry entry = restored.get(second);
+    assertEquals(secondEntry.offset(), entry.offset());
+    assertEquals(secondEntry.getLength(), entry.getLength());
+    assertEquals(secondEntry.getChecksum(), entry.getChecksum());
+    assertFalse(entry.isVerified());
+
+    // Appends after the last good batch
+    persister.added(first, createEntry(0, deserialiserMap));
+    persister.checkpoint(restored, deserialiserMap);
+    persister.close();
+    restored.clear();
+    assertTrue(createPersister().restore(restored, new UniqueIndexMap<Integer>()));
+    assertEquals(2, restored.size());
+  }
+
+  @Test
+  public void testCorruptCheckpoint() throws Exception {
+    UniqueIndexMap<Integer> deserialiserMap = new UniqueIndexMap<Integer>();
+    Map<BlockCacheKey, BucketEntry> map = new HashMap<BlockCacheKey, BucketEntry>();
+    map.put(new BlockCacheKey("file", 0), createEntry(0, deserialiserMap));
+    BucketCachePersister persister = createPersister();
+    persister.checkpoint(map, deserialiserMap);
+    persister.close();
+
+    RandomAccessFile raf = new RandomAccessFile(persistencePath, "rw");
+    try {
+      long pos = raf.length() - 20;
+      raf.seek(pos);
+      int b = raf.read();
+      raf.seek(pos);
+      raf.write(~b);
+    } finally {
+      raf.close();
+    }
+    persister = createPersister();
+    try {
+      persister.restore(new HashMap<BlockCacheKey, BucketEntry>(),
+        new UniqueIndexMap<Integer>());
+      fail("Restored a corrupt checkpoint");
+    } catch (IOException ioe) {
+      // expected
+    }
+    persister.reset();
+    assertFalse(new File(persistencePath).exists());
+  }
+
+  private BucketCachePersister createPersister() {
+    return new BucketCachePersister(persistencePath, CAPACITY, FileIOEngine.class.getName(),
+        BUCKET_SIZES);
+  }
+
+  private static BucketEntry createEntry(long offset, UniqueIndexMap<Integer> deserialiserMap) {
+    BucketEntry entry = new BucketEntry(offset, 1004, 1, false);
+    entry.setDeserialiserReference(new ByteArrayCacheable(new byte[0]).getDeserializer(),
+      deserialiserMap);
+    entry.setChecksum((int) offset + 17);
+    return entry;
+  }
+}
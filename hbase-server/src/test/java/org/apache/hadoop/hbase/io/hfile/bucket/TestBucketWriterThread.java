@@ -136,7 +136,7 @@ public class TestBucketWriterThread {
     RAMQueueEntry rqe = q.remove();
     RAMQueueEntry spiedRqe = Mockito.spy(rqe);
     Mockito.doThrow(new IOException("Mocked!")).when(spiedRqe).
-      writeToCache((IOEngine)Mockito.any(), (BucketAllocator)Mockito.any(),
+      writeToCache((IOEngineWriteBatch)Mockito.any(), (BucketAllocator)Mockito.any(),
         (UniqueIndexMap<Integer>)Mockito.any(), (AtomicLong)Mockito.any());
     this.q.add(spiedRqe);
     doDrainOfOneEntry(bc, wt, q);
@@ -159,7 +159,7 @@ public class TestBucketWriterThread {
     BucketEntry mockedBucketEntry = Mockito.mock(BucketEntry.class);
     Mockito.doThrow(cfe).
       doReturn(mockedBucketEntry).
-      when(spiedRqe).writeToCache((IOEngine)Mockito.any(), (BucketAllocator)Mockito.any(),
+      when(spiedRqe).writeToCache((IOEngineWriteBatch)Mockito.any(), (BucketAllocator)Mockito.any(),
         (UniqueIndexMap<Integer>)Mockito.any(), (AtomicLong)Mockito.any());
     this.q.add(spiedRqe);
     doDrainOfOneEntry(bc, wt, q);
@@ -18,6 +18,8 @@
  */
 package org.apache.hadoop.hbase.io.hfile.bucket;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.nio.ByteBuffer;
@@ -72,4 +74,28 @@ public class TestByteBufferIOEngine {
     assert testOffsetAtStartNum == 0;
     assert testOffsetAtEndNum == 0;
   }
+
+  @Test
+  public void testSharedBuffer() throws Exception {
+    int capacity = 32 * 1024 * 1024;
+    ByteBufferIOEngine ioEngine = new ByteBufferIOEngine(capacity, false);
+    byte[] data = new byte[1000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    ioEngine.write(ByteBuffer.wrap(data), 1024);
+    ByteBuffer shared = ioEngine.getSharedBuffer(1024, data.length);
+    assertEquals(0, shared.position());
+    assertEquals(data.length, shared.limit());
+    assertEquals(ByteBuffer.wrap(data), shared);
+
+    // A view, not a copy
+    data[0] = 42;
+    ioEngine.write(ByteBuffer.wrap(data, 0, 1), 1024);
+    assertEquals(42, shared.get(0));
+
+    // Not within one of the underlying buffers
+    assertNull(ioEngine.getSharedBuffer(4 * 1024 * 1024 - 10, 20));
+    assertNull(new ByteBufferIOEngine(capacity, true).getSharedBuffer(1024, data.length));
+  }
 }
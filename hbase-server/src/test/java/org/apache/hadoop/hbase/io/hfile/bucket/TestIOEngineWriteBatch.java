@@ -0,0 +1,98 @@
+/**
+ * Copyright The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile.bucket;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.Mockito;
+
+/**
+ * Basic test for {@link IOEngineWriteBatch}
+ */
+@Category(SmallTests.class)
+public class TestIOEngineWriteBatch {
+  private static final int ALLOCATION_SIZE = 1024;
+
+  @Test
+  public void testWriteBatch() throws Exception {
+    ByteBufferIOEngine ioEngine = Mockito.spy(new ByteBufferIOEngine(1024 * 1024, false));
+    IOEngineWriteBatch batch = new IOEngineWriteBatch(ioEngine, 4 * ALLOCATION_SIZE);
+
+    // Three adjacent allocations in one write, each block made of two buffers
+    for (int i = 0; i < 3; i++) {
+      batch.add(i * ALLOCATION_SIZE, ALLOCATION_SIZE, filled(500, (byte) i),
+        filled(100, (byte) (i + 10)));
+    }
+    Mockito.verify(ioEngine, Mockito.never()).write(Mockito.any(ByteBuffer.class),
+      Mockito.anyLong());
+    // Not adjacent; the batch is written first
+    batch.add(10 * ALLOCATION_SIZE, ALLOCATION_SIZE, filled(600, (byte) 10));
+    Mockito.verify(ioEngine, Mockito.times(1)).write(Mockito.any(ByteBuffer.class),
+      Mockito.anyLong());
+    batch.flush();
+    Mockito.verify(ioEngine, Mockito.times(2)).write(Mockito.any(ByteBuffer.class),
+      Mockito.anyLong());
+
+    for (int i = 0; i < 3; i++) {
+      assertRead(ioEngine, i * ALLOCATION_SIZE, 500, (byte) i);
+      assertRead(ioEngine, i * ALLOCATION_SIZE + 500, 100, (byte) (i + 10));
+    }
+    assertRead(ioEngine, 10 * ALLOCATION_SIZE, 600, (byte) 10);
+
+    // Dropped blocks are never written
+    batch.add(20 * ALLOCATION_SIZE, ALLOCATION_SIZE, filled(600, (byte) 20));
+    batch.clear();
+    batch.flush();
+    Mockito.verify(ioEngine, Mockito.times(2)).write(Mockito.any(ByteBuffer.class),
+      Mockito.anyLong());
+  }
+
+  @Test
+  public void testUnbatched() throws Exception {
+    ByteBufferIOEngine ioEngine = Mockito.spy(new ByteBufferIOEngine(1024 * 1024, false));
+    IOEngineWriteBatch batch = new IOEngineWriteBatch(ioEngine, 0);
+    batch.add(0, ALLOCATION_SIZE, filled(500, (byte) 1), filled(100, (byte) 2));
+    Mockito.verify(ioEngine, Mockito.times(2)).write(Mockito.any(ByteBuffer.class),
+      Mockito.anyLong());
+    assertRead(ioEngine, 0, 500, (byte) 1);
+    assertRead(ioEngine, 500, 100, (byte) 2);
+  }
+
+  private static ByteBuffer filled(int length, byte value) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = value;
+    }
+    return ByteBuffer.wrap(bytes);
+  }
+
+  private static void assertRead(IOEngine ioEngine, long offset, int length, byte value)
+      throws Exception {
+    ByteBuffer dst = ByteBuffer.allocate(length);
+    ioEngine.read(dst, offset);
+    for (int i = 0; i < length; i++) {
+      assertEquals(value, dst.get(i));
+    }
+  }
+}
@@ -180,6 +180,11 @@ public class MetricsRegionServerWrapperStub implements MetricsRegionServerWrappe
     return 418;
   }
 
+  @Override
+  public long getBlockCacheFailedInsertionCount() {
+    return 36;
+  }
+
   @Override
   public double getBlockCacheHitPercent() {
     return 98;
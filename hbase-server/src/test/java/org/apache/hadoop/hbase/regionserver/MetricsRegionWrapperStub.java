@@ -85,6 +85,16 @@ public class MetricsRegionWrapperStub implements MetricsRegionWrapper {
     return 0;
   }
 
+  @Override
+  public long getPrefetchRequestedSize() {
+    return 0;
+  }
+
+  @Override
+  public long getPrefetchedSize() {
+    return 0;
+  }
+
   @Override
   public Map<String, DescriptiveStatistics> getCoprocessorExecutionStatistics() {
     return new HashMap<String, DescriptiveStatistics>();
@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Test the {@link CompactingMemStore} outside of a store, where the pipeline is
+ * merged without dropping versions.
+ */
+@Category(SmallTests.class)
+public class TestCompactingMemStore {
+  private static final byte[] FAMILY = Bytes.toBytes("f");
+  private static final byte[] QUALIFIER = Bytes.toBytes("q");
+
+  private CompactingMemStore memstore;
+
+  @Before
+  public void setUp() throws Exception {
+    Configuration conf = HBaseConfiguration.create();
+    // Never flush in memory on our own, the tests call flushInMemory() explicitly
+    conf.setDouble(CompactingMemStore.IN_MEMORY_FLUSH_FACTOR_KEY, 1000);
+    this.memstore = new CompactingMemStore(conf, KeyValue.COMPARATOR);
+  }
+
+  private static KeyValue kv(int row, long ts) {
+    return new KeyValue(Bytes.toBytes("row" + row), FAMILY, QUALIFIER, ts,
+        Bytes.toBytes("value" + row + "-" + ts));
+  }
+
+  private List<Cell> scanAll(long readPt) throws IOException {
+    List<KeyValueScanner> scanners = memstore.getScanners(readPt);
+    for (KeyValueScanner scanner : scanners) {
+      scanner.seek(KeyValue.LOWESTKEY);
+    }
+    KeyValueHeap heap = new KeyValueHeap(scanners, KeyValue.COMPARATOR);
+    List<Cell> result = new ArrayList<Cell>();
+    for (Cell cell = heap.next(); cell != null; cell = heap.next()) {
+      result.add(cell);
+    }
+    heap.close();
+    return result;
+  }
+
+  @Test
+  public void testFlushInMemoryFlattensActive() throws IOException {
+    for (int i = 0; i < 50; i++) {
+      memstore.add(kv(i, 1));
+    }
+    long sizeBefore = memstore.heapSize();
+    memstore.flushInMemory();
+    assertTrue(memstore.active.isEmpty());
+    assertEquals(1, memstore.pipeline.size());
+    assertTrue(memstore.pipeline.get(0).getCellSet() instanceof CellArraySet);
+    // Dropping the skip list nodes must free heap
+    assertTrue(memstore.heapSize() < sizeBefore);
+    assertEquals(50, scanAll(Long.MAX_VALUE).size());
+    // The region still accounts for the old size until told by the next write
+    assertEquals(sizeBefore - CompactingMemStore.DEEP_OVERHEAD, memstore.getFlushableSize());
+    long delta = memstore.add(kv(100, 1)).getFirst();
+    assertTrue(delta < 0);
+    assertEquals(memstore.heapSize() - CompactingMemStore.DEEP_OVERHEAD,
+        memstore.getFlushableSize());
+  }
+
+  @Test
+  public void testPipelineIsMergedInOrder() throws IOException {
+    for (int round = 0; round < 3; round++) {
+      for (int i = round; i < 10; i += 3) {
+        memstore.add(kv(i, round));
+      }
+      memstore.flushInMemory();
+    }
+    assertEquals(1, memstore.pipeline.size());
+    List<Cell> cells = scanAll(Long.MAX_VALUE);
+    assertEquals(10, cells.size());
+    for (int i = 1; i < cells.size(); i++) {
+      assertTrue(KeyValue.COMPARATOR.compare(cells.get(i - 1), cells.get(i)) < 0);
+    }
+  }
+
+  @Test
+  public void testScannersRespectReadPoint() throws IOException {
+    KeyValue committed = kv(1, 1);
+    committed.setSequenceId(1);
+    KeyValue uncommitted = kv(2, 1);
+    uncommitted.setSequenceId(5);
+    memstore.add(committed);
+    memstore.add(uncommitted);
+    memstore.flushInMemory();
+    assertEquals(1, scanAll(1).size());
+    assertEquals(2, scanAll(5).size());
+  }
+
+  @Test
+  public void testSnapshotTakesActiveAndPipeline() throws IOException {
+    for (int i = 0; i < 5; i++) {
+      memstore.add(kv(i, 1));
+    }
+    memstore.flushInMemory();
+    for (int i = 5; i < 8; i++) {
+      memstore.add(kv(i, 1));
+    }
+    long flushable = memstore.getFlushableSize();
+    MemStoreSnapshot snapshot = memstore.snapshot();
+    assertEquals(8, snapshot.getCellsCount());
+    assertEquals(flushable, snapshot.getSize());
+    assertTrue(memstore.active.isEmpty());
+    assertTrue(memstore.pipeline.isEmpty());
+
+    KeyValueScanner scanner = snapshot.getScanner();
+    int count = 0;
+    Cell prev = null;
+    for (Cell cell = scanner.next(); cell != null; cell = scanner.next()) {
+      if (prev != null) {
+        assertTrue(KeyValue.COMPARATOR.compare(prev, cell) < 0);
+      }
+      prev = cell;
+      count++;
+    }
+    assertEquals(8, count);
+    // Snapshot still readable until cleared
+    assertEquals(8, scanAll(Long.MAX_VALUE).size());
+    memstore.clearSnapshot(snapshot.getId());
+    assertEquals(0, scanAll(Long.MAX_VALUE).size());
+    assertEquals(0, memstore.getFlushableSize());
+  }
+
+  @Test
+  public void testRollbackFromFlatSegment() throws IOException {
+    KeyValue kept = kv(1, 1);
+    KeyValue rolledBack = kv(2, 1);
+    memstore.add(kept);
+    memstore.add(rolledBack);
+    memstore.flushInMemory();
+    memstore.rollback(rolledBack);
+    List<Cell> cells = scanAll(Long.MAX_VALUE);
+    assertEquals(1, cells.size());
+    assertEquals(0, KeyValue.COMPARATOR.compare(kept, cells.get(0)));
+  }
+
+  @Test
+  public void testCellArraySetViews() {
+    CellArraySet set = CellArraySet.copyOf(KeyValue.COMPARATOR, buildSkipList(10));
+    assertEquals(10, set.size());
+    assertEquals(7, set.tailSet(kv(3, 1)).size());
+    assertEquals(6, set.tailSet(kv(3, 1), false).size());
+    assertEquals(3, set.headSet(kv(3, 1)).size());
+    assertEquals(4, set.headSet(kv(3, 1), true).size());
+    assertEquals(0, KeyValue.COMPARATOR.compare(kv(3, 1), set.get(kv(3, 1))));
+    assertNull(set.get(kv(3, 2)));
+    assertFalse(set.tailSet(kv(9, 0)).iterator().hasNext());
+    assertEquals(0, KeyValue.COMPARATOR.compare(kv(9, 1), set.descendingIterator().next()));
+  }
+
+  private static CellSkipListSet buildSkipList(int count) {
+    CellSkipListSet set = new CellSkipListSet(KeyValue.COMPARATOR);
+    for (int i = 0; i < count; i++) {
+      set.add(kv(i, 1));
+    }
+    return set;
+  }
+}
@@ -467,6 +467,42 @@ public class TestDefaultMemStore extends TestCase {
     }
   }
 
+  /**
+   * The flusher's scanner should flatten the snapshot and still see all of it.
+   * @throws IOException
+   */
+  public void testSnapshotIsFlattenedForFlush() throws IOException {
+    addRows(this.memstore);
+    int rowCount = this.memstore.cellSet.size();
+    MemStoreSnapshot snapshot = this.memstore.snapshot();
+    assertFalse(this.memstore.snapshot instanceof CellArraySet);
+    KeyValueScanner scanner = snapshot.getScanner();
+    int count = 0;
+    Cell prev = null;
+    for (Cell cell = scanner.next(); cell != null; cell = scanner.next()) {
+      if (prev != null) {
+        assertTrue(KeyValue.COMPARATOR.compare(prev, cell) < 0);
+      }
+      prev = cell;
+      count++;
+    }
+    scanner.close();
+    assertEquals(rowCount, count);
+    assertTrue(this.memstore.snapshot instanceof CellArraySet);
+    // Readers still see the flat snapshot until it is cleared
+    assertEquals(rowCount, this.memstore.snapshot.size());
+    KeyValueScanner memstoreScanner = this.memstore.getScanners(Long.MAX_VALUE).get(0);
+    memstoreScanner.seek(KeyValue.LOWESTKEY);
+    count = 0;
+    while (memstoreScanner.next() != null) {
+      count++;
+    }
+    memstoreScanner.close();
+    assertEquals(rowCount, count);
+    this.memstore.clearSnapshot(snapshot.getId());
+    assertEquals(0, this.memstore.snapshot.size());
+  }
+
   public void testMultipleVersionsSimple() throws Exception {
     DefaultMemStore m = new DefaultMemStore(new Configuration(), KeyValue.COMPARATOR);
     byte [] row = Bytes.toBytes("testRow");
@@ -576,6 +576,76 @@ public class TestHRegion {
     }
   }
 
+  @Test
+  public void testRecoveredEditsReplayReadAhead() throws Exception {
+    String method = "testRecoveredEditsReplayReadAhead";
+    TableName tableName = TableName.valueOf(method);
+    byte[] family1 = Bytes.toBytes("family1");
+    byte[] family2 = Bytes.toBytes("family2");
+    Configuration conf = new Configuration(CONF);
+    // Readers get well ahead of replay and then have to wait on it
+    conf.setInt(HRegion.RECOVERED_EDITS_REPLAY_THREADS, 2);
+    conf.setInt(HRegion.RECOVERED_EDITS_REPLAY_QUEUE_SIZE, 1);
+    this.region = initHRegion(tableName, method, conf, family1, family2);
+    final WALFactory wals = new WALFactory(conf, null, method);
+    try {
+      Path regiondir = region.getRegionFileSystem().getRegionDir();
+      FileSystem fs = region.getRegionFileSystem().getFileSystem();
+      byte[] regionName = region.getRegionInfo().getEncodedNameAsBytes();
+
+      Path recoveredEditsDir = WALSplitter.getRegionDirRecoveredEditsDir(regiondir);
+
+      long maxSeqId = 1050;
+      long minSeqId = 1000;
+      int editsPerFile = 10;
+
+      for (long i = minSeqId; i <= maxSeqId; i += editsPerFile) {
+        Path recoveredEdits = new Path(recoveredEditsDir,
+            String.format("%019d", i + editsPerFile - 1));
+        fs.create(recoveredEdits);
+        WALProvider.Writer writer = wals.createRecoveredEditsWriter(fs, recoveredEdits);
+        for (long j = i; j < i + editsPerFile; j++) {
+          long time = System.nanoTime();
+          WALEdit edit = new WALEdit();
+          // Two cells a family, so each family gets its cells in one go
+          edit.add(new KeyValue(row, family1, Bytes.toBytes(j), time, KeyValue.Type.Put,
+              Bytes.toBytes(j)));
+          edit.add(new KeyValue(row, family1, Bytes.toBytes(-j), time, KeyValue.Type.Put,
+              Bytes.toBytes(j)));
+          edit.add(new KeyValue(row, family2, Bytes.toBytes(j), time, KeyValue.Type.Put,
+              Bytes.toBytes(j)));
+          edit.add(new KeyValue(row, family2, Bytes.toBytes(-j), time, KeyValue.Type.Put,
+              Bytes.toBytes(j)));
+          writer.append(new WAL.Entry(new HLogKey(regionName, tableName, j, time,
+              HConstants.DEFAULT_CLUSTER_ID), edit));
+        }
+        writer.close();
+      }
+      MonitoredTask status = TaskMonitor.get().createStatus(method);
+      Map<byte[], Long> maxSeqIdInStores = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+      for (Store store : region.getStores().values()) {
+        maxSeqIdInStores.put(store.getColumnFamilyName().getBytes(), minSeqId - 1);
+      }
+      long seqId = region.replayRecoveredEditsIfAny(regiondir, maxSeqIdInStores, null, status);
+      assertEquals(maxSeqId + editsPerFile - 1, seqId);
+      region.getMVCC().initialize(seqId);
+      Result result = region.get(new Get(row));
+      for (long j = minSeqId; j <= seqId; j++) {
+        for (byte[] family : new byte[][] { family1, family2 }) {
+          for (byte[] qualifier : new byte[][] { Bytes.toBytes(j), Bytes.toBytes(-j) }) {
+            List<Cell> kvs = result.getColumnCells(family, qualifier);
+            assertEquals(1, kvs.size());
+            assertArrayEquals(Bytes.toBytes(j), CellUtil.cloneValue(kvs.get(0)));
+          }
+        }
+      }
+    } finally {
+      HRegion.closeHRegion(this.region);
+      this.region = null;
+      wals.close();
+    }
+  }
+
   @Test
   public void testSkipRecoveredEditsReplaySomeIgnored() throws Exception {
     String method = "testSkipRecoveredEditsReplaySomeIgnored";
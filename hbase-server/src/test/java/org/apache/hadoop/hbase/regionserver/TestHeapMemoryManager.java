@@ -338,12 +338,22 @@ public class TestHeapMemoryManager {
       return null;
     }
 
+    @Override
+    public boolean isBlockCached(BlockCacheKey cacheKey) {
+      return false;
+    }
+
     @Override
     public boolean evictBlock(BlockCacheKey cacheKey) {
       stats.evicted(0);
       return false;
     }
 
+    @Override
+    public boolean returnBlock(BlockCacheKey cacheKey, Cacheable block) {
+      return false;
+    }
+
     @Override
     public int evictBlocksByHfileName(String hfileName) {
       stats.evicted(0); // Just assuming only one block for file here.
@@ -83,6 +83,7 @@ public class TestMetricsRegionServer {
     HELPER.assertCounter("blockCacheHitCount", 416, serverSource);
     HELPER.assertCounter("blockCacheMissCount", 417, serverSource);
     HELPER.assertCounter("blockCacheEvictionCount", 418, serverSource);
+    HELPER.assertCounter("blockCacheFailedInsertionCount", 36, serverSource);
     HELPER.assertGauge("blockCacheCountHitPercent", 98, serverSource);
     HELPER.assertGauge("blockCacheExpressHitPercent", 97, serverSource);
     HELPER.assertCounter("updatesBlockedTime", 419, serverSource);
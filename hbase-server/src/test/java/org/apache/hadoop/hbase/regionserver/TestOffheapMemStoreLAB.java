@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.regionserver.HeapMemStoreLAB.Chunk;
+import org.apache.hadoop.hbase.io.util.HeapMemorySizeUtil;
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Test the {@link OffheapMemStoreLAB} and the cells it makes
+ */
+@Category(SmallTests.class)
+public class TestOffheapMemStoreLAB {
+  private final static Configuration conf = new Configuration();
+  private static final byte[] FAMILY = Bytes.toBytes("f");
+  private static final byte[] QUALIFIER = Bytes.toBytes("q");
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+    conf.setLong(HeapMemorySizeUtil.OFFHEAP_MEMSTORE_SIZE_KEY, 64);
+  }
+
+  @Test
+  public void testCopyCellInto() throws IOException {
+    KeyValue kv = new KeyValue(Bytes.toBytes("row"), FAMILY, QUALIFIER, 1234L,
+        Bytes.toBytes("value"));
+    kv.setSequenceId(42);
+    OffheapMemStoreLAB mslab = new OffheapMemStoreLAB(conf);
+    Cell copy = mslab.copyCellInto(kv);
+    assertTrue(copy instanceof OffheapKeyValue);
+    OffheapKeyValue offheapCopy = (OffheapKeyValue) copy;
+    assertTrue(offheapCopy.getValueBuffer().isDirect());
+
+    assertEquals(0, KeyValue.COMPARATOR.compare(kv, copy));
+    assertTrue(CellUtil.matchingRow(kv, copy));
+    assertTrue(CellUtil.matchingFamily(kv, copy));
+    assertTrue(CellUtil.matchingQualifier(kv, copy));
+    assertTrue(CellUtil.matchingValue(kv, copy));
+    assertEquals(kv.getTimestamp(), copy.getTimestamp());
+    assertEquals(kv.getTypeByte(), copy.getTypeByte());
+    assertEquals(42, copy.getSequenceId());
+    assertEquals(0, copy.getTagsLength());
+    // The cell does not keep the copies of its value
+    assertNotSame(copy.getValueArray(), copy.getValueArray());
+
+    // Memstore heap accounting only sees the key
+    assertEquals(kv.getValueLength(), offheapCopy.offHeapSize());
+    assertEquals(offheapCopy.heapSize(), CellUtil.estimatedHeapSizeOf(copy));
+    mslab.close();
+  }
+
+  @Test
+  public void testOffheapChunksAreAccounted() {
+    long usedBefore = MemStoreChunkPool.getOffheapUsedSize();
+    OffheapMemStoreLAB mslab = new OffheapMemStoreLAB(conf);
+    mslab.copyCellInto(new KeyValue(Bytes.toBytes("row"), FAMILY, QUALIFIER,
+        Bytes.toBytes("value")));
+    assertEquals(usedBefore + mslab.chunkSize, MemStoreChunkPool.getOffheapUsedSize());
+    assertEquals(MemStoreChunkPool.getOffheapUsedSize(),
+        new RegionServerAccounting().getGlobalMemstoreOffHeapSize());
+    assertEquals(mslab.chunkSize, mslab.getOffHeapSize());
+    mslab.close();
+    assertEquals(usedBefore, MemStoreChunkPool.getOffheapUsedSize());
+    assertEquals(0, mslab.getOffHeapSize());
+  }
+
+  @Test
+  public void testOffheapChunksAreCapped() {
+    MemStoreChunkPool pool = new MemStoreChunkPool(conf, 1024, 2, 0, true);
+    Chunk chunk = pool.getChunk();
+    assertNotNull(chunk);
+    assertNotNull(pool.getChunk());
+    // No more than the max count of chunks is handed out at once
+    assertNull(pool.getChunk());
+    assertEquals(2 * 1024, pool.getUsedSize());
+    pool.putbackChunk(chunk);
+    assertNotNull(pool.getChunk());
+  }
+
+  @Test
+  public void testMemStoreWithOffheapMSLAB() throws IOException {
+    Configuration memstoreConf = new Configuration(conf);
+    memstoreConf.setBoolean(DefaultMemStore.USEMSLAB_KEY, true);
+    memstoreConf.set(DefaultMemStore.MSLAB_CLASS_NAME, OffheapMemStoreLAB.class.getName());
+    DefaultMemStore memstore = new DefaultMemStore(memstoreConf, KeyValue.COMPARATOR);
+    for (int i = 0; i < 10; i++) {
+      memstore.add(new KeyValue(Bytes.toBytes("row" + i), FAMILY, QUALIFIER,
+          Bytes.toBytes("value" + i)));
+    }
+    List<KeyValueScanner> scanners = memstore.getScanners(Long.MAX_VALUE);
+    KeyValueScanner scanner = scanners.get(0);
+    scanner.seek(KeyValue.LOWESTKEY);
+    int count = 0;
+    for (Cell cell = scanner.next(); cell != null; cell = scanner.next()) {
+      assertTrue(cell instanceof OffheapKeyValue);
+      assertEquals("value" + count, Bytes.toString(CellUtil.cloneValue(cell)));
+      count++;
+    }
+    scanner.close();
+    assertEquals(10, count);
+
+    // The memstore holds the off heap memory until its snapshot is cleared
+    long offHeapSize = memstore.offHeapSize();
+    assertTrue(offHeapSize > 0);
+    MemStoreSnapshot snapshot = memstore.snapshot();
+    assertEquals(offHeapSize, memstore.offHeapSize());
+    memstore.clearSnapshot(snapshot.getId());
+    assertEquals(0, memstore.offHeapSize());
+  }
+}
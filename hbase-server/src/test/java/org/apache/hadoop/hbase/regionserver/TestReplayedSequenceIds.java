@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+@Category(SmallTests.class)
+public class TestReplayedSequenceIds {
+
+  @Test
+  public void testRangesMerge() {
+    ReplayedSequenceIds ids = new ReplayedSequenceIds();
+    for (long seqId = 10; seqId < 20; seqId++) {
+      ids.add(seqId);
+    }
+    assertEquals(1, ids.getRangeCount());
+    // A second batch from another wal, then the gap between filled in out of order
+    for (long seqId = 30; seqId < 40; seqId++) {
+      ids.add(seqId);
+    }
+    assertEquals(2, ids.getRangeCount());
+    for (long seqId = 29; seqId >= 20; seqId--) {
+      ids.add(seqId);
+    }
+    assertEquals(1, ids.getRangeCount());
+    for (long seqId = 10; seqId < 40; seqId++) {
+      assertTrue(ids.contains(seqId));
+    }
+    assertFalse(ids.contains(9));
+    assertFalse(ids.contains(40));
+  }
+
+  @Test
+  public void testAddAgain() {
+    ReplayedSequenceIds ids = new ReplayedSequenceIds();
+    ids.add(5);
+    ids.add(7);
+    ids.add(5);
+    assertEquals(2, ids.getRangeCount());
+    assertFalse(ids.contains(6));
+    ids.add(6);
+    assertEquals(1, ids.getRangeCount());
+    ids.clear();
+    assertFalse(ids.contains(6));
+    assertEquals(0, ids.getRangeCount());
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.testclassification.SmallTests;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+@Category(SmallTests.class)
+public class TestGroupCommitTuner {
+  private static final long MAX_WAIT = TimeUnit.MILLISECONDS.toNanos(2);
+
+  private long now = System.nanoTime();
+
+  @Test
+  public void testOffByDefault() {
+    GroupCommitTuner tuner = new GroupCommitTuner(new Configuration(false));
+    drive(tuner, TimeUnit.MICROSECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(5));
+    assertEquals(0, tuner.getWaitNanos());
+  }
+
+  @Test
+  public void testNoWaitAtLowLoad() {
+    GroupCommitTuner tuner = new GroupCommitTuner(MAX_WAIT);
+    // A sync every 10ms, each taking 1ms: nothing would join a held sync
+    drive(tuner, TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(1));
+    assertEquals(0, tuner.getWaitNanos());
+  }
+
+  @Test
+  public void testWaitWhenSaturated() {
+    GroupCommitTuner tuner = new GroupCommitTuner(MAX_WAIT);
+    // A sync every 100us, each taking 1ms
+    drive(tuner, TimeUnit.MICROSECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(1));
+    long wait = tuner.getWaitNanos();
+    assertTrue(wait > 0);
+    // Capped at a few arrival gaps, well below half a sync
+    assertTrue(wait <= TimeUnit.MICROSECONDS.toNanos(400) + 1);
+
+    // Slower syncs with the same arrivals are capped by the configured maximum
+    drive(tuner, TimeUnit.MICROSECONDS.toNanos(1000), TimeUnit.MILLISECONDS.toNanos(50));
+    assertTrue(tuner.getWaitNanos() <= MAX_WAIT);
+
+    // Load drops off; stop holding syncs
+    drive(tuner, TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(1));
+    assertEquals(0, tuner.getWaitNanos());
+  }
+
+  private void drive(GroupCommitTuner tuner, long gapNanos, long syncNanos) {
+    for (int i = 0; i < 200; i++) {
+      now += gapNanos;
+      tuner.syncRequested(now);
+      tuner.syncCompleted(syncNanos);
+    }
+  }
+}
@@ -52,4 +52,15 @@ public class TestMetricsWAL {
     metricsWAL.postSync(nanos, 1);
     verify(source, times(1)).incrementSyncTime(145);
   }
+
+  @Test
+  public void testPreSync() throws Exception {
+    long nanos = TimeUnit.MILLISECONDS.toNanos(3);
+    MetricsWALSource source = mock(MetricsWALSourceImpl.class);
+    MetricsWAL metricsWAL = new MetricsWAL(source);
+    metricsWAL.preSync(12, 4096, nanos);
+    verify(source, times(1)).incrementAppendsPerSync(12);
+    verify(source, times(1)).incrementBytesPerSync(4096);
+    verify(source, times(1)).incrementSyncWaitTime(3);
+  }
 }
\ No newline at end of file
@@ -25,9 +25,12 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -42,6 +45,7 @@ import org.apache.hadoop.hbase.testclassification.MediumTests;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.coprocessor.CoprocessorHost;
 import org.apache.hadoop.hbase.coprocessor.SampleRegionWALObserver;
+import org.apache.hadoop.hbase.io.compress.Compression;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.wal.WAL;
 import org.apache.hadoop.hbase.wal.WALFactory;
@@ -205,4 +209,131 @@ public class TestProtobufLog {
       }
     }
   }
+
+  /**
+   * An edit bigger than the append buffer may keep makes it grow for that append only; it and
+   * the small edits around it all read back.
+   */
+  @Test
+  public void testLargeEntryLetsAppendBufferGo() throws IOException {
+    Configuration conf = new Configuration(TEST_UTIL.getConfiguration());
+    conf.setInt(ProtobufLogWriter.APPEND_BUFFER_MAX_SIZE_KEY,
+        ProtobufLogWriter.INITIAL_APPEND_BUFFER_SIZE);
+    WALFactory bufferWals = new WALFactory(conf, null, currentTest.getMethodName() + "-buffer");
+    final TableName tableName = TableName.valueOf(currentTest.getMethodName());
+    final byte[] row = Bytes.toBytes("row");
+    final int[] valueSizes = new int[] { 10, ProtobufLogWriter.INITIAL_APPEND_BUFFER_SIZE * 4, 10 };
+    HRegionInfo hri = new HRegionInfo(tableName);
+    Path path = new Path(dir, "tempwal");
+    fs.mkdirs(dir);
+    ProtobufLogWriter writer = (ProtobufLogWriter) bufferWals.createWALWriter(fs, path);
+    try {
+      for (int i = 0; i < valueSizes.length; i++) {
+        WALEdit edit = new WALEdit();
+        edit.add(new KeyValue(row, row, row, i, new byte[valueSizes[i]]));
+        writer.append(new WAL.Entry(new WALKey(hri.getEncodedNameAsBytes(), tableName, i,
+            i, HConstants.DEFAULT_CLUSTER_ID), edit));
+        assertEquals(ProtobufLogWriter.INITIAL_APPEND_BUFFER_SIZE,
+            writer.getAppendBufferCapacity());
+      }
+    } finally {
+      writer.close();
+    }
+    WAL.Reader reader = bufferWals.createReader(fs, path);
+    try {
+      for (int i = 0; i < valueSizes.length; i++) {
+        WAL.Entry entry = reader.next();
+        assertNotNull(entry);
+        assertEquals(i, entry.getKey().getLogSeqNum());
+        assertEquals(valueSizes[i], entry.getEdit().getCells().get(0).getValueLength());
+      }
+      assertNull(reader.next());
+    } finally {
+      reader.close();
+      bufferWals.close();
+    }
+  }
+
+  /**
+   * Entries written in compressed blocks read back, the file is smaller for it, and a position
+   * handed out at the end of a block can be seeked to.
+   */
+  @Test
+  public void testBlockCompression() throws IOException {
+    Configuration conf = new Configuration(TEST_UTIL.getConfiguration());
+    conf.set(ProtobufLogWriter.BLOCK_COMPRESSION_KEY, Compression.Algorithm.GZ.getName());
+    conf.setInt(ProtobufLogWriter.BLOCK_SIZE_KEY, 4 * 1024);
+    WALFactory blockWals = new WALFactory(conf, null, currentTest.getMethodName() + "-blocks");
+    final int recordCount = 100;
+    final int syncEvery = 10;
+    Path path = new Path(dir, "tempwal");
+    Path plainPath = new Path(dir, "plainwal");
+    fs.mkdirs(dir);
+    writeRepetitiveEntries(blockWals, path, recordCount, syncEvery);
+    writeRepetitiveEntries(wals, plainPath, recordCount, syncEvery);
+    assertTrue(fs.getFileStatus(path).getLen() < fs.getFileStatus(plainPath).getLen());
+
+    List<Long> positions = new ArrayList<Long>();
+    WAL.Reader reader = blockWals.createReader(fs, path);
+    try {
+      long position = reader.getPosition();
+      for (int i = 0; i < recordCount; i++) {
+        WAL.Entry entry = reader.next();
+        assertNotNull(entry);
+        assertEquals(i, entry.getKey().getLogSeqNum());
+        assertArrayEquals(Bytes.toBytes("value-value-value-value-" + i),
+            entry.getEdit().getCells().get(0).getValue());
+        if ((i + 1) % syncEvery != 0) {
+          // Still in the block
+          assertEquals(position, reader.getPosition());
+        } else {
+          assertTrue(reader.getPosition() > position);
+          position = reader.getPosition();
+          positions.add(position);
+        }
+      }
+      assertNull(reader.next());
+    } finally {
+      reader.close();
+    }
+    reader = blockWals.createReader(fs, path);
+    try {
+      // Past the third sync; the block of the next ten follows
+      reader.seek(positions.get(2));
+      WAL.Entry entry = reader.next();
+      assertNotNull(entry);
+      assertEquals(3 * syncEvery, entry.getKey().getLogSeqNum());
+      // Back to the block the last entry came from, as after a reset, goes on from the next one
+      assertNotNull(reader.next());
+      long position = reader.getPosition();
+      assertEquals((long) positions.get(2), position);
+      reader.reset();
+      reader.seek(position);
+      entry = reader.next();
+      assertNotNull(entry);
+      assertEquals(3 * syncEvery + 2, entry.getKey().getLogSeqNum());
+    } finally {
+      reader.close();
+      blockWals.close();
+    }
+  }
+
+  private void writeRepetitiveEntries(WALFactory factory, Path path, int count, int syncEvery)
+      throws IOException {
+    final TableName tableName = TableName.valueOf(currentTest.getMethodName());
+    final byte[] row = Bytes.toBytes("row");
+    HRegionInfo hri = new HRegionInfo(tableName);
+    WALProvider.Writer writer = factory.createWALWriter(fs, path);
+    try {
+      for (int i = 0; i < count; i++) {
+        WALEdit edit = new WALEdit();
+        edit.add(new KeyValue(row, row, row, i, Bytes.toBytes("value-value-value-value-" + i)));
+        writer.append(new WAL.Entry(new WALKey(hri.getEncodedNameAsBytes(), tableName, i,
+            i, HConstants.DEFAULT_CLUSTER_ID), edit));
+        if ((i + 1) % syncEvery == 0) writer.sync();
+      }
+    } finally {
+      writer.close();
+    }
+  }
 }
@@ -553,9 +553,9 @@ public class TestWALReplay {
         final AtomicInteger countOfRestoredEdits = new AtomicInteger(0);
         HRegion region3 = new HRegion(basedir, wal3, newFS, newConf, hri, htd, null) {
           @Override
-          protected boolean restoreEdit(Store s, Cell cell) {
-            boolean b = super.restoreEdit(s, cell);
-            countOfRestoredEdits.incrementAndGet();
+          protected boolean restoreEdits(Store s, List<Cell> cells) {
+            boolean b = super.restoreEdits(s, cells);
+            countOfRestoredEdits.addAndGet(cells.size());
             return b;
           }
         };
@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.wal;
+
+import static org.apache.hadoop.hbase.wal.WALFactory.WAL_PROVIDER;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.testclassification.MediumTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TestName;
+
+// imports for things that haven't moved from regionserver.wal yet.
+import org.apache.hadoop.hbase.regionserver.wal.AsyncFSWAL;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+
+@Category(MediumTests.class)
+public class TestAsyncFSWALProvider {
+  protected static final Log LOG = LogFactory.getLog(TestAsyncFSWALProvider.class);
+
+  protected static Configuration conf;
+  protected static FileSystem fs;
+  protected final static HBaseTestingUtility TEST_UTIL = new HBaseTestingUtility();
+
+  @Rule
+  public final TestName currentTest = new TestName();
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+    // Make block sizes small.
+    TEST_UTIL.getConfiguration().setInt("dfs.blocksize", 1024 * 1024);
+    TEST_UTIL.getConfiguration().setInt("dfs.client.socket-timeout", 5000);
+    TEST_UTIL.getConfiguration().set(WAL_PROVIDER, WALFactory.Providers.asyncfs.name());
+    TEST_UTIL.startMiniDFSCluster(3);
+
+    // Set up a working space for our tests.
+    TEST_UTIL.createRootDir();
+    conf = TEST_UTIL.getConfiguration();
+    fs = TEST_UTIL.getDFSCluster().getFileSystem();
+  }
+
+  @AfterClass
+  public static void tearDownAfterClass() throws Exception {
+    TEST_UTIL.shutdownMiniCluster();
+  }
+
+  @Test
+  public void testProviderIsSelectable() throws IOException {
+    final WALFactory wals = new WALFactory(conf, null, currentTest.getMethodName());
+    try {
+      assertTrue(wals.provider instanceof AsyncFSWALProvider);
+      assertTrue(wals.getWAL(Bytes.toBytes("region")) instanceof AsyncFSWAL);
+    } finally {
+      wals.close();
+    }
+  }
+
+  @Test
+  public void testAppendSyncReadOnMiniDFSCluster() throws IOException {
+    appendSyncAndRead(conf, fs);
+  }
+
+  @Test
+  public void testAppendSyncReadOnLocalFileSystem() throws IOException {
+    Configuration localConf = new Configuration(conf);
+    // The checksummed local filesystem holds back partial chunks on flush, use the raw one
+    localConf.setClass("fs.file.impl", RawLocalFileSystem.class, FileSystem.class);
+    localConf.setBoolean("fs.file.impl.disable.cache", true);
+    localConf.set("fs.defaultFS", "file:///");
+    FileSystem localFs = FileSystem.get(localConf);
+    localConf.set(HConstants.HBASE_DIR,
+        localFs.makeQualified(TEST_UTIL.getDataTestDir(currentTest.getMethodName())).toString());
+    appendSyncAndRead(localConf, localFs);
+  }
+
+  /**
+   * Write to a log file with three concurrent threads and verifying all data is written.
+   */
+  @Test
+  public void testConcurrentWrites() throws Exception {
+    int errCode = WALPerformanceEvaluation.innerMain(new Configuration(conf),
+        new String [] {"-threads", "3", "-verify", "-noclosefs", "-iterations", "3000"});
+    assertEquals(0, errCode);
+  }
+
+  /**
+   * Appends and syncs in rounds, each time checking a fresh reader sees all edits synced so far,
+   * then rolls and checks the rolled file is complete.
+   */
+  private void appendSyncAndRead(final Configuration conf, final FileSystem fs)
+      throws IOException {
+    final TableName tableName = TableName.valueOf(currentTest.getMethodName());
+    final byte [] family = Bytes.toBytes("f");
+    HTableDescriptor htd = new HTableDescriptor(tableName);
+    htd.addFamily(new HColumnDescriptor(family));
+    HRegionInfo hri = new HRegionInfo(tableName);
+    final AtomicLong sequenceId = new AtomicLong(1);
+    final int total = 20;
+    final WALFactory wals = new WALFactory(conf, null, currentTest.getMethodName());
+    try {
+      final WAL wal = wals.getWAL(hri.getEncodedNameAsBytes());
+      Path walPath = DefaultWALProvider.getCurrentFileName(wal);
+      for (int round = 1; round <= 3; round++) {
+        for (int i = 0; i < total; i++) {
+          WALEdit cols = new WALEdit();
+          cols.add(new KeyValue(Bytes.toBytes(i), family, family, Bytes.toBytes(round)));
+          wal.append(htd, hri, new WALKey(hri.getEncodedNameAsBytes(), tableName,
+              System.currentTimeMillis()), cols, sequenceId, true, null);
+        }
+        wal.sync();
+        assertEquals(total * round, countEntries(wals, fs, walPath));
+      }
+      wal.rollWriter();
+      assertEquals(total * 3, countEntries(wals, fs, walPath));
+    } finally {
+      wals.close();
+    }
+  }
+
+  private int countEntries(final WALFactory wals, final FileSystem fs, final Path path)
+      throws IOException {
+    WAL.Reader reader = wals.createReader(fs, path);
+    try {
+      int count = 0;
+      while (reader.next() != null) count++;
+      return count;
+    } finally {
+      reader.close();
+    }
+  }
+}
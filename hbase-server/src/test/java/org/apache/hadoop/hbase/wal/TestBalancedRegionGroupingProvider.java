@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.wal;
+
+import static org.apache.hadoop.hbase.wal.BalancedRegionGroupingProvider.BALANCE_INTERVAL;
+import static org.apache.hadoop.hbase.wal.BoundedRegionGroupingProvider.NUM_REGION_GROUPS;
+import static org.apache.hadoop.hbase.wal.WALFactory.WAL_PROVIDER;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.testclassification.MediumTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
+import org.apache.hadoop.hbase.util.FSUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TestName;
+
+// imports for things that haven't moved from regionserver.wal yet.
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+
+@Category(MediumTests.class)
+public class TestBalancedRegionGroupingProvider {
+  private static final long INTERVAL = 100000;
+  private static final byte [] FAMILY = Bytes.toBytes("f");
+
+  protected static Configuration conf;
+  protected final static HBaseTestingUtility TEST_UTIL = new HBaseTestingUtility();
+
+  @Rule
+  public final TestName currentTest = new TestName();
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+    conf = TEST_UTIL.getConfiguration();
+    conf.setInt("dfs.blocksize", 1024 * 1024);
+    conf.set(WAL_PROVIDER, WALFactory.Providers.balancedmultiwal.name());
+    conf.setInt(NUM_REGION_GROUPS, 2);
+    // Only balance when the test says so
+    conf.setLong(BALANCE_INTERVAL, INTERVAL);
+    TEST_UTIL.startMiniDFSCluster(3);
+    FSUtils.setRootDir(conf, TEST_UTIL.getDataTestDirOnTestFS());
+  }
+
+  @AfterClass
+  public static void tearDownAfterClass() throws Exception {
+    TEST_UTIL.shutdownMiniCluster();
+  }
+
+  @Test
+  public void testNewGroupsSpreadOut() throws IOException {
+    final WALFactory wals = new WALFactory(conf, null, currentTest.getMethodName());
+    try {
+      BalancedRegionGroupingProvider provider = (BalancedRegionGroupingProvider)wals.provider;
+      HRegionInfo a = createRegion("a");
+      HRegionInfo b = createRegion("b");
+      wals.getWAL(a.getEncodedNameAsBytes());
+      wals.getWAL(b.getEncodedNameAsBytes());
+      assertNotSame(provider.getGroupWAL(a.getEncodedNameAsBytes()).getCurrentWAL(),
+          provider.getGroupWAL(b.getEncodedNameAsBytes()).getCurrentWAL());
+      // Same group, same WAL
+      assertSame(wals.getWAL(a.getEncodedNameAsBytes()), wals.getWAL(a.getEncodedNameAsBytes()));
+    } finally {
+      wals.close();
+    }
+  }
+
+  @Test
+  public void testHotGroupMovesAtFlush() throws IOException {
+    final WALFactory wals = new WALFactory(conf, null, currentTest.getMethodName());
+    try {
+      BalancedRegionGroupingProvider provider = (BalancedRegionGroupingProvider)wals.provider;
+      // a and c share a WAL, b has the other to itself
+      HRegionInfo a = createRegion("a");
+      HRegionInfo b = createRegion("b");
+      HRegionInfo c = createRegion("c");
+      AtomicLong aSequenceId = new AtomicLong(1);
+      WAL aWAL = wals.getWAL(a.getEncodedNameAsBytes());
+      wals.getWAL(b.getEncodedNameAsBytes());
+      WAL cWAL = wals.getWAL(c.getEncodedNameAsBytes());
+      BalancedRegionGroupingProvider.GroupWAL aGroup =
+          provider.getGroupWAL(a.getEncodedNameAsBytes());
+      WAL from = aGroup.getCurrentWAL();
+      assertSame(from, provider.getGroupWAL(c.getEncodedNameAsBytes()).getCurrentWAL());
+
+      append(aWAL, a, aSequenceId, 20);
+      append(cWAL, c, new AtomicLong(1), 10);
+      final long firstSeqNum = aWAL.getEarliestMemstoreSeqNum(a.getEncodedNameAsBytes());
+      assertTrue(firstSeqNum != HConstants.NO_SEQNUM);
+      provider.balance(EnvironmentEdgeManager.currentTime() + INTERVAL);
+
+      // a is the busier of the two that can move, but it only moves at its next flush
+      assertSame(from, aGroup.getCurrentWAL());
+      assertTrue(aWAL.startCacheFlush(a.getEncodedNameAsBytes()));
+      WAL to = aGroup.getCurrentWAL();
+      assertNotSame(from, to);
+      // New edits go to the new WAL; once flushed, the old one holds nothing of a's
+      append(aWAL, a, aSequenceId, 1);
+      aWAL.completeCacheFlush(a.getEncodedNameAsBytes());
+      assertEquals(HConstants.NO_SEQNUM,
+          from.getEarliestMemstoreSeqNum(a.getEncodedNameAsBytes()));
+      assertTrue(to.getEarliestMemstoreSeqNum(a.getEncodedNameAsBytes()) > firstSeqNum);
+      assertEquals(to.getEarliestMemstoreSeqNum(a.getEncodedNameAsBytes()),
+          aWAL.getEarliestMemstoreSeqNum(a.getEncodedNameAsBytes()));
+    } finally {
+      wals.close();
+    }
+  }
+
+  @Test
+  public void testLoneHotGroupStays() throws IOException {
+    final WALFactory wals = new WALFactory(conf, null, currentTest.getMethodName());
+    try {
+      BalancedRegionGroupingProvider provider = (BalancedRegionGroupingProvider)wals.provider;
+      HRegionInfo a = createRegion("a");
+      WAL aWAL = wals.getWAL(a.getEncodedNameAsBytes());
+      WAL from = provider.getGroupWAL(a.getEncodedNameAsBytes()).getCurrentWAL();
+      append(aWAL, a, new AtomicLong(1), 20);
+      provider.balance(EnvironmentEdgeManager.currentTime() + INTERVAL);
+      // Moving it would just make the other WAL the hot one
+      assertTrue(aWAL.startCacheFlush(a.getEncodedNameAsBytes()));
+      aWAL.completeCacheFlush(a.getEncodedNameAsBytes());
+      assertSame(from, provider.getGroupWAL(a.getEncodedNameAsBytes()).getCurrentWAL());
+    } finally {
+      wals.close();
+    }
+  }
+
+  private HRegionInfo createRegion(final String name) {
+    return new HRegionInfo(TableName.valueOf(currentTest.getMethodName() + "_" + name));
+  }
+
+  private void append(final WAL wal, final HRegionInfo hri, final AtomicLong sequenceId,
+      final int count) throws IOException {
+    HTableDescriptor htd = new HTableDescriptor(hri.getTable());
+    htd.addFamily(new HColumnDescriptor(FAMILY));
+    for (int i = 0; i < count; i++) {
+      WALEdit cols = new WALEdit();
+      cols.add(new KeyValue(Bytes.toBytes(i), FAMILY, FAMILY, Bytes.toBytes(i)));
+      wal.append(htd, hri, new WALKey(hri.getEncodedNameAsBytes(), hri.getTable(),
+          System.currentTimeMillis()), cols, sequenceId, true, null);
+    }
+    wal.sync();
+  }
+}
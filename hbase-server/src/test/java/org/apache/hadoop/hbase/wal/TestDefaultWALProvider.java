@@ -114,6 +114,15 @@ public class TestDefaultWALProvider {
     return "TestDefaultWALProvider";
   }
 
+  @Test
+  public void testGetWALPrefixFromWALName() {
+    String prefix = "hn%2C450%2C1398.regiongroup-0";
+    assertEquals(prefix, DefaultWALProvider.getWALPrefixFromWALName(prefix + ".1398000000000"));
+    assertEquals(prefix, DefaultWALProvider.getWALPrefixFromWALName(prefix + ".1398000000000" +
+        DefaultWALProvider.META_WAL_PROVIDER_ID));
+    assertEquals("", DefaultWALProvider.getWALPrefixFromWALName("log1"));
+  }
+
   @Test
   public void testGetServerNameFromWALDirectoryName() throws IOException {
     ServerName sn = ServerName.valueOf("hn", 450, 1398);
@@ -19,6 +19,8 @@
 package org.apache.hadoop.hbase.wal;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -28,6 +30,7 @@ import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -98,6 +101,8 @@ public final class WALPerformanceEvaluation extends Configured implements Tool {
       TimeUnit.MILLISECONDS);
   private final Histogram latencyHistogram =
     metrics.newHistogram(WALPerformanceEvaluation.class, "latencyHistogram", "nanos", true);
+  // Bytes allocated by benchmark threads, counted as each finishes since dead threads don't say.
+  private final AtomicLong benchmarkAllocatedBytes = new AtomicLong();
 
   private HBaseTestingUtility TEST_UTIL;
 
@@ -198,6 +203,8 @@ public final class WALPerformanceEvaluation extends Configured implements Tool {
         LOG.error(getClass().getSimpleName() + " Thread failed", e);
       } finally {
         threadScope.close();
+        long allocated = getAllocatedBytes(Thread.currentThread().getId());
+        if (allocated > 0) benchmarkAllocatedBytes.addAndGet(allocated);
       }
     }
   }
@@ -334,9 +341,17 @@ public final class WALPerformanceEvaluation extends Configured implements Tool {
               syncInterval, traceFreq));
         }
         ConsoleReporter.enable(this.metrics, 30, TimeUnit.SECONDS);
+        long allocatedBefore = getAllocatedBytes();
         long putTime = runBenchmark(benchmarks, numThreads);
+        long allocatedAfter = getAllocatedBytes();
         logBenchmarkResult("Summary: threads=" + numThreads + ", iterations=" + numIterations +
           ", syncInterval=" + syncInterval, numIterations * numThreads, putTime);
+        if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+          logAllocationResult(allocatedAfter + benchmarkAllocatedBytes.get() - allocatedBefore,
+            numIterations * numThreads, putTime);
+        } else {
+          LOG.info("Allocation rate not reported; this JVM does not count allocated bytes.");
+        }
         
         for (int i = 0; i < numRegions; i++) {
           if (regions[i] != null) {
@@ -442,6 +457,42 @@ public final class WALPerformanceEvaluation extends Configured implements Tool {
     
   }
 
+  private static void logAllocationResult(long allocated, long numTests, long totalTime) {
+    float tsec = totalTime / 1000.0f;
+    LOG.info(String.format("Allocated %d bytes, %.3fMB/s %.1fbytes/op", allocated,
+      allocated / tsec / (1024 * 1024), (double) allocated / numTests));
+  }
+
+  /**
+   * @return Bytes allocated so far by all live threads, or -1 if the JVM does not count them.
+   * Covers the WAL's own appending and syncing threads as well as the benchmark's.
+   */
+  private static long getAllocatedBytes() {
+    com.sun.management.ThreadMXBean bean = getAllocationCountingBean();
+    if (bean == null) return -1;
+    long total = 0;
+    for (long allocated : bean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+      // -1 for threads that went away since we asked for the ids
+      if (allocated > 0) total += allocated;
+    }
+    return total;
+  }
+
+  private static long getAllocatedBytes(final long threadId) {
+    com.sun.management.ThreadMXBean bean = getAllocationCountingBean();
+    return bean == null ? -1 : bean.getThreadAllocatedBytes(threadId);
+  }
+
+  private static com.sun.management.ThreadMXBean getAllocationCountingBean() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+    com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+    if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) {
+      return null;
+    }
+    return sunBean;
+  }
+
   private void printUsageAndExit() {
     System.err.printf("Usage: bin/hbase %s [options]\n", getClass().getName());
     System.err.println(" where [options] are:");